@@ -0,0 +1,195 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.managed;
+
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.resource.ResourcePath;
+import org.forgerock.json.resource.ResourceResponse;
+
+/**
+ * A cache of managed objects read through their {@link ManagedObjectSet}, shared by all managed object types.
+ * <p>
+ * Meant for small, rarely written and frequently read types such as roles and assignments, which are read for every
+ * user when calculating its effective roles and assignments. Any write to a cached type, as well as any write to a
+ * relationship one end of which is a cached type, discards the whole cache: a relationship change alters the
+ * relationship fields of the objects on both ends, and of the objects of other types referring to them.
+ * Entries also expire after a time to live, bounding how long writes made on other cluster nodes go unnoticed.
+ */
+class ManagedObjectCache {
+
+    /** The cached managed object types, such as "managed/role" */
+    private final Set<String> containers = new CopyOnWriteArraySet<String>();
+
+    /** The cached objects, keyed by resource path and requested fields */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Incremented on every invalidation, so that reads started before it are not cached after it */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** How long an entry is valid, in milliseconds */
+    private final long timeToLive;
+
+    /** The number of entries beyond which the cache is emptied */
+    private final int maxEntries;
+
+    private static class Entry {
+        private final ResourceResponse response;
+        private final long expires;
+
+        private Entry(ResourceResponse response, long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param timeToLive how long an entry is valid, in milliseconds
+     * @param maxEntries the number of entries beyond which the cache is emptied
+     */
+    ManagedObjectCache(long timeToLive, int maxEntries) {
+        this.timeToLive = timeToLive;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Caches the objects of a managed object type.
+     *
+     * @param container the managed object type, such as "managed/role"
+     */
+    void register(ResourcePath container) {
+        containers.add(container.toString());
+        invalidate();
+    }
+
+    /**
+     * Stops caching the objects of a managed object type.
+     *
+     * @param container the managed object type, such as "managed/role"
+     */
+    void unregister(ResourcePath container) {
+        containers.remove(container.toString());
+        invalidate();
+    }
+
+    /**
+     * @param container the managed object type, such as "managed/role"
+     * @return true if the objects of the type are cached
+     */
+    boolean isCached(ResourcePath container) {
+        return containers.contains(container.toString());
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the object is read.
+     *
+     * @return the current generation
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns a copy of a cached object.
+     *
+     * @param container the managed object type
+     * @param resourceId the object identifier
+     * @param fields the fields requested
+     * @return the cached object, or null if not cached
+     */
+    ResourceResponse get(ResourcePath container, String resourceId, List<JsonPointer> fields) {
+        String key = key(container, resourceId, fields);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return copy(entry.response);
+    }
+
+    /**
+     * Caches a copy of an object, unless the cache was invalidated since the object was read.
+     *
+     * @param container the managed object type
+     * @param resourceId the object identifier
+     * @param fields the fields requested
+     * @param response the object
+     * @param readGeneration the generation returned by {@link #getGeneration()} before the object was read
+     */
+    synchronized void put(ResourcePath container, String resourceId, List<JsonPointer> fields,
+            ResourceResponse response, long readGeneration) {
+        if (readGeneration != generation.get() || !isCached(container)) {
+            return;
+        }
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+        entries.put(key(container, resourceId, fields),
+                new Entry(copy(response), System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Discards all cached objects.
+     */
+    synchronized void invalidate() {
+        generation.incrementAndGet();
+        entries.clear();
+    }
+
+    /**
+     * Discards all cached objects if any of the referenced objects is of a cached type.
+     *
+     * @param references the managed objects referenced, such as "managed/role/1"
+     */
+    void invalidateReferences(String... references) {
+        for (String reference : references) {
+            if (reference == null) {
+                continue;
+            }
+            ResourcePath container = ResourcePath.valueOf(reference).parent();
+            if (container != null && isCached(container)) {
+                invalidate();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached objects
+     */
+    int size() {
+        return entries.size();
+    }
+
+    private static String key(ResourcePath container, String resourceId, List<JsonPointer> fields) {
+        return container.child(resourceId).toString() + fields;
+    }
+
+    private static ResourceResponse copy(ResourceResponse response) {
+        return newResourceResponse(response.getId(), response.getRevision(), response.getContent().copy());
+    }
+}
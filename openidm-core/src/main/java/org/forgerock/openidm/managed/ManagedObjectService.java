@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2011-2015 ForgeRock AS.
+ * Portions copyright 2011-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.managed;
 
@@ -59,6 +59,7 @@ import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.Router;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.config.enhanced.EnhancedConfig;
+import org.forgerock.openidm.core.IdentityServer;
 import org.forgerock.openidm.core.ServerConstants;
 import org.forgerock.openidm.crypto.CryptoService;
 import org.forgerock.openidm.router.IDMConnectionFactory;
@@ -132,6 +133,15 @@ public class ManagedObjectService implements RequestHandler {
     @Reference(policy = ReferencePolicy.DYNAMIC)
     private EnhancedConfig enhancedConfig;
 
+    /** Boot property for how long cached managed objects are valid, in milliseconds */
+    private static final String PROP_CACHE_TTL = "openidm.managed.cache.ttl";
+
+    /** Boot property for the number of cached managed objects beyond which the cache is emptied */
+    private static final String PROP_CACHE_MAX_ENTRIES = "openidm.managed.cache.maxentries";
+
+    /** The cache of managed objects shared by all managed object sets */
+    private ManagedObjectCache cache;
+
     private final ConcurrentMap<String, RouteMatcher<Request>> managedRoutes = new ConcurrentHashMap<String, RouteMatcher<Request>>();
 
     private final Router managedRouter = new Router();
@@ -215,8 +225,11 @@ public class ManagedObjectService implements RequestHandler {
     @Activate
     protected void activate(ComponentContext context) throws Exception {
         JsonValue configuration = enhancedConfig.getConfigurationAsJson(context);
+        cache = new ManagedObjectCache(
+                Long.parseLong(IdentityServer.getInstance().getProperty(PROP_CACHE_TTL, "60000")),
+                Integer.parseInt(IdentityServer.getInstance().getProperty(PROP_CACHE_MAX_ENTRIES, "10000")));
         for (JsonValue managedObjectConfig : configuration.get("objects").expect(List.class)) {
-            final ManagedObjectSet objectSet = new ManagedObjectSet(scriptRegistry, cryptoService, syncRoute, connectionFactory, managedObjectConfig);
+            final ManagedObjectSet objectSet = new ManagedObjectSet(scriptRegistry, cryptoService, syncRoute, connectionFactory, managedObjectConfig, cache);
             if (managedRoutes.containsKey(objectSet.getName())) {
                 throw new ComponentException("Duplicate definition of managed object type: " + objectSet.getName());
             }
@@ -238,7 +251,7 @@ public class ManagedObjectService implements RequestHandler {
 
         Set<String> routesToKeep = new HashSet<String>();
         for (JsonValue value : configuration.get("objects").expect(List.class)) {
-            ManagedObjectSet objectSet = new ManagedObjectSet(scriptRegistry, cryptoService, syncRoute, connectionFactory, value);
+            ManagedObjectSet objectSet = new ManagedObjectSet(scriptRegistry, cryptoService, syncRoute, connectionFactory, value, cache);
             if (routesToKeep.contains(objectSet.getName())) {
                 throw new ComponentException("Duplicate definition of managed object type: " + objectSet.getName());
             }
@@ -257,6 +270,7 @@ public class ManagedObjectService implements RequestHandler {
                 continue;
             }
             managedRouter.removeRoute(managedRoutes.remove(entry.getKey()));
+            cache.unregister(new ResourcePath("managed").child(entry.getKey()));
         }
     }
 
@@ -270,6 +284,7 @@ public class ManagedObjectService implements RequestHandler {
     protected void deactivate(ComponentContext context) {
         managedRouter.removeAllRoutes();
         managedRoutes.clear();
+        cache = null;
     }
     
     @Override
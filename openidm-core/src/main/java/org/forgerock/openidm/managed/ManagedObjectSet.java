@@ -24,6 +24,7 @@ import static org.forgerock.util.promise.Promises.*;
 
 import javax.script.ScriptException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
@@ -145,6 +146,9 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         onSync
     }
 
+    /** Managed object types cached unless configured otherwise, as they are read for every user */
+    private static final List<String> CACHED_BY_DEFAULT = Arrays.asList("role", "assignment");
+
     /**
      * Setup logging for the {@link ManagedObjectSet}.
      */
@@ -180,6 +184,12 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
     /** Flag for indicating if policy enforcement is enabled */
     private final boolean enforcePolicies;
 
+    /** The cache of managed objects shared by all managed object sets */
+    private final ManagedObjectCache cache;
+
+    /** Flag for indicating if the objects of this set are cached */
+    private final boolean cached;
+
     /**
      * Constructs a new managed object set.
      *
@@ -193,6 +203,8 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
      *            the router connection factory
      * @param config
      *            configuration object to use to initialize managed object set.
+     * @param cache
+     *            the cache of managed objects shared by all managed object sets
      * @throws JsonValueException
      *             when the configuration is malformed
      * @throws ScriptException
@@ -200,8 +212,8 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
      *             invalid.
      */
     public ManagedObjectSet(final ScriptRegistry scriptRegistry, final CryptoService cryptoService,
-            final AtomicReference<RouteService> syncRoute, IDMConnectionFactory connectionFactory, JsonValue config)
-            throws JsonValueException, ScriptException {
+            final AtomicReference<RouteService> syncRoute, IDMConnectionFactory connectionFactory, JsonValue config,
+            final ManagedObjectCache cache) throws JsonValueException, ScriptException {
         this.cryptoService = cryptoService;
         this.syncRoute = syncRoute;
         this.connectionFactory = connectionFactory;
@@ -228,9 +240,35 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         
         enforcePolicies = Boolean.parseBoolean(IdentityServer.getInstance()
                 .getProperty("openidm.policy.enforcement.enabled", "true"));
+
+        this.cache = cache;
+        cached = config.get("cache").defaultTo(CACHED_BY_DEFAULT.contains(name)).asBoolean() && isCacheable();
+        if (cached) {
+            cache.register(managedObjectPath);
+        } else {
+            cache.unregister(managedObjectPath);
+        }
         logger.debug("Instantiated managed object set: {}", name);
     }
 
+    /**
+     * Returns whether the objects read are independent of the request and time, so that they can be cached: no
+     * script runs when they are read, and they have no virtual properties.
+     *
+     * @return true if the objects of this set can be cached
+     */
+    private boolean isCacheable() {
+        if (scriptHooks.containsKey(onRead) || scriptHooks.containsKey(ScriptHook.onRetrieve)) {
+            return false;
+        }
+        for (SchemaField field : schema.getFields().values()) {
+            if (field.isVirtual() || field.hasOnRetrieveScript()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Generates a fully-qualified object identifier for the managed object.
      *
@@ -513,6 +551,7 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         UpdateRequest updateRequest = Requests.newUpdateRequest(repoId(resourceId), decryptedNew);
         updateRequest.setRevision(rev);
         ResourceResponse response = connectionFactory.getConnection().update(context, updateRequest);
+        invalidateCache();
         JsonValue responseContent = response.getContent();
 
         // Put relationships back in before we respond
@@ -536,6 +575,20 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         return readResponse;
     }
 
+    @Override
+    public void relationshipChanged(String... references) {
+        cache.invalidateReferences(references);
+    }
+
+    /**
+     * Discards the cached managed objects after an object of this set was written.
+     */
+    private void invalidateCache() {
+        if (cached) {
+            cache.invalidate();
+        }
+    }
+
     /**
      * It is possible that a script updates a relationship field in one of the updated objects. If this is the case,
      * the relationshipFields set must be updated with this field name, so that the corresponding relationships can
@@ -723,6 +776,7 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
             // Persist the managed object in the repository
             CreateRequest createRequest = Requests.newCreateRequest(repoId(null), resourceId, value);
             ResourceResponse createResponse = connectionFactory.getConnection().create(managedContext, createRequest);
+            invalidateCache();
             content = createResponse.getContent();
             resourceId = createResponse.getId();
 
@@ -760,15 +814,25 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
         logger.debug("Read name={} id={}", name, resourceId);
         Context managedContext = new ManagedObjectContext(context);
         try {
-
-            ReadRequest readRequest = Requests.newReadRequest(repoId(resourceId));
-            ResourceResponse readResponse = connectionFactory.getConnection().read(managedContext, readRequest);
-
-            final JsonValue relationships = fetchRelationshipFields(managedContext, resourceId, request.getFields());
-            readResponse.getContent().asMap().putAll(relationships.asMap());
-
-            onRetrieve(managedContext, request, resourceId, readResponse);
-            execScript(managedContext, onRead, readResponse.getContent(), null);
+            ResourceResponse readResponse = cached
+                    ? cache.get(managedObjectPath, resourceId, request.getFields())
+                    : null;
+            if (readResponse == null) {
+                final long generation = cache.getGeneration();
+
+                ReadRequest readRequest = Requests.newReadRequest(repoId(resourceId));
+                readResponse = connectionFactory.getConnection().read(managedContext, readRequest);
+
+                final JsonValue relationships = fetchRelationshipFields(managedContext, resourceId,
+                        request.getFields());
+                readResponse.getContent().asMap().putAll(relationships.asMap());
+
+                onRetrieve(managedContext, request, resourceId, readResponse);
+                execScript(managedContext, onRead, readResponse.getContent(), null);
+                if (cached) {
+                    cache.put(managedObjectPath, resourceId, request.getFields(), readResponse, generation);
+                }
+            }
             activityLogger.log(managedContext, request, "read", managedId(readResponse.getId()).toString(),
                     null, readResponse.getContent(), Status.SUCCESS);
             
@@ -941,6 +1005,7 @@ class ManagedObjectSet implements CollectionResourceProvider, ScriptListener, Ma
             }
 
             connectionFactory.getConnection().delete(managedContext, deleteRequest);
+            invalidateCache();
 
             // Delete any relationships associated with this resource
             final List<Promise<JsonValue, ResourceException>> deleted = new ArrayList<>();
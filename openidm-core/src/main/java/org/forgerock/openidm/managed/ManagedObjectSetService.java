@@ -47,4 +47,12 @@ public interface ManagedObjectSetService {
     public ResourceResponse update(final Context context, Request request, String resourceId, String rev,
             JsonValue oldValue, JsonValue newValue, Set<JsonPointer> relationshipFields)
             throws ResourceException;
+
+    /**
+     * Notifies that a relationship between managed objects was created, updated or deleted, which changes the
+     * relationship fields of the objects on either end.
+     *
+     * @param references the managed objects on either end of the relationship, such as "managed/role/1"
+     */
+    public void relationshipChanged(String... references);
 }
@@ -247,7 +247,8 @@ public abstract class RelationshipProvider {
                 @Override
                 protected Promise<ResourceResponse, ResourceException> invokeRequest(Context context,
                         CreateRequest request) throws ResourceException {
-                    return getConnection().createAsync(context, request);
+                    return getConnection().createAsync(context, request)
+                            .thenOnResult(relationshipChanged(request.getContent()));
                 }
             };
 
@@ -621,7 +622,8 @@ public abstract class RelationshipProvider {
                                 deleteRequest.setRevision(readResponse.getRevision());
                             }
                             return syncReferencedObjectDeleteHandler.performRequest(readResponse.getContent(),
-                                    deleteRequest, context);
+                                    deleteRequest, context)
+                                    .thenOnResult(relationshipChanged(readResponse.getContent()));
                         }
                     }).then(formatResponse(context, deleteRequest));
         } catch (ResourceException e) {
@@ -656,10 +658,31 @@ public abstract class RelationshipProvider {
                     Requests.newUpdateRequest(REPO_RESOURCE_PATH.child(id), newValue).setRevision(rev);
             return syncReferencedObjectUpdateHandler
                     .performRequest(newValue, updateRequest, context)
+                    .thenOnResult(relationshipChanged(oldResource.getContent(), newValue))
                     .then(formatResponse(context, request));
         }
     }
 
+    /**
+     * Returns a handler notifying the {@link ManagedObjectSetService} of the objects on either end of relationships
+     * once they are written.
+     *
+     * @param relationships the relationships written, in the repository format
+     * @return a handler notifying the objects on either end of the relationships
+     */
+    private ResultHandler<ResourceResponse> relationshipChanged(final JsonValue... relationships) {
+        return new ResultHandler<ResourceResponse>() {
+            @Override
+            public void handleResult(ResourceResponse result) {
+                for (JsonValue relationship : relationships) {
+                    managedObjectSetService.relationshipChanged(
+                            relationship.get(REPO_FIELD_FIRST_ID).asString(),
+                            relationship.get(REPO_FIELD_SECOND_ID).asString());
+                }
+            }
+        };
+    }
+
     /**
      * Patch a relationship instance. Used by RequestHandler child classes.
      *
@@ -317,6 +317,15 @@ public class SchemaField {
         return validationRequired;
     }
     
+    /**
+     * Returns true if an {@code onRetrieve} script is defined for the field.
+     *
+     * @return true if an {@code onRetrieve} script is defined for the field.
+     */
+    boolean hasOnRetrieveScript() {
+        return onRetrieve != null;
+    }
+
     /**
      * Returns a boolean indicating if the property is private.
      * 
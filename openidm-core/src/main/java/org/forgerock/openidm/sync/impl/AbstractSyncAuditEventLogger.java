@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2015 ForgeRock AS.
+ * Portions copyright 2015-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -182,7 +182,34 @@ public abstract class AbstractSyncAuditEventLogger<T extends AbstractSyncAuditEv
      * @throws ResourceException
      */
     public final void log(ConnectionFactory connectionFactory) throws ResourceException {
+        JsonValue auditEvent = buildAuditEvent();
+        try {
+            connectionFactory.getConnection().create(context,
+                    Requests.newCreateRequest(getAuditPath(), auditEvent));
+        } catch (ResourceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InternalServerErrorException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Calls buildAuditEvent() and queues the event for asynchronous publication to the audit path.
+     *
+     * @param auditQueue the queue to publish the event with
+     * @throws ResourceException if the event could not be built
+     */
+    final void log(SyncAuditQueue auditQueue) throws ResourceException {
+        auditQueue.publish(context, getAuditPath(), buildAuditEvent());
+    }
 
+    /**
+     * Builds the audit event from the fields set.
+     *
+     * @return the audit event
+     * @throws ResourceException if the event could not be built
+     */
+    private JsonValue buildAuditEvent() throws ResourceException {
         try {
             T eventBuilder = getEventBuilder()
                     .transactionIdFromContext(context)
@@ -202,11 +229,7 @@ public abstract class AbstractSyncAuditEventLogger<T extends AbstractSyncAuditEv
                     .targetObjectId(targetObjectId);
 
             AuditEvent auditEvent = applyCustomFields(eventBuilder).toEvent();
-
-            connectionFactory.getConnection().create(context,
-                    Requests.newCreateRequest(getAuditPath(), auditEvent.getValue()));
-        } catch (ResourceException e) {
-            throw e;
+            return auditEvent.getValue();
         } catch (Exception e) {
             throw new InternalServerErrorException(e.getMessage(), e);
         }
@@ -0,0 +1,144 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of recon tasks in flight, adjusting the limit to the observed task latency and failures
+ * by additive increase and multiplicative decrease (AIMD).
+ * <p>
+ * The limit starts at its minimum and doubles with each window of completed tasks (one window being as many
+ * tasks as the limit) until the first decrease, then grows by one per window. Once per window at most, the
+ * limit is decreased to 90% if the smoothed task latency exceeds the tolerated multiple of the lowest smoothed
+ * latency observed, and halved if tasks failed.
+ */
+class AdaptiveFeedLimit {
+
+    /** The weight of a latency sample in the smoothed latency */
+    private static final double SMOOTHING = 0.1;
+    /** The number of samples before the smoothed latency is considered as the baseline */
+    private static final int WARMUP_SAMPLES = 10;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double FAILURE_BACKOFF = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+
+    private double limit;
+    private boolean slowStart = true;
+    private int windowCompleted;
+    private boolean decreasedInWindow;
+
+    private long samples;
+    private double smoothedLatency;
+    private double baselineLatency = Double.MAX_VALUE;
+    private long lastLatency;
+    private long failures;
+    private long decreases;
+
+    /**
+     * @param minLimit the minimum number of tasks in flight, at least 1
+     * @param maxLimit the maximum number of tasks in flight
+     * @param latencyTolerance the multiple of the baseline latency tolerated before decreasing the limit
+     */
+    AdaptiveFeedLimit(int minLimit, int maxLimit, double latencyTolerance) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid feed size range " + minLimit + " to " + maxLimit);
+        }
+        if (latencyTolerance <= 1.0) {
+            throw new IllegalArgumentException("Latency tolerance has to be greater than 1: " + latencyTolerance);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = minLimit;
+    }
+
+    /**
+     * @return the current number of tasks allowed in flight
+     */
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Records the completion of a task.
+     *
+     * @param latencyNanos the time the task took to execute, in nanoseconds
+     * @param failed whether the task, or any other task since the previous completion, failed
+     */
+    synchronized void completed(long latencyNanos, boolean failed) {
+        lastLatency = latencyNanos;
+        smoothedLatency = samples == 0
+                ? latencyNanos
+                : smoothedLatency + SMOOTHING * (latencyNanos - smoothedLatency);
+        samples++;
+        if (samples >= WARMUP_SAMPLES) {
+            baselineLatency = Math.min(baselineLatency, smoothedLatency);
+        }
+        if (failed) {
+            failures++;
+            if (!decreasedInWindow) {
+                decrease(FAILURE_BACKOFF);
+            }
+        }
+        if (++windowCompleted >= (int) limit) {
+            if (!decreasedInWindow) {
+                if (smoothedLatency > baselineLatency * latencyTolerance) {
+                    decrease(LATENCY_BACKOFF);
+                    // Let the baseline follow a lasting change of the latency
+                    baselineLatency += (smoothedLatency - baselineLatency) * SMOOTHING;
+                } else {
+                    limit = Math.min(maxLimit, slowStart ? limit * 2 : limit + 1);
+                }
+            }
+            windowCompleted = 0;
+            decreasedInWindow = false;
+        }
+    }
+
+    private void decrease(double backoff) {
+        slowStart = false;
+        decreasedInWindow = true;
+        limit = Math.max(minLimit, limit * backoff);
+        decreases++;
+    }
+
+    /**
+     * @return the current limit and the observed latencies, in milliseconds
+     */
+    synchronized Map<String, Object> asMap() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("limit", getLimit());
+        stats.put("minLimit", minLimit);
+        stats.put("maxLimit", maxLimit);
+        stats.put("tasks", samples);
+        stats.put("failures", failures);
+        stats.put("decreases", decreases);
+        stats.put("lastLatency", toMillis(lastLatency));
+        stats.put("averageLatency", toMillis((long) smoothedLatency));
+        stats.put("baselineLatency", baselineLatency == Double.MAX_VALUE ? null : toMillis((long) baselineLatency));
+        return stats;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash map from ids to a fixed number of string values, storing all entries UTF-8 encoded in a single
+ * byte array rather than as individual {@link String} and entry objects.
+ * <p>
+ * Reconciliation holds the ids of whole object sets in memory; with this map an id of a few dozen characters
+ * takes a few dozen bytes plus eight bytes of hash table, rather than well over a hundred bytes for a
+ * {@code String} in a {@code HashMap}. Lookups and removals are O(1), using open addressing over the cached
+ * hashes of the entries. The space of removed entries is reclaimed when the table grows.
+ * <p>
+ * Entries are iterated in insertion order. Strings are decoded on every access, so callers should not
+ * expect the same instance to be returned twice. All access is synchronized; iterators are not fail-fast
+ * and reflect removals made while iterating, but may miss entries added meanwhile. An iterator fails with a
+ * {@link ConcurrentModificationException} only if additions compacted the map after the id it returned last
+ * got removed.
+ */
+final class CompactIdMap {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /** Slot values for never used and removed slots; used slots hold the record offset plus one */
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    /** Record flags */
+    private static final byte LIVE = 1;
+    private static final byte DELETED = 0;
+
+    private final int valuesPerEntry;
+
+    private byte[] arena;
+    private int arenaLength;
+    private int garbage;
+
+    private int[] slots;
+    private int[] hashes;
+    private int size;
+    private int removed;
+
+    /**
+     * Creates an empty map.
+     *
+     * @param valuesPerEntry the number of values kept for each id, 0 to keep ids only
+     * @param expectedSize the number of entries to size the map for initially
+     */
+    CompactIdMap(int valuesPerEntry, int expectedSize) {
+        this.valuesPerEntry = valuesPerEntry;
+        int capacity = tableSizeFor((int) (Math.max(expectedSize, 16) / LOAD_FACTOR) + 1);
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        arena = new byte[Math.max(256, Math.min(expectedSize, 1 << 20) * 16)];
+    }
+
+    /**
+     * Associates the id with the given values, replacing any values it had.
+     *
+     * @param id the id, not null
+     * @param values exactly {@code valuesPerEntry} values, which may be null
+     * @return true if the id was not contained yet
+     */
+    synchronized boolean put(String id, String... values) {
+        if (values.length != valuesPerEntry) {
+            throw new IllegalArgumentException("Expected " + valuesPerEntry + " values but got " + values.length);
+        }
+        byte[] key = id.getBytes(UTF_8);
+        int hash = hash(id);
+        int index = indexOf(key, hash);
+        if (index >= 0) {
+            if (valuesPerEntry == 0) {
+                return false;
+            }
+            deleteRecord(slots[index] - 1);
+            slots[index] = append(key, values) + 1;
+            return false;
+        }
+        if (size + removed + 1 > slots.length * LOAD_FACTOR) {
+            rehash();
+        }
+        int offset = append(key, values);
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (slots[i] != EMPTY && slots[i] != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == REMOVED) {
+            removed--;
+        }
+        slots[i] = offset + 1;
+        hashes[i] = hash;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param id the id to look up
+     * @return the values of the id, or null if the id is not contained
+     */
+    synchronized String[] get(String id) {
+        int index = indexOf(id.getBytes(UTF_8), hash(id));
+        if (index < 0) {
+            return null;
+        }
+        String[] values = new String[valuesPerEntry];
+        int pos = skipString(slots[index]); // skip the flag and key
+        for (int v = 0; v < valuesPerEntry; v++) {
+            values[v] = readString(pos);
+            pos = skipString(pos);
+        }
+        return values;
+    }
+
+    /**
+     * @param id the id to look up
+     * @return true if the id is contained
+     */
+    synchronized boolean containsKey(String id) {
+        return indexOf(id.getBytes(UTF_8), hash(id)) >= 0;
+    }
+
+    /**
+     * @param id the id to remove
+     * @return true if the id was contained
+     */
+    synchronized boolean remove(String id) {
+        int index = indexOf(id.getBytes(UTF_8), hash(id));
+        if (index < 0) {
+            return false;
+        }
+        deleteRecord(slots[index] - 1);
+        slots[index] = REMOVED;
+        size--;
+        removed++;
+        return true;
+    }
+
+    /**
+     * @return the number of ids contained
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        Arrays.fill(slots, EMPTY);
+        arenaLength = 0;
+        garbage = 0;
+        size = 0;
+        removed = 0;
+    }
+
+    /**
+     * @return an iterator over the contained ids in insertion order; its {@code remove} removes from this map
+     */
+    Iterator<String> idIterator() {
+        return new Iterator<String>() {
+            private int offset = 0;
+            private byte[] iterated;
+            private String next;
+            private String last;
+
+            @Override
+            public boolean hasNext() {
+                synchronized (CompactIdMap.this) {
+                    if (iterated != arena) {
+                        // First call, or the arena got compacted; resume after the last returned id
+                        iterated = arena;
+                        offset = 0;
+                        if (last != null) {
+                            int index = indexOf(last.getBytes(UTF_8), hash(last));
+                            if (index < 0) {
+                                throw new ConcurrentModificationException(
+                                        "Id map compacted while iterating, after removal of " + last);
+                            }
+                            offset = nextRecord(slots[index] - 1);
+                        }
+                    }
+                    while (next == null && offset < arenaLength) {
+                        if (arena[offset] == LIVE) {
+                            next = readString(offset + 1);
+                        }
+                        offset = nextRecord(offset);
+                    }
+                    return next != null;
+                }
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = null;
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                CompactIdMap.this.remove(last);
+            }
+        };
+    }
+
+    private int indexOf(byte[] key, int hash) {
+        int mask = slots.length - 1;
+        int i = hash & mask;
+        while (true) {
+            int slot = slots[i];
+            if (slot == EMPTY) {
+                return -1;
+            }
+            if (slot != REMOVED && hashes[i] == hash && keyEquals(slot, key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int pos, byte[] key) {
+        int length = readVarInt(pos) - 1;
+        if (length != key.length) {
+            return false;
+        }
+        int start = pos + varIntSize(length + 1);
+        for (int i = 0; i < length; i++) {
+            if (arena[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deleteRecord(int offset) {
+        arena[offset] = DELETED;
+        garbage += nextRecord(offset) - offset;
+    }
+
+    private int append(byte[] key, String[] values) {
+        byte[][] encoded = new byte[values.length][];
+        int needed = 1 + varIntSize(key.length + 1) + key.length;
+        for (int v = 0; v < values.length; v++) {
+            if (values[v] != null) {
+                encoded[v] = values[v].getBytes(UTF_8);
+                needed += varIntSize(encoded[v].length + 1) + encoded[v].length;
+            } else {
+                needed += 1;
+            }
+        }
+        ensureArena(needed);
+        int offset = arenaLength;
+        arena[arenaLength++] = LIVE;
+        writeBytes(key);
+        for (byte[] value : encoded) {
+            if (value == null) {
+                arena[arenaLength++] = 0;
+            } else {
+                writeBytes(value);
+            }
+        }
+        return offset;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        int value = bytes.length + 1;
+        while ((value & ~0x7F) != 0) {
+            arena[arenaLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        arena[arenaLength++] = (byte) value;
+        System.arraycopy(bytes, 0, arena, arenaLength, bytes.length);
+        arenaLength += bytes.length;
+    }
+
+    private void ensureArena(int needed) {
+        if (arenaLength + needed > arena.length) {
+            long grown = Math.max((long) arena.length * 2, (long) arenaLength + needed);
+            if (grown > Integer.MAX_VALUE - 8) {
+                if ((long) arenaLength + needed > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Id map exceeds the maximum size");
+                }
+                grown = Integer.MAX_VALUE - 8;
+            }
+            arena = Arrays.copyOf(arena, (int) grown);
+        }
+    }
+
+    /**
+     * Grows the table if needed and drops removed entries, from both the table and the arena.
+     */
+    private void rehash() {
+        int capacity = slots.length;
+        if (size + 1 > capacity * LOAD_FACTOR / 2) {
+            capacity *= 2;
+        }
+        byte[] oldArena = arena;
+        int oldLength = arenaLength;
+        int liveLength = oldLength - garbage;
+        arena = new byte[Math.max(256, liveLength + liveLength / 2)];
+        arenaLength = 0;
+        garbage = 0;
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        removed = 0;
+        int mask = capacity - 1;
+        int offset = 0;
+        while (offset < oldLength) {
+            int end = nextRecord(oldArena, offset);
+            if (oldArena[offset] == LIVE) {
+                int newOffset = arenaLength;
+                System.arraycopy(oldArena, offset, arena, newOffset, end - offset);
+                arenaLength += end - offset;
+                int hash = hash(readString(newOffset + 1));
+                int i = hash & mask;
+                while (slots[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                slots[i] = newOffset + 1;
+                hashes[i] = hash;
+            }
+            offset = end;
+        }
+    }
+
+    private int nextRecord(int offset) {
+        return nextRecord(arena, offset);
+    }
+
+    private int nextRecord(byte[] bytes, int offset) {
+        int pos = offset + 1;
+        for (int s = 0; s <= valuesPerEntry; s++) {
+            pos = skipString(bytes, pos);
+        }
+        return pos;
+    }
+
+    private int skipString(int pos) {
+        return skipString(arena, pos);
+    }
+
+    private static int skipString(byte[] bytes, int pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return pos + Math.max(0, value - 1);
+    }
+
+    private String readString(int pos) {
+        int value = readVarInt(pos);
+        if (value == 0) {
+            return null;
+        }
+        return new String(arena, pos + varIntSize(value), value - 1, UTF_8);
+    }
+
+    private int readVarInt(int pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = arena[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int tableSizeFor(int n) {
+        int capacity = 1;
+        while (capacity < n) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A thread safe, insertion ordered set of ids with a small memory footprint, backed by a {@link CompactIdMap}.
+ */
+public class CompactIdSet extends AbstractSet<String> {
+
+    private final CompactIdMap ids;
+
+    /**
+     * Creates an empty set.
+     */
+    public CompactIdSet() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty set sized for the expected number of ids.
+     *
+     * @param expectedSize the number of ids to size the set for initially
+     */
+    public CompactIdSet(int expectedSize) {
+        ids = new CompactIdMap(0, expectedSize);
+    }
+
+    /**
+     * Creates a set containing the given ids.
+     *
+     * @param ids the ids to add
+     */
+    public CompactIdSet(Collection<String> ids) {
+        this(ids.size());
+        addAll(ids);
+    }
+
+    @Override
+    public boolean add(String id) {
+        return ids.put(id);
+    }
+
+    @Override
+    public boolean contains(Object id) {
+        return id instanceof String && ids.containsKey((String) id);
+    }
+
+    @Override
+    public boolean remove(Object id) {
+        return id instanceof String && ids.remove((String) id);
+    }
+
+    @Override
+    public int size() {
+        return ids.size();
+    }
+
+    @Override
+    public void clear() {
+        ids.clear();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return ids.idIterator();
+    }
+}
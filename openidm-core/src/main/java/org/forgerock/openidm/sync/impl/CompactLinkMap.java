@@ -0,0 +1,123 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The links of a mapping indexed by source id, keeping only the link fields in a {@link CompactIdMap}
+ * rather than a {@link Link} object per link.
+ * <p>
+ * A new {@link Link} view is created on every {@link #get(Object)}, so changes to a returned link are
+ * not reflected in this map.
+ */
+class CompactLinkMap extends AbstractMap<String, Link> {
+
+    private final ObjectMapping mapping;
+
+    // _id, _rev, targetId, linkQualifier, syncHash
+    private final CompactIdMap links = new CompactIdMap(5, 1024);
+
+    /**
+     * @param mapping the mapping the links belong to
+     */
+    CompactLinkMap(ObjectMapping mapping) {
+        this.mapping = mapping;
+    }
+
+    @Override
+    public Link get(Object sourceId) {
+        if (!(sourceId instanceof String)) {
+            return null;
+        }
+        String[] fields = links.get((String) sourceId);
+        if (fields == null) {
+            return null;
+        }
+        return Link.fromFields(mapping, fields[0], fields[1], (String) sourceId, fields[2], fields[3], fields[4]);
+    }
+
+    @Override
+    public boolean containsKey(Object sourceId) {
+        return sourceId instanceof String && links.containsKey((String) sourceId);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return always null, the previous link is not retained
+     */
+    @Override
+    public Link put(String sourceId, Link link) {
+        links.put(sourceId, link._id, link._rev, link.targetId, link.linkQualifier, link.syncHash);
+        return null;
+    }
+
+    @Override
+    public Link remove(Object sourceId) {
+        Link link = get(sourceId);
+        if (link != null) {
+            links.remove((String) sourceId);
+        }
+        return link;
+    }
+
+    @Override
+    public int size() {
+        return links.size();
+    }
+
+    @Override
+    public void clear() {
+        links.clear();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Link>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Link>>() {
+            @Override
+            public Iterator<Map.Entry<String, Link>> iterator() {
+                final Iterator<String> sourceIds = links.idIterator();
+                return new Iterator<Map.Entry<String, Link>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return sourceIds.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Link> next() {
+                        String sourceId = sourceIds.next();
+                        return new SimpleImmutableEntry<String, Link>(sourceId, get(sourceId));
+                    }
+
+                    @Override
+                    public void remove() {
+                        sourceIds.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return links.size();
+            }
+        };
+    }
+}
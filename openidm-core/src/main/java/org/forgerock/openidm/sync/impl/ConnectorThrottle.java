@@ -0,0 +1,246 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.util.promise.Promises.newResultPromise;
+
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+
+import org.forgerock.json.resource.AbstractConnectionWrapper;
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.DeleteRequest;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.PatchRequest;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.Request;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.json.resource.UpdateRequest;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.Promise;
+
+/**
+ * Limits the number of concurrent connector requests of the tasks of a reconciliation run, independently of the
+ * number of tasks in flight.
+ * <p>
+ * A task registers the permits of its run on its thread for the time it executes, and the synchronous requests
+ * to connectors ({@value #CONNECTOR_RESOURCE_PREFIX}) made on that thread through a {@link #wrap wrapped}
+ * connection factory hold one of the permits while they are processed. Nested connector requests, for example
+ * from scripts, do not take further permits. Requests on threads without registered permits are not limited.
+ */
+class ConnectorThrottle {
+
+    /** The resource path prefix of connector requests */
+    static final String CONNECTOR_RESOURCE_PREFIX = "system/";
+
+    /** The permits registered on the current thread */
+    private static final ThreadLocal<Semaphore> permits = new ThreadLocal<Semaphore>();
+
+    /** The depth of connector requests holding a permit on the current thread */
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /** Marks a nested connector request, which holds no permit of its own */
+    private static final Semaphore NESTED = new Semaphore(0);
+
+    private ConnectorThrottle() {
+        // utility class
+    }
+
+    /**
+     * Registers the permits limiting the connector requests of the current thread.
+     *
+     * @param connectorPermits the permits, or null to not limit the connector requests
+     */
+    static void enter(Semaphore connectorPermits) {
+        permits.set(connectorPermits);
+    }
+
+    /**
+     * Removes the permits registered on the current thread.
+     */
+    static void exit() {
+        permits.remove();
+    }
+
+    /**
+     * Wraps a connection factory to limit the connector requests made on threads with registered permits.
+     *
+     * @param connectionFactory the connection factory to wrap
+     * @return the wrapping connection factory
+     */
+    static ConnectionFactory wrap(final ConnectionFactory connectionFactory) {
+        return new ConnectionFactory() {
+            @Override
+            public void close() {
+                connectionFactory.close();
+            }
+
+            @Override
+            public Connection getConnection() throws ResourceException {
+                return new AbstractConnectionWrapper<Connection>(connectionFactory.getConnection()) {
+                    @Override
+                    public ActionResponse action(Context context, ActionRequest request) throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.action(context, request);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+
+                    @Override
+                    public ResourceResponse create(Context context, CreateRequest request) throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.create(context, request);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+
+                    @Override
+                    public ResourceResponse delete(Context context, DeleteRequest request) throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.delete(context, request);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+
+                    @Override
+                    public ResourceResponse patch(Context context, PatchRequest request) throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.patch(context, request);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+
+                    @Override
+                    public QueryResponse query(Context context, QueryRequest request, QueryResourceHandler handler)
+                            throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.query(context, request, handler);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+
+                    @Override
+                    public QueryResponse query(Context context, QueryRequest request,
+                            Collection<? super ResourceResponse> results) throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.query(context, request, results);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+
+                    @Override
+                    public ResourceResponse read(Context context, ReadRequest request) throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.read(context, request);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+
+                    @Override
+                    public ResourceResponse update(Context context, UpdateRequest request) throws ResourceException {
+                        Semaphore acquired = acquire(request);
+                        try {
+                            return super.update(context, request);
+                        } finally {
+                            release(acquired);
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public Promise<Connection, ResourceException> getConnectionAsync() {
+                try {
+                    return newResultPromise(getConnection());
+                } catch (ResourceException e) {
+                    return e.asPromise();
+                }
+            }
+        };
+    }
+
+    /**
+     * Takes a permit for a connector request on a thread with registered permits, unless the thread already
+     * holds one.
+     *
+     * @param request the request
+     * @return the permits a permit was taken from, {@link #NESTED} for a nested connector request,
+     * or null if the request is not limited
+     * @throws ResourceException if interrupted while waiting for a permit
+     */
+    static Semaphore acquire(Request request) throws ResourceException {
+        Semaphore connectorPermits = permits.get();
+        if (connectorPermits == null
+                || !request.getResourcePath().startsWith(CONNECTOR_RESOURCE_PREFIX)) {
+            return null;
+        }
+        int[] held = depth.get();
+        if (held[0]++ > 0) {
+            // The enclosing connector request holds the permit
+            return NESTED;
+        }
+        try {
+            connectorPermits.acquire();
+            return connectorPermits;
+        } catch (InterruptedException e) {
+            held[0]--;
+            Thread.currentThread().interrupt();
+            throw new InternalServerErrorException("Interrupted waiting to access " + request.getResourcePath(), e);
+        }
+    }
+
+    /**
+     * Returns a permit taken by {@link #acquire(Request)}.
+     *
+     * @param acquired the permits returned by {@link #acquire(Request)}
+     */
+    static void release(Semaphore acquired) {
+        if (acquired == null) {
+            return;
+        }
+        depth.get()[0]--;
+        if (acquired != NESTED) {
+            acquired.release();
+        }
+    }
+}
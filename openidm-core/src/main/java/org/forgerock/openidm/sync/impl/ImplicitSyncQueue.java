@@ -0,0 +1,591 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonException;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.openidm.sync.impl.SynchronizationService.SyncServiceAction;
+import org.forgerock.openidm.util.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queues the change notifications of implicit synchronization, so that the changes are synchronized
+ * asynchronously rather than by the thread changing the objects.
+ * <p>
+ * The queue is backed by a journal file, so the changes not synchronized yet survive a restart or a crash. A change
+ * is appended to the journal and synced to disk when queued, and marked done once synchronized; the journal is
+ * compacted when it restarts, whenever the queue gets empty, and once the changes marked done since it was last
+ * compacted outnumber both the compaction threshold and the changes queued.
+ * <p>
+ * The changes of one object are synchronized one at a time, in the order they were made. A change queued while
+ * an earlier change of the object waits is coalesced with it where possible, e.g. two updates become one update
+ * from the old value of the first to the new value of the second. A change which fails is retried with an
+ * exponential backoff, holding back the later changes of its object, until it ran out of attempts.
+ * <p>
+ * The first change of an object may be held back for the coalescing window of its container, so that the
+ * changes made in quick succession are coalesced into one change to synchronize.
+ */
+class ImplicitSyncQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImplicitSyncQueue.class);
+
+    // The fields of journal entries
+    private static final String SEQ = "seq";
+    private static final String DONE = "done";
+    private static final String ACTION = "action";
+    private static final String RESOURCE_CONTAINER = "resourceContainer";
+    private static final String RESOURCE_ID = "resourceId";
+    private static final String OLD_VALUE = "oldValue";
+    private static final String NEW_VALUE = "newValue";
+    private static final String QUEUED = "queued";
+
+    /**
+     * Synchronizes the changes taken off the queue.
+     */
+    interface Processor {
+        /**
+         * @param change the change to synchronize
+         * @throws ResourceException if synchronizing the change failed, so it is to be retried
+         */
+        void process(Change change) throws ResourceException;
+
+        /**
+         * @param resourceContainer the container of a changed object
+         * @return how long the first change of an object of the container is held back to be coalesced, in
+         * milliseconds, 0 if it is not held back
+         */
+        long getCoalescingWindow(String resourceContainer);
+    }
+
+    /**
+     * A queued change of an object.
+     */
+    static class Change {
+        final long seq;
+        final SyncServiceAction action;
+        final String resourceContainer;
+        final String resourceId;
+        final JsonValue oldValue;
+        final JsonValue newValue;
+        /** When the change, or the first change it was coalesced from, was queued */
+        final long queued;
+        /** The number of failed attempts to synchronize the change, guarded by the queue */
+        int attempts;
+
+        Change(long seq, SyncServiceAction action, String resourceContainer, String resourceId,
+                JsonValue oldValue, JsonValue newValue, long queued) {
+            this.seq = seq;
+            this.action = action;
+            this.resourceContainer = resourceContainer;
+            this.resourceId = resourceId;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+            this.queued = queued;
+        }
+
+        String key() {
+            return resourceContainer + "/" + resourceId;
+        }
+
+        JsonValue toJsonValue() {
+            return json(object(
+                    field(SEQ, seq),
+                    field(ACTION, action.name()),
+                    field(RESOURCE_CONTAINER, resourceContainer),
+                    field(RESOURCE_ID, resourceId),
+                    field(OLD_VALUE, oldValue.getObject()),
+                    field(NEW_VALUE, newValue.getObject()),
+                    field(QUEUED, queued)));
+        }
+
+        static Change fromJsonValue(JsonValue entry) {
+            return new Change(entry.get(SEQ).asLong(),
+                    entry.get(ACTION).asEnum(SyncServiceAction.class),
+                    entry.get(RESOURCE_CONTAINER).asString(),
+                    entry.get(RESOURCE_ID).asString(),
+                    new JsonValue(entry.get(OLD_VALUE).getObject()),
+                    new JsonValue(entry.get(NEW_VALUE).getObject()),
+                    entry.get(QUEUED).asLong());
+        }
+    }
+
+    private final File journal;
+    private final int threads;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+    private final int maxAttempts;
+    private final int compactionThreshold;
+    private final Processor processor;
+
+    // The queue, guarded by this
+    /** The changes of each object, in order */
+    private final Map<String, Deque<Change>> changes = new LinkedHashMap<String, Deque<Change>>();
+    /** The objects whose first change is being synchronized or waits to be retried */
+    private final Set<String> busy = new HashSet<String>();
+    /** The objects whose first change is ready to be synchronized */
+    private final Deque<String> ready = new ArrayDeque<String>();
+    /** The objects whose first change is held back for the coalescing window */
+    private final Set<String> held = new HashSet<String>();
+    private FileOutputStream journalOut;
+    private BufferedWriter journalWriter;
+    /** The completion markers written to the journal since it was last compacted */
+    private int doneSinceCompaction;
+    private long nextSeq;
+    private int depth;
+    private boolean stopped = true;
+
+    // The statistics, guarded by this
+    private long processed;
+    private long failed;
+    private long retried;
+    private long coalesced;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param journal the journal file of the queue
+     * @param threads the number of threads synchronizing changes
+     * @param retryDelay the delay before retrying a failed change the first time, in milliseconds
+     * @param maxRetryDelay the maximum delay before retrying a failed change, in milliseconds
+     * @param maxAttempts the number of attempts to synchronize a change before it is dropped
+     * @param compactionThreshold the number of completed changes after which the journal is compacted, if the
+     * queue holds fewer changes than that
+     * @param processor synchronizes the changes
+     */
+    ImplicitSyncQueue(File journal, int threads, long retryDelay, long maxRetryDelay, int maxAttempts,
+            int compactionThreshold, Processor processor) {
+        if (threads < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid implicit sync threads " + threads
+                    + " or attempts " + maxAttempts);
+        }
+        this.journal = journal;
+        this.threads = threads;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.maxAttempts = maxAttempts;
+        this.compactionThreshold = compactionThreshold;
+        this.processor = processor;
+    }
+
+    /**
+     * Requeues the changes left in the journal, and starts synchronizing the queued changes.
+     *
+     * @throws IOException if the journal could not be read or written
+     */
+    synchronized void start() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        List<Change> pending = readJournal();
+        for (Change change : pending) {
+            add(change);
+            nextSeq = Math.max(nextSeq, change.seq + 1);
+        }
+        compactJournal();
+        if (!pending.isEmpty()) {
+            LOGGER.info("Requeued {} implicit sync changes from {}", pending.size(), journal);
+        }
+        stopped = false;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), "implicit-sync-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops synchronizing changes. The changes not synchronized yet stay in the journal.
+     */
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            closeJournal();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers.clear();
+    }
+
+    /**
+     * Queues a change of an object.
+     *
+     * @param action the change, one of notifyCreate, notifyUpdate or notifyDelete
+     * @param resourceContainer the container of the changed object
+     * @param resourceId the id of the changed object
+     * @param oldValue the value of the object before the change
+     * @param newValue the value of the object after the change
+     * @throws ResourceException if the change could not be journaled
+     */
+    synchronized void enqueue(SyncServiceAction action, String resourceContainer, String resourceId,
+            JsonValue oldValue, JsonValue newValue) throws ResourceException {
+        if (stopped) {
+            throw new InternalServerErrorException("Implicit sync queue is stopped");
+        }
+        Change change = new Change(nextSeq++, action, resourceContainer, resourceId,
+                oldValue.copy(), newValue.copy(), System.currentTimeMillis());
+        try {
+            Deque<Change> objectChanges = changes.get(change.key());
+            Change last = objectChanges != null ? objectChanges.peekLast() : null;
+            // The first change of a busy object is being synchronized, so it can not be coalesced with
+            if (last != null && (objectChanges.size() > 1 || !busy.contains(change.key()))) {
+                Change merged = coalesce(last, change);
+                if (merged != null) {
+                    objectChanges.removeLast();
+                    depth--;
+                    coalesced++;
+                    if (objectChanges.isEmpty()) {
+                        changes.remove(change.key());
+                        ready.remove(change.key());
+                    }
+                    writeDone(last);
+                    if (merged == last) {
+                        // The changes cancel out
+                        return;
+                    }
+                    change = merged;
+                }
+            }
+            writeJournal(change.toJsonValue());
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Failed to queue " + action + " of " + change.key(), e);
+        }
+        add(change);
+    }
+
+    /**
+     * Coalesces two successive changes of an object.
+     *
+     * @return the coalesced change, the first change if the changes cancel out, or null if the changes
+     * can not be coalesced
+     */
+    private Change coalesce(Change first, Change second) {
+        SyncServiceAction action;
+        if (first.action == SyncServiceAction.notifyUpdate && second.action == SyncServiceAction.notifyUpdate) {
+            action = SyncServiceAction.notifyUpdate;
+        } else if (first.action == SyncServiceAction.notifyCreate
+                && second.action == SyncServiceAction.notifyUpdate) {
+            action = SyncServiceAction.notifyCreate;
+        } else if (first.action == SyncServiceAction.notifyUpdate
+                && second.action == SyncServiceAction.notifyDelete) {
+            action = SyncServiceAction.notifyDelete;
+        } else if (first.action == SyncServiceAction.notifyCreate
+                && second.action == SyncServiceAction.notifyDelete) {
+            // The object is gone before it got synchronized
+            return first;
+        } else {
+            return null;
+        }
+        return new Change(second.seq, action, second.resourceContainer, second.resourceId,
+                first.oldValue, second.newValue, first.queued);
+    }
+
+    private void add(Change change) {
+        Deque<Change> objectChanges = changes.get(change.key());
+        if (objectChanges == null) {
+            objectChanges = new ArrayDeque<Change>();
+            changes.put(change.key(), objectChanges);
+        }
+        objectChanges.addLast(change);
+        depth++;
+        if (objectChanges.size() == 1 && !busy.contains(change.key()) && !held.contains(change.key())) {
+            long window = processor.getCoalescingWindow(change.resourceContainer);
+            if (window > 0) {
+                hold(change.key(), window);
+            } else {
+                ready.addLast(change.key());
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Holds back the changes of an object for the coalescing window.
+     */
+    private void hold(final String key, long window) {
+        held.add(key);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ImplicitSyncQueue.this) {
+                    held.remove(key);
+                    // The changes may have cancelled out meanwhile
+                    if (changes.containsKey(key) && !busy.contains(key) && !ready.contains(key)) {
+                        ready.addLast(key);
+                        ImplicitSyncQueue.this.notify();
+                    }
+                }
+            }
+        }, window, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the first change of the next object ready, waiting for one.
+     *
+     * @return the change, or null if the queue stopped
+     */
+    private synchronized Change take() throws InterruptedException {
+        while (!stopped && ready.isEmpty()) {
+            wait();
+        }
+        if (stopped) {
+            return null;
+        }
+        String key = ready.removeFirst();
+        busy.add(key);
+        return changes.get(key).peekFirst();
+    }
+
+    /**
+     * Completes the synchronization of a change, making the next change of its object ready.
+     */
+    private synchronized void completed(Change change, ResourceException failure) {
+        String key = change.key();
+        if (failure != null) {
+            change.attempts++;
+            if (change.attempts < maxAttempts && !stopped) {
+                retried++;
+                long delay = Math.min(maxRetryDelay, retryDelay << Math.min(change.attempts - 1, 30));
+                LOGGER.debug("Retrying {} of {} in {} ms", change.action, key, delay, failure);
+                scheduleRetry(key, delay);
+                return;
+            }
+            if (stopped) {
+                // Retried once restarted
+                busy.remove(key);
+                return;
+            }
+            failed++;
+            LOGGER.error("Failed to synchronize {} of {} after {} attempts, dropping the change",
+                    change.action, key, change.attempts, failure);
+        } else {
+            processed++;
+        }
+        Deque<Change> objectChanges = changes.get(key);
+        objectChanges.removeFirst();
+        depth--;
+        busy.remove(key);
+        if (objectChanges.isEmpty()) {
+            changes.remove(key);
+        } else {
+            ready.addLast(key);
+            notify();
+        }
+        if (stopped) {
+            // The journal is closed, the change is synchronized again once restarted
+            return;
+        }
+        try {
+            writeDone(change);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to journal the completion of {} of {}", change.action, key, e);
+        }
+    }
+
+    private void scheduleRetry(final String key, long delay) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ImplicitSyncQueue.this) {
+                    busy.remove(key);
+                    ready.addLast(key);
+                    ImplicitSyncQueue.this.notify();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /** Synchronizes the changes taken off the queue */
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Change change;
+                while ((change = take()) != null) {
+                    ResourceException failure = null;
+                    try {
+                        processor.process(change);
+                    } catch (ResourceException e) {
+                        failure = e;
+                    } catch (RuntimeException e) {
+                        failure = new InternalServerErrorException(e.getMessage(), e);
+                    }
+                    completed(change, failure);
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }
+    }
+
+    private List<Change> readJournal() throws IOException {
+        Map<Long, Change> pending = new LinkedHashMap<Long, Change>();
+        if (!journal.exists()) {
+            return new ArrayList<Change>();
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JsonValue entry;
+                try {
+                    entry = JsonUtil.parseStringified(line);
+                } catch (JsonException e) {
+                    // A line cut short when the server stopped
+                    LOGGER.warn("Skipping invalid implicit sync journal entry {}", line);
+                    continue;
+                }
+                if (entry.isDefined(DONE)) {
+                    pending.remove(entry.get(DONE).asLong());
+                } else {
+                    Change change = Change.fromJsonValue(entry);
+                    pending.put(change.seq, change);
+                }
+            }
+        }
+        return new ArrayList<Change>(pending.values());
+    }
+
+    /**
+     * Journals a change, synced to disk before the change is acknowledged so that it survives a crash.
+     */
+    private void writeJournal(JsonValue entry) throws IOException {
+        if (journalWriter == null) {
+            openJournal(true);
+        }
+        journalWriter.write(JsonUtil.writeValueAsString(entry));
+        journalWriter.newLine();
+        journalWriter.flush();
+        journalOut.getFD().sync();
+    }
+
+    /**
+     * Journals the completion of a change, compacting the journal once it holds mostly completed changes.
+     * Completion markers are not synced to disk: one lost in a crash only has its change synchronized again.
+     */
+    private void writeDone(Change change) throws IOException {
+        doneSinceCompaction++;
+        // Compacting rewrites the queued changes, so it is bounded by the queue depth to stay cheap per change
+        if (changes.isEmpty() || doneSinceCompaction >= Math.max(compactionThreshold, depth)) {
+            compactJournal();
+            return;
+        }
+        if (journalWriter == null) {
+            openJournal(true);
+        }
+        journalWriter.write(JsonUtil.writeValueAsString(json(object(field(DONE, change.seq)))));
+        journalWriter.newLine();
+        journalWriter.flush();
+    }
+
+    /**
+     * Rewrites the journal with the queued changes only.
+     */
+    private void compactJournal() throws IOException {
+        closeJournal();
+        openJournal(false);
+        for (Deque<Change> objectChanges : changes.values()) {
+            for (Change change : objectChanges) {
+                journalWriter.write(JsonUtil.writeValueAsString(change.toJsonValue()));
+                journalWriter.newLine();
+            }
+        }
+        journalWriter.flush();
+        journalOut.getFD().sync();
+        doneSinceCompaction = 0;
+    }
+
+    private void openJournal(boolean append) throws IOException {
+        File parent = journal.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create directory " + parent);
+        }
+        journalOut = new FileOutputStream(journal, append);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalOut, StandardCharsets.UTF_8));
+    }
+
+    private void closeJournal() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close implicit sync journal {}", journal, e);
+            }
+            journalWriter = null;
+            journalOut = null;
+        }
+    }
+
+    /**
+     * @return the depth and lag of the queue, and the number of changes synchronized
+     */
+    synchronized Map<String, Object> getStatus() {
+        long oldest = 0;
+        for (Deque<Change> objectChanges : changes.values()) {
+            long queued = objectChanges.peekFirst().queued;
+            if (oldest == 0 || queued < oldest) {
+                oldest = queued;
+            }
+        }
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("enabled", true);
+        status.put("depth", depth);
+        status.put("objects", changes.size());
+        status.put("inProgress", busy.size());
+        status.put("held", held.size());
+        status.put("lag", oldest == 0 ? 0L : System.currentTimeMillis() - oldest);
+        status.put("processed", processed);
+        status.put("failed", failed);
+        status.put("retried", retried);
+        status.put("coalesced", coalesced);
+        return status;
+    }
+}
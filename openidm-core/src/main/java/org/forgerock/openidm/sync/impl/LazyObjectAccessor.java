@@ -45,6 +45,7 @@ public class LazyObjectAccessor {
     private boolean loaded = false;        // Whether it considers its state as loaded/initialized
     private final String componentContext; // The qualifier for the id
     private final String localId;          // The local part of the id
+    private long loadNanos;                // The time loading on demand took, not yet taken
 
     /**
      * Construct with a known value of the object. The object is considered loaded.
@@ -84,12 +85,14 @@ public class LazyObjectAccessor {
      */
     public JsonValue getObject() throws SynchronizationException {
         if (!loaded) {
+            long start = System.nanoTime();
             try {
                 // If not found, the object will be null
                 object = rawReadObject(connectionFactory, ObjectSetContext.get(), componentContext, localId);
             } catch (SynchronizationException ex) {
                 throw ex; // being explicit that this would not be considered loaded
             }
+            loadNanos = System.nanoTime() - start;
             loaded = true;
         }
         return object;
@@ -103,6 +106,19 @@ public class LazyObjectAccessor {
         return loaded;
     }
 
+    /**
+     * Returns the time loading the object on demand took, once only, so that an accessor shared by several
+     * operations is accounted for once.
+     *
+     * @return the time the load took, in nanoseconds, or 0 if the object was not loaded on demand or the time was
+     * already taken
+     */
+    long takeLoadNanos() {
+        long nanos = loadNanos;
+        loadNanos = 0;
+        return nanos;
+    }
+
     /**
      * @return The object representation as a map
      * @throws SynchronizationException if loading the object on demand failed
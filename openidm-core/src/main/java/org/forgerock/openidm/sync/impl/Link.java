@@ -27,7 +27,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.forgerock.services.context.Context;
 import org.forgerock.json.JsonValue;
@@ -99,6 +98,12 @@ class Link {
      */
     public String linkQualifier;
 
+    /**
+     * The hash of the mapped source properties last synchronized through the link, see
+     * {@link SourceDependencies#hash(JsonValue)}, or null if unknown.
+     */
+    public String syncHash;
+
     /**
      * TODO: Description.
      *
@@ -121,7 +126,7 @@ class Link {
      * @param id the local (unqualified) link identifier
      * @return the qualified id, qualified to the repository
      */
-    private static String linkId(String id) {
+    static String linkId(String id) {
         //StringBuilder sb = new StringBuilder("repo/link/").append(mapping.getLinkType().getName());
         StringBuilder sb = new StringBuilder("repo/link");
         if (id != null) {
@@ -193,6 +198,7 @@ class Link {
             targetId = value.get("secondId").required().asString();
         }
         linkQualifier = value.get("linkQualifier").asString();
+        syncHash = value.get("syncHash").asString();
         sourceId = mapping.getLinkType().normalizeSourceId(sourceId);
         targetId = mapping.getLinkType().normalizeTargetId(targetId);
         initialized = true;
@@ -203,7 +209,7 @@ class Link {
      *
      * @return JsonValue object of this current instance.
      */
-    private JsonValue toJsonValue() {
+    JsonValue toJsonValue() {
         JsonValue jv = new JsonValue(new HashMap<String, Object>());
 
         sourceId = mapping.getLinkType().normalizeSourceId(sourceId);
@@ -211,6 +217,9 @@ class Link {
 
         jv.put("linkType", mapping.getLinkType().getName());
         jv.put("linkQualifier", linkQualifier);
+        if (syncHash != null) {
+            jv.put("syncHash", syncHash);
+        }
         if (mapping.getLinkType().useReverse()) {
             jv.put("secondId", sourceId);
             jv.put("firstId", targetId);
@@ -229,6 +238,7 @@ class Link {
         this._rev = null;
         this.sourceId = null;
         this.targetId = null;
+        this.syncHash = null;
     }
 
     /**
@@ -307,18 +317,45 @@ class Link {
         }
     }
 
+    /**
+     * Creates an initialized link view from its individual fields.
+     *
+     * @param mapping the mapping associated with the link
+     * @param id the unique identifier of the link
+     * @param rev the MVCC revision of the link
+     * @param sourceId the normalized id linked in the source object set of the mapping
+     * @param targetId the normalized id linked in the target object set of the mapping
+     * @param linkQualifier the link qualifier
+     * @param syncHash the hash of the mapped source properties last synchronized, or null if unknown
+     * @return the link
+     */
+    static Link fromFields(ObjectMapping mapping, String id, String rev, String sourceId, String targetId,
+            String linkQualifier, String syncHash) {
+        Link link = new Link(mapping);
+        link._id = id;
+        link._rev = rev;
+        link.sourceId = sourceId;
+        link.targetId = targetId;
+        link.linkQualifier = linkQualifier;
+        link.syncHash = syncHash;
+        link.initialized = true;
+        return link;
+    }
+
     /**
      * Queries all the links for a given mapping, indexed by the source identifier
      * <p>
      * This method expects a {@code "links-for-linkType"} defined with a parameter of
-     * {@code "linkType"}.
+     * {@code "linkType"}. The links are kept in a {@link CompactLinkMap} as they are
+     * returned by the query, without holding the whole query result in memory.
      *
      * @param mapping the mapping to look up the links for
      * @throws SynchronizationException if the query could not be performed.
      * @return the mapping from source identifier to the link object for it
      */
-    public static Map<String, Link> getLinksForMapping(ObjectMapping mapping, String linkQualifier) throws SynchronizationException {
-        Map<String, Link> sourceIdToLink = new ConcurrentHashMap<String, Link>();
+    public static Map<String, Link> getLinksForMapping(final ObjectMapping mapping, String linkQualifier)
+            throws SynchronizationException {
+        final CompactLinkMap sourceIdToLink = new CompactLinkMap(mapping);
         if (mapping != null) {
             JsonValue query = new JsonValue(new HashMap<String, Object>());
             query.put(FIELD_QUERY_FILTER,
@@ -326,11 +363,22 @@ class Link {
                             QueryFilter.equalTo("/linkType", mapping.getLinkType().getName()),
                             QueryFilter.equalTo("/linkQualifier", linkQualifier)))
                             .toString());
-            JsonValue queryResults = linkQuery(mapping.getConnectionFactory(), ObjectSetContext.get(), query);
-            for (JsonValue entry : queryResults) {
-                Link link = new Link(mapping);
-                link.fromJsonValue(entry);
-                sourceIdToLink.put(link.sourceId, link);
+            try {
+                QueryRequest request = RequestUtil.buildQueryRequestFromParameterMap(linkId(null), query.asMap());
+                mapping.getConnectionFactory().getConnection().query(ObjectSetContext.get(), request,
+                        new QueryResourceHandler() {
+                            @Override
+                            public boolean handleResource(ResourceResponse resource) {
+                                Link link = new Link(mapping);
+                                link.fromJsonValue(resource.getContent());
+                                sourceIdToLink.put(link.sourceId, link);
+                                return true;
+                            }
+                        });
+            } catch (JsonValueException jve) {
+                throw new SynchronizationException("Malformed link query response", jve);
+            } catch (ResourceException ose) {
+                throw new SynchronizationException("Link query failed", ose);
             }
         }
         return sourceIdToLink;
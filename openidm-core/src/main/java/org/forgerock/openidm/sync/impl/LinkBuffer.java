@@ -0,0 +1,395 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newActionRequest;
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+import static org.forgerock.json.resource.Requests.newDeleteRequest;
+import static org.forgerock.json.resource.Requests.newUpdateRequest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.NotSupportedException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers the link creates, updates and deletes of a reconciliation run, and writes them to the repository
+ * in batches with the {@value #ACTION_BULK} action, each batch in one transaction.
+ * <p>
+ * A batch is written by the task adding its last link, and the remaining links at the end of each recon phase
+ * by {@link #flush()}. Batches are written one at a time, in order. If a batch fails, its links are written one
+ * by one, and each link which still fails is reported to the {@link FailureListener} of its recon entry. If the
+ * repository does not support the bulk action, all links are written one by one from then on.
+ * <p>
+ * A buffered link is assigned its identifier right away, but its new revision only once written. Updating or
+ * deleting a link which has no revision yet is merged into its create or update still buffered, such as the
+ * update of the sync hash following each link created; if that is being written already, it waits for the write.
+ */
+class LinkBuffer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LinkBuffer.class);
+
+    /** The repository action writing a list of operations in one transaction */
+    static final String ACTION_BULK = "bulk";
+
+    /** The maximum number of failed links reported in the statistics */
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    /**
+     * Notified of a buffered link which could not be written.
+     */
+    interface FailureListener {
+        /**
+         * @param operation the operation which failed, one of create, update or delete
+         * @param sourceId the source id of the link
+         * @param targetId the target id of the link
+         * @param failure the failure
+         */
+        void failed(String operation, String sourceId, String targetId, ResourceException failure);
+    }
+
+    private enum Operation { create, update, delete }
+
+    /** A buffered link operation, with the state of the link when buffered */
+    private static class Entry {
+        final Operation operation;
+        final Context context;
+        final Link link;
+        final String id;
+        final String rev;
+        final String sourceId;
+        final String targetId;
+        final JsonValue content;
+        final FailureListener listener;
+
+        Entry(Operation operation, Context context, Link link, JsonValue content, FailureListener listener) {
+            this(operation, link._rev, context, link, content, listener);
+        }
+
+        Entry(Operation operation, String rev, Context context, Link link, JsonValue content,
+                FailureListener listener) {
+            this.operation = operation;
+            this.context = context;
+            this.link = link;
+            this.id = link._id;
+            this.rev = rev;
+            this.sourceId = link.sourceId;
+            this.targetId = link.targetId;
+            this.content = content;
+            this.listener = listener;
+        }
+    }
+
+    private final ConnectionFactory connectionFactory;
+    private final int batchSize;
+
+    /** Held while writing a batch, so batches are written in order */
+    private final Object writeLock = new Object();
+
+    /** The links not written yet, guarded by this */
+    private List<Entry> pending;
+
+    private volatile boolean bulkSupported = true;
+
+    // The statistics, guarded by the write lock
+    private long written;
+    private long batches;
+    private long failed;
+    private final List<Map<String, Object>> failures = new ArrayList<Map<String, Object>>();
+
+    /**
+     * @param connectionFactory the connection factory to write the links with
+     * @param batchSize the number of links to write in one batch, greater than 1
+     */
+    LinkBuffer(ConnectionFactory connectionFactory, int batchSize) {
+        if (batchSize < 2) {
+            throw new IllegalArgumentException("Invalid link batch size " + batchSize);
+        }
+        this.connectionFactory = connectionFactory;
+        this.batchSize = batchSize;
+        this.pending = new ArrayList<Entry>(batchSize);
+    }
+
+    /**
+     * Buffers the creation of a link, assigning the identifier of the link.
+     *
+     * @param context the context to write the link with
+     * @param link the link to create
+     * @param listener notified if the link could not be created
+     * @throws SynchronizationException if the repository does not support bulk writes and creating the link failed
+     */
+    void create(Context context, Link link, FailureListener listener) throws SynchronizationException {
+        if (!bulkSupported) {
+            link.create(context);
+            return;
+        }
+        link._id = UUID.randomUUID().toString(); // client-assigned identifier
+        link._rev = null;
+        link.initialized = true;
+        add(new Entry(Operation.create, context, link, link.toJsonValue(), listener));
+    }
+
+    /**
+     * Buffers the update of a link.
+     *
+     * @param context the context to write the link with
+     * @param link the link to update
+     * @param listener notified if the link could not be updated
+     * @throws SynchronizationException if the link does not exist, or was written directly and that failed
+     */
+    void update(Context context, Link link, FailureListener listener) throws SynchronizationException {
+        if (link._id == null) {
+            throw new SynchronizationException("Attempt to update non-existent link");
+        }
+        if (link._rev == null) {
+            // Created or updated in a pending batch
+            if (bulkSupported && mergePending(Operation.update, context, link, listener)) {
+                return;
+            }
+            flush();
+        }
+        if (!bulkSupported || link._rev == null) {
+            link.update(context);
+            return;
+        }
+        Entry entry = new Entry(Operation.update, context, link, link.toJsonValue(), listener);
+        link._rev = null; // known once written
+        add(entry);
+    }
+
+    /**
+     * Buffers the deletion of a link, clearing the link.
+     *
+     * @param context the context to write the link with
+     * @param link the link to delete, does nothing if the link does not exist
+     * @param listener notified if the link could not be deleted
+     * @throws SynchronizationException if the link was deleted directly and that failed
+     */
+    void delete(Context context, Link link, FailureListener listener) throws SynchronizationException {
+        if (link._id == null) {
+            return;
+        }
+        if (link._rev == null) {
+            // Created or updated in a pending batch
+            if (bulkSupported && mergePending(Operation.delete, context, link, listener)) {
+                link.clear();
+                return;
+            }
+            flush();
+        }
+        if (!bulkSupported || link._rev == null) {
+            link.delete(context);
+            return;
+        }
+        add(new Entry(Operation.delete, context, link, null, listener));
+        link.clear();
+    }
+
+    /**
+     * Merges the update or delete of a link into the create or update of the link still pending, which then
+     * writes the link as it is now, or deletes it; a pending create of a deleted link is dropped altogether.
+     *
+     * @param operation the operation to merge, update or delete
+     * @param context the context to write the link with
+     * @param link the link
+     * @param listener notified if the link could not be written
+     * @return whether the link had a pending write to merge into; if not, its write may be under way
+     */
+    private synchronized boolean mergePending(Operation operation, Context context, Link link,
+            FailureListener listener) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Entry entry = pending.get(i);
+            if (!entry.id.equals(link._id)) {
+                continue;
+            }
+            if (operation == Operation.update) {
+                pending.set(i, new Entry(entry.operation, entry.rev, context, link, link.toJsonValue(), listener));
+            } else if (entry.operation == Operation.create) {
+                pending.remove(i);
+            } else {
+                pending.set(i, new Entry(Operation.delete, entry.rev, context, link, null, listener));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void add(Entry entry) {
+        List<Entry> batch = null;
+        synchronized (this) {
+            pending.add(entry);
+            if (pending.size() >= batchSize) {
+                batch = pending;
+                pending = new ArrayList<Entry>(batchSize);
+            }
+        }
+        if (batch != null) {
+            write(batch);
+        }
+    }
+
+    /**
+     * Writes the buffered links, and waits for any batch being written by another thread.
+     */
+    void flush() {
+        List<Entry> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<Entry>(batchSize);
+        }
+        write(batch);
+    }
+
+    private void write(List<Entry> batch) {
+        synchronized (writeLock) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (bulkSupported) {
+                try {
+                    writeBulk(batch);
+                    batches++;
+                    written += batch.size();
+                    return;
+                } catch (NotSupportedException e) {
+                    LOGGER.info("Repository does not support bulk writes of links, writing links one by one");
+                    bulkSupported = false;
+                } catch (ResourceException e) {
+                    LOGGER.warn("Failed to write batch of {} links, writing the links one by one",
+                            batch.size(), e);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to write batch of {} links, writing the links one by one",
+                            batch.size(), e);
+                }
+            }
+            for (Entry entry : batch) {
+                try {
+                    writeEntry(entry);
+                    written++;
+                } catch (ResourceException e) {
+                    failed(entry, e);
+                } catch (RuntimeException e) {
+                    failed(entry, new InternalServerErrorException(e.getMessage(), e));
+                }
+            }
+        }
+    }
+
+    private void writeBulk(List<Entry> batch) throws ResourceException {
+        List<Object> operations = new ArrayList<Object>(batch.size());
+        for (Entry entry : batch) {
+            Map<String, Object> operation = new LinkedHashMap<String, Object>();
+            operation.put("operation", entry.operation.name());
+            operation.put("_id", entry.id);
+            if (entry.rev != null) {
+                operation.put("_rev", entry.rev);
+            }
+            if (entry.content != null) {
+                operation.put("content", entry.content.getObject());
+            }
+            operations.add(operation);
+        }
+        ActionResponse response = connectionFactory.getConnection().action(batch.get(batch.size() - 1).context,
+                newActionRequest(Link.linkId(null), ACTION_BULK)
+                        .setContent(json(object(field("operations", operations)))));
+        JsonValue results = response.getJsonContent().get("results");
+        for (int i = 0; i < batch.size(); i++) {
+            applyRevision(batch.get(i), results.get(i).get("_rev").asString());
+        }
+    }
+
+    private void writeEntry(Entry entry) throws ResourceException {
+        switch (entry.operation) {
+        case create:
+            ResourceResponse created = connectionFactory.getConnection().create(entry.context,
+                    newCreateRequest(Link.linkId(null), entry.id, entry.content));
+            applyRevision(entry, created.getRevision());
+            break;
+        case update:
+            ResourceResponse updated = connectionFactory.getConnection().update(entry.context,
+                    newUpdateRequest(Link.linkId(entry.id), entry.content).setRevision(entry.rev));
+            applyRevision(entry, updated.getRevision());
+            break;
+        case delete:
+            connectionFactory.getConnection().delete(entry.context,
+                    newDeleteRequest(Link.linkId(entry.id)).setRevision(entry.rev));
+            break;
+        }
+    }
+
+    /**
+     * Sets the revision of a link written, unless the link changed since. Threads waiting for the revision
+     * of a link {@link #flush()} first, which orders them after the write.
+     */
+    private void applyRevision(Entry entry, String rev) {
+        if (entry.operation != Operation.delete && entry.id.equals(entry.link._id)) {
+            entry.link._rev = rev;
+        }
+    }
+
+    private void failed(Entry entry, ResourceException e) {
+        LOGGER.warn("Failed to {} link {} between {} and {}",
+                entry.operation, entry.id, entry.sourceId, entry.targetId, e);
+        failed++;
+        if (failures.size() < MAX_REPORTED_FAILURES) {
+            Map<String, Object> failure = new LinkedHashMap<String, Object>();
+            failure.put("operation", entry.operation.name());
+            failure.put("linkId", entry.id);
+            failure.put("sourceId", entry.sourceId);
+            failure.put("targetId", entry.targetId);
+            failure.put("message", e.getMessage());
+            failures.add(failure);
+        }
+        if (entry.listener != null) {
+            try {
+                entry.listener.failed(entry.operation.name(), entry.sourceId, entry.targetId, e);
+            } catch (RuntimeException ex) {
+                LOGGER.warn("Failed to report the failure to {} link {}", entry.operation, entry.id, ex);
+            }
+        }
+    }
+
+    /**
+     * @return the number of links written and failed, and the first failures
+     */
+    Map<String, Object> asMap() {
+        synchronized (writeLock) {
+            Map<String, Object> stats = new LinkedHashMap<String, Object>();
+            stats.put("batchSize", batchSize);
+            stats.put("bulkSupported", bulkSupported);
+            stats.put("batches", batches);
+            stats.put("written", written);
+            stats.put("failed", failed);
+            stats.put("failures", new ArrayList<Map<String, Object>>(failures));
+            return stats;
+        }
+    }
+}
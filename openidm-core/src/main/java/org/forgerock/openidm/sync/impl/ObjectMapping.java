@@ -21,16 +21,22 @@ import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 import static org.forgerock.json.resource.Requests.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.script.ScriptException;
 
@@ -38,12 +44,14 @@ import org.forgerock.json.resource.ConnectionFactory;
 import org.forgerock.openidm.sync.SyncContext;
 import org.forgerock.openidm.condition.Conditions;
 import org.forgerock.services.context.Context;
+import org.forgerock.json.JsonPointer;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
 import org.forgerock.json.patch.JsonPatch;
 import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.json.resource.DeleteRequest;
 import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.QueryFilters;
 import org.forgerock.json.resource.QueryRequest;
 import org.forgerock.json.resource.QueryResourceHandler;
 import org.forgerock.json.resource.QueryResponse;
@@ -59,11 +67,13 @@ import org.forgerock.openidm.smartevent.Publisher;
 import org.forgerock.openidm.sync.ReconAction;
 import org.forgerock.openidm.sync.TriggerContext;
 import org.forgerock.openidm.condition.Condition;
+import org.forgerock.openidm.util.JsonUtil;
 import org.forgerock.openidm.util.RequestUtil;
 import org.forgerock.openidm.util.Script;
 import org.forgerock.openidm.util.Scripts;
 import org.forgerock.script.exception.ScriptThrownException;
 import org.forgerock.script.source.SourceUnit;
+import org.forgerock.util.query.QueryFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -101,6 +111,9 @@ class ObjectMapping {
     /** Default number of executor threads to process ReconTasks */
     private static final int DEFAULT_TASK_THREADS = 10;
 
+    /** Default multiple of the baseline task latency tolerated before an adaptive feed size decreases */
+    private static final double DEFAULT_FEED_LATENCY_TOLERANCE = 2.0;
+
     /** Logger */
     private static final Logger LOGGER = LoggerFactory.getLogger(ObjectMapping.class);
 
@@ -153,6 +166,66 @@ class ObjectMapping {
      * A page size for recon source queries, if paging is used.
      */
     private int reconSourceQueryPageSize;
+
+    /**
+     * A boolean indicating if recon should stream the source and target ids through bounded buffers
+     * rather than holding them in memory.
+     */
+    private boolean reconStreaming;
+
+    /**
+     * The number of entries buffered per query when streaming recon.
+     */
+    private int reconStreamBufferSize;
+
+    /**
+     * The directory to spill the remaining target ids to when streaming recon, or null for the
+     * system temporary directory.
+     */
+    private File reconSpillDirectory;
+
+    /**
+     * The number of partitions to distribute the source phase of full reconciliations across the nodes
+     * of the cluster in, or 0 to reconcile on the node the run was started on only.
+     */
+    private int reconPartitions;
+
+    /**
+     * A boolean indicating if recon should record checkpoints to resume failed or canceled runs from.
+     */
+    private boolean reconCheckpointing;
+
+    /**
+     * The minimum time between two checkpoints of the recon source phase, in milliseconds. Each checkpoint
+     * rewrites all the remaining target ids, so one is not recorded after every page; the checkpoint of the
+     * completed source phase is always recorded.
+     */
+    private long reconCheckpointInterval;
+
+    /**
+     * The number of source entries to correlate with a single target query in the recon source phase,
+     * or 0 to correlate each source entry on its own. The batches are correlated one at a time, see
+     * {@link BatchCorrelatingIterator}.
+     */
+    private int correlationBatchSize;
+
+    /**
+     * The number of source entries whose linked target objects are read with a single target query in the recon
+     * source phase, or 0 to read each linked target object on its own.
+     */
+    private int targetReadBatchSize;
+
+    /**
+     * A boolean indicating if recon should answer simple correlation queries from an index over the target
+     * objects preloaded by the target query, rather than by querying the target system.
+     */
+    private boolean correlationIndex;
+
+    /**
+     * A boolean indicating if the correlation index matches string values case sensitively, as the
+     * target system does.
+     */
+    private boolean correlationIndexCaseSensitive;
     
     /**
      * A container for the correlation queries or script.
@@ -232,6 +305,54 @@ class ObjectMapping {
     /** The number of initial tasks the ReconFeeder should submit to executors */
     private int feedSize;
 
+    /** The type of executor to process reconciliation tasks with */
+    private TaskExecutorType taskExecutor;
+
+    /** The stack size of the elastic executor threads in bytes, or 0 for the default stack size */
+    private long taskThreadStackSize;
+
+    /** The maximum number of concurrent connector requests of a reconciliation run, or 0 for no limit */
+    private int connectorConcurrency;
+
+    /**
+     * Whether the number of tasks in flight adapts to the task latency and failures, between the minimum
+     * feed size and the feed size, rather than being fixed to the feed size
+     */
+    private boolean adaptiveFeedSize;
+
+    /** The minimum number of tasks in flight if the feed size adapts */
+    private int minFeedSize;
+
+    /** The multiple of the baseline task latency tolerated before an adaptive feed size decreases */
+    private double feedLatencyTolerance;
+
+    /** The number of links recon writes to the repository in one batch, or 0 to write each link directly */
+    private int reconLinkBatchSize;
+
+    /**
+     * The queue publishing the sync and recon entry audit events asynchronously, or null to publish each event
+     * directly
+     */
+    private final SyncAuditQueue auditQueue;
+
+    /**
+     * How long the changes of a source object notified asynchronously are held back to be coalesced before
+     * being synchronized, in milliseconds, 0 to synchronize them as soon as possible
+     */
+    private final long coalescingWindow;
+
+    /**
+     * The properties of source objects the mapping depends on, or null if unknown, i.e. scripts depending on
+     * the whole source object are configured
+     */
+    private final SourceDependencies sourceDependencies;
+
+    /**
+     * Whether recon skips the source objects whose mapped properties did not change since they were last
+     * synchronized, according to the hash kept on their links
+     */
+    private final boolean reconSkipUnchanged;
+
     /** a reference to the {@link ConnectionFactory} */
     private final ConnectionFactory connectionFactory;
 
@@ -246,7 +367,6 @@ class ObjectMapping {
      * @throws JsonValueException if there is an issue initializing based on the configuration.
      */
     public ObjectMapping(ConnectionFactory connectionFactory, JsonValue config) throws JsonValueException {
-        this.connectionFactory = connectionFactory;
         this.config = config;
         name = config.get("name").required().asString();
         linkTypeName = config.get("links").defaultTo(name).asString();
@@ -286,9 +406,7 @@ class ObjectMapping {
         defaultMapping = Scripts.newScript(config.get("defaultMapping").defaultTo(
                 json(object(field(SourceUnit.ATTR_TYPE, "text/javascript"),
                     field(SourceUnit.ATTR_NAME, "roles/defaultMapping.js")))));
-        onReconScript = Scripts.newScript(config.get("onRecon").defaultTo(
-                json(object(field(SourceUnit.ATTR_TYPE, "groovy"),
-                    field(SourceUnit.ATTR_NAME, "roles/onRecon.groovy")))));
+        onReconScript = Scripts.newScript(config.get("onRecon"));
         onCreateScript = Scripts.newScript(config.get("onCreate"));
         onUpdateScript = Scripts.newScript(config.get("onUpdate"));
         onDeleteScript = Scripts.newScript(config.get("onDelete"));
@@ -301,12 +419,49 @@ class ObjectMapping {
         prefetchLinks = config.get("prefetchLinks").defaultTo(Boolean.TRUE).asBoolean();
         taskThreads = config.get("taskThreads").defaultTo(DEFAULT_TASK_THREADS).asInteger();
         feedSize = config.get("feedSize").defaultTo(ReconFeeder.DEFAULT_FEED_SIZE).asInteger();
+        taskExecutor = config.get("taskExecutor").defaultTo(TaskExecutorType.fixed.name())
+                .asEnum(TaskExecutorType.class);
+        taskThreadStackSize = config.get("taskThreadStackSize").defaultTo(0L).asLong();
+        connectorConcurrency = config.get("connectorConcurrency")
+                .defaultTo(taskExecutor == TaskExecutorType.elastic ? taskThreads : 0).asInteger();
+        // Connector requests of recon tasks are only throttled if limited
+        this.connectionFactory = connectorConcurrency > 0
+                ? ConnectorThrottle.wrap(connectionFactory)
+                : connectionFactory;
+        adaptiveFeedSize = config.get("adaptiveFeedSize").defaultTo(false).asBoolean();
+        minFeedSize = config.get("minFeedSize").defaultTo(Math.max(1, taskThreads)).asInteger();
+        feedLatencyTolerance = config.get("feedLatencyTolerance")
+                .defaultTo(DEFAULT_FEED_LATENCY_TOLERANCE).asDouble();
+        reconLinkBatchSize = config.get("reconLinkBatchSize").defaultTo(0).asInteger();
         correlateEmptyTargetSet = config.get("correlateEmptyTargetSet").defaultTo(Boolean.FALSE).asBoolean();
         syncEnabled = config.get("enableSync").defaultTo(Boolean.TRUE).asBoolean();
         linkingEnabled = config.get("enableLinking").defaultTo(Boolean.TRUE).asBoolean();
         reconSourceQueryPaging = config.get("reconSourceQueryPaging").defaultTo(false).asBoolean();
         reconSourceQueryPageSize = config.get("reconSourceQueryPageSize")
                 .defaultTo(reconSourceQueryPaging ? ReconFeeder.DEFAULT_FEED_SIZE : 0).asInteger();
+        reconStreaming = config.get("reconStreaming").defaultTo(false).asBoolean();
+        reconStreamBufferSize = config.get("reconStreamBufferSize")
+                .defaultTo(ReconQueryPipeline.DEFAULT_BUFFER_SIZE).asInteger();
+        String spillDirectory = config.get("reconSpillDirectory").asString();
+        reconSpillDirectory = spillDirectory != null ? new File(spillDirectory) : null;
+        int auditQueueSize = config.get("auditQueueSize").defaultTo(0).asInteger();
+        auditQueue = auditQueueSize > 0
+                ? new SyncAuditQueue(connectionFactory, name, auditQueueSize,
+                        config.get("auditBatchSize").defaultTo(SyncAuditQueue.DEFAULT_BATCH_SIZE).asInteger(),
+                        config.get("auditQueueFullPolicy").defaultTo(SyncAuditQueue.FullQueuePolicy.block.name())
+                                .asEnum(SyncAuditQueue.FullQueuePolicy.class),
+                        reconSpillDirectory)
+                : null;
+        coalescingWindow = config.get("coalescingWindow").defaultTo(0L).asLong();
+        sourceDependencies = analyzeSourceDependencies(config);
+        reconSkipUnchanged = config.get("reconSkipUnchanged").defaultTo(false).asBoolean();
+        reconPartitions = config.get("reconPartitions").defaultTo(0).asInteger();
+        reconCheckpointing = config.get("reconCheckpointing").defaultTo(reconSourceQueryPaging).asBoolean();
+        reconCheckpointInterval = config.get("reconCheckpointInterval").defaultTo(60000L).asLong();
+        correlationBatchSize = config.get("correlationBatchSize").defaultTo(0).asInteger();
+        targetReadBatchSize = config.get("targetReadBatchSize").defaultTo(0).asInteger();
+        correlationIndex = config.get("correlationIndex").defaultTo(false).asBoolean();
+        correlationIndexCaseSensitive = config.get("correlationIndexCaseSensitive").defaultTo(true).asBoolean();
 
         LOGGER.debug("Instantiated {}", name);
     }
@@ -662,8 +817,10 @@ class ObjectMapping {
             JsonValue existingTarget, String linkQualifier) throws SynchronizationException {
         EventEntry measure = Publisher.start(getObjectMappingEventName(), source, null);
         try {
+            PropertyMapping.Scope scope =
+                    new PropertyMapping.Scope(source, oldSource, target, existingTarget, linkQualifier);
             for (PropertyMapping property : properties) {
-                property.apply(source, oldSource, target, existingTarget, linkQualifier, context);
+                property.apply(scope, context);
             }
             // Apply default mapping, if configured
             applyDefaultMappings(context, source, oldSource, target, existingTarget, linkQualifier);
@@ -764,10 +921,18 @@ class ObjectMapping {
                 newValue = LazyObjectAccessor.rawReadObject(connectionFactory, context, resourceContainer, resourceId);
             }
 
-            if (oldValue == null || oldValue.getObject() == null || JsonPatch.diff(oldValue, newValue).size() > 0) {
+            if (oldValue == null || oldValue.getObject() == null) {
                 return doSourceSync(context, resourceId, newValue, false, oldValue); // synchronous for now
-            } else {
+            }
+            JsonValue diff = JsonPatch.diff(oldValue, newValue);
+            if (diff.size() == 0) {
                 LOGGER.trace("There is nothing to update on {}", resourceContainer + "/" + resourceId);
+            } else if (sourceDependencies != null && !sourceDependencies.isAffectedBy(diff)
+                    && isLinked(resourceId)) {
+                // The target of a linked source only changes with the properties mapped
+                LOGGER.trace("Only unmapped properties changed on {}", resourceContainer + "/" + resourceId);
+            } else {
+                return doSourceSync(context, resourceId, newValue, false, oldValue); // synchronous for now
             }
         }
         return json(null);
@@ -935,6 +1100,24 @@ class ObjectMapping {
         }
     }
 
+    /**
+     * Records a successful run with its recon type, e.g. the watermarks of a delta recon, and deletes its
+     * checkpoints. An analysis performs no actions and records no checkpoints, so it records nothing: the changes
+     * it assessed are left to the next run that acts on them.
+     *
+     * @param reconContext the context specific to the reconciliation run
+     * @param context the context of the reconciliation
+     */
+    void reconSucceeded(ReconciliationContext reconContext, Context context) {
+        if (reconContext.isAnalysis()) {
+            return;
+        }
+        reconContext.getReconHandler().reconSucceeded(context);
+        if (reconCheckpointing || reconContext.getResumeCheckpoint() != null) {
+            reconContext.getService().getReconCheckpoints().delete(context, reconContext.getReconId());
+        }
+    }
+
     /**
      * Execute a full reconciliation
      *
@@ -955,107 +1138,44 @@ class ObjectMapping {
     private void doRecon(ReconciliationContext reconContext) throws SynchronizationException {
         reconContext.getStatistics().reconStart();
         String reconId = reconContext.getReconId();
+        if (auditQueue != null) {
+            reconContext.setAuditCounts(auditQueue.track(reconId));
+        }
         EventEntry measureIdQueries = Publisher.start(EVENT_RECON_ID_QUERIES, reconId, null);
         reconContext.setStage(ReconStage.ACTIVE_QUERY_ENTRIES);
         Context context = ObjectSetContext.get();
         try {
-            // Execute onRecon script.
-            executeOnRecon(context);
+            // Execute onRecon script, which prepares the mapping of the entries an analysis does not map
+            if (!reconContext.isAnalysis()) {
+                executeOnRecon(context);
+            }
             
             context = new TriggerContext(context, "recon");
             ObjectSetContext.push(context);
             logReconStart(reconContext, context);
 
-            // Get the relevant source (and optionally target) identifiers before we assess the situations
-            reconContext.getStatistics().sourceQueryStart();
-            
-            ReconQueryResult sourceQueryResult = reconContext.querySourceIter(reconSourceQueryPageSize, null);
-            Iterator<ResultEntry> sourceIter = sourceQueryResult.getIterator();
-            reconContext.getStatistics().sourceQueryEnd();
-            if (!sourceIter.hasNext()) {
-                if (!reconContext.getReconHandler().allowEmptySourceSet()) {
-                    LOGGER.warn("Cannot reconcile from an empty data source, unless allowEmptySourceSet is true.");
-                    reconContext.setStage(ReconStage.COMPLETED_FAILED);
-                    reconContext.getStatistics().reconEnd();
-                    logReconEndFailure(reconContext, context);
-                    return;
-                }
-            }
-
-            // If we will handle a target phase, pre-load all relevant target identifiers
-            Collection<String> remainingTargetIds = new ArrayList<String>();
-            ResultIterable targetIterable =
-                    new ResultIterable(Collections.<String>emptyList(), Collections.<JsonValue>emptyList());
-            if (reconContext.getReconHandler().isRunTargetPhase()) {
-                reconContext.getStatistics().targetQueryStart();
-                targetIterable = reconContext.queryTarget();
-                remainingTargetIds.addAll(targetIterable.getAllIds());
-                reconContext.getStatistics().targetQueryEnd();
-            }            
-
-            // Optionally get all links up front as well
-            Map<String, Map<String, Link>> allLinks = null;
-            if (prefetchLinks) {
-                allLinks = new HashMap<String, Map<String, Link>>();
-                Integer totalLinkEntries = new Integer(0);
-                reconContext.getStatistics().linkQueryStart();
-                for (String linkQualifier : getAllLinkQualifiers(context)) {
-                    Map<String, Link> linksByQualifier = Link.getLinksForMapping(ObjectMapping.this, linkQualifier);
-                    allLinks.put(linkQualifier, linksByQualifier);
-                    totalLinkEntries += linksByQualifier.size();
-                }
-                reconContext.setTotalLinkEntries(totalLinkEntries);
-                reconContext.getStatistics().linkQueryEnd();
+            boolean reconciled;
+            if (reconContext.getResumeCheckpoint() != null) {
+                // Checkpoints are only recorded by non-streaming, non-distributed runs
+                reconciled = queryAndRecon(reconContext, context, measureIdQueries);
+            } else if (reconPartitions > 1 && reconContext.getPartition() == null
+                    && reconContext.getReconAction() == ReconciliationService.ReconAction.recon) {
+                reconciled = distributeRecon(reconContext, context, measureIdQueries);
+            } else if (reconStreaming) {
+                reconciled = streamRecon(reconContext, context, measureIdQueries);
+            } else {
+                reconciled = queryAndRecon(reconContext, context, measureIdQueries);
             }
-
-            measureIdQueries.end();
-
-            EventEntry measureSource = Publisher.start(EVENT_RECON_SOURCE, reconId, null);
-            reconContext.setStage(ReconStage.ACTIVE_RECONCILING_SOURCE);
-
-            reconContext.getStatistics().sourcePhaseStart();
-            
-            boolean queryNextPage = false;
-
-            LOGGER.info("Performing source sync for recon {} on mapping {}", new Object[] {reconId, name});
-            do {
-                // Query next page of results if paging
-                if (queryNextPage) {
-                    LOGGER.debug("Querying next page of source ids");
-                    sourceQueryResult = reconContext.querySourceIter(reconSourceQueryPageSize, 
-                            sourceQueryResult.getPagingCookie());
-                    sourceIter = sourceQueryResult.getIterator();
-                }
-                // Perform source recon phase on current set of source ids
-                ReconPhase sourcePhase = 
-                        new ReconPhase(sourceIter, reconContext, context, allLinks, remainingTargetIds, sourceRecon);
-                sourcePhase.setFeedSize(feedSize);
-                sourcePhase.execute();
-                queryNextPage = true;
-            } while (reconSourceQueryPaging && sourceQueryResult.getPagingCookie() != null); // If paging, loop through next pages
-            
-            reconContext.getStatistics().sourcePhaseEnd();
-            measureSource.end();
-
-            LOGGER.debug("Remaining targets after source phase : {}", remainingTargetIds);
-
-            if (reconContext.getReconHandler().isRunTargetPhase()) {
-                EventEntry measureTarget = Publisher.start(EVENT_RECON_TARGET, reconId, null);
-                reconContext.setStage(ReconStage.ACTIVE_RECONCILING_TARGET);
-                targetIterable = targetIterable.removeNotMatchingEntries(remainingTargetIds);
-                reconContext.getStatistics().targetPhaseStart();
-                ReconPhase targetPhase = new ReconPhase(targetIterable.iterator(), reconContext, context,
-                        allLinks, null, targetRecon);
-                targetPhase.setFeedSize(feedSize);
-                targetPhase.execute();
-                reconContext.getStatistics().targetPhaseEnd();
-                measureTarget.end();
+            if (!reconciled) {
+                return;
             }
 
             reconContext.getStatistics().reconEnd();
             reconContext.setStage(ReconStage.ACTIVE_PROCESSING_RESULTS);
             doResults(reconContext, context);
+            flushAuditEntries();
             reconContext.setStage(ReconStage.COMPLETED_SUCCESS);
+            reconSucceeded(reconContext, context);
             logReconEndSuccess(reconContext, context);
         } catch (InterruptedException ex) {
             SynchronizationException syncException;
@@ -1090,11 +1210,430 @@ class ObjectMapping {
             if (!reconContext.getStatistics().hasEnded()) {
                 reconContext.getStatistics().reconEnd();
             }
+            if (auditQueue != null) {
+                auditQueue.untrack(reconId);
+            }
         }
 
 // TODO: cleanup orphan link objects (no matching source or target) here
     }
     
+    /**
+     * Queries the source and target ids to reconcile up front, holding them in memory, and performs the
+     * source and target phases on them.
+     * <p>
+     * If checkpointing, a checkpoint is recorded after a page of source ids once the checkpoint interval has
+     * elapsed since the previous one, and after the last page. If the run resumes from a checkpoint, it
+     * continues with the page or phase recorded by the checkpoint, reconciling again the pages since.
+     *
+     * @param reconContext the context specific to the reconciliation run
+     * @param context the context of the reconciliation
+     * @param measureIdQueries the measurement of the id queries, ended once the queries completed
+     * @return false if the reconciliation had to be aborted as the source set was empty, true otherwise
+     * @throws SynchronizationException if the reconciliation failed
+     * @throws InterruptedException if the reconciliation got interrupted
+     */
+    private boolean queryAndRecon(ReconciliationContext reconContext, Context context, EventEntry measureIdQueries)
+            throws SynchronizationException, InterruptedException {
+        String reconId = reconContext.getReconId();
+        // An analysis is not resumed, as it is cheap to run again
+        ReconCheckpoints checkpoints = reconCheckpointing && reconContext.getPartition() == null
+                && !reconContext.isAnalysis()
+                ? reconContext.getService().getReconCheckpoints()
+                : null;
+        JsonValue checkpoint = reconContext.getResumeCheckpoint();
+        boolean resumeTargetPhase = checkpoint != null
+                && ReconCheckpoints.PHASE_TARGET.equals(checkpoint.get(ReconCheckpoints.PHASE).asString());
+        int pages = 0;
+        if (checkpoint != null) {
+            LOGGER.info("Resuming recon {} on mapping {} from its {} phase checkpoint",
+                    new Object[] {reconId, name, checkpoint.get(ReconCheckpoints.PHASE).asString()});
+            pages = checkpoint.get(ReconCheckpoints.PAGES).defaultTo(0).asInteger();
+            reconContext.getStatistics().mergeCounts(checkpoint.get(ReconCheckpoints.STATISTICS));
+        }
+
+        // Get the relevant source (and optionally target) identifiers before we assess the situations
+        reconContext.getStatistics().sourceQueryStart();
+        
+        ReconQueryResult sourceQueryResult = null;
+        Iterator<ResultEntry> sourceIter = Collections.<ResultEntry>emptyIterator();
+        if (!resumeTargetPhase) {
+            String pagingCookie = checkpoint != null
+                    ? checkpoint.get(ReconCheckpoints.PAGING_COOKIE).asString()
+                    : null;
+            sourceQueryResult = reconContext.querySourceIter(reconSourceQueryPageSize, pagingCookie);
+            sourceIter = sourceQueryResult.getIterator();
+        }
+        reconContext.getStatistics().sourceQueryEnd();
+        if (!sourceIter.hasNext() && checkpoint == null) {
+            if (!reconContext.allowEmptySourceSet()) {
+                LOGGER.warn("Cannot reconcile from an empty data source, unless allowEmptySourceSet is true.");
+                reconContext.setStage(ReconStage.COMPLETED_FAILED);
+                reconContext.getStatistics().reconEnd();
+                logReconEndFailure(reconContext, context);
+                return false;
+            }
+        }
+
+        // If we will handle a target phase, pre-load all relevant target identifiers
+        Collection<String> remainingTargetIds = new CompactIdSet();
+        ResultIterable targetIterable =
+                new ResultIterable(Collections.<String>emptyList(), Collections.<JsonValue>emptyList());
+        if (reconContext.isRunTargetPhase()) {
+            reconContext.getStatistics().targetQueryStart();
+            targetIterable = reconContext.queryTarget();
+            if (checkpoint != null) {
+                // Targets handled by the pages reconciled before the checkpoint are not remaining
+                remainingTargetIds = ReconCheckpoints.decodeIds(checkpoint.get(ReconCheckpoints.REMAINING_TARGET_IDS));
+            } else {
+                remainingTargetIds.addAll(targetIterable.getAllIds());
+            }
+            reconContext.getStatistics().targetQueryEnd();
+        }            
+
+        // Optionally get all links up front as well
+        Map<String, Map<String, Link>> allLinks = queryAllLinks(reconContext, context);
+
+        measureIdQueries.end();
+
+        EventEntry measureSource = Publisher.start(EVENT_RECON_SOURCE, reconId, null);
+        reconContext.setStage(ReconStage.ACTIVE_RECONCILING_SOURCE);
+
+        reconContext.getStatistics().sourcePhaseStart();
+        
+        boolean queryNextPage = false;
+        long lastCheckpoint = System.currentTimeMillis();
+
+        LOGGER.info("Performing source sync for recon {} on mapping {}", new Object[] {reconId, name});
+        while (!resumeTargetPhase) {
+            // Query next page of results if paging
+            if (queryNextPage) {
+                LOGGER.debug("Querying next page of source ids");
+                sourceQueryResult = reconContext.querySourceIter(reconSourceQueryPageSize, 
+                        sourceQueryResult.getPagingCookie());
+                sourceIter = sourceQueryResult.getIterator();
+            }
+            // Perform source recon phase on current set of source ids
+            ReconPhase sourcePhase = new ReconPhase(
+                    prefetchingTargets(batchCorrelating(sourceIter, reconContext, context, allLinks),
+                            reconContext, allLinks),
+                    reconContext, context, allLinks, remainingTargetIds, sourceRecon);
+            sourcePhase.setFeedSize(feedSize);
+            sourcePhase.execute();
+            queryNextPage = true;
+            pages++;
+
+            // If paging, loop through next pages
+            boolean lastPage = !reconSourceQueryPaging || sourceQueryResult.getPagingCookie() == null;
+            if (checkpoints != null && !reconContext.isCanceled()
+                    && (lastPage || System.currentTimeMillis() - lastCheckpoint >= reconCheckpointInterval)) {
+                checkpoints.save(context, reconContext,
+                        lastPage ? ReconCheckpoints.PHASE_TARGET : ReconCheckpoints.PHASE_SOURCE,
+                        lastPage ? null : sourceQueryResult.getPagingCookie(), pages, remainingTargetIds);
+                lastCheckpoint = System.currentTimeMillis();
+            }
+            if (lastPage) {
+                break;
+            }
+        }
+        
+        reconContext.getStatistics().sourcePhaseEnd();
+        measureSource.end();
+
+        LOGGER.debug("Remaining targets after source phase : {}", remainingTargetIds);
+
+        if (reconContext.isRunTargetPhase()) {
+            EventEntry measureTarget = Publisher.start(EVENT_RECON_TARGET, reconId, null);
+            reconContext.setStage(ReconStage.ACTIVE_RECONCILING_TARGET);
+            targetIterable = targetIterable.removeNotMatchingEntries(remainingTargetIds);
+            reconContext.getStatistics().targetPhaseStart();
+            ReconPhase targetPhase = new ReconPhase(targetIterable.iterator(), reconContext, context,
+                    allLinks, null, targetRecon);
+            targetPhase.setFeedSize(feedSize);
+            targetPhase.execute();
+            reconContext.getStatistics().targetPhaseEnd();
+            measureTarget.end();
+        }
+        return true;
+    }
+
+    /**
+     * Streams the source and target ids to reconcile through bounded buffers rather than holding them in memory,
+     * and performs the source and target phases on them. The target ids remaining for the target phase are spilled
+     * to temporary files.
+     * <p>
+     * As neither the source nor target ids are known up front, situations relying on the presence of an object
+     * are assessed by reading the object, and the correlation of an empty target set is not optimized.
+     *
+     * @param reconContext the context specific to the reconciliation run
+     * @param context the context of the reconciliation
+     * @param measureIdQueries the measurement of the id queries, ended once the target ids and links were queried
+     * @return false if the reconciliation had to be aborted as the source set was empty, true otherwise
+     * @throws SynchronizationException if the reconciliation failed
+     * @throws InterruptedException if the reconciliation got interrupted
+     */
+    private boolean streamRecon(ReconciliationContext reconContext, Context context, EventEntry measureIdQueries)
+            throws SynchronizationException, InterruptedException {
+        String reconId = reconContext.getReconId();
+        ReconTypeHandler reconHandler = reconContext.getReconHandler();
+        ReconQueryPipeline sourcePipeline = null;
+        SpilledIdSet remainingTargetIds = null;
+        try {
+            // The source query keeps running, throttled by the buffer, for the duration of the source phase
+            reconContext.getStatistics().sourceQueryStart();
+            sourcePipeline = reconHandler.streamSource(reconStreamBufferSize);
+            boolean emptySourceSet = !sourcePipeline.hasNext();
+            reconContext.getStatistics().sourceQueryEnd();
+            sourcePipeline.checkFailure();
+            if (emptySourceSet && !reconContext.allowEmptySourceSet()) {
+                LOGGER.warn("Cannot reconcile from an empty data source, unless allowEmptySourceSet is true.");
+                reconContext.setStage(ReconStage.COMPLETED_FAILED);
+                reconContext.getStatistics().reconEnd();
+                logReconEndFailure(reconContext, context);
+                return false;
+            }
+
+            // If we will handle a target phase, spill all relevant target identifiers
+            if (reconContext.isRunTargetPhase()) {
+                reconContext.getStatistics().targetQueryStart();
+                try {
+                    remainingTargetIds = new SpilledIdSet(reconSpillDirectory, reconId, SpilledIdSet.DEFAULT_PARTITIONS);
+                } catch (IOException e) {
+                    throw new SynchronizationException("Failed to create the remaining target ids spill files", e);
+                }
+                ReconQueryPipeline targetPipeline = reconHandler.streamTarget(reconStreamBufferSize);
+                try {
+                    while (targetPipeline.hasNext()) {
+                        remainingTargetIds.add(targetPipeline.next().getId());
+                    }
+                    targetPipeline.checkFailure();
+                } finally {
+                    targetPipeline.close();
+                }
+                reconContext.checkCanceled();
+                reconContext.setTotalTargetEntries(targetPipeline.getProduced());
+                reconContext.getStatistics().targetQueryEnd();
+            }
+
+            // Optionally get all links up front as well
+            Map<String, Map<String, Link>> allLinks = queryAllLinks(reconContext, context);
+
+            measureIdQueries.end();
+
+            EventEntry measureSource = Publisher.start(EVENT_RECON_SOURCE, reconId, null);
+            reconContext.setStage(ReconStage.ACTIVE_RECONCILING_SOURCE);
+            reconContext.getStatistics().sourcePhaseStart();
+
+            LOGGER.info("Performing streaming source sync for recon {} on mapping {}", new Object[] {reconId, name});
+            Collection<String> handledTargetIds = remainingTargetIds != null
+                    ? remainingTargetIds
+                    : Collections.<String>emptySet();
+            ReconPartition partition = reconContext.getPartition();
+            Iterator<ResultEntry> sourceEntries = partition != null
+                    ? partition.filter(sourcePipeline)
+                    : sourcePipeline;
+            ReconPhase sourcePhase = new ReconPhase(
+                    prefetchingTargets(batchCorrelating(sourceEntries, reconContext, context, allLinks),
+                            reconContext, allLinks),
+                    reconContext, context, allLinks, handledTargetIds, sourceRecon);
+            sourcePhase.setFeedSize(feedSize);
+            sourcePhase.execute();
+            sourcePipeline.checkFailure();
+            reconContext.setTotalSourceEntries(sourcePipeline.getProduced());
+
+            reconContext.getStatistics().sourcePhaseEnd();
+            measureSource.end();
+
+            if (reconContext.isRunTargetPhase()) {
+                EventEntry measureTarget = Publisher.start(EVENT_RECON_TARGET, reconId, null);
+                reconContext.setStage(ReconStage.ACTIVE_RECONCILING_TARGET);
+                reconContext.getStatistics().targetPhaseStart();
+                ReconPhase targetPhase = new ReconPhase(new ResultIterable(remainingTargetIds, null).iterator(),
+                        reconContext, context, allLinks, null, targetRecon);
+                targetPhase.setFeedSize(feedSize);
+                targetPhase.execute();
+                reconContext.getStatistics().targetPhaseEnd();
+                measureTarget.end();
+            }
+            return true;
+        } finally {
+            if (sourcePipeline != null) {
+                sourcePipeline.close();
+            }
+            if (remainingTargetIds != null) {
+                remainingTargetIds.close();
+            }
+        }
+    }
+
+    /**
+     * Distributes the source phase of a full reconciliation across the nodes of the cluster, by splitting the
+     * source ids into partitions which the nodes claim and reconcile, then performs the target phase on the
+     * targets which none of the partitions handled.
+     * <p>
+     * The partitions are reconciled by {@link #reconPartition(ReconciliationContext)}, and report their statistics
+     * and the targets they handled without linking them through the partition records in the repository.
+     *
+     * @param reconContext the context specific to the reconciliation run
+     * @param context the context of the reconciliation
+     * @param measureIdQueries the measurement of the id queries, ended once the queries completed
+     * @return false if the reconciliation had to be aborted as the source set was empty, true otherwise
+     * @throws SynchronizationException if the reconciliation or one of its partitions failed
+     * @throws InterruptedException if the reconciliation got interrupted
+     */
+    private boolean distributeRecon(ReconciliationContext reconContext, Context context, EventEntry measureIdQueries)
+            throws SynchronizationException, InterruptedException {
+        String reconId = reconContext.getReconId();
+        ReconciliationService service = reconContext.getService();
+        ReconPartitions partitions = service.getReconPartitions();
+
+        reconContext.getStatistics().sourceQueryStart();
+        Collection<String> sourceIds = reconContext.querySourceIter(0, null).getAllIds();
+        reconContext.getStatistics().sourceQueryEnd();
+        if (sourceIds.isEmpty() && !reconContext.allowEmptySourceSet()) {
+            LOGGER.warn("Cannot reconcile from an empty data source, unless allowEmptySourceSet is true.");
+            reconContext.setStage(ReconStage.COMPLETED_FAILED);
+            reconContext.getStatistics().reconEnd();
+            logReconEndFailure(reconContext, context);
+            return false;
+        }
+
+        ResultIterable targetIterable = null;
+        if (reconContext.isRunTargetPhase()) {
+            reconContext.getStatistics().targetQueryStart();
+            targetIterable = reconContext.queryTarget();
+            reconContext.getStatistics().targetQueryEnd();
+        }
+
+        measureIdQueries.end();
+
+        EventEntry measureSource = Publisher.start(EVENT_RECON_SOURCE, reconId, null);
+        reconContext.setStage(ReconStage.ACTIVE_RECONCILING_SOURCE);
+        reconContext.getStatistics().sourcePhaseStart();
+
+        LOGGER.info("Distributing source sync for recon {} on mapping {} in {} partitions",
+                new Object[] {reconId, name, reconPartitions});
+        Collection<String> handledTargetIds = new CompactIdSet();
+        try {
+            partitions.create(context, reconContext, reconPartitions);
+            for (JsonValue partition : partitions.awaitCompletion(context, reconContext, reconPartitions,
+                    service.getPartitionPollInterval())) {
+                reconContext.getStatistics().mergeCounts(partition.get(ReconPartitions.STATISTICS));
+                for (JsonValue targetId : partition.get(ReconPartitions.UNLINKED_TARGET_IDS)) {
+                    handledTargetIds.add(targetId.asString());
+                }
+            }
+        } catch (ResourceException e) {
+            throw new SynchronizationException("Failed to create the partitions of reconciliation " + reconId, e);
+        } finally {
+            // Removing the records also makes the nodes still reconciling a canceled run lose their lease
+            partitions.delete(context, reconId);
+        }
+
+        reconContext.getStatistics().sourcePhaseEnd();
+        measureSource.end();
+
+        if (reconContext.isRunTargetPhase()) {
+            // Leave out the targets the source phase handled, which are either linked to a source now
+            // or were reported as handled by the partitions
+            Collection<String> remainingTargetIds = new CompactIdSet(targetIterable.getAllIds());
+            remainingTargetIds.removeAll(handledTargetIds);
+            Collection<String> normalizedSourceIds = new CompactIdSet(sourceIds.size());
+            for (String sourceId : sourceIds) {
+                normalizedSourceIds.add(linkType.normalizeSourceId(sourceId));
+            }
+            Map<String, Map<String, Link>> allLinks = queryAllLinks(reconContext, context);
+            for (String linkQualifier : getAllLinkQualifiers(context)) {
+                Map<String, Link> links = allLinks != null
+                        ? allLinks.get(linkQualifier)
+                        : Link.getLinksForMapping(this, linkQualifier);
+                for (Map.Entry<String, Link> link : links.entrySet()) {
+                    if (link.getValue().targetId != null && normalizedSourceIds.contains(link.getKey())) {
+                        remainingTargetIds.remove(linkType.normalizeTargetId(link.getValue().targetId));
+                    }
+                }
+            }
+
+            EventEntry measureTarget = Publisher.start(EVENT_RECON_TARGET, reconId, null);
+            reconContext.setStage(ReconStage.ACTIVE_RECONCILING_TARGET);
+            targetIterable = targetIterable.removeNotMatchingEntries(remainingTargetIds);
+            reconContext.getStatistics().targetPhaseStart();
+            ReconPhase targetPhase = new ReconPhase(targetIterable.iterator(), reconContext, context,
+                    allLinks, null, targetRecon);
+            targetPhase.setFeedSize(feedSize);
+            targetPhase.execute();
+            reconContext.getStatistics().targetPhaseEnd();
+            measureTarget.end();
+        }
+        return true;
+    }
+
+    /**
+     * Reconciles one partition of a reconciliation distributed by another node. Only the source phase is
+     * performed; the onRecon and result scripts, the target phase and the reconciliation start and end audit
+     * entries are left to the coordinating run.
+     *
+     * @param reconContext the context of the partition run
+     * @throws SynchronizationException if reconciling the partition failed or got canceled
+     */
+    void reconPartition(ReconciliationContext reconContext) throws SynchronizationException {
+        String reconId = reconContext.getReconId();
+        EventEntry measure = Publisher.start(EVENT_RECON, reconId, null);
+        EventEntry measureIdQueries = Publisher.start(EVENT_RECON_ID_QUERIES, reconId, null);
+        reconContext.getStatistics().reconStart();
+        reconContext.setStage(ReconStage.ACTIVE_QUERY_ENTRIES);
+        ObjectSetContext.push(new TriggerContext(ObjectSetContext.get(), "recon"));
+        try {
+            if (reconStreaming) {
+                streamRecon(reconContext, ObjectSetContext.get(), measureIdQueries);
+            } else {
+                queryAndRecon(reconContext, ObjectSetContext.get(), measureIdQueries);
+            }
+            reconContext.setStage(ReconStage.COMPLETED_SUCCESS);
+        } catch (InterruptedException ex) {
+            reconContext.setStage(reconContext.isCanceled()
+                    ? ReconStage.COMPLETED_CANCELED
+                    : ReconStage.COMPLETED_FAILED);
+            throw new SynchronizationException("Interrupted execution of reconciliation partition", ex);
+        } catch (SynchronizationException e) {
+            reconContext.setStage(ReconStage.COMPLETED_FAILED);
+            throw e;
+        } catch (RuntimeException e) {
+            reconContext.setStage(ReconStage.COMPLETED_FAILED);
+            throw new SynchronizationException("Reconciliation partition failed", e);
+        } finally {
+            ObjectSetContext.pop(); // pop the TriggerContext
+            reconContext.getStatistics().reconEnd();
+            measure.end();
+        }
+    }
+
+    /**
+     * Queries all links of this mapping up front, if configured to prefetch links.
+     *
+     * @param reconContext the context specific to the reconciliation run
+     * @param context the context of the reconciliation
+     * @return the links by link qualifier and source id, or null if links are queried on demand
+     * @throws SynchronizationException if querying the links failed
+     */
+    private Map<String, Map<String, Link>> queryAllLinks(ReconciliationContext reconContext, Context context)
+            throws SynchronizationException {
+        if (!prefetchLinks) {
+            return null;
+        }
+        Map<String, Map<String, Link>> allLinks = new HashMap<String, Map<String, Link>>();
+        Integer totalLinkEntries = new Integer(0);
+        reconContext.getStatistics().linkQueryStart();
+        for (String linkQualifier : getAllLinkQualifiers(context)) {
+            Map<String, Link> linksByQualifier = Link.getLinksForMapping(ObjectMapping.this, linkQualifier);
+            allLinks.put(linkQualifier, linksByQualifier);
+            totalLinkEntries += linksByQualifier.size();
+        }
+        reconContext.setTotalLinkEntries(totalLinkEntries);
+        reconContext.getStatistics().linkQueryEnd();
+        return allLinks;
+    }
+
     private void executeOnRecon(Context context) throws SynchronizationException {
         if (onReconScript != null) {
             Map<String, Object> scope = new HashMap<String, Object>();
@@ -1207,12 +1746,17 @@ class ObjectMapping {
                 // update statistics with status
                 reconContext.getStatistics().processStatus(status);
 
+                long auditNanos = 0;
                 String[] targetIds = op.getTargetIds();
                 for (String handledId : targetIds) {
                     // If target system has case insensitive IDs, remove without regard to case
                     String normalizedHandledId = linkType.normalizeTargetId(handledId);
                     remainingIds.remove(normalizedHandledId);
                     LOGGER.trace("Removed target from remaining targets: {}", normalizedHandledId);
+                    // Targets which end up linked are left out of the target phase by the coordinating run
+                    if (reconContext.getPartition() != null && !op.linkObject.targetEquals(handledId)) {
+                        reconContext.getPartition().addUnlinkedTargetId(normalizedHandledId);
+                    }
                 }
                 if (!ReconAction.NOREPORT.equals(op.action) && (status == Status.FAILURE || op.action != null)) {
                     auditEvent.setReconciling("source");
@@ -1230,72 +1774,359 @@ class ObjectMapping {
                     auditEvent.setStatus(status);
                     auditEvent.setAmbiguousTargetIds(op.getAmbiguousTargetIds());
                     auditEvent.setReconId(reconContext.getReconId());
+                    long auditStart = System.nanoTime();
                     logEntry(auditEvent);
+                    auditNanos = System.nanoTime() - auditStart;
                 }
+                op.recordLatencies(auditNanos);
             }
         }
-    };
+    };
+
+    /**
+     * Reconcile a given target ID
+     */
+    private final Recon targetRecon = new Recon() {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void recon(String id, JsonValue objectEntry, ReconciliationContext reconContext, Context context, Map<String,
+                Map<String, Link>> allLinks, Collection<String> remainingIds)  throws SynchronizationException {
+            reconContext.checkCanceled();
+            for (String linkQualifier : getAllLinkQualifiers(context)) {
+                TargetSyncOperation op = new TargetSyncOperation(context);
+                op.reconContext = reconContext;
+                op.setLinkQualifier(linkQualifier);
+
+                ReconAuditEventLogger event = new ReconAuditEventLogger(op, name, context);
+                event.setLinkQualifier(op.getLinkQualifier());
+                
+                if (objectEntry == null) {
+                    // Load target detail on demand
+                    op.targetObjectAccessor = new LazyObjectAccessor(connectionFactory, targetObjectSet, id);
+                } else {
+                    // Pre-queried target detail
+                    op.targetObjectAccessor = new LazyObjectAccessor(connectionFactory, targetObjectSet, id, objectEntry);
+                }
+                event.setTargetObjectId(LazyObjectAccessor.qualifiedId(targetObjectSet, id));
+                op.reconId = reconContext.getReconId();
+                Status status = Status.SUCCESS;
+                try {
+                    op.sync();
+                } catch (SynchronizationException se) {
+                    if (op.action != ReconAction.EXCEPTION) {
+                        status = Status.FAILURE; // exception was not intentional
+                        LOGGER.warn("Unexpected failure during target reconciliation {}", reconContext.getReconId(),
+                                se);
+                    }
+                    setLogEntryMessage(event, se);
+                }
+                // update statistics with status
+                reconContext.getStatistics().processStatus(status);
+
+                long auditNanos = 0;
+                if (!ReconAction.NOREPORT.equals(op.action) && (status == Status.FAILURE || op.action != null)) {
+                    event.setReconciling("target");
+                    if (op.getSourceObjectId() != null) {
+                        event.setSourceObjectId(
+                                LazyObjectAccessor.qualifiedId(sourceObjectSet, op.getSourceObjectId()));
+                    }
+                    event.setStatus(status);
+                    event.setReconId(reconContext.getReconId());
+                    long auditStart = System.nanoTime();
+                    logEntry(event);
+                    auditNanos = System.nanoTime() - auditStart;
+                }
+                op.recordLatencies(auditNanos);
+            }
+        }
+    };
+      
+    /**
+     * Wraps the source entries of a recon source phase to correlate them in batches, if configured and
+     * applicable.
+     *
+     * @param sourceEntries the source entries
+     * @param reconContext the context specific to the reconciliation run
+     * @param context the context of the reconciliation
+     * @param allLinks all links if pre-queried, or null for on-demand link querying
+     * @return the source entries, correlated in batches while iterated
+     */
+    Iterator<ResultEntry> batchCorrelating(Iterator<ResultEntry> sourceEntries,
+            ReconciliationContext reconContext, Context context, Map<String, Map<String, Link>> allLinks) {
+        // Without prefetched links, linked sources can not be told apart up front
+        if (correlationBatchSize < 2 || allLinks == null || !correlation.isBatchable()) {
+            return sourceEntries;
+        }
+        if (!correlateEmptyTargetSet && reconContext.getTargetIds() != null && reconContext.getTargetIds().isEmpty()) {
+            return sourceEntries;
+        }
+        return new BatchCorrelatingIterator(sourceEntries, reconContext, context, allLinks);
+    }
+
+    /**
+     * Reads ahead batches of source entries and correlates those without a link with one target query per
+     * batch and link qualifier. The results are handed to the source sync operations through the
+     * {@link ReconciliationContext}; entries whose correlation could not be batched are correlated on their
+     * own by their sync operation, as without batching.
+     * <p>
+     * The batches are read and correlated on the single thread feeding the recon tasks, which submits no further
+     * tasks while a batch is correlated. The source phase therefore runs at most one correlation query at a time,
+     * however many task threads are configured, and the task threads go idle once they have processed the
+     * previous batch before the query of the next one returns. The correlation batch size should be large enough
+     * for one query to take less time than the task threads take to process a batch.
+     */
+    private class BatchCorrelatingIterator implements Iterator<ResultEntry> {
+        private final Iterator<ResultEntry> sourceEntries;
+        private final ReconciliationContext reconContext;
+        private final Context context;
+        private final Map<String, Map<String, Link>> allLinks;
+        private Iterator<ResultEntry> batch = Collections.<ResultEntry>emptyIterator();
+
+        BatchCorrelatingIterator(Iterator<ResultEntry> sourceEntries, ReconciliationContext reconContext,
+                Context context, Map<String, Map<String, Link>> allLinks) {
+            this.sourceEntries = sourceEntries;
+            this.reconContext = reconContext;
+            this.context = context;
+            this.allLinks = allLinks;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!batch.hasNext() && sourceEntries.hasNext()) {
+                batch = nextBatch();
+            }
+            return batch.hasNext();
+        }
+
+        @Override
+        public ResultEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Iterator<ResultEntry> nextBatch() {
+            List<ResultEntry> entries = new ArrayList<ResultEntry>(correlationBatchSize);
+            // The source objects to correlate by link qualifier and source id
+            Map<String, Map<String, JsonValue>> unlinked = new HashMap<String, Map<String, JsonValue>>();
+            try {
+                while (entries.size() < correlationBatchSize && sourceEntries.hasNext()) {
+                    ResultEntry entry = sourceEntries.next();
+                    entries.add(entry);
+                    JsonValue source = entry.getValue();
+                    if (source == null) {
+                        source = new LazyObjectAccessor(connectionFactory, sourceObjectSet, entry.getId()).getObject();
+                        if (source == null) {
+                            continue;
+                        }
+                        // Hand the read source object on to the sync operation
+                        entries.set(entries.size() - 1, new ResultEntry(entry.getId(), source));
+                    }
+                    String normalizedSourceId = linkType.normalizeSourceId(entry.getId());
+                    for (String linkQualifier : getLinkQualifiers(source, null, false, context)) {
+                        Map<String, Link> links = allLinks.get(linkQualifier);
+                        if (links != null && links.get(normalizedSourceId) == null) {
+                            Map<String, JsonValue> sources = unlinked.get(linkQualifier);
+                            if (sources == null) {
+                                sources = new LinkedHashMap<String, JsonValue>();
+                                unlinked.put(linkQualifier, sources);
+                            }
+                            sources.put(entry.getId(), source);
+                        }
+                    }
+                }
+                for (Map.Entry<String, Map<String, JsonValue>> sources : unlinked.entrySet()) {
+                    reconContext.addCorrelatedTargets(sources.getKey(), correlation.correlateBatch(
+                            sources.getValue(), sources.getKey(), context, reconContext.getCorrelationIndex()));
+                }
+            } catch (SynchronizationException e) {
+                // Leave the correlation to the sync operations, which report the failure per source
+                LOGGER.debug("Batch correlation failed, correlating {} sources one by one", entries.size(), e);
+            }
+            return entries.iterator();
+        }
+    }
+
+    /**
+     * Wraps the source entries of a recon source phase to read the target objects they are linked to in batches,
+     * if configured and applicable.
+     *
+     * @param sourceEntries the source entries
+     * @param reconContext the context specific to the reconciliation run
+     * @param allLinks all links if pre-queried, or null for on-demand link querying
+     * @return the source entries, with their linked target objects read in batches while iterated
+     */
+    Iterator<ResultEntry> prefetchingTargets(Iterator<ResultEntry> sourceEntries,
+            ReconciliationContext reconContext, Map<String, Map<String, Link>> allLinks) {
+        // Without prefetched links the linked targets are not known up front, preloaded targets need no reading,
+        // and an analysis only reads the targets its situations depend on
+        if (targetReadBatchSize < 2 || allLinks == null || reconContext.hasTargetsValues()
+                || reconContext.isAnalysis()) {
+            return sourceEntries;
+        }
+        return new TargetPrefetchingIterator(sourceEntries, reconContext, allLinks);
+    }
+
+    /**
+     * Reads ahead batches of source entries and reads the target objects they are linked to with one target query
+     * per batch. The target objects are handed to the source sync operations through the
+     * {@link ReconciliationContext}; target objects the query did not return are read on their own by their sync
+     * operation, as without batching. Once all source entries of a batch have been processed, the target objects
+     * read for the batch that no sync operation took are evicted.
+     */
+    private class TargetPrefetchingIterator implements Iterator<ResultEntry> {
+        private final Iterator<ResultEntry> sourceEntries;
+        private final ReconciliationContext reconContext;
+        private final Map<String, Map<String, Link>> allLinks;
+        private Iterator<ResultEntry> batch = Collections.<ResultEntry>emptyIterator();
+
+        TargetPrefetchingIterator(Iterator<ResultEntry> sourceEntries, ReconciliationContext reconContext,
+                Map<String, Map<String, Link>> allLinks) {
+            this.sourceEntries = sourceEntries;
+            this.reconContext = reconContext;
+            this.allLinks = allLinks;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!batch.hasNext() && sourceEntries.hasNext()) {
+                batch = nextBatch();
+            }
+            return batch.hasNext();
+        }
+
+        @Override
+        public ResultEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Iterator<ResultEntry> nextBatch() {
+            List<ResultEntry> entries = new ArrayList<ResultEntry>(targetReadBatchSize);
+            Set<String> targetIds = new LinkedHashSet<String>();
+            while (entries.size() < targetReadBatchSize && sourceEntries.hasNext()) {
+                ResultEntry entry = sourceEntries.next();
+                entries.add(entry);
+                String normalizedSourceId = linkType.normalizeSourceId(entry.getId());
+                for (Map<String, Link> links : allLinks.values()) {
+                    Link link = links.get(normalizedSourceId);
+                    if (link != null && link.targetId != null) {
+                        targetIds.add(link.targetId);
+                    }
+                }
+            }
+            if (!targetIds.isEmpty()) {
+                try {
+                    Map<String, JsonValue> targets = readTargets(targetIds);
+                    reconContext.addPrefetchedTargets(targets);
+                    if (!targets.isEmpty()) {
+                        return prefetched(entries, targets.keySet());
+                    }
+                } catch (SynchronizationException e) {
+                    // Leave the reads to the sync operations, which report the failure per source
+                    LOGGER.debug("Batch read of {} targets failed, reading them one by one", targetIds.size(), e);
+                }
+            }
+            return entries.iterator();
+        }
+
+        /**
+         * @param entries the source entries of the batch
+         * @param targetIds the normalized ids of the target objects read for the batch
+         * @return the source entries, tracked until processed to evict the target objects no sync operation took
+         */
+        private Iterator<ResultEntry> prefetched(List<ResultEntry> entries, Set<String> targetIds) {
+            PrefetchedBatch batch = new PrefetchedBatch(reconContext, targetIds, entries.size());
+            List<ResultEntry> prefetched = new ArrayList<ResultEntry>(entries.size());
+            for (ResultEntry entry : entries) {
+                prefetched.add(new PrefetchedEntry(entry, batch));
+            }
+            return prefetched.iterator();
+        }
+
+        /**
+         * @param targetIds the ids of the target objects to read
+         * @return the target objects found, by normalized target id
+         * @throws SynchronizationException if querying the target failed
+         */
+        private Map<String, JsonValue> readTargets(Collection<String> targetIds) throws SynchronizationException {
+            List<QueryFilter<JsonPointer>> subFilters = new ArrayList<QueryFilter<JsonPointer>>(targetIds.size());
+            for (String targetId : targetIds) {
+                subFilters.add(QueryFilter.equalTo(new JsonPointer(ResourceResponse.FIELD_CONTENT_ID), targetId));
+            }
+            Map<String, Object> parameters = new HashMap<String, Object>(1);
+            parameters.put(QueryRequest.FIELD_QUERY_FILTER, QueryFilter.or(subFilters).toString());
+            Map<String, JsonValue> targets = new HashMap<String, JsonValue>(targetIds.size());
+            for (JsonValue target : json(queryTargetObjectSet(parameters)).get(QueryResponse.FIELD_RESULT)) {
+                String targetId = target.get(ResourceResponse.FIELD_CONTENT_ID).asString();
+                if (targetId != null) {
+                    targets.put(linkType.normalizeTargetId(targetId), target);
+                }
+            }
+            return targets;
+        }
+    }
+
+    /**
+     * A source entry of a batch whose linked target objects were read ahead.
+     */
+    static class PrefetchedEntry extends ResultEntry {
+        private final PrefetchedBatch batch;
+
+        PrefetchedEntry(ResultEntry entry, PrefetchedBatch batch) {
+            super(entry.getId(), entry.getValue());
+            this.batch = batch;
+        }
+
+        /**
+         * Marks the entry processed by its sync operation, whether it succeeded or not.
+         */
+        void processed() {
+            batch.processed();
+        }
+    }
 
     /**
-     * Reconcile a given target ID
+     * The target objects read ahead for a batch of source entries, evicted once all entries have been processed.
      */
-    private final Recon targetRecon = new Recon() {
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public void recon(String id, JsonValue objectEntry, ReconciliationContext reconContext, Context context, Map<String,
-                Map<String, Link>> allLinks, Collection<String> remainingIds)  throws SynchronizationException {
-            reconContext.checkCanceled();
-            for (String linkQualifier : getAllLinkQualifiers(context)) {
-                TargetSyncOperation op = new TargetSyncOperation(context);
-                op.reconContext = reconContext;
-                op.setLinkQualifier(linkQualifier);
+    private static class PrefetchedBatch {
+        private final ReconciliationContext reconContext;
+        private final Set<String> targetIds;
+        private final AtomicInteger unprocessed;
 
-                ReconAuditEventLogger event = new ReconAuditEventLogger(op, name, context);
-                event.setLinkQualifier(op.getLinkQualifier());
-                
-                if (objectEntry == null) {
-                    // Load target detail on demand
-                    op.targetObjectAccessor = new LazyObjectAccessor(connectionFactory, targetObjectSet, id);
-                } else {
-                    // Pre-queried target detail
-                    op.targetObjectAccessor = new LazyObjectAccessor(connectionFactory, targetObjectSet, id, objectEntry);
-                }
-                event.setTargetObjectId(LazyObjectAccessor.qualifiedId(targetObjectSet, id));
-                op.reconId = reconContext.getReconId();
-                Status status = Status.SUCCESS;
-                try {
-                    op.sync();
-                } catch (SynchronizationException se) {
-                    if (op.action != ReconAction.EXCEPTION) {
-                        status = Status.FAILURE; // exception was not intentional
-                        LOGGER.warn("Unexpected failure during target reconciliation {}", reconContext.getReconId(),
-                                se);
-                    }
-                    setLogEntryMessage(event, se);
-                }
-                // update statistics with status
-                reconContext.getStatistics().processStatus(status);
+        PrefetchedBatch(ReconciliationContext reconContext, Set<String> targetIds, int entries) {
+            this.reconContext = reconContext;
+            this.targetIds = targetIds;
+            this.unprocessed = new AtomicInteger(entries);
+        }
 
-                if (!ReconAction.NOREPORT.equals(op.action) && (status == Status.FAILURE || op.action != null)) {
-                    event.setReconciling("target");
-                    if (op.getSourceObjectId() != null) {
-                        event.setSourceObjectId(
-                                LazyObjectAccessor.qualifiedId(sourceObjectSet, op.getSourceObjectId()));
-                    }
-                    event.setStatus(status);
-                    event.setReconId(reconContext.getReconId());
-                    logEntry(event);
-                }
+        void processed() {
+            if (unprocessed.decrementAndGet() == 0) {
+                reconContext.evictPrefetchedTargets(targetIds);
             }
         }
-    };
-      
+    }
+
     /**
      * Wrapper to submit source/target recon for a given id for concurrent processing
      */
     class ReconTask implements Callable<Void> {
+        ResultEntry resultEntry;
         String id;
         JsonValue objectEntry;
         ReconciliationContext reconContext;
@@ -1306,6 +2137,7 @@ class ObjectMapping {
 
         public ReconTask(ResultEntry resultEntry, ReconciliationContext reconContext, Context parentContext,
                 Map<String, Map<String, Link>> allLinks, Collection<String> remainingIds, Recon reconById) {
+            this.resultEntry = resultEntry;
             this.id = resultEntry.getId();
             // This value is null if it wasn't pre-queried
             this.objectEntry = resultEntry.getValue();
@@ -1321,10 +2153,15 @@ class ObjectMapping {
         public Void call() throws SynchronizationException {
             //TODO I miss the Request Context
             ObjectSetContext.push(parentContext);
+            ConnectorThrottle.enter(reconContext.getConnectorPermits());
             try {
                 reconById.recon(id, objectEntry, reconContext, parentContext, allLinks, remainingIds);
             } finally {
+                ConnectorThrottle.exit();
                 ObjectSetContext.pop();
+                if (resultEntry instanceof PrefetchedEntry) {
+                    ((PrefetchedEntry) resultEntry).processed();
+                }
             }
             return null;
         }
@@ -1363,19 +2200,172 @@ class ObjectMapping {
     }
 
     /**
-     * Creates an entry in the audit log.
+     * @return the type of executor to process reconciliation tasks with
+     */
+    TaskExecutorType getTaskExecutor() {
+        return taskExecutor;
+    }
+
+    /**
+     * @return the stack size of the elastic executor threads in bytes, or 0 for the default stack size
+     */
+    long getTaskThreadStackSize() {
+        return taskThreadStackSize;
+    }
+
+    /**
+     * @return the maximum number of concurrent connector requests of a reconciliation run, or 0 for no limit
+     */
+    int getConnectorConcurrency() {
+        return connectorConcurrency;
+    }
+
+    /**
+     * @return the configured number of tasks to keep in flight, or the maximum if the feed size adapts
+     */
+    int getFeedSize() {
+        return feedSize;
+    }
+
+    /**
+     * @return whether the number of tasks in flight adapts to the task latency and failures
+     */
+    boolean isAdaptiveFeedSize() {
+        return adaptiveFeedSize;
+    }
+
+    /**
+     * @return the minimum number of tasks in flight if the feed size adapts
+     */
+    int getMinFeedSize() {
+        return minFeedSize;
+    }
+
+    /**
+     * @return the multiple of the baseline task latency tolerated before an adaptive feed size decreases
+     */
+    double getFeedLatencyTolerance() {
+        return feedLatencyTolerance;
+    }
+
+    /**
+     * @return the number of links recon writes to the repository in one batch, or 0 to write each link directly
+     */
+    int getReconLinkBatchSize() {
+        return reconLinkBatchSize;
+    }
+
+    /**
+     * @return the queue publishing the entry audit events asynchronously, or null if published directly
+     */
+    SyncAuditQueue getAuditQueue() {
+        return auditQueue;
+    }
+
+    /**
+     * Determines the properties of source objects the mapping depends on. They are unknown if scripts which are
+     * passed the whole source object are configured, other than the default role mapping scripts, which depend
+     * on the effective assignments only.
+     *
+     * @param config the configuration of the mapping
+     * @return the properties the mapping depends on, or null if unknown
+     */
+    private SourceDependencies analyzeSourceDependencies(JsonValue config) {
+        if (validSource != null || linkQualifiersScript != null || onUpdateScript != null
+                || !config.get("sourceCondition").isNull()
+                || !config.get("defaultMapping").isNull()
+                || !config.get("postMapping").isNull()) {
+            return null;
+        }
+        for (List<Policy> situationPolicies : policies.values()) {
+            for (Policy policy : situationPolicies) {
+                if (policy.dependsOnSource()) {
+                    return null;
+                }
+            }
+        }
+        List<JsonPointer> pointers = new ArrayList<JsonPointer>();
+        pointers.add(new JsonPointer("effectiveAssignments"));
+        for (PropertyMapping property : properties) {
+            property.addSourceDependencies(pointers);
+        }
+        return new SourceDependencies(pointers, JsonUtil.writeValueAsString(config.get("properties")));
+    }
+
+    /**
+     * Returns whether a source object is linked for every link qualifier of the mapping.
+     *
+     * @param sourceId the id of the source object
+     * @return false if a link is missing, or linking is disabled
+     * @throws SynchronizationException if reading the links failed
+     */
+    private boolean isLinked(String sourceId) throws SynchronizationException {
+        if (!isLinkingEnabled()) {
+            return false;
+        }
+        for (String linkQualifier : linkQualifiersList) {
+            Link link = new Link(this);
+            link.setLinkQualifier(linkQualifier);
+            link.getLinkForSource(sourceId);
+            if (link._id == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how long the changes of a source object notified asynchronously are held back to be coalesced,
+     * in milliseconds, 0 if they are not held back
+     */
+    long getCoalescingWindow() {
+        return coalescingWindow;
+    }
+
+    /**
+     * @return whether recon should answer simple correlation queries from an index over the preloaded
+     * target objects
+     */
+    boolean isCorrelationIndex() {
+        return correlationIndex;
+    }
+
+    /**
+     * @return whether the correlation index matches string values case sensitively
+     */
+    boolean isCorrelationIndexCaseSensitive() {
+        return correlationIndexCaseSensitive;
+    }
+
+    /**
+     * Creates an entry in the audit log, asynchronously if the mapping has an audit queue.
      *
      * @param entry the entry to create
      * @throws SynchronizationException
      */
     private void logEntry(AbstractSyncAuditEventLogger entry) throws SynchronizationException {
         try {
-            entry.log(connectionFactory);
+            if (auditQueue != null) {
+                entry.log(auditQueue);
+            } else {
+                entry.log(connectionFactory);
+            }
         } catch (ResourceException e) {
             throw new SynchronizationException(e);
         }
     }
 
+    /**
+     * Waits for the queued audit entries to be created, if the mapping has an audit queue.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void flushAuditEntries() throws InterruptedException {
+        if (auditQueue != null) {
+            auditQueue.flush();
+        }
+    }
+
     /**
      * Record the start of a new reconciliation.
      *
@@ -1439,7 +2429,12 @@ class ObjectMapping {
         String simpleSummary = reconContext.getStatistics().simpleSummary();
         reconAuditEvent.setMessage(simpleSummary);
         reconAuditEvent.setMessageDetail(json(reconContext.getSummary()));
-        logEntry(reconAuditEvent);
+        // The summary is created directly, so it is in the audit log once the recon completed
+        try {
+            reconAuditEvent.log(connectionFactory);
+        } catch (ResourceException e) {
+            throw new SynchronizationException(e);
+        }
         LOGGER.info(loggerMessage + " " + simpleSummary);
     }
 
@@ -1552,6 +2547,15 @@ class ObjectMapping {
          */
         public boolean ignorePostAction = false;
 
+        /**
+         * The time spent reading and writing links, correlating and performing the action, in nanoseconds,
+         * for the latency statistics of a reconciliation
+         */
+        long linkReadNanos;
+        long linkWriteNanos;
+        long correlationNanos;
+        long actionNanos;
+
         /**
          * Performs the sync operation.
          *
@@ -1561,6 +2565,59 @@ class ObjectMapping {
         public abstract JsonValue sync() throws SynchronizationException;
 
         protected abstract boolean isSourceToTarget();
+
+        /**
+         * @return true if the operation is part of a reconciliation analysis, which only assesses the situation
+         */
+        protected boolean isAnalysis() {
+            return reconContext != null && reconContext.isAnalysis();
+        }
+
+        /**
+         * Counts the assessed situation of a reconciliation analysis in the statistics of its phase, instead of
+         * determining and performing an action. Nothing being performed, nothing is reported per entry.
+         *
+         * @param phaseStat the statistics of the reconciliation phase
+         * @param linkExisted whether the link existed
+         * @return the sync results of the analysis
+         */
+        protected JsonValue analyzed(PhaseStatistic phaseStat, boolean linkExisted) {
+            action = ReconAction.NOREPORT;
+            phaseStat.processed(getSourceObjectId(), getTargetObjectId(), linkExisted, getLinkId(), false,
+                    situation, action);
+            return json(object(
+                    field("reconId", reconId),
+                    field("mapping", ObjectMapping.this.getName()),
+                    field("situation", situation != null ? situation.name() : null),
+                    field("analysis", true)));
+        }
+
+        /**
+         * Records the latencies of the operations of this sync on its reconciliation entry, by situation, in the
+         * statistics of the reconciliation. Operations not performed are not recorded.
+         *
+         * @param auditNanos the time writing the audit of the entry took, in nanoseconds, or 0 if not audited
+         */
+        void recordLatencies(long auditNanos) {
+            ReconLatencies latencies = reconContext.getStatistics().getLatencies();
+            recordLatency(latencies, ReconLatencies.Operation.SOURCE_READ,
+                    sourceObjectAccessor != null ? sourceObjectAccessor.takeLoadNanos() : 0);
+            recordLatency(latencies, ReconLatencies.Operation.TARGET_READ,
+                    targetObjectAccessor != null ? targetObjectAccessor.takeLoadNanos() : 0);
+            recordLatency(latencies, ReconLatencies.Operation.LINK_READ, linkReadNanos);
+            recordLatency(latencies, ReconLatencies.Operation.LINK_WRITE, linkWriteNanos);
+            recordLatency(latencies, ReconLatencies.Operation.CORRELATION, correlationNanos);
+            recordLatency(latencies, ReconLatencies.Operation.AUDIT_WRITE, auditNanos);
+            if (action != null && actionNanos > 0) {
+                latencies.recordAction(action, situation, actionNanos);
+            }
+        }
+
+        private void recordLatency(ReconLatencies latencies, ReconLatencies.Operation operation, long nanos) {
+            if (nanos > 0) {
+                latencies.record(operation, situation, nanos);
+            }
+        }
         
         /**
          * Sets the link qualifier for the current sync operation.
@@ -1671,11 +2728,11 @@ class ObjectMapping {
                 defined = false;
             } else {
                 // Either check against a list of all targets, or load to check for existence
-                if (reconContext != null && reconContext.getTargets() != null) {
+                if (reconContext != null && reconContext.getTargetIds() != null) {
                     // If available, check against all queried existing IDs
                     // If target system has case insensitive IDs, compare without regard to case
                     String normalizedTargetId = linkType.normalizeTargetId(targetObjectAccessor.getLocalId());
-                    defined = reconContext.getTargets().containsKey(normalizedTargetId);
+                    defined = reconContext.getTargetIds().contains(normalizedTargetId);
                 } else {
                     // If no lists of existing ids is available, do a load of the object to check
                     defined = (targetObjectAccessor.getObject() != null);
@@ -1693,9 +2750,9 @@ class ObjectMapping {
          * by another process concurrently
          */
         protected boolean hadEmptyTargetObjectSet() {
-            if (reconContext != null && reconContext.getTargets() != null) {
+            if (reconContext != null && reconContext.getTargetIds() != null) {
                 // If available, check against all queried existing IDs
-                return (reconContext.getTargets().size() == 0);
+                return (reconContext.getTargetIds().isEmpty());
             } else {
                 return false;
             }
@@ -1857,7 +2914,7 @@ class ObjectMapping {
                                 }
                                 if (isLinkingEnabled() && linkObject._id != null && !linkObject.targetEquals(targetId)) {
                                     linkObject.targetId = targetId;
-                                    linkObject.update(context);
+                                    updateLink(context);
                                 }
                                 // TODO: Detect change of source id, and update link accordingly.
                                 if (action == ReconAction.CREATE || action == ReconAction.LINK) {
@@ -1872,6 +2929,7 @@ class ObjectMapping {
                                     if (JsonPatch.diff(oldTarget, getTargetObject()).size() > 0) {
                                         updateTargetObject(context, getTargetObject(), targetId);
                                     }
+                                    updateSyncHash(context);
                                 }
                                 // execute the defaultPostMapping script to add lastSync attribute to managed user
                                 execScript("postMapping", postMapping);
@@ -1902,7 +2960,7 @@ class ObjectMapping {
                             case UNLINK:
                                 if (linkObject._id != null) { // forgiving; does nothing if no link exists
                                     execScript("onUnlink", onUnlinkScript);
-                                    linkObject.delete(context);
+                                    deleteLink(context);
                                 }
                                 break; // terminate DELETE and UNLINK
                             case EXCEPTION:
@@ -1954,10 +3012,104 @@ class ObjectMapping {
             execScript("onLink", onLinkScript);
             linkObject.sourceId = sourceId;
             linkObject.targetId = targetId;
-            linkObject.create(context);
+            LinkBuffer linkBuffer = getLinkBuffer();
+            long start = System.nanoTime();
+            if (linkBuffer != null) {
+                linkBuffer.create(context, linkObject, newLinkFailureListener(context));
+            } else {
+                linkObject.create(context);
+            }
+            linkWriteNanos += System.nanoTime() - start;
             initializeLink(linkObject);
             LOGGER.debug("Established link sourceId: {} targetId: {} in reconId: {}", sourceId, targetId, reconId);
         }
+
+        /**
+         * Keeps the hash of the mapped properties of the source just synchronized on the link, if recon skips
+         * unchanged sources.
+         */
+        private void updateSyncHash(Context context) throws SynchronizationException {
+            if (!reconSkipUnchanged || sourceDependencies == null || !isLinkingEnabled() || linkObject._id == null
+                    || !isSourceToTarget()) {
+                return;
+            }
+            String syncHash = sourceDependencies.hash(getSourceObject());
+            if (!syncHash.equals(linkObject.syncHash)) {
+                linkObject.syncHash = syncHash;
+                updateLink(context);
+            }
+        }
+
+        /**
+         * Updates the link of this operation, directly or through the link buffer of the recon.
+         */
+        private void updateLink(Context context) throws SynchronizationException {
+            LinkBuffer linkBuffer = getLinkBuffer();
+            long start = System.nanoTime();
+            if (linkBuffer != null) {
+                linkBuffer.update(context, linkObject, newLinkFailureListener(context));
+            } else {
+                linkObject.update(context);
+            }
+            linkWriteNanos += System.nanoTime() - start;
+        }
+
+        /**
+         * Deletes the link of this operation, directly or through the link buffer of the recon.
+         */
+        private void deleteLink(Context context) throws SynchronizationException {
+            LinkBuffer linkBuffer = getLinkBuffer();
+            long start = System.nanoTime();
+            if (linkBuffer != null) {
+                linkBuffer.delete(context, linkObject, newLinkFailureListener(context));
+            } else {
+                linkObject.delete(context);
+            }
+            linkWriteNanos += System.nanoTime() - start;
+        }
+
+        /**
+         * @return the buffer of the recon to write links through, or null to write links directly
+         */
+        private LinkBuffer getLinkBuffer() {
+            return reconContext != null ? reconContext.getLinkBuffer() : null;
+        }
+
+        /**
+         * Creates the listener reporting a buffered link write of this operation which failed, as a failed
+         * recon entry.
+         *
+         * @param context the context of the operation
+         * @return the listener
+         */
+        private LinkBuffer.FailureListener newLinkFailureListener(final Context context) {
+            final String reconciling = this instanceof SourceSyncOperation ? "source" : "target";
+            final String linkQualifier = getLinkQualifier();
+            return new LinkBuffer.FailureListener() {
+                @Override
+                public void failed(String operation, String sourceId, String targetId, ResourceException failure) {
+                    ReconAuditEventLogger event = new ReconAuditEventLogger(SyncOperation.this, name, context);
+                    event.setLinkQualifier(linkQualifier);
+                    event.setReconciling(reconciling);
+                    if (sourceId != null) {
+                        event.setSourceObjectId(LazyObjectAccessor.qualifiedId(sourceObjectSet, sourceId));
+                    }
+                    if (targetId != null) {
+                        event.setTargetObjectId(LazyObjectAccessor.qualifiedId(targetObjectSet, targetId));
+                    }
+                    event.setStatus(Status.FAILURE);
+                    event.setException(failure);
+                    event.setMessage("Failed to " + operation + " link: " + failure.getMessage());
+                    event.setReconId(reconContext.getReconId());
+                    try {
+                        logEntry(event);
+                    } catch (SynchronizationException e) {
+                        LOGGER.warn("Failed to log the failure to {} link between {} and {}",
+                                operation, sourceId, targetId, e);
+                    }
+                }
+            };
+        }
         
         /**
          * Evaluates the source condition on the source object
@@ -2211,9 +3363,17 @@ class ObjectMapping {
                 }
                 EventEntry measureDetermine = Publisher.start(EVENT_SOURCE_DETERMINE_ACTION, getSourceObjectId(), null);
                 boolean linkExisted = (getLinkId() != null);
+                if (isAnalysis()) {
+                    measureDetermine.end();
+                    return analyzed(reconContext.getStatistics().getSourceStat(), linkExisted);
+                }
 
                 try {
                     determineAction(getContext());
+                    if (action == ReconAction.UPDATE && isUnchangedSinceLastSync()) {
+                        LOGGER.debug("Source {} is unchanged since it was last synchronized", getSourceObjectId());
+                        action = ReconAction.IGNORE;
+                    }
                 } finally {
                     measureDetermine.end();
                     
@@ -2223,9 +3383,11 @@ class ObjectMapping {
                     }
                 }
                 EventEntry measurePerform = Publisher.start(EVENT_SOURCE_PERFORM_ACTION, getSourceObjectId(), null);
+                long actionStart = System.nanoTime();
                 try {
                     performAction();
                 } finally {
+                    actionNanos = System.nanoTime() - actionStart;
                     measurePerform.end();
                     if (reconContext != null){
                         // The link ID presence after the action can not be interpreted as an indication if the link has been created
@@ -2249,6 +3411,16 @@ class ObjectMapping {
             return true;
         }
 
+        /**
+         * @return true if recon skips unchanged sources and the hash of the mapped properties of the source
+         * matches the hash kept on the link, so that updating the target is a no-op unless the target changed
+         */
+        private boolean isUnchangedSinceLastSync() throws SynchronizationException {
+            return reconContext != null && reconSkipUnchanged && sourceDependencies != null
+                    && situation == Situation.CONFIRMED && linkObject.syncHash != null
+                    && linkObject.syncHash.equals(sourceDependencies.hash(getSourceObject()));
+        }
+
         /**
          * @return all found matching target identifier(s), or a 0 length array if none.
          * More than one target identifier is possible for ambiguous matches
@@ -2302,7 +3474,9 @@ class ObjectMapping {
 
             // In case the link was not pre-read get it here
             if (getSourceObjectId() != null && linkObject.initialized == false) {
+                long start = System.nanoTime();
                 linkObject.getLinkForSource(getSourceObjectId());
+                linkReadNanos += System.nanoTime() - start;
             }
             
             // If an existing link was found, set the targetObjectAccessor
@@ -2311,7 +3485,11 @@ class ObjectMapping {
                 if (reconContext != null) {
                     // If there is a pre-loaded target value, use it
                     if (reconContext.hasTargetsValues()) {
-                        preloaded = reconContext.getTargets().get(linkObject.targetId);
+                        preloaded = reconContext.getTargetValue(linkObject.targetId);
+                    } else {
+                        // The target may have been read in a batch with the targets of other source objects
+                        preloaded = reconContext.takePrefetchedTarget(
+                                linkType.normalizeTargetId(linkObject.targetId));
                     }
                 }
                 if (preloaded != null) {
@@ -2396,7 +3574,9 @@ class ObjectMapping {
 
                         Link checkExistingLink = new Link(ObjectMapping.this);
                         checkExistingLink.setLinkQualifier(getLinkQualifier());
+                        long start = System.nanoTime();
                         checkExistingLink.getLinkForTarget(targetObjectAccessor.getLocalId());
+                        linkReadNanos += System.nanoTime() - start;
                         if (checkExistingLink._id == null || checkExistingLink.sourceId == null) {
                             situation = Situation.FOUND;
                         } else {
@@ -2470,12 +3650,23 @@ class ObjectMapping {
                 if (sourceObject == null) {
                     throw new SynchronizationException("Source object " + getSourceObjectId() + " no longer exists");
                 }
+                if (sourceObjectOverride == null && reconContext != null) {
+                    // The correlation may have been resolved in a batch with other source objects
+                    result = reconContext.takeCorrelatedTargets(getLinkQualifier(), getSourceObjectId());
+                    if (result != null) {
+                        measure.end();
+                        return result;
+                    }
+                }
                 Map<String, Object> scope = new HashMap<String, Object>();
                 scope.put("source", sourceObject.asMap());
 
+                long start = System.nanoTime();
                 try {
-                    result = correlation.correlate(scope, getLinkQualifier(), getContext());
+                    result = correlation.correlate(scope, getLinkQualifier(), getContext(),
+                            reconContext != null ? reconContext.getCorrelationIndex() : null);
                 } finally {
+                    correlationNanos += System.nanoTime() - start;
                     measure.end();
                 }
             }
@@ -2524,6 +3715,20 @@ class ObjectMapping {
         }
     }
     
+    /**
+     * The types of executor to process reconciliation tasks with.
+     */
+    enum TaskExecutorType {
+        /** A pool of taskThreads threads */
+        fixed,
+        /**
+         * Threads created on demand for each task in flight, up to the feed size, and reused while busy.
+         * Suited to tasks mostly waiting on connectors, with the connector concurrency limiting the load on
+         * the connectors rather than the number of threads.
+         */
+        elastic
+    }
+
     enum CorrelationType {
         correlationQuery,
         correlationScript,
@@ -2605,19 +3810,26 @@ class ObjectMapping {
          * 
          * @param scope the scope to use for the correlation script
          * @param linkQualifier the link qualifier
+         * @param index the index of the preloaded target objects to answer simple correlation queries from,
+         * or null to query the target system
          * @return a list of results if no correlation is configured
          * @throws SynchronizationException if there was an error during correlation
          */
-        public JsonValue correlate(Map<String, Object> scope, String linkQualifier, Context context) 
-                throws SynchronizationException {
+        public JsonValue correlate(Map<String, Object> scope, String linkQualifier, Context context,
+                TargetCorrelationIndex index) throws SynchronizationException {
             // Set the link qualifier in the script's scope
             scope.put("linkQualifier", linkQualifier);
             try {
                 switch (type) {
                 case correlationQuery:
                     // Execute the correlationQuery and return the results
-                    return json(queryTargetObjectSet(execScript(type.toString(),  correlationQueries.get(linkQualifier), 
-                            scope, context).asMap())).get(QueryResponse.FIELD_RESULT).required();
+                    Map<String, Object> queryParameters = execScript(type.toString(),
+                            correlationQueries.get(linkQualifier), scope, context).asMap();
+                    JsonValue indexed = correlateIndexed(queryParameters, index);
+                    if (indexed != null) {
+                        return indexed;
+                    }
+                    return json(queryTargetObjectSet(queryParameters)).get(QueryResponse.FIELD_RESULT).required();
                 case correlationScript:
                     // Execute the correlationScript and return the results corresponding to the given linkQualifier
                     return execScript(type.toString(), correlationScript, scope, context);
@@ -2632,6 +3844,129 @@ class ObjectMapping {
             }
         }
 
+        /**
+         * Answers a correlation query from the index of the preloaded target objects, if the query is a
+         * query filter simple enough to be answered from it.
+         *
+         * @param queryParameters the parameters of the correlation query
+         * @param index the index of the preloaded target objects, or null if there is none
+         * @return the correlated target objects, or null if the target system has to be queried
+         */
+        private JsonValue correlateIndexed(Map<String, Object> queryParameters, TargetCorrelationIndex index) {
+            if (index == null || queryParameters.containsKey(QueryRequest.FIELD_QUERY_ID)
+                    || queryParameters.containsKey(QueryRequest.FIELD_QUERY_EXPRESSION)) {
+                return null;
+            }
+            Object filter = queryParameters.get(QueryRequest.FIELD_QUERY_FILTER);
+            return filter instanceof String ? index.correlate((String) filter) : null;
+        }
+
+        /**
+         * @return true if correlation queries are configured, which may be combined into batches
+         */
+        boolean isBatchable() {
+            return type == CorrelationType.correlationQuery;
+        }
+
+        /**
+         * Correlates a batch of source objects with one target query, combining their correlation queries
+         * into a single filter, and matches the results back to the source objects by evaluating each
+         * source's filter on them.
+         * <p>
+         * Only correlation queries consisting of a query filter can be combined, and only if their other
+         * query parameters are the same. If a returned target matches none of the filters when evaluated
+         * locally, for example as the target system matches case insensitively, the batch is not resolved.
+         *
+         * @param sources the source objects to correlate by source id
+         * @param linkQualifier the link qualifier
+         * @param context the context of the reconciliation
+         * @param index the index of the preloaded target objects to answer simple correlation queries from,
+         * or null to query the target system
+         * @return the correlation results by source id, for those source objects whose correlation got resolved
+         * @throws SynchronizationException if evaluating the correlation queries or querying the target failed
+         */
+        Map<String, JsonValue> correlateBatch(Map<String, JsonValue> sources, String linkQualifier,
+                Context context, TargetCorrelationIndex index) throws SynchronizationException {
+            Map<String, JsonValue> results = new HashMap<String, JsonValue>();
+            Script correlationQuery = correlationQueries.get(linkQualifier);
+            if (correlationQuery == null) {
+                return results;
+            }
+            // Group the filters by the other query parameters, which have to be the same to be combined
+            Map<Map<String, Object>, Map<String, String>> filtersByParameters =
+                    new HashMap<Map<String, Object>, Map<String, String>>();
+            for (Map.Entry<String, JsonValue> source : sources.entrySet()) {
+                Map<String, Object> scope = new HashMap<String, Object>();
+                scope.put("source", source.getValue().asMap());
+                scope.put("linkQualifier", linkQualifier);
+                Map<String, Object> parameters;
+                try {
+                    parameters = new HashMap<String, Object>(
+                            execScript(type.toString(), correlationQuery, scope, context).asMap());
+                } catch (ScriptThrownException ste) {
+                    throw toSynchronizationException(ste, name, type.toString());
+                } catch (ScriptException se) {
+                    LOGGER.debug("{} {} script encountered exception", name, type.toString(), se);
+                    throw new SynchronizationException(se);
+                }
+                JsonValue indexed = correlateIndexed(parameters, index);
+                if (indexed != null) {
+                    results.put(source.getKey(), indexed);
+                    continue;
+                }
+                Object filter = parameters.remove(QueryRequest.FIELD_QUERY_FILTER);
+                if (filter instanceof String) {
+                    Map<String, String> filters = filtersByParameters.get(parameters);
+                    if (filters == null) {
+                        filters = new LinkedHashMap<String, String>();
+                        filtersByParameters.put(parameters, filters);
+                    }
+                    filters.put(source.getKey(), (String) filter);
+                }
+            }
+            for (Map.Entry<Map<String, Object>, Map<String, String>> filters : filtersByParameters.entrySet()) {
+                results.putAll(correlateFilters(filters.getKey(), filters.getValue(), context));
+            }
+            return results;
+        }
+
+        private Map<String, JsonValue> correlateFilters(Map<String, Object> parameters, Map<String, String> filters,
+                Context context) throws SynchronizationException {
+            List<QueryFilter<JsonPointer>> subFilters = new ArrayList<QueryFilter<JsonPointer>>(filters.size());
+            Map<String, Condition> conditions = new LinkedHashMap<String, Condition>();
+            Map<String, JsonValue> results = new HashMap<String, JsonValue>();
+            for (Map.Entry<String, String> filter : filters.entrySet()) {
+                try {
+                    subFilters.add(QueryFilters.parse(filter.getValue()));
+                } catch (IllegalArgumentException e) {
+                    // Reported when correlating the source on its own
+                    continue;
+                }
+                conditions.put(filter.getKey(), Conditions.newCondition(filter.getValue()));
+                results.put(filter.getKey(), json(array()));
+            }
+            if (subFilters.isEmpty()) {
+                return results;
+            }
+            Map<String, Object> batchParameters = new HashMap<String, Object>(parameters);
+            batchParameters.put(QueryRequest.FIELD_QUERY_FILTER, QueryFilter.or(subFilters).toString());
+            for (JsonValue target : json(queryTargetObjectSet(batchParameters)).get(QueryResponse.FIELD_RESULT)) {
+                boolean matched = false;
+                for (Map.Entry<String, Condition> condition : conditions.entrySet()) {
+                    if (condition.getValue().evaluate(target.getObject(), context)) {
+                        results.get(condition.getKey()).add(target.getObject());
+                        matched = true;
+                    }
+                }
+                if (!matched) {
+                    LOGGER.debug("Target {} matches none of the batched correlation filters, "
+                            + "correlating {} sources one by one", target.get("_id").asString(), filters.size());
+                    return Collections.emptyMap();
+                }
+            }
+            return results;
+        }
+
         /**
          * Executes a script of a given type with the given scope.
          * 
@@ -2668,6 +4003,9 @@ class ObjectMapping {
                     measureSituation.end();
                 }
                 boolean linkExisted = (getLinkId() != null);
+                if (isAnalysis()) {
+                    return analyzed(reconContext.getStatistics().getTargetStat(), linkExisted);
+                }
 
                 EventEntry measureDetermine = Publisher.start(EVENT_TARGET_DETERMINE_ACTION, targetObjectAccessor, null);
                 try {
@@ -2676,10 +4014,12 @@ class ObjectMapping {
                     measureDetermine.end();
                 }
                 EventEntry measurePerform = Publisher.start(EVENT_TARGET_PERFORM_ACTION, targetObjectAccessor, null);
+                long actionStart = System.nanoTime();
                 try {
                     // TODO: Option here to just report what action would be performed?
                     performAction();
                 } finally {
+                    actionNanos = System.nanoTime() - actionStart;
                     measurePerform.end();
                     if (reconContext != null) {
                         reconContext.getStatistics().getTargetStat().processed(getSourceObjectId(), getTargetObjectId(),
@@ -2729,7 +4069,9 @@ class ObjectMapping {
             // May want to consider an optimization to not query
             // if we don't need the link for the TARGET_IGNORED action
             if (targetId != null) {
+                long start = System.nanoTime();
                 linkObject.getLinkForTarget(targetId);
+                linkReadNanos += System.nanoTime() - start;
             }
 
             if (!isTargetValid()) { // target is not valid for this mapping; ignore it
@@ -34,8 +34,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.forgerock.json.JsonValue;
+
 /**
  * Holds the (source/target) Phase specific statistics
  *
@@ -48,9 +51,19 @@ public class PhaseStatistic {
     Phase phase;
     private String name;
     private Map<Situation, List<String>> ids = Collections.synchronizedMap(new EnumMap<Situation, List<String>>(Situation.class));
+    // The number of entries per situation, as only a sample of their ids may be kept
+    private Map<Situation, AtomicInteger> counts =
+            Collections.synchronizedMap(new EnumMap<Situation, AtomicInteger>(Situation.class));
+    // The number of ids kept per situation, or -1 to keep all ids
+    private final int sampleSize;
     private AtomicLong processedEntries = new AtomicLong();
     private List<String> notValid;
 
+    // Counts merged from the partitions of a distributed run, whose ids are not kept
+    private Map<Situation, AtomicInteger> mergedCounts =
+            Collections.synchronizedMap(new EnumMap<Situation, AtomicInteger>(Situation.class));
+    private AtomicInteger mergedNotValid = new AtomicInteger();
+
     long queryStartTime;
     long queryEndTime;
 
@@ -58,9 +71,17 @@ public class PhaseStatistic {
     long phaseEndTime;
 
     public PhaseStatistic(ReconciliationStatistic parentStat, Phase phase, String name) {
+        this(parentStat, phase, name, -1);
+    }
+
+    /**
+     * @param sampleSize the number of ids to keep per situation, or -1 to keep all ids
+     */
+    public PhaseStatistic(ReconciliationStatistic parentStat, Phase phase, String name, int sampleSize) {
         this.parentStat = parentStat;
         this.phase = phase;
         this.name = name;
+        this.sampleSize = sampleSize;
         ids.put(Situation.CONFIRMED, Collections.synchronizedList(new ArrayList<String>()));
         ids.put(Situation.FOUND, Collections.synchronizedList(new ArrayList<String>()));
         ids.put(Situation.ABSENT, Collections.synchronizedList(new ArrayList<String>()));
@@ -73,6 +94,9 @@ public class PhaseStatistic {
         ids.put(Situation.TARGET_IGNORED, Collections.synchronizedList(new ArrayList<String>()));
         ids.put(Situation.FOUND_ALREADY_LINKED, Collections.synchronizedList(new ArrayList<String>()));
         notValid = Collections.synchronizedList(new ArrayList<String>());
+        for (Situation situation : ids.keySet()) {
+            counts.put(situation, new AtomicInteger());
+        }
     }
 
     /**
@@ -100,7 +124,12 @@ public class PhaseStatistic {
             if (situation != null) {
                 List<String> situationIds = ids.get(situation);
                 if (situationIds != null) {
-                    situationIds.add(id); // TODO: option to not keep all results in memory
+                    counts.get(situation).incrementAndGet();
+                    synchronized (situationIds) {
+                        if (sampleSize < 0 || situationIds.size() < sampleSize) {
+                            situationIds.add(id);
+                        }
+                    }
                 }
             }
         }
@@ -116,6 +145,69 @@ public class PhaseStatistic {
         return processedEntries.get();
     }
 
+    /**
+     * Exports the counts of this phase, without the ids, to be merged into the statistics of
+     * another run with {@link #mergeCounts(JsonValue)}.
+     *
+     * @return the counts of this phase
+     */
+    public Map<String, Object> exportCounts() {
+        Map<String, Object> counts = new HashMap<String, Object>();
+        counts.put("processed", getProcessed());
+        counts.put("NOTVALID", notValid.size() + mergedNotValid.get());
+        for (Situation situation : ids.keySet()) {
+            counts.put(situation.name(), getCount(situation));
+        }
+        return counts;
+    }
+
+    /**
+     * Adds counts exported by {@link #exportCounts()} to the counts of this phase.
+     *
+     * @param counts the exported counts
+     */
+    public void mergeCounts(JsonValue counts) {
+        processedEntries.addAndGet(counts.get("processed").defaultTo(0L).asLong());
+        mergedNotValid.addAndGet(counts.get("NOTVALID").defaultTo(0).asInteger());
+        for (Situation situation : ids.keySet()) {
+            int count = counts.get(situation.name()).defaultTo(0).asInteger();
+            if (count > 0) {
+                getMergedCount(situation).addAndGet(count);
+            }
+        }
+    }
+
+    private AtomicInteger getMergedCount(Situation situation) {
+        synchronized (mergedCounts) {
+            AtomicInteger count = mergedCounts.get(situation);
+            if (count == null) {
+                count = new AtomicInteger();
+                mergedCounts.put(situation, count);
+            }
+            return count;
+        }
+    }
+
+    private int getCount(Situation situation) {
+        AtomicInteger merged = mergedCounts.get(situation);
+        return counts.get(situation).get() + (merged == null ? 0 : merged.get());
+    }
+
+    /**
+     * @return the ids kept of the situations assessed, by situation
+     */
+    public Map<String, List<String>> getSampleIds() {
+        Map<String, List<String>> samples = new HashMap<String, List<String>>();
+        for (Entry<Situation, List<String>> e : ids.entrySet()) {
+            synchronized (e.getValue()) {
+                if (!e.getValue().isEmpty()) {
+                    samples.put(e.getKey().name(), new ArrayList<String>(e.getValue()));
+                }
+            }
+        }
+        return samples;
+    }
+
     public Map<String, Object> asMap() {
         Map<String, Object> results = new HashMap<String, Object>();
 
@@ -127,15 +219,16 @@ public class PhaseStatistic {
         results.put("processed", getProcessed());
 
         Map<String, Object> nv = new HashMap<String, Object>();
-        nv.put("count", notValid.size());
+        nv.put("count", notValid.size() + mergedNotValid.get());
         nv.put("ids", notValid);
         results.put("NOTVALID", nv);
 
         int entries = 0;
         for (Entry<Situation, List<String>> e : ids.entrySet()) {
             Map<String, Object> res = new HashMap<String, Object>();
-            entries += e.getValue().size();
-            res.put("count", e.getValue().size());
+            int count = getCount(e.getKey());
+            entries += count;
+            res.put("count", count);
             res.put("ids", e.getValue());
             results.put(e.getKey().name(), res);
         }
@@ -151,7 +244,7 @@ public class PhaseStatistic {
             if (existing == null) {
                 existing = 0;
             }
-            Integer updated = existing + e.getValue().size();
+            Integer updated = existing + getCount(e.getKey());
             simpleSummary.put(key, updated);
         }
     }
@@ -66,6 +66,11 @@ class Policy {
      * Condition used to determine if policy should be enforced.
      */
     private Condition condition;
+
+    /**
+     * Whether the policy is conditional.
+     */
+    private final boolean conditional;
     
     /**
      * A Constructor for the Policy class.
@@ -76,6 +81,7 @@ class Policy {
         situation = config.get("situation").required().asEnum(Situation.class);
         JsonValue action = config.get("action").required();
         condition =  Conditions.newCondition(config.get("condition"));
+        conditional = !config.get("condition").isNull();
         if (action.isString()) {
             this.action = action.asEnum(ReconAction.class);
             this.script = null;
@@ -100,6 +106,16 @@ class Policy {
         return condition;
     }
     
+    /**
+     * Returns whether the policy depends on the source object, i.e. has a condition, an action script or a
+     * postAction script.
+     *
+     * @return true if the policy depends on the source object
+     */
+    boolean dependsOnSource() {
+        return conditional || script != null || postAction != null;
+    }
+
     /**
      * Returns the situation for this policy.
      * 
@@ -21,7 +21,10 @@ import static org.forgerock.json.JsonValue.object;
 
 
 // Java SE
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -45,17 +48,23 @@ import org.forgerock.openidm.condition.Condition;
 /**
  * This class contains the necessary logic to map an attribute from the source object to an attribute
  * on the target object.  It optionally contains a condition and transform scripts.. 
+ * <p>
+ * A transform may also be declarative, see {@link PropertyTransforms}, in which case it is compiled once and
+ * applied without a script.
  */
 class PropertyMapping {
 
     /** Logger */
     private final static Logger LOGGER = LoggerFactory.getLogger(PropertyMapping.class);
 
-    /** A condition script */
+    /** A condition script, or null if the property is mapped unconditionally */
     private final Condition condition;
 
     /** A transform script */
     private final Script transform;
+
+    /** A declarative transform, compiled from the configuration */
+    private final PropertyTransform compiledTransform;
     
     /** A {@link JsonPointer} for the target */
     private final JsonPointer targetPointer;
@@ -65,6 +74,9 @@ class PropertyMapping {
 
     /** A default value */
     private final Object defaultValue;
+
+    /** The properties of the source object the mapping reads, the root pointer if the whole object */
+    private final List<JsonPointer> sourceDependencies = new ArrayList<JsonPointer>();
     
     /**
      * Constructor
@@ -73,11 +85,36 @@ class PropertyMapping {
      * @throws JsonValueException if any errors are encountered when processing the configuration.
      */
     public PropertyMapping(JsonValue config) throws JsonValueException {
-        condition = Conditions.newCondition(config.get("condition"));
+        condition = config.get("condition").isNull() ? null : Conditions.newCondition(config.get("condition"));
         targetPointer = config.get("target").required().asPointer();
         sourcePointer = config.get("source").asPointer(); // optional
-        transform = Scripts.newScript(config.get("transform"));
+        JsonValue transformConfig = config.get("transform");
+        if (PropertyTransforms.isDeclarative(transformConfig)) {
+            compiledTransform = PropertyTransforms.compile(transformConfig);
+            transform = null;
+            PropertyTransforms.addSources(transformConfig, sourceDependencies);
+        } else {
+            compiledTransform = null;
+            transform = Scripts.newScript(transformConfig);
+        }
         defaultValue = config.get("default").getObject();
+        if (condition != null) {
+            // conditions are evaluated against the whole source object
+            sourceDependencies.add(new JsonPointer());
+        }
+        if (sourcePointer != null) {
+            sourceDependencies.add(sourcePointer);
+        }
+    }
+
+    /**
+     * Adds the properties of the source object this mapping reads. A transform script only reads the source
+     * property, if any.
+     *
+     * @param dependencies the pointers to add the properties to, the root pointer for the whole object
+     */
+    void addSourceDependencies(Collection<JsonPointer> dependencies) {
+        dependencies.addAll(sourceDependencies);
     }
 
     /**
@@ -129,8 +166,23 @@ class PropertyMapping {
      */
     public void apply(JsonValue sourceObject, JsonValue oldSource, JsonValue targetObject, JsonValue oldTarget, String linkQualifier,
             Context context) throws SynchronizationException {
+        apply(new Scope(sourceObject, oldSource, targetObject, oldTarget, linkQualifier), context);
+    }
+
+    /**
+     * Applies this property mapping with the scope shared by the property mappings of one object.
+     *
+     * @param scope the scope of the mapped object
+     * @param context a {@link Context} associated with this call
+     * @throws SynchronizationException if errors are encountered.
+     * @see #apply(JsonValue, JsonValue, JsonValue, JsonValue, String, Context)
+     */
+    void apply(Scope scope, Context context) throws SynchronizationException {
+        JsonValue sourceObject = scope.sourceObject;
+        JsonValue targetObject = scope.targetObject;
+        String linkQualifier = scope.linkQualifier;
         // optional property mapping condition
-        if (!evaluateCondition(sourceObject, oldSource, targetObject, oldTarget, linkQualifier, context)) {
+        if (condition != null && !condition.evaluate(scope.getConditionParams(), context)) {
             return;
         }
         Object result = null;
@@ -140,12 +192,14 @@ class PropertyMapping {
                 result = jv.getObject();
             }
         }
-        if (transform != null) { // optional property mapping script
-            Map<String, Object> scope = new HashMap<String, Object>();
-            scope.put("source", result);
-            scope.put("linkQualifier", linkQualifier);
+        if (compiledTransform != null) {
+            result = compiledTransform.transform(result, sourceObject);
+        } else if (transform != null) { // optional property mapping script
+            Map<String, Object> transformScope = scope.getTransformScope();
+            transformScope.put("source", result);
+            transformScope.put("linkQualifier", linkQualifier);
             try {
-                result = transform.exec(scope, context); // script yields transformation result
+                result = transform.exec(transformScope, context); // script yields transformation result
             } catch (ScriptException se) {
                 LOGGER.warn("Property mapping " + targetPointer + " transformation script encountered exception", se);
                 throw new SynchronizationException("Transformation script error :  " + se.getMessage() + 
@@ -172,13 +226,66 @@ class PropertyMapping {
      */
     public boolean evaluateCondition(JsonValue sourceObject, JsonValue oldSource, JsonValue targetObject, JsonValue oldTarget,
             String linkQualifier, Context context) throws SynchronizationException {
-        JsonValue params = json(object(field("object", sourceObject), field("target", targetObject), field("linkQualifier", linkQualifier)));
-        if (oldSource != null) {
-            params.put("oldSource", oldSource);
+        return condition == null || condition.evaluate(
+                new Scope(sourceObject, oldSource, targetObject, oldTarget, linkQualifier).getConditionParams(),
+                context);
+    }
+
+    /**
+     * The scope of the property mappings of one object, created once and shared by its property mappings
+     * rather than created by each of them. Scripts get copies of the scope, so it is not changed by them.
+     */
+    static class Scope {
+        private final JsonValue sourceObject;
+        private final JsonValue oldSource;
+        private final JsonValue targetObject;
+        private final JsonValue oldTarget;
+        private final String linkQualifier;
+        private JsonValue conditionParams;
+        private Map<String, Object> transformScope;
+
+        /**
+         * @param sourceObject Current specified source property/object to map from
+         * @param oldSource an optional previous source object before the change(s) that triggered the sync, null
+         * if not provided
+         * @param targetObject Current specified target property/object to modify
+         * @param oldTarget Existing, unmodified, target object, null if not provided
+         * @param linkQualifier the link qualifier associated with the current sync
+         */
+        Scope(JsonValue sourceObject, JsonValue oldSource, JsonValue targetObject, JsonValue oldTarget,
+                String linkQualifier) {
+            this.sourceObject = sourceObject;
+            this.oldSource = oldSource;
+            this.targetObject = targetObject;
+            this.oldTarget = oldTarget;
+            this.linkQualifier = linkQualifier;
         }
-        if (oldTarget != null) {
-            params.put("oldTarget", oldTarget);
+
+        /**
+         * @return the parameters of conditions, which refer to the target object as it is being mapped
+         */
+        JsonValue getConditionParams() {
+            if (conditionParams == null) {
+                conditionParams = json(object(field("object", sourceObject), field("target", targetObject),
+                        field("linkQualifier", linkQualifier)));
+                if (oldSource != null) {
+                    conditionParams.put("oldSource", oldSource);
+                }
+                if (oldTarget != null) {
+                    conditionParams.put("oldTarget", oldTarget);
+                }
+            }
+            return conditionParams;
+        }
+
+        /**
+         * @return the scope of transform scripts
+         */
+        Map<String, Object> getTransformScope() {
+            if (transformScope == null) {
+                transformScope = new HashMap<String, Object>();
+            }
+            return transformScope;
         }
-        return condition.evaluate(params, context);
     }
 }
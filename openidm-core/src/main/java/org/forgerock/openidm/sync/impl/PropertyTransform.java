@@ -0,0 +1,37 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import org.forgerock.json.JsonValue;
+
+/**
+ * A declarative transformation of a property mapping, compiled from its configuration once and applied
+ * without a script engine.
+ *
+ * @see PropertyTransforms
+ */
+interface PropertyTransform {
+
+    /**
+     * Transforms a source property value.
+     *
+     * @param value the value to transform, null if none
+     * @param sourceObject the source object the value was mapped from
+     * @return the transformed value, null if none
+     * @throws SynchronizationException if the value can not be transformed
+     */
+    Object transform(Object value, JsonValue sourceObject) throws SynchronizationException;
+}
@@ -0,0 +1,260 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+
+/**
+ * Compiles the declarative transformations of property mappings.
+ * <p>
+ * A declarative transformation is configured as the {@code transform} of a property mapping in place of a script,
+ * as the name of a transformation, an object with the name of the transformation as its {@code type} and its
+ * parameters, or a list of those applied in order:
+ * <ul>
+ * <li>{@code lowercase}, {@code uppercase} and {@code trim} transform string values, or each string of a list</li>
+ * <li>{@code concat} joins the values of the {@code sources} properties of the source object, given as
+ * JSON pointers, with an optional {@code separator}, skipping missing values</li>
+ * <li>{@code formatDate} parses a string value with the {@code from} date pattern and formats it with the
+ * {@code to} date pattern, both in the optional {@code timeZone}, UTC by default</li>
+ * </ul>
+ * For example {@code "transform" : [ "trim", "lowercase" ]}.
+ */
+class PropertyTransforms {
+
+    /** The names of the declarative transformations */
+    enum Type {
+        lowercase, uppercase, trim, concat, formatDate
+    }
+
+    private PropertyTransforms() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns whether a transform configuration is declarative rather than a script.
+     *
+     * @param config the transform configuration of a property mapping
+     * @return true if the configuration is declarative
+     */
+    static boolean isDeclarative(JsonValue config) {
+        if (config.isList()) {
+            return true;
+        }
+        JsonValue type = config.isMap() ? config.get("type") : config;
+        return type.isString() && isType(type.asString());
+    }
+
+    private static boolean isType(String name) {
+        for (Type type : Type.values()) {
+            if (type.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the properties of the source object a declarative transform configuration reads besides the value it
+     * transforms, i.e. the {@code sources} of {@code concat}.
+     *
+     * @param config the declarative transform configuration of a property mapping
+     * @param sources the pointers to add the properties to
+     */
+    static void addSources(JsonValue config, Collection<JsonPointer> sources) {
+        if (config.isList()) {
+            for (JsonValue step : config) {
+                addSources(step, sources);
+            }
+        } else if (config.isMap() && Type.concat.name().equals(config.get("type").asString())) {
+            for (JsonValue source : config.get("sources")) {
+                sources.add(source.asPointer());
+            }
+        }
+    }
+
+    /**
+     * Compiles a declarative transform configuration.
+     *
+     * @param config the transform configuration of a property mapping
+     * @return the compiled transformation
+     * @throws JsonValueException if the configuration is not a valid declarative transformation
+     */
+    static PropertyTransform compile(JsonValue config) throws JsonValueException {
+        if (config.isList()) {
+            final List<PropertyTransform> steps = new ArrayList<PropertyTransform>();
+            for (JsonValue step : config) {
+                if (step.isList()) {
+                    throw new JsonValueException(step, "Expecting a transformation");
+                }
+                steps.add(compile(step));
+            }
+            return new PropertyTransform() {
+                @Override
+                public Object transform(Object value, JsonValue sourceObject) throws SynchronizationException {
+                    Object result = value;
+                    for (PropertyTransform step : steps) {
+                        result = step.transform(result, sourceObject);
+                    }
+                    return result;
+                }
+            };
+        }
+        Type type = config.isString()
+                ? config.asEnum(Type.class)
+                : config.get("type").required().asEnum(Type.class);
+        switch (type) {
+        case lowercase:
+            return new StringTransform() {
+                @Override
+                String transform(String value) {
+                    return value.toLowerCase(Locale.ROOT);
+                }
+            };
+        case uppercase:
+            return new StringTransform() {
+                @Override
+                String transform(String value) {
+                    return value.toUpperCase(Locale.ROOT);
+                }
+            };
+        case trim:
+            return new StringTransform() {
+                @Override
+                String transform(String value) {
+                    return value.trim();
+                }
+            };
+        case concat:
+            return new ConcatTransform(config);
+        case formatDate:
+            return new FormatDateTransform(config);
+        default:
+            throw new JsonValueException(config, "Unsupported transformation " + type);
+        }
+    }
+
+    /**
+     * Transforms string values, or each string of a list, leaving other values as is.
+     */
+    private abstract static class StringTransform implements PropertyTransform {
+
+        abstract String transform(String value) throws SynchronizationException;
+
+        @Override
+        public Object transform(Object value, JsonValue sourceObject) throws SynchronizationException {
+            if (value instanceof String) {
+                return transform((String) value);
+            }
+            if (value instanceof List) {
+                List<Object> result = new ArrayList<Object>(((List<?>) value).size());
+                for (Object element : (List<?>) value) {
+                    result.add(element instanceof String ? transform((String) element) : element);
+                }
+                return result;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Joins the values of properties of the source object.
+     */
+    private static class ConcatTransform implements PropertyTransform {
+        private final List<JsonPointer> sources = new ArrayList<JsonPointer>();
+        private final String separator;
+
+        ConcatTransform(JsonValue config) throws JsonValueException {
+            if (config.isString()) {
+                throw new JsonValueException(config, "Transformation concat requires sources");
+            }
+            for (JsonValue source : config.get("sources").required().expect(List.class)) {
+                sources.add(source.asPointer());
+            }
+            separator = config.get("separator").defaultTo("").asString();
+        }
+
+        @Override
+        public Object transform(Object value, JsonValue sourceObject) {
+            StringBuilder result = new StringBuilder();
+            for (JsonPointer source : sources) {
+                JsonValue sourceValue = sourceObject.get(source);
+                if (sourceValue == null || sourceValue.isNull()) {
+                    continue;
+                }
+                if (result.length() > 0) {
+                    result.append(separator);
+                }
+                result.append(sourceValue.getObject());
+            }
+            return result.length() > 0 ? result.toString() : null;
+        }
+    }
+
+    /**
+     * Reformats date strings. Date formats are not thread safe, so each thread has its own.
+     */
+    private static class FormatDateTransform extends StringTransform {
+        private final ThreadLocal<SimpleDateFormat> from;
+        private final ThreadLocal<SimpleDateFormat> to;
+
+        FormatDateTransform(JsonValue config) throws JsonValueException {
+            if (config.isString()) {
+                throw new JsonValueException(config, "Transformation formatDate requires from and to patterns");
+            }
+            String timeZone = config.get("timeZone").defaultTo("UTC").asString();
+            from = dateFormat(config.get("from").required(), timeZone);
+            to = dateFormat(config.get("to").required(), timeZone);
+        }
+
+        private static ThreadLocal<SimpleDateFormat> dateFormat(JsonValue pattern, final String timeZone)
+                throws JsonValueException {
+            final String datePattern = pattern.asString();
+            try {
+                new SimpleDateFormat(datePattern, Locale.ROOT);
+            } catch (IllegalArgumentException e) {
+                throw new JsonValueException(pattern, "Invalid date pattern", e);
+            }
+            return new ThreadLocal<SimpleDateFormat>() {
+                @Override
+                protected SimpleDateFormat initialValue() {
+                    SimpleDateFormat format = new SimpleDateFormat(datePattern, Locale.ROOT);
+                    format.setTimeZone(TimeZone.getTimeZone(timeZone));
+                    return format;
+                }
+            };
+        }
+
+        @Override
+        String transform(String value) throws SynchronizationException {
+            try {
+                return to.get().format(from.get().parse(value));
+            } catch (ParseException e) {
+                throw new SynchronizationException("Failed to parse date '" + value + "' as "
+                        + from.get().toPattern());
+            }
+        }
+    }
+}
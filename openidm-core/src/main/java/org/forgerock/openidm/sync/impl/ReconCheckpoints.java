@@ -0,0 +1,226 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+import static org.forgerock.json.resource.Requests.newDeleteRequest;
+import static org.forgerock.json.resource.Requests.newReadRequest;
+import static org.forgerock.json.resource.Requests.newUpdateRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.encode.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists checkpoints of reconciliation runs in the repository, so that a failed or canceled run can be
+ * resumed from its last checkpoint, on any node, rather than starting over.
+ * <p>
+ * A checkpoint is taken once a page of source ids is fully reconciled, at most once per checkpoint interval of
+ * the mapping. It records the paging cookie of the next page, the statistic counts so far and the target ids
+ * remaining for the target phase. The remaining target ids are kept deflated and base64 encoded, in chunks.
+ * The repository configurations map the checkpoints to non-searchable records, so that these chunks are not
+ * rewritten as indexed properties with each checkpoint.
+ */
+class ReconCheckpoints {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconCheckpoints.class);
+
+    /** The repository container of the checkpoint records */
+    static final String CHECKPOINTS_RESOURCE = "repo/cluster/reconcheckpoints";
+
+    /** The source phase is in progress, continuing with the page of the paging cookie */
+    static final String PHASE_SOURCE = "SOURCE";
+    /** The source phase completed, continuing with the target phase */
+    static final String PHASE_TARGET = "TARGET";
+
+    static final String RECON_ID = "reconId";
+    static final String MAPPING = "mapping";
+    static final String RECON_ACTION = "reconAction";
+    static final String RECON_PARAMS = "reconParams";
+    static final String OVERRIDING_CONFIG = "overridingConfig";
+    static final String PHASE = "phase";
+    static final String PAGING_COOKIE = "pagingCookie";
+    static final String PAGES = "pages";
+    static final String STATISTICS = "statistics";
+    static final String REMAINING_TARGET_IDS = "remainingTargetIds";
+    static final String TIMESTAMP = "timestamp";
+
+    /** The maximum length of a chunk of the encoded remaining target ids */
+    private static final int CHUNK_SIZE = 1024;
+
+    private final ConnectionFactory connectionFactory;
+
+    /**
+     * @param connectionFactory the connection factory to access the repository with
+     */
+    ReconCheckpoints(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    private static String checkpointPath(String reconId) {
+        return CHECKPOINTS_RESOURCE + "/" + reconId;
+    }
+
+    /**
+     * Records a checkpoint of a reconciliation run, replacing its previous checkpoint. Failing to record the
+     * checkpoint does not fail the run, but is logged.
+     *
+     * @param context the context to access the repository with
+     * @param reconContext the reconciliation run
+     * @param phase the phase to continue with on resume, {@link #PHASE_SOURCE} or {@link #PHASE_TARGET}
+     * @param pagingCookie the paging cookie of the next source page, or null to start from the first page
+     * @param pages the number of source pages reconciled so far
+     * @param remainingTargetIds the target ids remaining for the target phase
+     */
+    void save(Context context, ReconciliationContext reconContext, String phase, String pagingCookie, int pages,
+            Collection<String> remainingTargetIds) {
+        JsonValue overridingConfig = reconContext.getOverridingConfig();
+        JsonValue checkpoint = json(object(
+                field(RECON_ID, reconContext.getReconId()),
+                field(MAPPING, reconContext.getMapping()),
+                field(RECON_ACTION, reconContext.getReconAction().name()),
+                field(RECON_PARAMS, reconContext.getReconParams().getObject()),
+                field(OVERRIDING_CONFIG, overridingConfig == null ? null : overridingConfig.getObject()),
+                field(PHASE, phase),
+                field(PAGING_COOKIE, pagingCookie),
+                field(PAGES, pages),
+                field(STATISTICS, reconContext.getStatistics().exportCounts()),
+                field(REMAINING_TARGET_IDS, encodeIds(remainingTargetIds)),
+                field(TIMESTAMP, System.currentTimeMillis())));
+        String path = checkpointPath(reconContext.getReconId());
+        try {
+            try {
+                connectionFactory.getConnection().update(context, newUpdateRequest(path, checkpoint));
+            } catch (NotFoundException e) {
+                connectionFactory.getConnection().create(context,
+                        newCreateRequest(CHECKPOINTS_RESOURCE, reconContext.getReconId(), checkpoint));
+            }
+            logger.debug("Recorded {} phase checkpoint of reconciliation {} after {} pages",
+                    phase, reconContext.getReconId(), pages);
+        } catch (ResourceException e) {
+            logger.warn("Failed to record the checkpoint of reconciliation {}", reconContext.getReconId(), e);
+        }
+    }
+
+    /**
+     * @param context the context to access the repository with
+     * @param reconId the id of the reconciliation run
+     * @return the last checkpoint of the reconciliation run, or null if it has none
+     * @throws ResourceException if reading the checkpoint failed
+     */
+    JsonValue read(Context context, String reconId) throws ResourceException {
+        try {
+            return connectionFactory.getConnection().read(context, newReadRequest(checkpointPath(reconId)))
+                    .getContent();
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the checkpoint of a reconciliation run, if any.
+     *
+     * @param context the context to access the repository with
+     * @param reconId the id of the reconciliation run
+     */
+    void delete(Context context, String reconId) {
+        try {
+            String revision = connectionFactory.getConnection()
+                    .read(context, newReadRequest(checkpointPath(reconId))).getRevision();
+            connectionFactory.getConnection().delete(context,
+                    newDeleteRequest(checkpointPath(reconId)).setRevision(revision));
+        } catch (NotFoundException e) {
+            // no checkpoint was taken
+        } catch (ResourceException e) {
+            logger.warn("Failed to remove the checkpoint of reconciliation {}", reconId, e);
+        }
+    }
+
+    /**
+     * Encodes ids compactly, as deflated and base64 encoded chunks.
+     *
+     * @param ids the ids to encode
+     * @return the encoded chunks
+     */
+    static List<String> encodeIds(Collection<String> ids) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            for (String id : ids) {
+                out.writeUTF(id);
+            }
+        } catch (IOException e) {
+            // Not expected writing to memory
+            throw new IllegalStateException("Failed to encode ids", e);
+        }
+        String encoded = Base64.encode(bytes.toByteArray());
+        List<String> chunks = new ArrayList<>(encoded.length() / CHUNK_SIZE + 1);
+        for (int start = 0; start < encoded.length(); start += CHUNK_SIZE) {
+            chunks.add(encoded.substring(start, Math.min(encoded.length(), start + CHUNK_SIZE)));
+        }
+        return chunks;
+    }
+
+    /**
+     * Decodes ids encoded by {@link #encodeIds(Collection)}.
+     *
+     * @param chunks the encoded chunks
+     * @return the decoded ids
+     * @throws SynchronizationException if the chunks are not validly encoded ids
+     */
+    static Collection<String> decodeIds(JsonValue chunks) throws SynchronizationException {
+        StringBuilder encoded = new StringBuilder();
+        for (JsonValue chunk : chunks) {
+            encoded.append(chunk.asString());
+        }
+        Collection<String> ids = new CompactIdSet();
+        if (encoded.length() == 0) {
+            return ids;
+        }
+        byte[] bytes = Base64.decode(encoded.toString());
+        if (bytes == null) {
+            throw new SynchronizationException("Invalid remaining target ids in reconciliation checkpoint");
+        }
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+            while (true) {
+                ids.add(in.readUTF());
+            }
+        } catch (EOFException e) {
+            return ids;
+        } catch (IOException e) {
+            throw new SynchronizationException("Invalid remaining target ids in reconciliation checkpoint", e);
+        }
+    }
+}
@@ -31,6 +31,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.openidm.audit.util.Status;
 
 
 /**
@@ -38,7 +41,9 @@ import java.util.concurrent.Future;
  * multi-threaded using an executor.
  *
  * Keeps the executor loaded to a desirable level, rather than filling up
- * its queue with all tasks up front.
+ * its queue with all tasks up front. The level is either the fixed feed size,
+ * or adapted to the task latency and failures by the {@link AdaptiveFeedLimit}
+ * of the reconciliation run.
  */
 public abstract class ReconFeeder {
     
@@ -50,6 +55,9 @@ public abstract class ReconFeeder {
     CompletionService<Void> completionService;
     int feedSize = DEFAULT_FEED_SIZE;
     int submitted = 0;
+    AdaptiveFeedLimit feedLimit;
+    // The failures counted by the statistics when last checked, to tell task failures to the feed limit
+    final AtomicInteger failures = new AtomicInteger();
 
     Iterator<ResultEntry> entriesIter;
     ReconciliationContext reconContext;
@@ -64,6 +72,18 @@ public abstract class ReconFeeder {
     }
 
     void execute() throws SynchronizationException, InterruptedException {
+        try {
+            executeTasks();
+        } finally {
+            // Write the links still buffered by the tasks of the phase
+            LinkBuffer linkBuffer = reconContext.getLinkBuffer();
+            if (linkBuffer != null) {
+                linkBuffer.flush();
+            }
+        }
+    }
+
+    private void executeTasks() throws SynchronizationException, InterruptedException {
         Executor executor = reconContext.getExcecutor();
         if (executor == null) {
             // Execute single threaded
@@ -78,33 +98,76 @@ public abstract class ReconFeeder {
         } else {
             submitted = 0;
             completionService = new ExecutorCompletionService<Void>(executor);
+            feedLimit = reconContext.getFeedLimit();
+            failures.set(reconContext.getStatistics().getStatusCount(Status.FAILURE));
 
             // Pre-load configured number of items
-            for (int i = 0; i < feedSize; ++i) {
-                submitNextIfPresent();
+            int inFlight = 0;
+            while (inFlight < getFeedLimit() && submitNextIfPresent()) {
+                ++inFlight;
             }
 
             // Check all submitted tasks for exception, and
-            // each time one completes, submit another if there is any more
-            for (int processed = 0; processed < submitted; ++processed) {
+            // each time one completes, submit more up to the feed limit if there is any more
+            while (inFlight > 0) {
                 Future<Void> future = completionService.take();
+                --inFlight;
                 try {
                     // Get any exceptions
                     Void result = future.get();
                 } catch (ExecutionException ex) {
                     translateTaskThrowable(ex);
                 }
-                submitNextIfPresent();
+                while (inFlight < getFeedLimit() && submitNextIfPresent()) {
+                    ++inFlight;
+                }
             }
         }
     }
 
-    void submitNextIfPresent() throws SynchronizationException {
+    /**
+     * @return the number of tasks to keep in flight
+     */
+    int getFeedLimit() {
+        return feedLimit != null ? feedLimit.getLimit() : feedSize;
+    }
+
+    boolean submitNextIfPresent() throws SynchronizationException {
         reconContext.checkCanceled();
         if (entriesIter.hasNext()) {
             ResultEntry entry = entriesIter.next();
-            completionService.submit(createTask(entry));
+            Callable<Void> task = createTask(entry);
+            completionService.submit(feedLimit != null ? new MeasuredTask(task) : task);
             ++submitted;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports the latency and failures of a task to the feed limit.
+     */
+    private class MeasuredTask implements Callable<Void> {
+        private final Callable<Void> task;
+
+        MeasuredTask(Callable<Void> task) {
+            this.task = task;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            long start = System.nanoTime();
+            boolean thrown = true;
+            try {
+                task.call();
+                thrown = false;
+                return null;
+            } finally {
+                // Failed tasks are usually counted by the statistics rather than thrown
+                int failed = reconContext.getStatistics().getStatusCount(Status.FAILURE);
+                boolean newFailures = failed > failures.getAndSet(failed);
+                feedLimit.completed(System.nanoTime() - start, thrown || newFailures);
+            }
         }
     }
 
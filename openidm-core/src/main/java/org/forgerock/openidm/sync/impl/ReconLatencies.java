@@ -0,0 +1,188 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openidm.sync.ReconAction;
+
+/**
+ * The latencies of the operations of a reconciliation run on its entries, by situation of the entry.
+ * <p>
+ * Tells whether a slow run is bound by reading from the source or target systems, by the repository holding the
+ * links, by correlation queries, by the actions performed or by writing the audit.
+ */
+class ReconLatencies {
+
+    /** The operations measured, other than the actions */
+    enum Operation {
+        SOURCE_READ("sourceRead"),
+        TARGET_READ("targetRead"),
+        LINK_READ("linkRead"),
+        LINK_WRITE("linkWrite"),
+        CORRELATION("correlation"),
+        AUDIT_WRITE("auditWrite");
+
+        private final String key;
+
+        Operation(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return key;
+        }
+    }
+
+    /** The key of the latencies of an entry whose situation was not assessed, for example because it failed */
+    static final String NO_SITUATION = "NONE";
+
+    private static final String ACTIONS = "actions";
+
+    /** The histograms by operation, then by situation */
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> operations =
+            new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+
+    /** The histograms by action, then by situation */
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> actions =
+            new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>();
+
+    /**
+     * Records the latency of an operation on an entry.
+     *
+     * @param operation the operation
+     * @param situation the situation of the entry, or null if not assessed
+     * @param nanos the latency, in nanoseconds
+     */
+    void record(Operation operation, Situation situation, long nanos) {
+        histogram(operations, operation.toString(), situation).record(nanos);
+    }
+
+    /**
+     * Records the latency of performing an action on an entry.
+     *
+     * @param action the action performed
+     * @param situation the situation of the entry, or null if not assessed
+     * @param nanos the latency, in nanoseconds
+     */
+    void recordAction(ReconAction action, Situation situation, long nanos) {
+        histogram(actions, action.name(), situation).record(nanos);
+    }
+
+    private static LatencyHistogram histogram(ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> map,
+            String key, Situation situation) {
+        ConcurrentMap<String, LatencyHistogram> bySituation = map.get(key);
+        if (bySituation == null) {
+            ConcurrentMap<String, LatencyHistogram> created = new ConcurrentHashMap<String, LatencyHistogram>();
+            bySituation = map.putIfAbsent(key, created);
+            if (bySituation == null) {
+                bySituation = created;
+            }
+        }
+        String situationKey = situation != null ? situation.name() : NO_SITUATION;
+        LatencyHistogram histogram = bySituation.get(situationKey);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = bySituation.putIfAbsent(situationKey, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the percentiles of the latencies by operation, with the actions under "actions", then by situation
+     */
+    Map<String, Object> asMap() {
+        Map<String, Object> latencies = new TreeMap<String, Object>();
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> entry : operations.entrySet()) {
+            latencies.put(entry.getKey(), asMap(entry.getValue()));
+        }
+        Map<String, Object> byAction = new TreeMap<String, Object>();
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> entry : actions.entrySet()) {
+            byAction.put(entry.getKey(), asMap(entry.getValue()));
+        }
+        latencies.put(ACTIONS, byAction);
+        return latencies;
+    }
+
+    private static Map<String, Object> asMap(Map<String, LatencyHistogram> bySituation) {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        for (Map.Entry<String, LatencyHistogram> entry : bySituation.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().asMap());
+        }
+        return stats;
+    }
+
+    /**
+     * Exports the recorded latencies, to be merged into the latencies of another run with
+     * {@link #mergeCounts(JsonValue)}.
+     *
+     * @return the recorded latencies
+     */
+    Map<String, Object> exportCounts() {
+        Map<String, Object> counts = new TreeMap<String, Object>();
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> entry : operations.entrySet()) {
+            counts.put(entry.getKey(), exportCounts(entry.getValue()));
+        }
+        Map<String, Object> byAction = new TreeMap<String, Object>();
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> entry : actions.entrySet()) {
+            byAction.put(entry.getKey(), exportCounts(entry.getValue()));
+        }
+        counts.put(ACTIONS, byAction);
+        return counts;
+    }
+
+    private static Map<String, Object> exportCounts(Map<String, LatencyHistogram> bySituation) {
+        Map<String, Object> counts = new TreeMap<String, Object>();
+        for (Map.Entry<String, LatencyHistogram> entry : bySituation.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().exportCounts());
+        }
+        return counts;
+    }
+
+    /**
+     * Adds latencies exported by {@link #exportCounts()}, for example by a partition of this run, to the
+     * latencies of this run.
+     *
+     * @param counts the exported latencies
+     */
+    void mergeCounts(JsonValue counts) {
+        for (String operation : counts.keys()) {
+            if (ACTIONS.equals(operation)) {
+                for (String action : counts.get(ACTIONS).keys()) {
+                    merge(actions, action, counts.get(ACTIONS).get(action));
+                }
+            } else {
+                merge(operations, operation, counts.get(operation));
+            }
+        }
+    }
+
+    private static void merge(ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> map, String key,
+            JsonValue bySituation) {
+        for (String situation : bySituation.keys()) {
+            Situation value = NO_SITUATION.equals(situation) ? null : Situation.valueOf(situation);
+            histogram(map, key, value).merge(bySituation.get(situation));
+        }
+    }
+}
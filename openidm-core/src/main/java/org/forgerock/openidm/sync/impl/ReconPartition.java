@@ -0,0 +1,102 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.forgerock.guava.common.base.Predicate;
+import org.forgerock.guava.common.collect.Iterators;
+
+/**
+ * One partition of the source ids of a distributed reconciliation.
+ * <p>
+ * Source ids are assigned to partitions by their hash, so every node derives the same partitioning
+ * from the same source query without coordination. While the source phase of the partition runs,
+ * the target ids it handled without ending up linked to them are collected, so the coordinating
+ * run can leave those out of its target phase.
+ */
+class ReconPartition {
+
+    private final int index;
+    private final int count;
+    private final Collection<String> unlinkedTargetIds = new CompactIdSet();
+
+    /**
+     * @param index the index of this partition, from 0 to {@code count - 1}
+     * @param count the total number of partitions
+     */
+    ReconPartition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid partition " + index + " of " + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @return the index of this partition
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the total number of partitions
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @param sourceId a source id
+     * @return true if the source id belongs to this partition
+     */
+    boolean includes(String sourceId) {
+        return (sourceId.hashCode() & Integer.MAX_VALUE) % count == index;
+    }
+
+    /**
+     * Filters the given entries down to those of this partition.
+     *
+     * @param entries the source entries
+     * @return the source entries of this partition
+     */
+    Iterator<ResultEntry> filter(Iterator<ResultEntry> entries) {
+        return Iterators.filter(entries, new Predicate<ResultEntry>() {
+            @Override
+            public boolean apply(ResultEntry entry) {
+                return includes(entry.getId());
+            }
+        });
+    }
+
+    /**
+     * Records a target id handled by the source phase which did not end up linked to the source.
+     *
+     * @param targetId the normalized target id
+     */
+    void addUnlinkedTargetId(String targetId) {
+        unlinkedTargetIds.add(targetId);
+    }
+
+    /**
+     * @return the target ids handled by the source phase which did not end up linked
+     */
+    Collection<String> getUnlinkedTargetIds() {
+        return unlinkedTargetIds;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+import static org.forgerock.json.resource.Requests.newDeleteRequest;
+import static org.forgerock.json.resource.Requests.newQueryRequest;
+import static org.forgerock.json.resource.Requests.newUpdateRequest;
+import static org.forgerock.util.query.QueryFilter.equalTo;
+import static org.forgerock.util.query.QueryFilter.or;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the partitions of distributed reconciliation runs in the repository, so that the
+ * nodes of a cluster can claim and reconcile them.
+ * <p>
+ * A partition is claimed by updating its record with the revision it was read with, so only one node
+ * succeeds in claiming it. The claiming node holds a lease on the partition, which it has to renew while
+ * reconciling; once the lease expired, for example because the node died, the partition becomes
+ * available to other nodes again.
+ */
+class ReconPartitions {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconPartitions.class);
+
+    /**
+     * The repository container of the partition records; the JDBC repositories index only their reconId
+     * and state, as the unlinked target ids of a completed partition may well be millions of values
+     */
+    static final String PARTITIONS_RESOURCE = "repo/cluster/reconpartitions";
+
+    static final String STATE_PENDING = "PENDING";
+    static final String STATE_CLAIMED = "CLAIMED";
+    static final String STATE_COMPLETED = "COMPLETED";
+    static final String STATE_FAILED = "FAILED";
+
+    static final String RECON_ID = "reconId";
+    static final String MAPPING = "mapping";
+    static final String INDEX = "index";
+    static final String COUNT = "count";
+    static final String RECON_PARAMS = "reconParams";
+    static final String OVERRIDING_CONFIG = "overridingConfig";
+    static final String STATE = "state";
+    static final String OWNER = "owner";
+    static final String LEASE_EXPIRY = "leaseExpiry";
+    static final String ATTEMPTS = "attempts";
+    static final String STATISTICS = "statistics";
+    static final String UNLINKED_TARGET_IDS = "unlinkedTargetIds";
+    static final String MESSAGE = "message";
+
+    /** The number of times a partition is claimed before it is considered failed */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final ConnectionFactory connectionFactory;
+    private final String nodeId;
+    private final long leaseMillis;
+
+    /**
+     * @param connectionFactory the connection factory to access the repository with
+     * @param nodeId the id of this node, recorded as the owner of claimed partitions
+     * @param leaseMillis the duration of a lease on a claimed partition
+     */
+    ReconPartitions(ConnectionFactory connectionFactory, String nodeId, long leaseMillis) {
+        this.connectionFactory = connectionFactory;
+        this.nodeId = nodeId;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * @return the duration of a lease on a claimed partition
+     */
+    long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    private static String partitionId(String reconId, int index) {
+        return reconId + "-" + index;
+    }
+
+    private static String partitionPath(String partitionId) {
+        return PARTITIONS_RESOURCE + "/" + partitionId;
+    }
+
+    /**
+     * Creates the pending partition records of a reconciliation run.
+     *
+     * @param context the context to access the repository with
+     * @param reconContext the coordinating reconciliation run
+     * @param count the number of partitions
+     * @throws ResourceException if creating the records failed
+     */
+    void create(Context context, ReconciliationContext reconContext, int count) throws ResourceException {
+        JsonValue overridingConfig = reconContext.getOverridingConfig();
+        for (int index = 0; index < count; index++) {
+            JsonValue partition = json(object(
+                    field(RECON_ID, reconContext.getReconId()),
+                    field(MAPPING, reconContext.getMapping()),
+                    field(INDEX, index),
+                    field(COUNT, count),
+                    field(RECON_PARAMS, reconContext.getReconParams().getObject()),
+                    field(OVERRIDING_CONFIG, overridingConfig == null ? null : overridingConfig.getObject()),
+                    field(STATE, STATE_PENDING),
+                    field(ATTEMPTS, 0)));
+            connectionFactory.getConnection().create(context,
+                    newCreateRequest(PARTITIONS_RESOURCE, partitionId(reconContext.getReconId(), index), partition));
+        }
+        logger.debug("Created {} partitions for reconciliation {}", count, reconContext.getReconId());
+    }
+
+    /**
+     * @param context the context to access the repository with
+     * @param reconId the id of the reconciliation run
+     * @return the partition records of the reconciliation run
+     * @throws ResourceException if querying the records failed
+     */
+    List<ResourceResponse> query(Context context, String reconId) throws ResourceException {
+        List<ResourceResponse> partitions = new ArrayList<>();
+        connectionFactory.getConnection().query(context,
+                newQueryRequest(PARTITIONS_RESOURCE).setQueryFilter(equalTo(new JsonPointer(RECON_ID), reconId)),
+                partitions);
+        return partitions;
+    }
+
+    /**
+     * Claims partitions which are pending, or whose lease expired.
+     *
+     * @param context the context to access the repository with
+     * @param max the maximum number of partitions to claim
+     * @return the claimed partition records
+     * @throws ResourceException if querying the records failed
+     */
+    List<ResourceResponse> claimAvailable(Context context, int max) throws ResourceException {
+        List<ResourceResponse> claimed = new ArrayList<>();
+        if (max <= 0) {
+            return claimed;
+        }
+        List<ResourceResponse> candidates = new ArrayList<>();
+        connectionFactory.getConnection().query(context,
+                newQueryRequest(PARTITIONS_RESOURCE).setQueryFilter(or(
+                        equalTo(new JsonPointer(STATE), STATE_PENDING),
+                        equalTo(new JsonPointer(STATE), STATE_CLAIMED))),
+                candidates);
+        long now = System.currentTimeMillis();
+        for (ResourceResponse candidate : candidates) {
+            if (claimed.size() >= max) {
+                break;
+            }
+            JsonValue partition = candidate.getContent();
+            String state = partition.get(STATE).asString();
+            if (STATE_CLAIMED.equals(state) && partition.get(LEASE_EXPIRY).defaultTo(0L).asLong() > now) {
+                continue;
+            }
+            if (STATE_CLAIMED.equals(state)) {
+                logger.info("Lease of node {} on reconciliation partition {} expired, reassigning",
+                        partition.get(OWNER).asString(), candidate.getId());
+            }
+            int attempts = partition.get(ATTEMPTS).defaultTo(0).asInteger() + 1;
+            if (attempts > MAX_ATTEMPTS) {
+                partition.put(STATE, STATE_FAILED);
+                partition.put(MESSAGE, "Partition not completed after " + MAX_ATTEMPTS + " attempts");
+            } else {
+                partition.put(STATE, STATE_CLAIMED);
+                partition.put(OWNER, nodeId);
+                partition.put(LEASE_EXPIRY, now + leaseMillis);
+            }
+            partition.put(ATTEMPTS, attempts);
+            try {
+                ResourceResponse updated = update(context, candidate.getId(), candidate.getRevision(), partition);
+                if (STATE_CLAIMED.equals(updated.getContent().get(STATE).asString())) {
+                    claimed.add(updated);
+                }
+            } catch (ResourceException e) {
+                if (!isConcurrentModification(e)) {
+                    throw e;
+                }
+                logger.debug("Reconciliation partition {} claimed concurrently by another node", candidate.getId());
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Renews the lease of this node on a claimed partition.
+     *
+     * @param context the context to access the repository with
+     * @param claimed the current partition record
+     * @return the updated partition record
+     * @throws ResourceException if the lease was lost to another node, the partition was removed, or the
+     * update failed
+     */
+    ResourceResponse renew(Context context, ResourceResponse claimed) throws ResourceException {
+        JsonValue partition = claimed.getContent().copy();
+        partition.put(LEASE_EXPIRY, System.currentTimeMillis() + leaseMillis);
+        return update(context, claimed.getId(), claimed.getRevision(), partition);
+    }
+
+    /**
+     * Marks a claimed partition completed, recording its results for the coordinating run.
+     *
+     * @param context the context to access the repository with
+     * @param claimed the current partition record
+     * @param statistics the statistics of the partition run
+     * @param unlinkedTargetIds the target ids handled by the partition run which did not end up linked
+     * @throws ResourceException if the lease was lost to another node, or the update failed
+     */
+    void complete(Context context, ResourceResponse claimed, Map<String, Object> statistics,
+            Collection<String> unlinkedTargetIds) throws ResourceException {
+        JsonValue partition = claimed.getContent().copy();
+        partition.put(STATE, STATE_COMPLETED);
+        partition.put(STATISTICS, statistics);
+        partition.put(UNLINKED_TARGET_IDS, new ArrayList<>(unlinkedTargetIds));
+        update(context, claimed.getId(), claimed.getRevision(), partition);
+    }
+
+    /**
+     * Releases a claimed partition after a failure, so that it can be claimed again.
+     *
+     * @param context the context to access the repository with
+     * @param claimed the current partition record
+     * @param message the reason of the failure
+     */
+    void release(Context context, ResourceResponse claimed, String message) {
+        JsonValue partition = claimed.getContent().copy();
+        partition.put(STATE, STATE_PENDING);
+        partition.put(OWNER, null);
+        partition.put(LEASE_EXPIRY, null);
+        partition.put(MESSAGE, message);
+        try {
+            update(context, claimed.getId(), claimed.getRevision(), partition);
+        } catch (ResourceException e) {
+            logger.warn("Failed to release reconciliation partition {}, it is reassigned once its lease expired",
+                    claimed.getId(), e);
+        }
+    }
+
+    /**
+     * Removes the partition records of a reconciliation run.
+     *
+     * @param context the context to access the repository with
+     * @param reconId the id of the reconciliation run
+     */
+    void delete(Context context, String reconId) {
+        try {
+            for (ResourceResponse partition : query(context, reconId)) {
+                connectionFactory.getConnection().delete(context,
+                        newDeleteRequest(partitionPath(partition.getId())).setRevision(partition.getRevision()));
+            }
+        } catch (ResourceException e) {
+            logger.warn("Failed to remove the partitions of reconciliation {}", reconId, e);
+        }
+    }
+
+    /**
+     * Waits for all partitions of a reconciliation run to be completed.
+     *
+     * @param context the context to access the repository with
+     * @param reconContext the coordinating reconciliation run
+     * @param count the number of partitions
+     * @param pollMillis the interval to check the partitions at
+     * @return the completed partition records
+     * @throws SynchronizationException if a partition failed, the records could not be read, or the
+     * run got canceled
+     * @throws InterruptedException if interrupted while waiting
+     */
+    List<JsonValue> awaitCompletion(Context context, ReconciliationContext reconContext, int count, long pollMillis)
+            throws SynchronizationException, InterruptedException {
+        while (true) {
+            reconContext.checkCanceled();
+            List<JsonValue> completed = new ArrayList<>(count);
+            try {
+                for (ResourceResponse partition : query(context, reconContext.getReconId())) {
+                    JsonValue content = partition.getContent();
+                    String state = content.get(STATE).asString();
+                    if (STATE_FAILED.equals(state)) {
+                        throw new SynchronizationException("Reconciliation partition " + partition.getId()
+                                + " failed: " + content.get(MESSAGE).asString());
+                    } else if (STATE_COMPLETED.equals(state)) {
+                        completed.add(content);
+                    }
+                }
+            } catch (ResourceException e) {
+                throw new SynchronizationException("Failed to read the reconciliation partitions", e);
+            }
+            logger.debug("{} of {} partitions of reconciliation {} completed",
+                    completed.size(), count, reconContext.getReconId());
+            if (completed.size() >= count) {
+                return completed;
+            }
+            Thread.sleep(pollMillis);
+        }
+    }
+
+    private ResourceResponse update(Context context, String partitionId, String revision, JsonValue partition)
+            throws ResourceException {
+        // The revision makes the update fail if another node changed the partition meanwhile
+        return connectionFactory.getConnection().update(context,
+                newUpdateRequest(partitionPath(partitionId), partition).setRevision(revision));
+    }
+
+    /**
+     * @param e a failure of an update
+     * @return true if the failure was caused by a concurrent update or removal of the record
+     */
+    static boolean isConcurrentModification(ResourceException e) {
+        return e.getCode() == ResourceException.CONFLICT
+                || e.getCode() == ResourceException.VERSION_MISMATCH
+                || e instanceof NotFoundException;
+    }
+}
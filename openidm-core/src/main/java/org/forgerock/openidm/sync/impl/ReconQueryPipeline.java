@@ -0,0 +1,237 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the entries of a reconciliation query over to a reconciliation phase through a bounded buffer.
+ * <p>
+ * The query runs on its own thread and blocks whenever the buffer is full, so at most {@code bufferSize}
+ * entries are held in memory regardless of the size of the queried object set. The phase consumes the
+ * entries through the {@link Iterator} interface as they arrive.
+ * <p>
+ * Failures of the query are not thrown from the iterator; the consumer is expected to call
+ * {@link #checkFailure()} once the iteration completed, and {@link #close()} in any case.
+ */
+public class ReconQueryPipeline implements Iterator<ResultEntry> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconQueryPipeline.class);
+
+    /** The default number of entries buffered between the query and the reconciliation phase */
+    static final int DEFAULT_BUFFER_SIZE = 1000;
+
+    /** How long the producer waits on a full buffer before checking whether the pipeline got closed */
+    private static final long OFFER_TIMEOUT_MS = 500;
+
+    /** Marks the end of the query results in the buffer */
+    private static final ResultEntry END_OF_RESULTS = new ResultEntry(null, null);
+
+    private final BlockingQueue<ResultEntry> buffer;
+    private final AtomicInteger produced = new AtomicInteger();
+
+    private volatile boolean closed = false;
+    private volatile SynchronizationException failure;
+    private volatile String pagingCookie;
+
+    // Consumer side state, only accessed by the iterating thread
+    private ResultEntry next;
+    private boolean exhausted = false;
+
+    /**
+     * Creates a pipeline; the producer is supplied through {@link #start(String, Runnable)}.
+     *
+     * @param bufferSize the maximum number of entries buffered at any time
+     */
+    ReconQueryPipeline(int bufferSize) {
+        buffer = new ArrayBlockingQueue<ResultEntry>(Math.max(1, bufferSize));
+    }
+
+    /**
+     * Starts the producer on a new daemon thread. The producer feeds entries using {@link #put(ResultEntry)};
+     * the end of the results is signaled automatically once it returns.
+     *
+     * @param threadName the name of the producing thread
+     * @param producer the logic executing the query
+     */
+    void start(String threadName, final Runnable producer) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    producer.run();
+                } catch (RuntimeException e) {
+                    fail(new SynchronizationException("Failure in streaming reconciliation query", e));
+                } finally {
+                    complete();
+                }
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds an entry to the buffer, blocking while the buffer is full.
+     *
+     * @param entry the entry to add
+     * @return true if the entry was accepted, false if the pipeline got closed and the producer should stop
+     */
+    boolean put(ResultEntry entry) {
+        try {
+            while (!closed) {
+                if (buffer.offer(entry, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    produced.incrementAndGet();
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new SynchronizationException("Interrupted streaming reconciliation query", e));
+        }
+        return false;
+    }
+
+    /**
+     * Records a failure of the producer. Only the first failure is kept.
+     *
+     * @param e the failure
+     */
+    void fail(SynchronizationException e) {
+        if (failure == null) {
+            failure = e;
+        } else {
+            logger.debug("Ignoring subsequent failure of streaming query", e);
+        }
+    }
+
+    /**
+     * @param pagingCookie the paging cookie returned by the query, if any
+     */
+    void setPagingCookie(String pagingCookie) {
+        this.pagingCookie = pagingCookie;
+    }
+
+    /**
+     * @return the paging cookie returned by the query, or null; only meaningful once the iteration completed
+     */
+    String getPagingCookie() {
+        return pagingCookie;
+    }
+
+    /**
+     * @return the number of entries the producer handed over so far
+     */
+    int getProduced() {
+        return produced.get();
+    }
+
+    /**
+     * Throws the failure of the producer, if any.
+     *
+     * @throws SynchronizationException if the query failed
+     */
+    void checkFailure() throws SynchronizationException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the producer and releases the buffered entries.
+     */
+    void close() {
+        closed = true;
+        buffer.clear();
+    }
+
+    private void complete() {
+        try {
+            while (!closed) {
+                if (buffer.offer(END_OF_RESULTS, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Blocks until the next entry got produced or the query completed.
+     */
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (exhausted) {
+            return false;
+        }
+        try {
+            ResultEntry entry = null;
+            while (entry == null) {
+                if (closed) {
+                    exhausted = true;
+                    return false;
+                }
+                entry = buffer.poll(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            if (entry == END_OF_RESULTS) {
+                exhausted = true;
+                return false;
+            }
+            next = entry;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new SynchronizationException("Interrupted while waiting on streaming reconciliation query", e));
+            exhausted = true;
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ResultEntry entry = next;
+        next = null;
+        return entry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
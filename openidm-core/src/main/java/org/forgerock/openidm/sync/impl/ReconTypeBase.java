@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2014-2015 ForgeRock AS.
+ * Portions copyright 2014-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -26,6 +26,7 @@ import java.util.LinkedList;
 
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.JsonValueException;
+import org.forgerock.json.resource.ConnectionFactory;
 import org.forgerock.json.resource.QueryRequest;
 import org.forgerock.json.resource.QueryResourceHandler;
 import org.forgerock.json.resource.QueryResponse;
@@ -33,6 +34,7 @@ import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.openidm.core.ServerConstants;
 import org.forgerock.openidm.util.RequestUtil;
+import org.forgerock.services.context.Context;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,8 +90,21 @@ public abstract class ReconTypeBase implements ReconTypeHandler {
      * @param defaultRunTargetPhase a boolean indicating if target phase should be run.
      */
     public ReconTypeBase(ReconciliationContext reconContext, boolean defaultRunTargetPhase) {
+        this(reconContext, defaultRunTargetPhase, false);
+    }
+
+    /**
+     * A constructor.
+     *
+     * @param reconContext a {@link RconciliationContext} object.
+     * @param defaultRunTargetPhase a boolean indicating if target phase should be run.
+     * @param defaultAllowEmptySourceSet a boolean indicating if an empty source set is allowed.
+     */
+    protected ReconTypeBase(ReconciliationContext reconContext, boolean defaultRunTargetPhase,
+            boolean defaultAllowEmptySourceSet) {
         this.reconContext = reconContext;
-        this.allowEmptySourceSet = calcEffectiveConfig("allowEmptySourceSet").defaultTo(false).asBoolean();
+        this.allowEmptySourceSet = calcEffectiveConfig("allowEmptySourceSet")
+                .defaultTo(defaultAllowEmptySourceSet).asBoolean();
         logger.debug("allowEmptySourceSet: {}", allowEmptySourceSet);
         this.runTargetPhase = calcEffectiveConfig("runTargetPhase").defaultTo(defaultRunTargetPhase).asBoolean();
         logger.debug("runTargetPhase: {}", runTargetPhase);
@@ -116,6 +131,33 @@ public abstract class ReconTypeBase implements ReconTypeHandler {
         return allowEmptySourceSet;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isChangesOnly() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reconSucceeded(Context context) {
+        // nothing to record by default
+    }
+
+    /**
+     * Called with each resource returned by a source or target query, before its id is passed on.
+     * Called on the query thread if streaming.
+     *
+     * @param resource the resource returned by the query
+     * @param querySide whether the query is on the source or target side of the reconciliation
+     */
+    protected void queried(ResourceResponse resource, QuerySide querySide) {
+        // nothing to track by default
+    }
+
     /**
      * Calculate the effective configuration for the given configuration property
      * Properties passed with the request body are given precedence, they override the default configuration
@@ -229,6 +271,7 @@ public abstract class ReconTypeBase implements ReconTypeHandler {
             					logger.warn("Resource {} id is null!", resource);
             				}
             				else {
+            					queried(resource, querySide);
             					if (fullEntriesDetected == false && hasFullEntry(resource.getContent(), querySide)) {
             						fullEntriesDetected = true;
             						logger.debug("Detected full entries in query");
@@ -258,6 +301,69 @@ public abstract class ReconTypeBase implements ReconTypeHandler {
         return reconQueryResult;
     }
     
+    /**
+     * Execute the specified query, streaming its results through a bounded {@link ReconQueryPipeline}
+     * rather than collecting them in memory. The query runs on a separate thread, using the context
+     * of the calling thread.
+     *
+     * @param objectSet the object set to query
+     * @param query the query parameters
+     * @param caseSensitive whether the ids should be passed on in case sensitive fashion,
+     * or if false as lower case only
+     * @param querySide an indicator for which side of a reconciliation (source or target) a query is for
+     * @param bufferSize the maximum number of entries to buffer
+     * @return the {@link ReconQueryPipeline} to iterate over the query results
+     * @throws SynchronizationException if the query could not be started
+     */
+    protected ReconQueryPipeline stream(final String objectSet, final JsonValue query, final boolean caseSensitive,
+            final QuerySide querySide, int bufferSize) throws SynchronizationException {
+        final QueryRequest request;
+        try {
+            request = RequestUtil.buildQueryRequestFromParameterMap(objectSet, query.asMap());
+        } catch (JsonValueException jve) {
+            throw new SynchronizationException(jve);
+        } catch (ResourceException ose) {
+            throw new SynchronizationException(ose);
+        }
+        final Context context = reconContext.getService().getContext();
+        final ConnectionFactory connectionFactory = reconContext.getService().getConnectionFactory();
+        final ReconQueryPipeline pipeline = new ReconQueryPipeline(bufferSize);
+        pipeline.start("recon-" + querySide.name().toLowerCase() + "-query-" + reconContext.getReconId(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            QueryResponse queryResponse = connectionFactory.getConnection().query(context, request,
+                                    new QueryResourceHandler() {
+                                        private boolean fullEntriesDetected = false;
+
+                                        @Override
+                                        public boolean handleResource(ResourceResponse resource) {
+                                            if (resource.getId() == null) {
+                                                logger.warn("Resource {} id is null!", resource);
+                                                return true;
+                                            }
+                                            queried(resource, querySide);
+                                            if (!fullEntriesDetected && hasFullEntry(resource.getContent(), querySide)) {
+                                                fullEntriesDetected = true;
+                                                logger.debug("Detected full entries in query");
+                                            }
+                                            String id = caseSensitive
+                                                    ? resource.getId()
+                                                    : reconContext.getObjectMapping().getLinkType().normalizeId(resource.getId());
+                                            return pipeline.put(
+                                                    new ResultEntry(id, fullEntriesDetected ? resource.getContent() : null));
+                                        }
+                                    });
+                            pipeline.setPagingCookie(queryResponse.getPagedResultsCookie());
+                        } catch (ResourceException e) {
+                            pipeline.fail(new SynchronizationException(e));
+                        }
+                    }
+                });
+        return pipeline;
+    }
+
     /**
      * Whether the query (source or target side query of a reconciliation)
      * returns full entry data, or just ids
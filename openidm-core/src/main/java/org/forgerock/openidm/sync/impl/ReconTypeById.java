@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2013-2015 ForgeRock AS.
+ * Portions copyright 2013-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -20,7 +20,6 @@ import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import org.forgerock.json.JsonValue;
@@ -85,13 +84,44 @@ public class ReconTypeById extends ReconTypeBase {
         return query(targetQuery.get("resourceName").asString(), 
                 targetQuery, 
                 reconContext,
-                Collections.synchronizedList(new ArrayList<String>()), 
+                new CompactIdSet(),
                 reconContext.getObjectMapping().getLinkType().isTargetCaseSensitive(), 
                 QuerySide.TARGET,
                 0,
                 null).getResultIterable();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryPipeline streamSource(int bufferSize) {
+        final ReconQueryPipeline pipeline = new ReconQueryPipeline(bufferSize);
+        pipeline.start("recon-source-ids-" + reconContext.getReconId(), new Runnable() {
+            @Override
+            public void run() {
+                for (String id : sourceIds) {
+                    if (!pipeline.put(new ResultEntry(id, null))) {
+                        return;
+                    }
+                }
+            }
+        });
+        return pipeline;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryPipeline streamTarget(int bufferSize) throws SynchronizationException {
+        return stream(targetQuery.get("resourceName").asString(),
+                targetQuery,
+                reconContext.getObjectMapping().getLinkType().isTargetCaseSensitive(),
+                QuerySide.TARGET,
+                bufferSize);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2013-2015 ForgeRock AS.
+ * Portions copyright 2013-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -19,9 +19,6 @@ import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 
-import java.util.Collections;
-import java.util.LinkedHashSet;
-
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.BadRequestException;
 
@@ -67,7 +64,7 @@ public class ReconTypeByQuery extends ReconTypeBase {
         return query(sourceQuery.get("resourceName").asString(), 
                 sourceQuery, 
                 reconContext, 
-                Collections.synchronizedSet(new LinkedHashSet<String>()), 
+                new CompactIdSet(),
                 true, 
                 QuerySide.SOURCE,
                 pageSize,
@@ -80,12 +77,30 @@ public class ReconTypeByQuery extends ReconTypeBase {
     @Override
     public ResultIterable queryTarget() throws SynchronizationException {
         return query(targetQuery.get("resourceName").asString(), targetQuery, reconContext,
-                Collections.synchronizedSet(new LinkedHashSet<String>()), 
+                new CompactIdSet(),
                 reconContext.getObjectMapping().getLinkType().isTargetCaseSensitive(), QuerySide.TARGET,
                 0, null
         ).getResultIterable();                
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryPipeline streamSource(int bufferSize) throws SynchronizationException {
+        return stream(sourceQuery.get("resourceName").asString(), sourceQuery, true, QuerySide.SOURCE, bufferSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryPipeline streamTarget(int bufferSize) throws SynchronizationException {
+        return stream(targetQuery.get("resourceName").asString(), targetQuery,
+                reconContext.getObjectMapping().getLinkType().isTargetCaseSensitive(), QuerySide.TARGET,
+                bufferSize);
+    }
+
     /**
      * {@inheritDoc}
      */
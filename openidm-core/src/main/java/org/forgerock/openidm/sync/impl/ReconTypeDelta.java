@@ -0,0 +1,316 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.QueryRequest.FIELD_QUERY_FILTER;
+import static org.forgerock.json.resource.http.HttpUtils.PARAM_QUERY_FILTER;
+import static org.forgerock.openidm.util.RequestUtil.hasQueryExpression;
+import static org.forgerock.openidm.util.RequestUtil.hasQueryId;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.QueryFilters;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.audit.util.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.query.QueryFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Represents an incremental reconciliation of the source objects changed since the last successful delta
+ * reconciliation of the mapping, as told by a change property of the source objects such as a modification
+ * timestamp.
+ * <p>
+ * The source query filter is restricted to objects whose change property is greater than or equal to the
+ * watermark of the last successful run; the first run reconciles all objects. The new watermark is the greatest
+ * value of the change property returned by the query, so the query has to return the property. It is only
+ * recorded if the run succeeded without failed entries, so that failed entries are reconciled again.
+ * <p>
+ * The target phase does not run by default. If enabled, and a target change property is configured, the
+ * target query is restricted the same way, so only changed targets not handled by the source phase are
+ * reconciled.
+ * <p>
+ * As the queries only return changed objects, the existence of other objects is checked by reading them
+ * rather than against the queried ids.
+ */
+public class ReconTypeDelta extends ReconTypeBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconTypeDelta.class);
+
+    /**
+     *  Defaulting to NOT run target phase
+     */
+    static final boolean DEFAULT_RUN_TARGET_PHASE = false;
+
+    /** The configuration of the delta reconciliation */
+    static final String CONFIG_DELTA_RECON = "deltaRecon";
+    /** The change property of the source objects */
+    static final String CONFIG_SOURCE_PROPERTY = "sourceProperty";
+    /** The change property of the target objects, if the target phase is restricted to changed targets */
+    static final String CONFIG_TARGET_PROPERTY = "targetProperty";
+    /** How change property values compare, as {@link WatermarkType} */
+    static final String CONFIG_WATERMARK_TYPE = "watermarkType";
+
+    /**
+     * How the values of change properties compare.
+     */
+    enum WatermarkType {
+        /** As strings, such as ISO 8601 or LDAP generalized time timestamps in one time zone */
+        string,
+        /** As numbers, such as epoch milliseconds or numeric revisions */
+        number
+    }
+
+    private final String sourceProperty;
+    private final String targetProperty;
+    private final WatermarkType watermarkType;
+
+    /** The watermarks of the last successful run */
+    private final Object sourceWatermark;
+    private final Object targetWatermark;
+
+    /** The greatest change property values queried by this run, guarded by this */
+    private Object newSourceWatermark;
+    private Object newTargetWatermark;
+
+    /**
+     * A {@link JsonValue} representing the source query, restricted to changed objects.
+     */
+    final JsonValue sourceQuery;
+
+    /**
+     * A {@link JsonValue} representing the target query. Only used if target phase is enabled.
+     */
+    final JsonValue targetQuery;
+
+    /**
+     * A constructor.
+     *
+     * @param reconContext a {@link ReconciliationContext} object.
+     * @throws BadRequestException if the delta reconciliation is not configured, or its queries are not
+     * query filters
+     */
+    public ReconTypeDelta(ReconciliationContext reconContext) throws BadRequestException {
+        super(reconContext, DEFAULT_RUN_TARGET_PHASE, true);
+
+        JsonValue deltaConfig = calcEffectiveConfig(CONFIG_DELTA_RECON);
+        if (!deltaConfig.isMap() || deltaConfig.get(CONFIG_SOURCE_PROPERTY).isNull()) {
+            throw new BadRequestException("Action reconDelta requires the mapping to configure "
+                    + CONFIG_DELTA_RECON + "/" + CONFIG_SOURCE_PROPERTY);
+        }
+        sourceProperty = deltaConfig.get(CONFIG_SOURCE_PROPERTY).asString();
+        targetProperty = deltaConfig.get(CONFIG_TARGET_PROPERTY).asString();
+        watermarkType = deltaConfig.get(CONFIG_WATERMARK_TYPE).defaultTo(WatermarkType.string.name())
+                .asEnum(WatermarkType.class);
+
+        JsonValue watermarks;
+        try {
+            watermarks = reconContext.getService().getReconWatermarks()
+                    .read(reconContext.getService().getContext(), reconContext.getMapping());
+        } catch (ResourceException e) {
+            throw new BadRequestException("Failed to read the watermarks of mapping "
+                    + reconContext.getMapping() + ": " + e.getMessage(), e);
+        }
+        sourceWatermark = watermarks != null ? watermarks.get(ReconWatermarks.SOURCE).getObject() : null;
+        targetWatermark = watermarks != null && targetProperty != null
+                ? watermarks.get(ReconWatermarks.TARGET).getObject()
+                : null;
+        newSourceWatermark = sourceWatermark;
+        newTargetWatermark = targetWatermark;
+        logger.debug("Delta reconciliation of changes since source watermark {} and target watermark {}",
+                sourceWatermark, targetWatermark);
+
+        sourceQuery = calcChangesQuery("sourceQuery", reconContext.getObjectMapping().getSourceObjectSet(),
+                sourceProperty, sourceWatermark);
+        targetQuery = targetProperty != null
+                ? calcChangesQuery("targetQuery", reconContext.getObjectMapping().getTargetObjectSet(),
+                        targetProperty, targetWatermark)
+                : calcEffectiveQuery("targetQuery", reconContext.getObjectMapping().getTargetObjectSet());
+    }
+
+    /**
+     * Calculates the effective query restricted to the objects changed since the watermark.
+     *
+     * @param queryConfigPropertyName The property name in the configuration for this query
+     * @param mappingResource the resource name in the mapping that this query relates to
+     * @param changeProperty the change property of the objects
+     * @param watermark the watermark of the last successful run, or null to query all objects
+     * @return the effective query
+     * @throws BadRequestException if the configured query is not a query filter
+     */
+    private JsonValue calcChangesQuery(String queryConfigPropertyName, String mappingResource,
+            String changeProperty, Object watermark) throws BadRequestException {
+        JsonValue queryCfg = calcEffectiveConfig(queryConfigPropertyName);
+        queryCfg = queryCfg.isNull()
+                ? new JsonValue(new LinkedHashMap<String, Object>())
+                : queryCfg.copy();
+        if (hasQueryId(queryCfg) || hasQueryExpression(queryCfg)) {
+            throw new BadRequestException("Action reconDelta requires the " + queryConfigPropertyName
+                    + " to be a query filter");
+        }
+        if (!queryCfg.isDefined("resourceName")) {
+            queryCfg.put("resourceName", mappingResource);
+        }
+        JsonValue configuredFilter = queryCfg.get(PARAM_QUERY_FILTER)
+                .defaultTo(queryCfg.get(FIELD_QUERY_FILTER).getObject());
+        queryCfg.remove(PARAM_QUERY_FILTER);
+        queryCfg.remove(FIELD_QUERY_FILTER);
+        QueryFilter<JsonPointer> filter = null;
+        if (!configuredFilter.isNull()) {
+            try {
+                filter = QueryFilters.parse(configuredFilter.asString());
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Invalid " + queryConfigPropertyName + " filter: " + e.getMessage(), e);
+            }
+        }
+        if (watermark != null) {
+            QueryFilter<JsonPointer> changes = QueryFilter.greaterThanOrEqualTo(
+                    new JsonPointer(changeProperty), watermark);
+            filter = filter == null
+                    ? changes
+                    : QueryFilter.and(Arrays.asList(filter, changes));
+        }
+        queryCfg.put(FIELD_QUERY_FILTER, filter == null ? "true" : filter.toString());
+        logger.debug("Effective changes query for {}: {}", queryConfigPropertyName, queryCfg);
+        return queryCfg;
+    }
+
+    /**
+     * Tracks the greatest change property value returned by the queries.
+     */
+    @Override
+    protected synchronized void queried(ResourceResponse resource, QuerySide querySide) {
+        if (querySide == QuerySide.SOURCE) {
+            newSourceWatermark = max(newSourceWatermark, resource.getContent().get(sourceProperty).getObject());
+        } else if (targetProperty != null) {
+            newTargetWatermark = max(newTargetWatermark, resource.getContent().get(targetProperty).getObject());
+        }
+    }
+
+    private Object max(Object watermark, Object value) {
+        if (value == null) {
+            return watermark;
+        }
+        if (watermark == null) {
+            return value;
+        }
+        switch (watermarkType) {
+        case number:
+            return value instanceof Number && watermark instanceof Number
+                    && ((Number) value).doubleValue() > ((Number) watermark).doubleValue()
+                    ? value
+                    : watermark;
+        default:
+            return value.toString().compareTo(watermark.toString()) > 0 ? value : watermark;
+        }
+    }
+
+    /**
+     * Records the watermarks of this run, unless entries failed.
+     */
+    @Override
+    public void reconSucceeded(Context context) {
+        int failures = reconContext.getStatistics().getStatusCount(Status.FAILURE);
+        if (failures > 0) {
+            logger.info("Not advancing the watermarks of mapping {} as {} entries of reconciliation {} failed",
+                    new Object[] { reconContext.getMapping(), failures, reconContext.getReconId() });
+            return;
+        }
+        Object source;
+        Object target;
+        synchronized (this) {
+            source = newSourceWatermark;
+            target = newTargetWatermark;
+        }
+        reconContext.getService().getReconWatermarks().save(context, reconContext.getMapping(),
+                reconContext.getReconId(), source, target);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isChangesOnly() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryResult querySource(int pageSize, String pagingCookie) throws SynchronizationException {
+        return query(sourceQuery.get("resourceName").asString(),
+                sourceQuery,
+                reconContext,
+                new CompactIdSet(),
+                true,
+                QuerySide.SOURCE,
+                pageSize,
+                pagingCookie);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ResultIterable queryTarget() throws SynchronizationException {
+        return query(targetQuery.get("resourceName").asString(), targetQuery, reconContext,
+                new CompactIdSet(),
+                reconContext.getObjectMapping().getLinkType().isTargetCaseSensitive(), QuerySide.TARGET,
+                0, null
+        ).getResultIterable();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryPipeline streamSource(int bufferSize) throws SynchronizationException {
+        return stream(sourceQuery.get("resourceName").asString(), sourceQuery, true, QuerySide.SOURCE, bufferSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ReconQueryPipeline streamTarget(int bufferSize) throws SynchronizationException {
+        return stream(targetQuery.get("resourceName").asString(), targetQuery,
+                reconContext.getObjectMapping().getLinkType().isTargetCaseSensitive(), QuerySide.TARGET,
+                bufferSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JsonValue getReconParameters() {
+        return json(object(
+                field("sourceQuery", sourceQuery.getObject()),
+                field("targetQuery", targetQuery.getObject()),
+                field("sourceWatermark", sourceWatermark),
+                field("targetWatermark", targetWatermark)
+        ));
+    }
+}
@@ -11,11 +11,12 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2013-2015 ForgeRock AS.
+ * Portions copyright 2013-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
 import org.forgerock.json.JsonValue;
+import org.forgerock.services.context.Context;
 
 /**
  * An interface for handling different recon types
@@ -39,6 +40,26 @@ public interface ReconTypeHandler {
      * @throws SynchronizationException
      */
     ResultIterable queryTarget() throws SynchronizationException;
+
+    /**
+     * Starts a source query streaming its results through a bounded buffer, rather than collecting
+     * all results up front. Duplicate entries are not detected when streaming.
+     *
+     * @param bufferSize the maximum number of entries to buffer
+     * @return a {@link ReconQueryPipeline} to iterate over the query results
+     * @throws SynchronizationException if the query could not be started
+     */
+    ReconQueryPipeline streamSource(int bufferSize) throws SynchronizationException;
+
+    /**
+     * Starts a target query streaming its results through a bounded buffer, rather than collecting
+     * all results up front. Duplicate entries are not detected when streaming.
+     *
+     * @param bufferSize the maximum number of entries to buffer
+     * @return a {@link ReconQueryPipeline} to iterate over the query results
+     * @throws SynchronizationException if the query could not be started
+     */
+    ReconQueryPipeline streamTarget(int bufferSize) throws SynchronizationException;
     
     /**
      * Returns a boolean indicating if the target phase should be executed for this recon.
@@ -54,6 +75,23 @@ public interface ReconTypeHandler {
      */
     boolean allowEmptySourceSet();
 
+    /**
+     * Returns whether the source and target queries only return the objects changed since a previous
+     * reconciliation, rather than all objects in the scope of the recon. If so, objects not returned by the
+     * queries can not be considered missing.
+     *
+     * @return true if the queries only return changed objects, false if they return all objects in scope
+     */
+    boolean isChangesOnly();
+
+    /**
+     * Called once the reconciliation completed successfully, to record any state subsequent reconciliations
+     * depend on.
+     *
+     * @param context the context of the reconciliation
+     */
+    void reconSucceeded(Context context);
+
     /**
      * Returns a {@link JsonValue} object containing parameters concerning source and target selection.
      * 
@@ -0,0 +1,113 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+import static org.forgerock.json.resource.Requests.newReadRequest;
+import static org.forgerock.json.resource.Requests.newUpdateRequest;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.NotFoundException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.services.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists the high-watermarks of delta reconciliations in the repository, one record per mapping.
+ * <p>
+ * A high-watermark is the greatest value of the change property (such as a modification timestamp) of the
+ * objects a successful delta reconciliation of the mapping processed. The next delta reconciliation of the
+ * mapping only queries the objects whose change property is not lower.
+ */
+class ReconWatermarks {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReconWatermarks.class);
+
+    /** The repository container of the watermark records */
+    static final String WATERMARKS_RESOURCE = "repo/cluster/reconwatermarks";
+
+    static final String MAPPING = "mapping";
+    static final String RECON_ID = "reconId";
+    static final String SOURCE = "source";
+    static final String TARGET = "target";
+    static final String TIMESTAMP = "timestamp";
+
+    private final ConnectionFactory connectionFactory;
+
+    /**
+     * @param connectionFactory the connection factory to access the repository with
+     */
+    ReconWatermarks(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    private static String watermarkPath(String mapping) {
+        return WATERMARKS_RESOURCE + "/" + mapping;
+    }
+
+    /**
+     * @param context the context to access the repository with
+     * @param mapping the name of the mapping
+     * @return the watermarks of the last successful delta reconciliation of the mapping, or null if it has none
+     * @throws ResourceException if reading the watermarks failed
+     */
+    JsonValue read(Context context, String mapping) throws ResourceException {
+        try {
+            return connectionFactory.getConnection().read(context, newReadRequest(watermarkPath(mapping)))
+                    .getContent();
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the watermarks of a successful delta reconciliation of a mapping, replacing the previous ones.
+     * Failing to record the watermarks does not fail the run, but is logged; the next run then starts from
+     * the previous watermarks.
+     *
+     * @param context the context to access the repository with
+     * @param mapping the name of the mapping
+     * @param reconId the id of the reconciliation run
+     * @param source the source watermark, or null if none
+     * @param target the target watermark, or null if none
+     */
+    void save(Context context, String mapping, String reconId, Object source, Object target) {
+        JsonValue watermarks = json(object(
+                field(MAPPING, mapping),
+                field(RECON_ID, reconId),
+                field(SOURCE, source),
+                field(TARGET, target),
+                field(TIMESTAMP, System.currentTimeMillis())));
+        try {
+            try {
+                connectionFactory.getConnection().update(context,
+                        newUpdateRequest(watermarkPath(mapping), watermarks));
+            } catch (NotFoundException e) {
+                connectionFactory.getConnection().create(context,
+                        newCreateRequest(WATERMARKS_RESOURCE, mapping, watermarks));
+            }
+            logger.debug("Recorded watermarks {} and {} of mapping {} by reconciliation {}",
+                    new Object[] { source, target, mapping, reconId });
+        } catch (ResourceException e) {
+            logger.warn("Failed to record the watermarks of mapping {} by reconciliation {}", mapping, reconId, e);
+        }
+    }
+}
@@ -11,19 +11,25 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2011-2015 ForgeRock AS.
+ * Portions copyright 2011-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
 import java.util.Collection;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.forgerock.services.context.Context;
 import org.forgerock.json.JsonValue;
@@ -47,6 +53,21 @@ public class ReconciliationContext {
     /** The overriding configuration */
     private JsonValue overridingConfig;
 
+    /** The recon parameter requesting an analysis, which only assesses situations */
+    static final String PARAM_ANALYZE = "analyze";
+
+    /** The recon parameter for the number of ids an analysis keeps per situation */
+    static final String PARAM_SAMPLE_SIZE = "sampleSize";
+
+    /** The number of ids an analysis keeps per situation by default */
+    private static final int DEFAULT_SAMPLE_SIZE = 10;
+
+    /** Whether this run only assesses the situations, without determining nor performing actions */
+    private final boolean analysis;
+
+    /** The number of ids an analysis keeps per situation */
+    private final int analysisSampleSize;
+
     private ReconStage stage = ReconStage.ACTIVE_INITIALIZED;
     private String reconId;
 
@@ -55,21 +76,48 @@ public class ReconciliationContext {
     private final ReconciliationStatistic reconStat;
     private ExecutorService executor;
 
+    // If set, the partition of a distributed reconciliation this run reconciles
+    private final ReconPartition partition;
+
+    // If set, the checkpoint this run resumes from
+    private JsonValue resumeCheckpoint;
+
+    // Correlation results resolved in batches, by link qualifier and source id, until taken by the sync operation
+    private final ConcurrentMap<String, Map<String, JsonValue>> correlatedTargets =
+            new ConcurrentHashMap<String, Map<String, JsonValue>>();
+
+    // Target objects of linked source entries read in batches, by normalized target id, until taken by the
+    // sync operation
+    private final ConcurrentMap<String, JsonValue> prefetchedTargets = new ConcurrentHashMap<String, JsonValue>();
+
     // If set, the list of all queried source Ids
     private Set<String> sourceIds;
 
-    // If set, the map of all queried target Ids to optional preloaded value 
-    private Map<String, JsonValue> targets;
-    // Whether the targets map contains preloaded values
+    // If set, the set of all queried target Ids
+    private Set<String> targetIds;
+    // If set, the map of queried target Ids to their preloaded value
+    private Map<String, JsonValue> targetValues;
+    // Whether the targets contain preloaded values
     private boolean hasTargetsValues;
+    // If set, the permits limiting the concurrent connector requests of the tasks
+    private final Semaphore connectorPermits;
+
+    // If set, the limit of tasks in flight adapting to the task latency, rather than the fixed feed size
+    private final AdaptiveFeedLimit feedLimit;
+
+    // If set, the buffer writing the links of the tasks in batches
+    private final LinkBuffer linkBuffer;
+
+    // If set, the counts of the audit events of this run published by the audit queue of the mapping
+    private volatile SyncAuditQueue.Counts auditCounts;
+
+    // If set, the index of the preloaded target values to correlate with
+    private TargetCorrelationIndex correlationIndex;
     
     private Integer totalSourceEntries;
     private Integer totalTargetEntries;
     private Integer totalLinkEntries;
 
-    // Marker value for nulls to use in maps without null value support
-    private final static JsonValue NULL_MARKER = new JsonValue(null);
-    
     /**
      * Creates the instance with info from the current call context
      * @param reconAction the recon action
@@ -85,10 +133,40 @@ public class ReconciliationContext {
             JsonValue overridingConfig,
             ReconciliationService service)
         throws BadRequestException {
+        this(reconAction, mapping, callingContext.getId(), reconParams, overridingConfig, service, null);
+    }
+
+    /**
+     * Creates the instance for a partition of a distributed reconciliation run
+     * @param reconAction the recon action
+     * @param mapping the mapping configuration
+     * @param reconId the id of the reconciliation run
+     * @param reconParams configuration options for the recon
+     * @param partition the partition of the source ids to reconcile, or null to reconcile all
+     */
+    ReconciliationContext(
+            ReconciliationService.ReconAction reconAction,
+            ObjectMapping mapping,
+            String reconId,
+            JsonValue reconParams,
+            JsonValue overridingConfig,
+            ReconciliationService service,
+            ReconPartition partition)
+        throws BadRequestException {
 
         this.reconAction = reconAction;
         this.mapping = mapping;
-        this.reconId = callingContext.getId();
+        this.reconId = reconId;
+        this.partition = partition;
+        JsonValue analyze = reconParams != null ? reconParams.get(PARAM_ANALYZE) : new JsonValue(null);
+        this.analysis = analyze.isBoolean() ? analyze.asBoolean() : Boolean.parseBoolean(analyze.asString());
+        JsonValue sampleSize = reconParams != null ? reconParams.get(PARAM_SAMPLE_SIZE) : new JsonValue(null);
+        try {
+            this.analysisSampleSize = sampleSize.isNull() ? DEFAULT_SAMPLE_SIZE
+                    : sampleSize.isNumber() ? sampleSize.asInteger() : Integer.parseInt(sampleSize.asString());
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Invalid " + PARAM_SAMPLE_SIZE + ": " + sampleSize.asString());
+        }
         this.reconStat = new ReconciliationStatistic(this);
         this.reconParams = reconParams;
         this.overridingConfig = overridingConfig;
@@ -98,11 +176,43 @@ public class ReconciliationContext {
 
         // Initialize the executor for this recon, or null if no executor should be used
         int noOfThreads = mapping.getTaskThreads();
-        if (noOfThreads > 0) {
-            executor = Executors.newFixedThreadPool(noOfThreads);
-        } else {
+        if (noOfThreads <= 0) {
             executor = null;
+        } else if (mapping.getTaskExecutor() == ObjectMapping.TaskExecutorType.elastic) {
+            // The number of threads is bounded by the tasks in flight
+            executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), newTaskThreadFactory(mapping.getTaskThreadStackSize()));
+        } else {
+            executor = Executors.newFixedThreadPool(noOfThreads);
         }
+        connectorPermits = mapping.getConnectorConcurrency() > 0
+                ? new Semaphore(mapping.getConnectorConcurrency())
+                : null;
+        feedLimit = executor != null && mapping.isAdaptiveFeedSize()
+                ? new AdaptiveFeedLimit(Math.min(mapping.getMinFeedSize(), mapping.getFeedSize()),
+                        mapping.getFeedSize(), mapping.getFeedLatencyTolerance())
+                : null;
+        linkBuffer = mapping.getReconLinkBatchSize() > 1
+                ? new LinkBuffer(mapping.getConnectionFactory(), mapping.getReconLinkBatchSize())
+                : null;
+    }
+
+    /**
+     * @param stackSize the stack size of the threads in bytes, or 0 for the default stack size
+     * @return the factory of the elastic executor threads of this recon
+     */
+    private ThreadFactory newTaskThreadFactory(final long stackSize) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(null, runnable,
+                        "recon-" + reconId + "-task-" + count.incrementAndGet(), stackSize);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
     }
 
     /**
@@ -116,6 +226,8 @@ public class ReconciliationContext {
             return new ReconTypeByQuery(this);
         case reconById :
             return new ReconTypeById(this);
+        case reconDelta :
+            return new ReconTypeDelta(this);
         default:
             throw new BadRequestException("Unknown action " + reconAction.toString());
         }
@@ -128,6 +240,21 @@ public class ReconciliationContext {
         return reconAction;
     }
     
+    /**
+     * @return true if this run only assesses the situations, to report how many entries are in each, without
+     * determining nor performing any action
+     */
+    public boolean isAnalysis() {
+        return analysis;
+    }
+
+    /**
+     * @return the number of ids an analysis keeps per situation
+     */
+    int getAnalysisSampleSize() {
+        return analysisSampleSize;
+    }
+
     /**
      * @return A unique identifier for the reconciliation run
      */
@@ -272,9 +399,113 @@ public class ReconciliationContext {
      */
     ReconQueryResult querySourceIter(int pageSize, String pagingCookie) throws SynchronizationException {
         ReconQueryResult result = getReconHandler().querySource(pageSize, pagingCookie);
-        setSourceIds(result.getAllIds());
+        if (partition != null) {
+            Collection<String> partitionIds = new CompactIdSet();
+            for (String id : result.getAllIds()) {
+                if (partition.includes(id)) {
+                    partitionIds.add(id);
+                }
+            }
+            result.setResultIterable(result.getResultIterable().removeNotMatchingEntries(partitionIds));
+        }
+        if (getReconHandler().isChangesOnly()) {
+            // Only changed sources are queried, other sources are not missing
+            setTotalSourceEntries(result.getAllIds().size());
+        } else {
+            setSourceIds(result.getAllIds());
+        }
         return result;
     }
+
+    /**
+     * @return the partition of a distributed reconciliation this run reconciles, or null if it
+     * reconciles the whole source scope
+     */
+    ReconPartition getPartition() {
+        return partition;
+    }
+
+    /**
+     * @param resumeCheckpoint the checkpoint of a failed or canceled run this run resumes from
+     */
+    void setResumeCheckpoint(JsonValue resumeCheckpoint) {
+        this.resumeCheckpoint = resumeCheckpoint;
+    }
+
+    /**
+     * @return the checkpoint of a failed or canceled run this run resumes from, or null if it does not
+     * resume a run
+     */
+    JsonValue getResumeCheckpoint() {
+        return resumeCheckpoint;
+    }
+
+    /**
+     * @param linkQualifier the link qualifier the source objects were correlated for
+     * @param results the correlation results by source id, resolved in a batch
+     */
+    void addCorrelatedTargets(String linkQualifier, Map<String, JsonValue> results) {
+        Map<String, JsonValue> byQualifier = correlatedTargets.get(linkQualifier);
+        if (byQualifier == null) {
+            correlatedTargets.putIfAbsent(linkQualifier, new ConcurrentHashMap<String, JsonValue>());
+            byQualifier = correlatedTargets.get(linkQualifier);
+        }
+        byQualifier.putAll(results);
+    }
+
+    /**
+     * Takes the correlation result of a source object, if it was resolved in a batch.
+     *
+     * @param linkQualifier the link qualifier to correlate for
+     * @param sourceId the id of the source object
+     * @return the correlation result, or null if not resolved in a batch
+     */
+    JsonValue takeCorrelatedTargets(String linkQualifier, String sourceId) {
+        Map<String, JsonValue> byQualifier = correlatedTargets.get(linkQualifier);
+        return byQualifier == null || sourceId == null ? null : byQualifier.remove(sourceId);
+    }
+
+    /**
+     * @param targets the target objects read in a batch, by normalized target id
+     */
+    void addPrefetchedTargets(Map<String, JsonValue> targets) {
+        prefetchedTargets.putAll(targets);
+    }
+
+    /**
+     * Takes a target object, if it was read in a batch.
+     *
+     * @param targetId the normalized target id
+     * @return the target object, or null if not read in a batch
+     */
+    JsonValue takePrefetchedTarget(String targetId) {
+        return targetId == null ? null : prefetchedTargets.remove(targetId);
+    }
+
+    /**
+     * Evicts the target objects read in a batch that were not taken, once the source entries of the batch
+     * have been processed.
+     *
+     * @param targetIds the normalized ids of the target objects read in the batch
+     */
+    void evictPrefetchedTargets(Collection<String> targetIds) {
+        prefetchedTargets.keySet().removeAll(targetIds);
+    }
+
+    /**
+     * @return true if this run may reconcile an empty source set; a partition may legitimately be empty
+     */
+    boolean allowEmptySourceSet() {
+        return partition != null || reconTypeHandler.allowEmptySourceSet();
+    }
+
+    /**
+     * @return true if the target phase should run; partitions only run the source phase, the target
+     * phase is run once by the coordinating run
+     */
+    boolean isRunTargetPhase() {
+        return partition == null && reconTypeHandler.isRunTargetPhase();
+    }
     
     /**
      * Query (and cache if necessary) targets to reconcile
@@ -283,17 +514,39 @@ public class ReconciliationContext {
      */
     ResultIterable queryTarget() throws SynchronizationException {
         ResultIterable result = getReconHandler().queryTarget();
-        setTargets(result);
+        if (getReconHandler().isChangesOnly()) {
+            // Only changed targets are queried, other targets are not missing
+            setTotalTargetEntries(result.getAllIds().size());
+        } else {
+            setTargets(result);
+        }
         return result;
     }
 
+    /**
+     * @param totalSourceEntries the number of source entries in the reconciliation scope, if the
+     * source ids are not kept by this context
+     */
+    void setTotalSourceEntries(int totalSourceEntries) {
+        this.totalSourceEntries = Integer.valueOf(totalSourceEntries);
+    }
+
+    /**
+     * @param totalTargetEntries the number of target entries in the reconciliation scope, if the
+     * target ids are not kept by this context
+     */
+    void setTotalTargetEntries(int totalTargetEntries) {
+        this.totalTargetEntries = Integer.valueOf(totalTargetEntries);
+    }
+
     /**
      * @param sourceIds the list of all source object ids in the reconciliation scope
      */
     void setSourceIds(Collection<String> sourceIds) {
         // Choose a hash based collection as we need fast "contains" handling
-        this.sourceIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
-        this.sourceIds.addAll(sourceIds);
+        this.sourceIds = sourceIds instanceof CompactIdSet
+                ? (Set<String>) sourceIds
+                : new CompactIdSet(sourceIds);
         this.totalSourceEntries = Integer.valueOf(sourceIds.size());
     }
     
@@ -302,18 +555,27 @@ public class ReconciliationContext {
      * If the target system IDs are case insensitive, the ids are kept in normalized (lower case) form
      */
     void setTargets(ResultIterable targetsIterable) {
-        // Choose a hash based map as we need fast "contains" key handling
-        this.targets = new ConcurrentHashMap<String, JsonValue>();
+        // Choose a hash based collection as we need fast "contains" handling
+        Collection<String> allIds = targetsIterable.getAllIds();
+        this.targetIds = allIds instanceof CompactIdSet
+                ? (Set<String>) allIds
+                : new CompactIdSet(allIds);
+        // Only keep values if all of them were preloaded
+        Map<String, JsonValue> values = new ConcurrentHashMap<String, JsonValue>();
         hasTargetsValues = true;
         for (ResultEntry entry : targetsIterable) {
             if (entry.getValue() == null) {
                 hasTargetsValues = false;
-                targets.put(entry.getId(), NULL_MARKER);
-            } else {
-                targets.put(entry.getId(), entry.getValue());
+                values = null;
+                break;
             }
+            values.put(entry.getId(), entry.getValue());
         }
-        this.totalTargetEntries = Integer.valueOf(targets.size());
+        this.targetValues = values;
+        this.correlationIndex = values != null && mapping.isCorrelationIndex()
+                ? new TargetCorrelationIndex(values.values(), mapping.isCorrelationIndexCaseSensitive())
+                : null;
+        this.totalTargetEntries = Integer.valueOf(targetIds.size());
     }
     
     /**
@@ -338,22 +600,70 @@ public class ReconciliationContext {
     }
     
     /**
-     * @return a map all ids in the target object set,
-     * mapped to the targetvalue (if value preloaded) or to null (if not preloaded)
+     * @return the set of all ids in the target object set,
      * queried at the outset of reconciliation.
      * Null if no bulk target id query was done.
      */
-    public Map<String, JsonValue> getTargets() {
-        return targets;
+    public Set<String> getTargetIds() {
+        return targetIds;
     }
-    
+
     /**
-     * @return whether getTargets contains preloaded values
+     * @param targetId the normalized target id
+     * @return the target value preloaded at the outset of reconciliation,
+     * or null if the value was not preloaded
+     */
+    public JsonValue getTargetValue(String targetId) {
+        Map<String, JsonValue> values = targetValues;
+        return values == null ? null : values.get(targetId);
+    }
+
+    /**
+     * @return whether the targets have preloaded values
      */
     public boolean hasTargetsValues() {
         return hasTargetsValues;
     }
 
+    /**
+     * @return the permits limiting the concurrent connector requests of the tasks of this recon,
+     * or null if not limited
+     */
+    Semaphore getConnectorPermits() {
+        return connectorPermits;
+    }
+
+    /**
+     * @return the limit of tasks in flight adapting to the task latency and failures,
+     * or null if the fixed feed size of the mapping applies
+     */
+    AdaptiveFeedLimit getFeedLimit() {
+        return feedLimit;
+    }
+
+    /**
+     * @return the buffer writing the links of the tasks of this recon in batches, or null if links are written
+     * directly
+     */
+    LinkBuffer getLinkBuffer() {
+        return linkBuffer;
+    }
+
+    /**
+     * @param auditCounts the counts of the audit events of this run, tracked by the audit queue of the mapping
+     */
+    void setAuditCounts(SyncAuditQueue.Counts auditCounts) {
+        this.auditCounts = auditCounts;
+    }
+
+    /**
+     * @return the index of the preloaded target values to answer simple correlation queries from,
+     * or null if correlation queries the target system
+     */
+    TargetCorrelationIndex getCorrelationIndex() {
+        return correlationIndex;
+    }
+
     /**
      * @param newStage Sets the current state and stage in the reconciliation process
      */
@@ -388,7 +698,14 @@ public class ReconciliationContext {
      */
     private synchronized void cleanupState() {
         sourceIds = null;
-        targets = null;
+        targetIds = null;
+        targetValues = null;
+        correlationIndex = null;
+        correlatedTargets.clear();
+        prefetchedTargets.clear();
+        if (linkBuffer != null) {
+            linkBuffer.flush();
+        }
         if (executor != null) {
             executor.shutdown();
             executor = null;
@@ -408,6 +725,23 @@ public class ReconciliationContext {
         reconSummary.put("progress", getProgress());
         reconSummary.put("situationSummary", getStatistics().getSituationSummary());
         reconSummary.put("statusSummary", getStatistics().getStatusSummary());
+        if (feedLimit != null) {
+            reconSummary.put("feed", getStatistics().getFeedStatistics());
+        }
+        reconSummary.put("latencies", getStatistics().getLatencyStatistics());
+        if (linkBuffer != null) {
+            reconSummary.put("linkBuffer", linkBuffer.asMap());
+        }
+        if (mapping.getAuditQueue() != null && auditCounts != null) {
+            reconSummary.put("audit", mapping.getAuditQueue().asMap(auditCounts));
+        }
+        if (analysis) {
+            Map<String, Object> samples = new LinkedHashMap<String, Object>();
+            samples.put("source", getStatistics().getSourceStat().getSampleIds());
+            samples.put("target", getStatistics().getTargetStat().getSampleIds());
+            reconSummary.put("analysis", true);
+            reconSummary.put("situationSamples", samples);
+        }
         reconSummary.put("parameters", reconTypeHandler.getReconParameters().getObject());
         reconSummary.put("started", getStatistics().getStarted());
         reconSummary.put("ended", getStatistics().getEnded());
@@ -11,7 +11,7 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Portions copyright 2012-2015 ForgeRock AS.
+ * Portions copyright 2012-2016 ForgeRock AS.
  */
 package org.forgerock.openidm.sync.impl;
 
@@ -29,10 +29,14 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -73,6 +77,7 @@ import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.core.IdentityServer;
+import org.forgerock.openidm.util.ContextUtil;
 import org.forgerock.util.promise.Promise;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
@@ -98,7 +103,7 @@ public class ReconciliationService
     private static final String SUMMARY = "summary";
 
     public enum ReconAction {
-        recon, reconByQuery, reconById;
+        recon, reconByQuery, reconById, reconDelta;
 
         /**
          * Convenience helper that checks if a given string
@@ -153,6 +158,43 @@ public class ReconciliationService
      */
     private int maxCompletedRuns;
 
+    /**
+     * The partitions of distributed reconciliation runs, shared by the nodes of the cluster
+     */
+    private ReconPartitions reconPartitions;
+
+    /**
+     * The checkpoints to resume failed or canceled reconciliation runs from
+     */
+    private ReconCheckpoints reconCheckpoints;
+
+    /**
+     * The high-watermarks of delta reconciliations
+     */
+    private ReconWatermarks reconWatermarks;
+
+    /**
+     * Polls for and renews the leases of partitions of distributed reconciliation runs
+     */
+    private ScheduledExecutorService partitionScheduler;
+
+    /**
+     * The interval to poll for partitions at, in milliseconds, set by openidm.recon.partition.pollinterval
+     */
+    private long partitionPollInterval;
+
+    /**
+     * The maximum number of partitions this node reconciles at the same time, set by
+     * openidm.recon.partition.maxrunning; 0 to not reconcile partitions of other nodes
+     */
+    private int maxPartitionRuns;
+
+    /**
+     * Map from partition record ID to the partition runs of this node
+     */
+    Map<String, ReconciliationContext> partitionRuns =
+            Collections.synchronizedMap(new LinkedHashMap<String, ReconciliationContext>());
+
     /**
      * Get the the list of all reconciliations, or details of one specific recon instance
      *
@@ -269,13 +311,7 @@ public class ReconciliationService
                     try {
                         JsonValue mapping = paramsVal.get("mapping").required();
                         logger.debug("Reconciliation action of mapping {}", mapping);
-                        Boolean waitForCompletion = Boolean.FALSE;
-                        JsonValue waitParam = paramsVal.get("waitForCompletion").defaultTo(Boolean.FALSE);
-                        if (waitParam.isBoolean()) {
-                            waitForCompletion = waitParam.asBoolean();
-                        } else {
-                            waitForCompletion = Boolean.parseBoolean(waitParam.asString());
-                        }
+                        Boolean waitForCompletion = isWaitForCompletion(paramsVal);
                         reconId = reconcile(ReconAction.valueOf(request.getAction()), mapping, waitForCompletion, 
                                 paramsVal, request.getContent());
                         result.put("_id",  reconId);
@@ -287,6 +323,11 @@ public class ReconciliationService
                     throw new BadRequestException("Action " + request.getAction() + " on reconciliation not supported " 
                             + request.getAdditionalParameters());
                 }
+            } else if ("resume".equalsIgnoreCase(request.getAction())) {
+                final String id = request.getResourcePathObject().leaf();
+                ReconciliationContext resumedRun = resume(id, isWaitForCompletion(paramsVal));
+                result.put("_id", resumedRun.getReconId());
+                result.put("state", resumedRun.getState());
             } else {
                 // operation on individual resource
                 final String id = request.getResourcePathObject().leaf();
@@ -317,6 +358,19 @@ public class ReconciliationService
         }
     }
 
+    /**
+     * @param params the additional parameters of a request
+     * @return the value of the waitForCompletion parameter, false if not present
+     */
+    private Boolean isWaitForCompletion(JsonValue params) {
+        JsonValue waitParam = params.get("waitForCompletion").defaultTo(Boolean.FALSE);
+        if (waitParam.isBoolean()) {
+            return waitParam.asBoolean();
+        } else {
+            return Boolean.parseBoolean(waitParam.asString());
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -343,6 +397,63 @@ public class ReconciliationService
         
         
         addReconRun(reconciliationContext);
+        startRecon(reconciliationContext, synchronous);
+        return reconciliationContext.getReconId();
+    }
+
+    /**
+     * Resumes a failed or canceled reconciliation run from its last checkpoint, under the same id.
+     *
+     * @param reconId the id of the run to resume
+     * @param synchronous whether to wait for the resumed run to complete
+     * @return the resumed run
+     * @throws ResourceException if the run is still active, has no checkpoint to resume from, or failed to
+     * resume
+     */
+    private ReconciliationContext resume(String reconId, Boolean synchronous) throws ResourceException {
+        ReconciliationContext previousRun = reconRuns.get(reconId);
+        if (previousRun != null && previousRun.getStage() != ReconStage.COMPLETED_FAILED
+                && previousRun.getStage() != ReconStage.COMPLETED_CANCELED) {
+            throw new ConflictException("Reconciliation " + reconId + " is " + previousRun.getStage()
+                    + ", only failed or canceled reconciliations can be resumed");
+        }
+        if (mappings == null) {
+            throw new BadRequestException("Unknown mapping type, no mappings configured");
+        }
+        JsonValue checkpoint = reconCheckpoints.read(ObjectSetContext.get(), reconId);
+        if (checkpoint == null) {
+            throw new NotFoundException("No checkpoint found to resume reconciliation " + reconId + " from");
+        }
+        ObjectMapping objMapping = mappings.getMapping(checkpoint.get(ReconCheckpoints.MAPPING).required().asString());
+
+        // Set the ReconContext on the request context chain.
+        Context currentContext = ObjectSetContext.pop();
+        ObjectSetContext.push(new ReconContext(currentContext, objMapping.getName()));
+
+        ReconciliationContext reconciliationContext = new ReconciliationContext(
+                ReconAction.valueOf(checkpoint.get(ReconCheckpoints.RECON_ACTION).required().asString()),
+                objMapping, reconId, checkpoint.get(ReconCheckpoints.RECON_PARAMS),
+                checkpoint.get(ReconCheckpoints.OVERRIDING_CONFIG), this, null);
+        reconciliationContext.setResumeCheckpoint(checkpoint);
+
+        synchronized (reconRuns) {
+            // Replace the failed or canceled run, and keep the order of the runs
+            reconRuns.remove(reconId);
+            addReconRun(reconciliationContext);
+        }
+        startRecon(reconciliationContext, synchronous);
+        return reconciliationContext;
+    }
+
+    /**
+     * Executes a reconciliation run, in the background unless synchronous.
+     *
+     * @param reconciliationContext the reconciliation run
+     * @param synchronous whether to execute the run in the calling thread
+     * @throws SynchronizationException if a synchronous run failed
+     */
+    private void startRecon(final ReconciliationContext reconciliationContext, Boolean synchronous)
+            throws SynchronizationException {
         if (Boolean.TRUE.equals(synchronous)) {
             reconcile(reconciliationContext);
         } else {
@@ -365,7 +476,6 @@ public class ReconciliationService
             };
             fullReconExecutor.execute(command);
         }
-        return reconciliationContext.getReconId();
     }
 
     /**
@@ -410,6 +520,137 @@ public class ReconciliationService
         }
     }
 
+    /**
+     * @return the partitions of distributed reconciliation runs
+     */
+    ReconPartitions getReconPartitions() {
+        return reconPartitions;
+    }
+
+    /**
+     * @return the checkpoints to resume failed or canceled reconciliation runs from
+     */
+    ReconCheckpoints getReconCheckpoints() {
+        return reconCheckpoints;
+    }
+
+    /**
+     * @return the high-watermarks of delta reconciliations
+     */
+    ReconWatermarks getReconWatermarks() {
+        return reconWatermarks;
+    }
+
+    /**
+     * @return the interval to poll for partitions at, in milliseconds
+     */
+    long getPartitionPollInterval() {
+        return partitionPollInterval;
+    }
+
+    /**
+     * Claims partitions of distributed reconciliation runs, up to the maximum number of partitions
+     * this node reconciles at the same time, and starts reconciling them.
+     */
+    private void claimPartitions() {
+        if (mappings == null) {
+            return;
+        }
+        try {
+            Context context = ContextUtil.createInternalContext();
+            for (ResourceResponse claimed
+                    : reconPartitions.claimAvailable(context, maxPartitionRuns - partitionRuns.size())) {
+                startPartitionRun(context, claimed);
+            }
+        } catch (ResourceException e) {
+            logger.warn("Failed to claim reconciliation partitions", e);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to start reconciliation partitions", e);
+        }
+    }
+
+    /**
+     * Reconciles a claimed partition in the background, renewing the lease on it while reconciling.
+     *
+     * @param internalContext the context to access the partition records with
+     * @param claimed the claimed partition record
+     */
+    private void startPartitionRun(final Context internalContext, final ResourceResponse claimed) {
+        final JsonValue partition = claimed.getContent();
+        final String partitionId = claimed.getId();
+        final ReconciliationContext reconContext;
+        final Context context;
+        try {
+            ObjectMapping objMapping = mappings.getMapping(partition.get(ReconPartitions.MAPPING).asString());
+            context = new ReconContext(internalContext, objMapping.getName());
+            reconContext = new ReconciliationContext(ReconAction.recon, objMapping,
+                    partition.get(ReconPartitions.RECON_ID).asString(),
+                    partition.get(ReconPartitions.RECON_PARAMS), partition.get(ReconPartitions.OVERRIDING_CONFIG),
+                    this, new ReconPartition(partition.get(ReconPartitions.INDEX).asInteger(),
+                            partition.get(ReconPartitions.COUNT).asInteger()));
+        } catch (ResourceException e) {
+            logger.warn("Unable to reconcile partition {}", partitionId, e);
+            reconPartitions.release(internalContext, claimed, e.getMessage());
+            return;
+        }
+        partitionRuns.put(partitionId, reconContext);
+
+        // The latest partition record, guarded by itself, as each renewal updates the revision
+        final ResourceResponse[] current = { claimed };
+        long renewInterval = Math.max(1, reconPartitions.getLeaseMillis() / 3);
+        final ScheduledFuture<?> renewal = partitionScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (current) {
+                    try {
+                        current[0] = reconPartitions.renew(internalContext, current[0]);
+                    } catch (ResourceException e) {
+                        logger.warn("Lost the lease on reconciliation partition {}, canceling it", partitionId, e);
+                        reconContext.cancel();
+                        throw new IllegalStateException(e);  // stops further renewals
+                    }
+                }
+            }
+        }, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+
+        fullReconExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ObjectSetContext.push(context);
+                try {
+                    reconContext.getObjectMapping().reconPartition(reconContext);
+                    renewal.cancel(false);
+                    synchronized (current) {
+                        reconPartitions.complete(internalContext, current[0],
+                                reconContext.getStatistics().exportCounts(),
+                                reconContext.getPartition().getUnlinkedTargetIds());
+                    }
+                    logger.info("Reconciled partition {}: {}", partitionId,
+                            reconContext.getStatistics().simpleSummary());
+                } catch (SynchronizationException e) {
+                    renewal.cancel(false);
+                    if (!reconContext.isCanceled()) {
+                        logger.warn("Reconciliation partition {} failed", partitionId, e);
+                        synchronized (current) {
+                            reconPartitions.release(internalContext, current[0], e.getMessage());
+                        }
+                    }
+                } catch (ResourceException e) {
+                    logger.warn("Failed to complete reconciliation partition {}", partitionId, e);
+                } catch (RuntimeException e) {
+                    renewal.cancel(false);
+                    logger.warn("Reconciliation partition {} failed with unexpected exception", partitionId, e);
+                    synchronized (current) {
+                        reconPartitions.release(internalContext, current[0], e.getMessage());
+                    }
+                } finally {
+                    partitionRuns.remove(partitionId);
+                    ObjectSetContext.pop();
+                }
+            }
+        });
+    }
+
     /**
      * Add a reconciliation run to the cached list of reconcliation runs.
      * May clean out old entries of completed reconciliation runs.
@@ -453,6 +694,31 @@ public class ReconciliationService
             int maxConcurrentFullRecons = 10; // TODO: make configurable
             fullReconExecutor = Executors.newFixedThreadPool(maxConcurrentFullRecons);
 
+            // Partitions of distributed reconciliation runs, claimed by all nodes of the cluster
+            String nodeId = IdentityServer.getInstance().getProperty("openidm.node.id");
+            if (nodeId == null) {
+                nodeId = UUID.randomUUID().toString();
+            }
+            long partitionLease = Long.parseLong(
+                    IdentityServer.getInstance().getProperty("openidm.recon.partition.lease", "60000"));
+            partitionPollInterval = Long.parseLong(
+                    IdentityServer.getInstance().getProperty("openidm.recon.partition.pollinterval", "10000"));
+            maxPartitionRuns = Integer.parseInt(
+                    IdentityServer.getInstance().getProperty("openidm.recon.partition.maxrunning", "2"));
+            reconPartitions = new ReconPartitions(connectionFactory, nodeId, partitionLease);
+            reconCheckpoints = new ReconCheckpoints(connectionFactory);
+            reconWatermarks = new ReconWatermarks(connectionFactory);
+            partitionScheduler = Executors.newScheduledThreadPool(1);
+            // A node reconciling no partitions, e.g. a standalone one, does not poll for them at all
+            if (maxPartitionRuns > 0) {
+                partitionScheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        claimPartitions();
+                    }
+                }, partitionPollInterval, partitionPollInterval, TimeUnit.MILLISECONDS);
+            }
+
             registerMBean();
         } catch (RuntimeException ex) {
             logger.warn("Configuration invalid and could not be parsed, can not start reconciliation service: "
@@ -476,6 +742,14 @@ public class ReconciliationService
     @Deactivate
     void deactivate(ComponentContext compContext) {
         logger.debug("Deactivating Service {}", compContext);
+        if (partitionScheduler != null) {
+            partitionScheduler.shutdownNow();
+        }
+        synchronized (partitionRuns) {
+            for (ReconciliationContext partitionRun : partitionRuns.values()) {
+                partitionRun.cancel();
+            }
+        }
         unregisterMBean();
         logger.info("Reconciliation service stopped.");
     }
@@ -593,4 +867,36 @@ public class ReconciliationService
             throw new InternalServerErrorException("Unable to get the maximum pool size in recon thread pool");
         }
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Map<String, Object>> getFeedStatistics() {
+        Map<String, Map<String, Object>> feedStatistics = new LinkedHashMap<String, Map<String, Object>>();
+        synchronized (reconRuns) {
+            for (ReconciliationContext reconContext : reconRuns.values()) {
+                Map<String, Object> stats = reconContext.getStatistics().getFeedStatistics();
+                if (stats != null && !reconContext.getStage().isComplete()) {
+                    feedStatistics.put(reconContext.getReconId(), stats);
+                }
+            }
+        }
+        return feedStatistics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Map<String, Object>> getLatencyStatistics() {
+        Map<String, Map<String, Object>> latencyStatistics = new LinkedHashMap<String, Map<String, Object>>();
+        synchronized (reconRuns) {
+            for (ReconciliationContext reconContext : reconRuns.values()) {
+                latencyStatistics.put(reconContext.getReconId(),
+                        reconContext.getStatistics().getLatencyStatistics());
+            }
+        }
+        return latencyStatistics;
+    }
 }
@@ -11,13 +11,14 @@
  * Header, with the fields enclosed by brackets [] replaced by your own identifying
  * information: "Portions copyright [year] [name of copyright owner]".
  *
- * Copyright 2015 ForgeRock AS.
+ * Copyright 2015-2016 ForgeRock AS.
  */
 
 package org.forgerock.openidm.sync.impl;
 
 import org.forgerock.json.resource.ResourceException;
 
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -66,4 +67,18 @@ public interface ReconciliationServiceMBean {
      * @throws ResourceException if there is an error getting maximum allowed number of threads.
      */
     public int getMaximumPoolSize() throws ResourceException;
+
+    /**
+     * Gets the current feed limit and observed task latencies of the active reconciliation runs whose feed size
+     * adapts to the task latency.
+     * @return the feed statistics by reconciliation id.
+     */
+    public Map<String, Map<String, Object>> getFeedStatistics();
+
+    /**
+     * Gets the percentiles of the latencies of reading, correlating, linking, acting on and auditing the entries
+     * of the reconciliation runs, by operation and situation.
+     * @return the latency statistics by reconciliation id.
+     */
+    public Map<String, Map<String, Object>> getLatencyStatistics();
 }
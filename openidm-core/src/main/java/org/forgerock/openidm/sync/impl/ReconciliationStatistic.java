@@ -32,6 +32,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.forgerock.json.JsonValue;
 import org.forgerock.openidm.audit.util.Status;
 import org.forgerock.openidm.sync.ReconAction;
 import org.forgerock.openidm.util.DateUtil;
@@ -63,10 +64,16 @@ public class ReconciliationStatistic {
     
     private Map<ReconStage, Map> stageStat = new ConcurrentHashMap<ReconStage, Map>();
 
+    private final ReconLatencies latencies = new ReconLatencies();
+
     public ReconciliationStatistic(ReconciliationContext reconContext) {
         this.reconContext = reconContext;
-        sourceStat = new PhaseStatistic(this, PhaseStatistic.Phase.SOURCE, reconContext.getObjectMapping().getSourceObjectSet());
-        targetStat = new PhaseStatistic(this, PhaseStatistic.Phase.TARGET, reconContext.getObjectMapping().getTargetObjectSet());
+        // An analysis only keeps a sample of the ids per situation
+        int sampleSize = reconContext.isAnalysis() ? reconContext.getAnalysisSampleSize() : -1;
+        sourceStat = new PhaseStatistic(this, PhaseStatistic.Phase.SOURCE,
+                reconContext.getObjectMapping().getSourceObjectSet(), sampleSize);
+        targetStat = new PhaseStatistic(this, PhaseStatistic.Phase.TARGET,
+                reconContext.getObjectMapping().getTargetObjectSet(), sampleSize);
         for (Status status : Status.values()) {
             statusProcessed.put(status, new AtomicInteger());
         }
@@ -79,6 +86,10 @@ public class ReconciliationStatistic {
     public PhaseStatistic getTargetStat() {
         return targetStat;
     }
+
+    ReconLatencies getLatencies() {
+        return latencies;
+    }
     
     public void reconStart() {
         startTime = System.currentTimeMillis();
@@ -260,6 +271,48 @@ public class ReconciliationStatistic {
         return true;
     }
     
+    /**
+     * Exports the counts of this run, without the processed ids, to be merged into the statistics of
+     * another run with {@link #mergeCounts(JsonValue)}.
+     *
+     * @return the counts of this run
+     */
+    public Map<String, Object> exportCounts() {
+        Map<String, Object> counts = new HashMap<String, Object>();
+        counts.put("sourceProcessed", sourceProcessed.get());
+        counts.put("linkProcessed", linkProcessed.get());
+        counts.put("linkCreated", linkCreated.get());
+        counts.put("targetProcessed", targetProcessed.get());
+        counts.put("targetCreated", targetCreated.get());
+        counts.put("status", getStatusSummary());
+        counts.put("sourcePhase", sourceStat.exportCounts());
+        counts.put("targetPhase", targetStat.exportCounts());
+        counts.put("latencies", latencies.exportCounts());
+        return counts;
+    }
+
+    /**
+     * Adds counts exported by {@link #exportCounts()}, for example by a partition of this run, to the
+     * counts of this run.
+     *
+     * @param counts the exported counts
+     */
+    public void mergeCounts(JsonValue counts) {
+        sourceProcessed.addAndGet(counts.get("sourceProcessed").defaultTo(0).asInteger());
+        linkProcessed.addAndGet(counts.get("linkProcessed").defaultTo(0).asInteger());
+        linkCreated.addAndGet(counts.get("linkCreated").defaultTo(0).asInteger());
+        targetProcessed.addAndGet(counts.get("targetProcessed").defaultTo(0).asInteger());
+        targetCreated.addAndGet(counts.get("targetCreated").defaultTo(0).asInteger());
+        for (Status status : Status.values()) {
+            statusProcessed.get(status).addAndGet(counts.get("status").get(status.toString()).defaultTo(0).asInteger());
+        }
+        sourceStat.mergeCounts(counts.get("sourcePhase"));
+        targetStat.mergeCounts(counts.get("targetPhase"));
+        if (counts.isDefined("latencies")) {
+            latencies.mergeCounts(counts.get("latencies"));
+        }
+    }
+
     public Map<String, Object> asMap() {
         Map<String, Object> results = new HashMap<String, Object>();
 
@@ -294,6 +347,29 @@ public class ReconciliationStatistic {
         return situationSummary;
     }
 
+    /**
+     * @param status the status
+     * @return The number of entries processed with the status
+     */
+    public int getStatusCount(Status status) {
+        return statusProcessed.get(status).get();
+    }
+
+    /**
+     * @return The current feed limit and the observed task latencies, or null if the feed size is fixed
+     */
+    public Map<String, Object> getFeedStatistics() {
+        AdaptiveFeedLimit feedLimit = reconContext.getFeedLimit();
+        return feedLimit != null ? feedLimit.asMap() : null;
+    }
+
+    /**
+     * @return The percentiles of the latencies of the operations on the entries, by operation and situation
+     */
+    public Map<String, Object> getLatencyStatistics() {
+        return latencies.asMap();
+    }
+
     public Map<String, Integer> getStatusSummary() {
         Map<String, Integer> statusSummary = new ConcurrentHashMap<String, Integer>();
         for (Map.Entry<Status, AtomicInteger> entry : statusProcessed.entrySet()) {
@@ -16,9 +16,7 @@
 package org.forgerock.openidm.sync.impl;
 
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 
 import org.forgerock.json.JsonValue;
@@ -54,7 +52,7 @@ public class ResultIterable implements Iterable<ResultEntry> {
      */
     public ResultIterable removeNotMatchingEntries(Collection<String> ids) {
         Iterator<ResultEntry> entryIter = this.iterator();
-        Collection<String> newIds = Collections.synchronizedSet(new LinkedHashSet<String>());
+        Collection<String> newIds = new CompactIdSet();
         JsonValue newObjList = null;
 
         if (this.values != null) {
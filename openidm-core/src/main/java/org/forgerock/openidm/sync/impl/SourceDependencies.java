@@ -0,0 +1,130 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.patch.JsonPatch;
+import org.forgerock.openidm.util.JsonUtil;
+import org.forgerock.util.encode.Base64;
+
+/**
+ * The properties of source objects a mapping depends on, as far as they are known from its configuration.
+ * <p>
+ * Tells whether a change of a source object can affect its target at all, and hashes the mapped properties of
+ * a source object, so that a source unchanged since it was last synchronized can be recognized.
+ */
+class SourceDependencies {
+
+    /** The properties the mapping depends on, the root pointer standing for the whole object */
+    private final List<JsonPointer> pointers;
+
+    /** Identifies the configuration of the mapped properties, so that hashes change with the configuration */
+    private final String fingerprint;
+
+    /**
+     * @param pointers the properties the mapping depends on, the root pointer standing for the whole object
+     * @param fingerprint identifies the configuration of the mapped properties
+     */
+    SourceDependencies(Collection<JsonPointer> pointers, String fingerprint) {
+        this.pointers = new ArrayList<JsonPointer>(pointers);
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Returns whether a change of a source object can affect its target.
+     *
+     * @param diff the change as a JSON patch, see {@link JsonPatch#diff(JsonValue, JsonValue)}
+     * @return true if the change modifies a property the mapping depends on
+     */
+    boolean isAffectedBy(JsonValue diff) {
+        for (JsonValue operation : diff) {
+            JsonPointer changed = new JsonPointer(operation.get(JsonPatch.PATH_PTR).asString());
+            for (JsonPointer pointer : pointers) {
+                if (overlaps(changed, pointer)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if either pointer is a prefix of the other
+     */
+    private static boolean overlaps(JsonPointer first, JsonPointer second) {
+        String[] firstTokens = first.toArray();
+        String[] secondTokens = second.toArray();
+        for (int i = 0; i < Math.min(firstTokens.length, secondTokens.length); i++) {
+            if (!firstTokens[i].equals(secondTokens[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hashes the properties of a source object the mapping depends on, together with the configuration.
+     *
+     * @param source the source object
+     * @return the Base64 encoded SHA-1 hash
+     */
+    String hash(JsonValue source) {
+        Map<String, Object> projection = new TreeMap<String, Object>();
+        for (JsonPointer pointer : pointers) {
+            JsonValue value = source.get(pointer);
+            projection.put(pointer.toString(), value != null ? canonical(value.getObject()) : null);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+            digest.update(JsonUtil.writeValueAsString(new JsonValue(projection)).getBytes(StandardCharsets.UTF_8));
+            return Base64.encode(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the value with its maps sorted by key, so that equal values serialize alike
+     */
+    private static Object canonical(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), canonical(entry.getValue()));
+            }
+            return sorted;
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(canonical(element));
+            }
+            return list;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the target ids remaining to be handled by the target phase of a streaming reconciliation,
+ * spilling them to temporary files rather than keeping them in memory.
+ * <p>
+ * Ids are hash-partitioned over a number of files. Removals are appended to a separate file per partition
+ * and only applied when iterating, which loads the removed ids of one partition at a time. The memory used
+ * is hence bounded by the largest partition rather than the size of the target object set.
+ * <p>
+ * {@link #remove(Object)} does not check whether the id was added before, and always returns true.
+ * Membership tests and {@link #size()} require a full scan and are not meant for the reconciliation hot path.
+ * The files are deleted by {@link #close()}.
+ */
+class SpilledIdSet extends AbstractCollection<String> implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpilledIdSet.class);
+
+    /** The default number of partitions the ids are spread over */
+    static final int DEFAULT_PARTITIONS = 64;
+
+    private final Partition[] partitions;
+    private final File directory;
+    private boolean closed = false;
+
+    /**
+     * Creates the set with its files in a new sub-directory of the given directory.
+     *
+     * @param parent the directory to create the spill files in, or null for the system temporary directory
+     * @param name a name to identify the spill files by, such as the reconciliation id
+     * @param partitionCount the number of partitions to spread the ids over
+     * @throws IOException if the spill files could not be created
+     */
+    SpilledIdSet(File parent, String name, int partitionCount) throws IOException {
+        File base = parent != null ? parent : new File(System.getProperty("java.io.tmpdir"));
+        directory = new File(base, "recon-" + name.replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + System.nanoTime());
+        if (!directory.mkdirs()) {
+            throw new IOException("Failed to create reconciliation spill directory " + directory);
+        }
+        partitions = new Partition[Math.max(1, partitionCount)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition(i);
+        }
+        logger.debug("Spilling remaining target ids to {}", directory);
+    }
+
+    private Partition partitionFor(Object id) {
+        return partitions[(id.hashCode() & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean add(String id) {
+        try {
+            partitionFor(id).append(id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to spill id to " + directory, e);
+        }
+        return true;
+    }
+
+    /**
+     * Records the removal of the given id; the removal takes effect when iterating.
+     *
+     * @param id the id to remove
+     * @return always true
+     */
+    @Override
+    public synchronized boolean remove(Object id) {
+        if (id == null) {
+            return false;
+        }
+        try {
+            partitionFor(id).appendRemoved((String) id);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to spill removed id to " + directory, e);
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Counts the remaining ids by scanning all partitions.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Iterator<String> iter = iterator(); iter.hasNext(); iter.next()) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Flushes pending writes and streams the remaining ids partition by partition.
+     * The iterator does not support removal.
+     */
+    @Override
+    public synchronized Iterator<String> iterator() {
+        if (closed) {
+            throw new IllegalStateException("Spilled id set has been closed");
+        }
+        try {
+            for (Partition partition : partitions) {
+                partition.flush();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to flush spilled ids in " + directory, e);
+        }
+        return new RemainingIdsIterator();
+    }
+
+    /**
+     * Deletes the spill files.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Partition partition : partitions) {
+            partition.delete();
+        }
+        if (!directory.delete()) {
+            logger.warn("Failed to delete reconciliation spill directory {}", directory);
+        }
+    }
+
+    /**
+     * The files of one hash partition.
+     */
+    private final class Partition {
+        private final File idsFile;
+        private final File removedFile;
+        private DataOutputStream idsOut;
+        private DataOutputStream removedOut;
+
+        Partition(int index) {
+            idsFile = new File(directory, index + ".ids");
+            removedFile = new File(directory, index + ".removed");
+        }
+
+        void append(String id) throws IOException {
+            if (idsOut == null) {
+                idsOut = open(idsFile);
+            }
+            idsOut.writeUTF(id);
+        }
+
+        void appendRemoved(String id) throws IOException {
+            if (removedOut == null) {
+                removedOut = open(removedFile);
+            }
+            removedOut.writeUTF(id);
+        }
+
+        void flush() throws IOException {
+            if (idsOut != null) {
+                idsOut.flush();
+            }
+            if (removedOut != null) {
+                removedOut.flush();
+            }
+        }
+
+        Set<String> readRemoved() throws IOException {
+            Set<String> removed = new HashSet<String>();
+            if (removedFile.exists()) {
+                DataInputStream in = openForRead(removedFile);
+                try {
+                    while (true) {
+                        removed.add(in.readUTF());
+                    }
+                } catch (EOFException e) {
+                    // end of partition
+                } finally {
+                    in.close();
+                }
+            }
+            return removed;
+        }
+
+        void delete() {
+            closeQuietly(idsOut);
+            closeQuietly(removedOut);
+            if (idsFile.exists() && !idsFile.delete()) {
+                logger.warn("Failed to delete spill file {}", idsFile);
+            }
+            if (removedFile.exists() && !removedFile.delete()) {
+                logger.warn("Failed to delete spill file {}", removedFile);
+            }
+        }
+
+        private DataOutputStream open(File file) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+    }
+
+    private static DataInputStream openForRead(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close spill file", e);
+            }
+        }
+    }
+
+    /**
+     * Streams the ids of each partition in turn, skipping those recorded as removed.
+     */
+    private final class RemainingIdsIterator implements Iterator<String> {
+        private int partitionIndex = -1;
+        private DataInputStream in;
+        private Set<String> removed;
+        private String next;
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    if (in == null && !openNextPartition()) {
+                        return false;
+                    }
+                    try {
+                        String id = in.readUTF();
+                        if (!removed.contains(id)) {
+                            next = id;
+                        }
+                    } catch (EOFException e) {
+                        in.close();
+                        in = null;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                closeQuietly(in);
+                throw new IllegalStateException("Failed to read spilled ids in " + directory, e);
+            }
+        }
+
+        private boolean openNextPartition() throws IOException {
+            while (++partitionIndex < partitions.length) {
+                Partition partition = partitions[partitionIndex];
+                if (partition.idsFile.exists()) {
+                    removed = partition.readRemoved();
+                    in = openForRead(partition.idsFile);
+                    return true;
+                }
+            }
+            removed = null;
+            return false;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String id = next;
+            next = null;
+            return id;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
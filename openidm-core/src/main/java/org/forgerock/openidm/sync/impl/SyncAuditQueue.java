@@ -0,0 +1,540 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.resource.Requests.newCreateRequest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.openidm.util.ContextUtil;
+import org.forgerock.openidm.util.JsonUtil;
+import org.forgerock.services.context.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes the sync and recon audit events of a mapping to the audit service asynchronously, so that
+ * synchronization does not wait for the audit event handlers.
+ * <p>
+ * Events are queued in a bounded queue, and a publisher thread takes them off the queue in batches and creates
+ * them on the audit service. The publisher thread is started by the first event queued, and stops once the
+ * queue stayed empty for a while. What happens to an event queued while the queue is full depends on the
+ * {@link FullQueuePolicy}.
+ * <p>
+ * {@link #flush()} waits for the events queued so far to be published. Failing to publish an event is logged
+ * and counted, but not reported to the synchronization which queued it. The events of a reconciliation run are
+ * also counted on their own while the run is {@link #track(String) tracked}.
+ */
+class SyncAuditQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyncAuditQueue.class);
+
+    /** The default number of events taken off the queue at once */
+    static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** How long the publisher thread waits for events before it stops, in milliseconds */
+    static final long IDLE_TIMEOUT = 5000L;
+
+    /** Separates the audit path from the event in a spilled line */
+    private static final char SPILL_SEPARATOR = '\t';
+
+    /**
+     * What happens to an event queued while the queue is full.
+     */
+    enum FullQueuePolicy {
+        /** Wait for the queue to have room, slowing down synchronization to the pace of the audit service */
+        block,
+        /** Drop the event, counting dropped events */
+        drop,
+        /** Append the event to a spill file, published once the queue is empty */
+        spill
+    }
+
+    /** The field of the events of a reconciliation run holding the id of the run */
+    private static final String RECON_ID = "reconId";
+
+    /** A queued audit event */
+    private static class Event {
+        final Context context;
+        final String auditPath;
+        final JsonValue content;
+        /** The flush generation the event was queued in */
+        final long generation;
+        /** The counts of the tracked reconciliation run of the event, or null */
+        final Counts run;
+
+        Event(Context context, String auditPath, JsonValue content, long generation, Counts run) {
+            this.context = context;
+            this.auditPath = auditPath;
+            this.content = content;
+            this.generation = generation;
+            this.run = run;
+        }
+    }
+
+    /** The counts of events, of the queue or of a reconciliation run, guarded by the queue */
+    static class Counts {
+        private long queued;
+        private long published;
+        private long failed;
+        private long dropped;
+        private long spilled;
+        /** The number of runs tracking these counts, as the partitions of a run share its id */
+        private int tracking;
+
+        private void done(boolean succeeded, boolean drop) {
+            if (drop) {
+                dropped++;
+            } else if (succeeded) {
+                published++;
+            } else {
+                failed++;
+            }
+        }
+
+        private long pending() {
+            return queued - published - failed - dropped;
+        }
+    }
+
+    private final ConnectionFactory connectionFactory;
+    private final String name;
+    private final BlockingQueue<Event> queue;
+    private final int batchSize;
+    private final FullQueuePolicy fullQueuePolicy;
+    private final File spillDirectory;
+
+    // The state of the publisher and the statistics, guarded by this
+    private boolean publishing;
+    private final Counts total = new Counts();
+    /** The counts of the tracked reconciliation runs, by recon id */
+    private final Map<String, Counts> runs = new HashMap<String, Counts>();
+    /** The flush generation of the events queued now, incremented by each flush */
+    private long generation;
+    /** The number of events queued or spilled and not published yet, by flush generation */
+    private final TreeMap<Long, Long> pendingByGeneration = new TreeMap<Long, Long>();
+
+    /** The spill file events are appended to, guarded by this */
+    private Spill spill;
+
+    /**
+     * A spill file and the number of events appended to it. The numbers of events per flush generation and per
+     * tracked run are kept to account for the events lost if the file can not be read back.
+     */
+    private static class Spill {
+        final File file;
+        final BufferedWriter writer;
+        long events;
+        final Map<Long, Long> generations = new HashMap<Long, Long>();
+        final Map<Counts, Long> runs = new HashMap<Counts, Long>();
+        /** The tracked runs of the spilled events, by recon id */
+        final Map<String, Counts> runsById = new HashMap<String, Counts>();
+
+        Spill(File file, BufferedWriter writer) {
+            this.file = file;
+            this.writer = writer;
+        }
+
+        void add(long generation, Counts run, long delta) {
+            increment(generations, generation, delta);
+            if (run != null) {
+                increment(runs, run, delta);
+            }
+        }
+    }
+
+    private static <K> long increment(Map<K, Long> counts, K key, long delta) {
+        Long count = counts.get(key);
+        long updated = (count != null ? count : 0L) + delta;
+        if (updated == 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, updated);
+        }
+        return updated;
+    }
+
+    /**
+     * @param connectionFactory the connection factory to publish the events with
+     * @param name the name of the mapping, naming the publisher thread and spill files
+     * @param capacity the number of events the queue holds
+     * @param batchSize the number of events taken off the queue at once
+     * @param fullQueuePolicy what happens to an event queued while the queue is full
+     * @param spillDirectory the directory of spill files, or null for the default temporary directory
+     */
+    SyncAuditQueue(ConnectionFactory connectionFactory, String name, int capacity, int batchSize,
+            FullQueuePolicy fullQueuePolicy, File spillDirectory) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Invalid audit queue size " + capacity + " or batch size " + batchSize);
+        }
+        this.connectionFactory = connectionFactory;
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<Event>(capacity);
+        this.batchSize = batchSize;
+        this.fullQueuePolicy = fullQueuePolicy;
+        this.spillDirectory = spillDirectory != null
+                ? spillDirectory
+                : new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Queues an audit event for publication.
+     *
+     * @param context the context to create the event with
+     * @param auditPath the audit path to create the event at
+     * @param content the event
+     */
+    void publish(Context context, String auditPath, JsonValue content) {
+        Event event;
+        synchronized (this) {
+            event = new Event(context, auditPath, content, generation, runs.get(content.get(RECON_ID).asString()));
+            total.queued++;
+            if (event.run != null) {
+                event.run.queued++;
+            }
+            increment(pendingByGeneration, event.generation, 1);
+        }
+        if (!queue.offer(event)) {
+            switch (fullQueuePolicy) {
+            case block:
+                try {
+                    queue.put(event);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.warn("Interrupted while queuing {} audit event, dropping the event", auditPath);
+                    done(event.generation, event.run, false, true);
+                    return;
+                }
+                break;
+            case spill:
+                if (spill(event)) {
+                    break;
+                }
+                // fall through, dropping the event if it could not be spilled
+            default:
+                done(event.generation, event.run, false, true);
+                return;
+            }
+        }
+        synchronized (this) {
+            if (!publishing) {
+                publishing = true;
+                Thread publisher = new Thread(new Publisher(), "sync-audit-" + name);
+                publisher.setDaemon(true);
+                publisher.start();
+            }
+        }
+    }
+
+    /**
+     * Waits for the events queued so far to be published. Events queued meanwhile start a new flush generation,
+     * and are not waited for, so that a steady flow of events does not hold up the flush.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void flush() throws InterruptedException {
+        long flushed = generation++;
+        while (!pendingByGeneration.headMap(flushed, true).isEmpty()) {
+            wait();
+        }
+    }
+
+    private synchronized void done(long generation, Counts run, boolean succeeded, boolean drop) {
+        total.done(succeeded, drop);
+        if (run != null) {
+            run.done(succeeded, drop);
+        }
+        if (increment(pendingByGeneration, generation, -1) == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Starts counting the events of a reconciliation run on their own, recognizing them by their recon id.
+     *
+     * @param reconId the id of the reconciliation run
+     * @return the counts of the events of the run, for {@link #asMap(Counts)}
+     */
+    synchronized Counts track(String reconId) {
+        Counts run = runs.get(reconId);
+        if (run == null) {
+            run = new Counts();
+            runs.put(reconId, run);
+        }
+        run.tracking++;
+        return run;
+    }
+
+    /**
+     * Stops counting the events of a reconciliation run queued from now on, once no partition of the run on this
+     * node tracks it any more. The events already queued keep being counted.
+     *
+     * @param reconId the id of the reconciliation run
+     */
+    synchronized void untrack(String reconId) {
+        Counts run = runs.get(reconId);
+        if (run != null && --run.tracking == 0) {
+            runs.remove(reconId);
+        }
+    }
+
+    /**
+     * Appends an event to the spill file.
+     *
+     * @return false if the event could not be spilled
+     */
+    private synchronized boolean spill(Event event) {
+        try {
+            if (spill == null) {
+                File file = File.createTempFile("audit-" + name.replaceAll("[^A-Za-z0-9_.-]", "_") + "-",
+                        ".spill", spillDirectory);
+                file.deleteOnExit();
+                spill = new Spill(file, new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+            }
+            String line = Long.toString(event.generation) + SPILL_SEPARATOR
+                    + event.auditPath + SPILL_SEPARATOR + JsonUtil.writeValueAsString(spillable(event.content));
+            spill.writer.write(line);
+            spill.writer.newLine();
+            spill.events++;
+            spill.add(event.generation, event.run, 1);
+            total.spilled++;
+            if (event.run != null) {
+                event.run.spilled++;
+                spill.runsById.put(event.content.get(RECON_ID).asString(), event.run);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to spill {} audit event, dropping the event", event.auditPath, e);
+            return false;
+        }
+    }
+
+    /**
+     * Formats an exception of an event as its stack trace, as exceptions can not be written as JSON.
+     */
+    private static JsonValue spillable(JsonValue content) {
+        Object exception = content.get(AbstractSyncAuditEventBuilder.EXCEPTION).getObject();
+        if (!(exception instanceof Throwable)) {
+            return content;
+        }
+        StringWriter stackTrace = new StringWriter();
+        ((Throwable) exception).printStackTrace(new PrintWriter(stackTrace));
+        JsonValue copy = content.copy();
+        copy.put(AbstractSyncAuditEventBuilder.EXCEPTION, stackTrace.toString());
+        return copy;
+    }
+
+    /**
+     * Hands over the spill file to be published, if any events were spilled.
+     *
+     * @return the spill file, or null if no events were spilled
+     */
+    private synchronized Spill takeSpill() {
+        Spill taken = spill;
+        if (taken != null) {
+            try {
+                taken.writer.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close audit spill file {}", taken.file, e);
+            }
+            spill = null;
+        }
+        return taken;
+    }
+
+    /**
+     * Stops the publisher thread if there are no events left to publish.
+     *
+     * @return true if the publisher thread stopped
+     */
+    private synchronized boolean stopIfIdle() {
+        if (queue.isEmpty() && spill == null) {
+            publishing = false;
+            return true;
+        }
+        return false;
+    }
+
+    /** Takes the events off the queue and publishes them */
+    private class Publisher implements Runnable {
+        @Override
+        public void run() {
+            List<Event> batch = new ArrayList<Event>(batchSize);
+            try {
+                while (true) {
+                    Event first = queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (!publishSpilled() && stopIfIdle()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    for (Event event : batch) {
+                        done(event.generation, event.run,
+                                publishEvent(event.context, event.auditPath, event.content), false);
+                    }
+                    batch.clear();
+                    if (queue.isEmpty()) {
+                        // Spilled events are only published once the queue caught up
+                        publishSpilled();
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("Audit publisher of mapping {} interrupted, dropping the queued events", name);
+                batch.addAll(queue);
+                queue.removeAll(batch);
+                for (Event event : batch) {
+                    done(event.generation, event.run, false, true);
+                }
+                Spill taken = takeSpill();
+                if (taken != null) {
+                    dropSpilled(taken, taken.events);
+                }
+                synchronized (SyncAuditQueue.this) {
+                    publishing = false;
+                }
+            }
+        }
+
+        /**
+         * Publishes the events of the spill file, if any, with an internal context as contexts are not spilled.
+         *
+         * @return false if no events were spilled
+         */
+        private boolean publishSpilled() {
+            Spill taken = takeSpill();
+            if (taken == null) {
+                return false;
+            }
+            Context context = ContextUtil.createInternalContext();
+            long read = 0;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(taken.file), StandardCharsets.UTF_8))) {
+                String line;
+                while (read < taken.events && (line = reader.readLine()) != null) {
+                    read++;
+                    int separator = line.indexOf(SPILL_SEPARATOR);
+                    int contentSeparator = line.indexOf(SPILL_SEPARATOR, separator + 1);
+                    long generation = Long.parseLong(line.substring(0, separator));
+                    taken.add(generation, null, -1);
+                    Counts run = null;
+                    boolean succeeded = false;
+                    try {
+                        JsonValue content = JsonUtil.parseStringified(line.substring(contentSeparator + 1));
+                        run = taken.runsById.get(content.get(RECON_ID).asString());
+                        if (run != null) {
+                            increment(taken.runs, run, -1);
+                        }
+                        succeeded = publishEvent(context, line.substring(separator + 1, contentSeparator), content);
+                    } finally {
+                        done(generation, run, succeeded, false);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read audit spill file {}", taken.file, e);
+            } finally {
+                dropSpilled(taken, taken.events - read);
+            }
+            return true;
+        }
+
+        /**
+         * Drops the events of a spill file not published, and deletes the file.
+         */
+        private void dropSpilled(Spill taken, long unpublished) {
+            if (unpublished > 0) {
+                LOGGER.warn("Dropping {} spilled audit events of mapping {}", unpublished, name);
+                // Each dropped event is accounted for in its generation, and in its run if tracked
+                List<Counts> droppedRuns = new ArrayList<Counts>();
+                for (Map.Entry<Counts, Long> run : taken.runs.entrySet()) {
+                    for (long i = 0; i < run.getValue(); i++) {
+                        droppedRuns.add(run.getKey());
+                    }
+                }
+                int index = 0;
+                for (Map.Entry<Long, Long> generation : taken.generations.entrySet()) {
+                    for (long i = 0; i < generation.getValue(); i++, index++) {
+                        done(generation.getKey(), index < droppedRuns.size() ? droppedRuns.get(index) : null,
+                                false, true);
+                    }
+                }
+            }
+            if (!taken.file.delete()) {
+                LOGGER.warn("Failed to delete audit spill file {}", taken.file);
+            }
+        }
+    }
+
+    /**
+     * @return true if the event was published
+     */
+    private boolean publishEvent(Context context, String auditPath, JsonValue content) {
+        try {
+            connectionFactory.getConnection().create(context, newCreateRequest(auditPath, content));
+            return true;
+        } catch (Exception e) {
+            LOGGER.warn("Failed to publish {} audit event of mapping {}", auditPath, name, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the statistics of the queue
+     */
+    synchronized Map<String, Object> asMap() {
+        return asMap(total);
+    }
+
+    /**
+     * @param counts the counts of a tracked reconciliation run, or of the whole queue
+     * @return the statistics of the events counted, along with the number of events now in the queue
+     */
+    synchronized Map<String, Object> asMap(Counts counts) {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("fullQueuePolicy", fullQueuePolicy.name());
+        stats.put("queued", queue.size());
+        stats.put("pending", counts.pending());
+        stats.put("published", counts.published);
+        stats.put("failed", counts.failed);
+        stats.put("dropped", counts.dropped);
+        stats.put("spilled", counts.spilled);
+        return stats;
+    }
+}
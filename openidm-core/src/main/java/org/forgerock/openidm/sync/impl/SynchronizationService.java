@@ -26,10 +26,19 @@ import static org.forgerock.json.resource.Responses.newActionResponse;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
 import static org.forgerock.openidm.util.ResourceUtil.notSupported;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -65,9 +74,13 @@ import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.SingletonResourceProvider;
 import org.forgerock.json.resource.UpdateRequest;
 import org.forgerock.openidm.config.enhanced.EnhancedConfig;
+import org.forgerock.openidm.core.IdentityServer;
+import org.forgerock.openidm.managed.ManagedObjectContext;
 import org.forgerock.openidm.quartz.impl.ExecutionException;
 import org.forgerock.openidm.quartz.impl.ScheduledService;
+import org.forgerock.openidm.sync.PendingActionContext;
 import org.forgerock.openidm.sync.ReconAction;
+import org.forgerock.openidm.util.ContextUtil;
 import org.forgerock.util.AsyncFunction;
 import org.forgerock.util.promise.Promise;
 import org.forgerock.util.promise.Promises;
@@ -93,7 +106,7 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
 
     /** Actions supported by this service. */
     public enum SyncServiceAction {
-        notifyCreate, notifyUpdate, notifyDelete, recon, performAction, getLinkedResources
+        notifyCreate, notifyUpdate, notifyDelete, recon, performAction, getLinkedResources, getSyncQueueStatus
     }
 
     /** Logger */
@@ -106,6 +119,61 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
     /** The resource name action parameter. */
     public static final String ACTION_PARAM_RESOURCE_NAME = "resourceName";
 
+    /**
+     * The property of the number of threads synchronizing the mappings of a notification concurrently,
+     * 0 (the default) to synchronize the mappings in turn on the notifying thread.
+     */
+    static final String PROP_MAPPING_THREADS = "openidm.sync.mappingthreads";
+
+    /** The property of the {@link MappingFailurePolicy} */
+    static final String PROP_MAPPING_FAILURE_POLICY = "openidm.sync.mappingfailurepolicy";
+
+    /**
+     * What happens to the remaining mappings of a notification once synchronizing a mapping failed.
+     * The notification fails with the first failure either way.
+     */
+    enum MappingFailurePolicy {
+        /** The remaining mappings are skipped, as far as they did not start yet when concurrent */
+        skipRemaining,
+        /** The remaining mappings are synchronized */
+        syncRemaining
+    }
+
+    /** Whether the current thread synchronizes a mapping concurrently, in which case it synchronizes in turn */
+    private static final ThreadLocal<Boolean> concurrentMappingSync = new ThreadLocal<Boolean>();
+
+    /** Synchronizes the mappings of a notification concurrently, null to synchronize them in turn */
+    private volatile ExecutorService mappingExecutor;
+
+    private volatile MappingFailurePolicy mappingFailurePolicy = MappingFailurePolicy.skipRemaining;
+
+    /**
+     * The property of the number of threads synchronizing the changes notified asynchronously,
+     * 0 (the default) to synchronize the changes on the notifying thread.
+     */
+    static final String PROP_ASYNC_THREADS = "openidm.sync.async.threads";
+
+    /** The property of the journal file of the changes notified asynchronously, relative to the working path */
+    static final String PROP_ASYNC_JOURNAL = "openidm.sync.async.journal";
+
+    /** The property of the delay before retrying a failed change the first time, in milliseconds */
+    static final String PROP_ASYNC_RETRY_DELAY = "openidm.sync.async.retrydelay";
+
+    /** The property of the maximum delay before retrying a failed change, in milliseconds */
+    static final String PROP_ASYNC_MAX_RETRY_DELAY = "openidm.sync.async.maxretrydelay";
+
+    /** The property of the number of attempts to synchronize a change before it is dropped */
+    static final String PROP_ASYNC_MAX_ATTEMPTS = "openidm.sync.async.maxattempts";
+
+    /** The property of the number of synchronized changes after which the journal is compacted */
+    static final String PROP_ASYNC_COMPACTION_THRESHOLD = "openidm.sync.async.compactionthreshold";
+
+    /** The prefix of the resource containers of managed objects */
+    private static final String MANAGED_CONTAINER_PREFIX = "managed/";
+
+    /** Queues the changes notified to synchronize them asynchronously, null to synchronize them on notification */
+    private volatile ImplicitSyncQueue syncQueue;
+
     /** The Connection Factory */
     @Reference(policy = ReferencePolicy.STATIC)
     protected IDMConnectionFactory connectionFactory;
@@ -131,10 +199,154 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
 
     @Activate
     protected void activate(ComponentContext context) {
+        configureMappingSync(
+                Integer.parseInt(IdentityServer.getInstance().getProperty(PROP_MAPPING_THREADS, "0")),
+                MappingFailurePolicy.valueOf(IdentityServer.getInstance().getProperty(
+                        PROP_MAPPING_FAILURE_POLICY, MappingFailurePolicy.skipRemaining.name())));
+        IdentityServer identityServer = IdentityServer.getInstance();
+        int asyncThreads = Integer.parseInt(identityServer.getProperty(PROP_ASYNC_THREADS, "0"));
+        if (asyncThreads > 0) {
+            configureSyncQueue(new ImplicitSyncQueue(
+                    IdentityServer.getFileForWorkingPath(
+                            identityServer.getProperty(PROP_ASYNC_JOURNAL, "data/sync/implicitsync.journal")),
+                    asyncThreads,
+                    Long.parseLong(identityServer.getProperty(PROP_ASYNC_RETRY_DELAY, "1000")),
+                    Long.parseLong(identityServer.getProperty(PROP_ASYNC_MAX_RETRY_DELAY, "60000")),
+                    Integer.parseInt(identityServer.getProperty(PROP_ASYNC_MAX_ATTEMPTS, "10")),
+                    Integer.parseInt(identityServer.getProperty(PROP_ASYNC_COMPACTION_THRESHOLD, "1000")),
+                    new ImplicitSyncQueue.Processor() {
+                        @Override
+                        public void process(ImplicitSyncQueue.Change change) throws ResourceException {
+                            syncChange(change);
+                        }
+
+                        @Override
+                        public long getCoalescingWindow(String resourceContainer) {
+                            long window = 0;
+                            for (ObjectMapping mapping : mappings) {
+                                if (mapping.getSourceObjectSet().equals(resourceContainer)) {
+                                    window = Math.max(window, mapping.getCoalescingWindow());
+                                }
+                            }
+                            return window;
+                        }
+                    }));
+        }
     }
 
     @Deactivate
     protected void deactivate(ComponentContext context) {
+        configureMappingSync(0, MappingFailurePolicy.skipRemaining);
+        configureSyncQueue(null);
+    }
+
+    /**
+     * Configures whether the changes notified are synchronized asynchronously.
+     *
+     * @param queue the queue to synchronize the changes asynchronously with, null to synchronize them on
+     * notification
+     */
+    void configureSyncQueue(ImplicitSyncQueue queue) {
+        ImplicitSyncQueue previous = syncQueue;
+        if (queue != null) {
+            try {
+                queue.start();
+                logger.info("Synchronizing the changes notified asynchronously");
+            } catch (IOException e) {
+                logger.error("Failed to start the implicit sync queue, synchronizing the changes on notification", e);
+                queue = null;
+            }
+        }
+        syncQueue = queue;
+        if (previous != null) {
+            previous.stop();
+        }
+    }
+
+    /**
+     * Synchronizes a change taken off the implicit sync queue.
+     *
+     * @param change the change to synchronize
+     * @throws ResourceException if synchronizing the change failed
+     */
+    private void syncChange(ImplicitSyncQueue.Change change) throws ResourceException {
+        Context context = ContextUtil.createInternalContext();
+        ObjectSetContext.push(context);
+        try {
+            switch (change.action) {
+                case notifyCreate:
+                    notifyCreate(context, change.resourceContainer, change.resourceId, change.newValue);
+                    break;
+                case notifyUpdate:
+                    notifyUpdate(context, change.resourceContainer, change.resourceId, change.oldValue,
+                            change.newValue);
+                    break;
+                case notifyDelete:
+                    notifyDelete(context, change.resourceContainer, change.resourceId, change.oldValue);
+                    break;
+                default:
+                    throw new BadRequestException("Action " + change.action + " can not be queued");
+            }
+        } finally {
+            ObjectSetContext.pop();
+        }
+    }
+
+    /**
+     * Queues a change to synchronize it asynchronously, if the changes notified are synchronized asynchronously.
+     * Only the implicit sync of managed objects is queued. Other notifications, such as the changes of a
+     * livesync, are synchronized on notification, as their callers handle the failures themselves, e.g. by
+     * retrying the change and holding back the livesync token. A change with a pending link or unlink action is
+     * synchronized on notification too, as the action is carried by the request context.
+     *
+     * @return true if the change was queued
+     */
+    private boolean enqueueChange(Context context, SyncServiceAction action, String resourceContainer,
+            String resourceId, JsonValue oldValue, JsonValue newValue) throws ResourceException {
+        ImplicitSyncQueue queue = syncQueue;
+        if (queue == null || context.containsContext(PendingActionContext.class)
+                || !isManagedObjectChange(context, resourceContainer)) {
+            return false;
+        }
+        queue.enqueue(action, resourceContainer, resourceId, oldValue, newValue);
+        return true;
+    }
+
+    /**
+     * @return true if the change was notified by the managed object service for a managed object
+     */
+    private boolean isManagedObjectChange(Context context, String resourceContainer) {
+        return context.containsContext(ManagedObjectContext.class)
+                && resourceContainer != null && resourceContainer.startsWith(MANAGED_CONTAINER_PREFIX);
+    }
+
+    /**
+     * Configures how the mappings of a notification are synchronized.
+     *
+     * @param mappingThreads the number of threads synchronizing mappings concurrently, 0 to synchronize them in turn
+     * @param failurePolicy what happens to the remaining mappings once a mapping failed
+     */
+    void configureMappingSync(int mappingThreads, MappingFailurePolicy failurePolicy) {
+        ExecutorService previous = mappingExecutor;
+        mappingFailurePolicy = failurePolicy;
+        if (mappingThreads > 0) {
+            mappingExecutor = Executors.newFixedThreadPool(mappingThreads, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "sync-mapping-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            logger.info("Synchronizing the mappings of a notification concurrently with {} threads", mappingThreads);
+        } else {
+            mappingExecutor = null;
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
     }
 
     @Modified
@@ -158,8 +370,27 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
         JsonValue sync(Context context, ObjectMapping mapping) throws SynchronizationException;
     }
 
+    /**
+     * The outcome of synchronizing a source object to one mapping.
+     */
+    private static class MappingSync {
+        final ObjectMapping mapping;
+        MappingSyncResult result = MappingSyncResult.SUCCESSFUL;
+        JsonValue results = json(array());
+        SynchronizationException exception;
+
+        MappingSync(ObjectMapping mapping) {
+            this.mapping = mapping;
+        }
+    }
+
     /**
      * Synchronize all mappings; keeping track of success/failure conditions.
+     * <p>
+     * The mappings are synchronized concurrently if {@value #PROP_MAPPING_THREADS} is set, and in turn otherwise.
+     * Either way the results are in the order of the mappings, and the notification only returns once all
+     * mappings are synchronized, so the notifications of one source object are synchronized to each mapping in
+     * the order they are made.
      *
      * @param action the {@code SyncAction} to perform
      * @param resourceContainer the source object set
@@ -185,36 +416,32 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
                         && objectMapping.isSourceObject(resourceContainer, resourceId);
             }
         };
+        List<ObjectMapping> matchingMappings = FluentIterable.from(mappings).filter(thatMatchSource).toList();
+
+        List<MappingSync> mappingSyncs;
+        ExecutorService executor = mappingExecutor;
+        if (executor != null && matchingMappings.size() > 1 && concurrentMappingSync.get() == null) {
+            mappingSyncs = syncMappingsConcurrently(executor, context, action, matchingMappings);
+        } else {
+            mappingSyncs = new ArrayList<>(matchingMappings.size());
+            boolean failed = false;
+            for (ObjectMapping mapping : matchingMappings) {
+                MappingSync mappingSync = syncMapping(context, action, mapping, failed);
+                failed |= mappingSync.exception != null;
+                mappingSyncs.add(mappingSync);
+            }
+        }
 
-        for (final ObjectMapping mapping : FluentIterable.from(mappings).filter(thatMatchSource)) {
-            JsonValue mappingResults = json(array());
-            MappingSyncResult result = MappingSyncResult.SUCCESSFUL;
-            try {
-                if (exceptionPending == null) {
-                    // No failures yet, perform sync
-                    // This operation returns a list which will contain more than one result if 
-                    // there are multiple targets to sync the source to
-                    mappingResults = action.sync(context, mapping);
-                } else {
-                    // we've already failed, skip the sync attempt
-                    result = MappingSyncResult.SKIPPED;
-                }
-            } catch (SynchronizationException e) {
-                // failed to sync; store the exception and mark as failed
-                exceptionPending = new SynchronizationException(e.getMessage(), e.getCause());
-                // the exception detail contains the mapping result
-                JsonValue failedResult = e.getDetail();
-                failedResult.put("cause", exceptionPending.toJsonValue().getObject());
-                mappingResults.add(failedResult);
-                result = MappingSyncResult.FAILED;
-            } finally {
-                // Loop over each result, setting result fields and adding to syncDetails list
-                for (JsonValue mappingResult : mappingResults) {
-                    mappingResult.put("result", result.name());
-                    mappingResult.put("mapping", mapping.getName());
-                    mappingResult.put("targetObjectSet", mapping.getTargetObjectSet());
-                    syncDetails.add(mappingResult);
-                }
+        for (MappingSync mappingSync : mappingSyncs) {
+            if (exceptionPending == null) {
+                exceptionPending = mappingSync.exception;
+            }
+            // Loop over each result, setting result fields and adding to syncDetails list
+            for (JsonValue mappingResult : mappingSync.results) {
+                mappingResult.put("result", mappingSync.result.name());
+                mappingResult.put("mapping", mappingSync.mapping.getName());
+                mappingResult.put("targetObjectSet", mappingSync.mapping.getTargetObjectSet());
+                syncDetails.add(mappingResult);
             }
         }
 
@@ -228,6 +455,87 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
         return syncDetails;
     }
 
+    /**
+     * Synchronizes a source object to a mapping.
+     *
+     * @param context the context of the notification
+     * @param action the {@code SyncAction} to perform
+     * @param mapping the mapping to synchronize
+     * @param failed whether synchronizing another mapping of the notification failed
+     * @return the outcome of the synchronization
+     */
+    private MappingSync syncMapping(Context context, SyncAction action, ObjectMapping mapping, boolean failed) {
+        MappingSync mappingSync = new MappingSync(mapping);
+        if (failed && mappingFailurePolicy == MappingFailurePolicy.skipRemaining) {
+            // we've already failed, skip the sync attempt
+            mappingSync.result = MappingSyncResult.SKIPPED;
+            return mappingSync;
+        }
+        try {
+            // This operation returns a list which will contain more than one result if
+            // there are multiple targets to sync the source to
+            mappingSync.results = action.sync(context, mapping);
+        } catch (SynchronizationException e) {
+            // failed to sync; store the exception and mark as failed
+            mappingSync.exception = new SynchronizationException(e.getMessage(), e.getCause());
+            // the exception detail contains the mapping result
+            JsonValue failedResult = e.getDetail();
+            failedResult.put("cause", mappingSync.exception.toJsonValue().getObject());
+            mappingSync.results.add(failedResult);
+            mappingSync.result = MappingSyncResult.FAILED;
+        }
+        return mappingSync;
+    }
+
+    /**
+     * Synchronizes a source object to mappings concurrently, and waits for them to complete. A mapping which did
+     * not start yet when another one failed is skipped, depending on the {@link MappingFailurePolicy}.
+     *
+     * @return the outcomes of the synchronizations, in the order of the mappings
+     * @throws SynchronizationException if interrupted while waiting for the mappings
+     */
+    private List<MappingSync> syncMappingsConcurrently(ExecutorService executor, final Context context,
+            final SyncAction action, List<ObjectMapping> matchingMappings) throws SynchronizationException {
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<Future<MappingSync>> futures = new ArrayList<>(matchingMappings.size());
+        for (final ObjectMapping mapping : matchingMappings) {
+            futures.add(executor.submit(new Callable<MappingSync>() {
+                @Override
+                public MappingSync call() throws Exception {
+                    concurrentMappingSync.set(Boolean.TRUE);
+                    ObjectSetContext.push(context);
+                    try {
+                        MappingSync mappingSync = syncMapping(context, action, mapping, failed.get());
+                        if (mappingSync.exception != null) {
+                            failed.set(true);
+                        }
+                        return mappingSync;
+                    } finally {
+                        ObjectSetContext.pop();
+                        concurrentMappingSync.remove();
+                    }
+                }
+            }));
+        }
+        List<MappingSync> mappingSyncs = new ArrayList<>(futures.size());
+        for (Future<MappingSync> future : futures) {
+            try {
+                mappingSyncs.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SynchronizationException("Interrupted while synchronizing mappings", e);
+            } catch (java.util.concurrent.ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new SynchronizationException(e.getCause());
+            }
+        }
+        return mappingSyncs;
+    }
+
     private JsonValue notifyCreate(Context context, final String resourceContainer, final String resourceId, final JsonValue object)
             throws SynchronizationException {
         // Handle pending link action if present
@@ -324,16 +632,28 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
                     resourceContainer = _params.get(ACTION_PARAM_RESOURCE_CONTAINER).required().asString();
                     resourceId = _params.get(ACTION_PARAM_RESOURCE_ID).required().asString();
                     logger.debug("Synchronization action=notifyCreate, resourceContainer={}, resourceId={} ", resourceContainer, resourceId);
+                    if (enqueueChange(context, SyncServiceAction.notifyCreate, resourceContainer, resourceId,
+                            json(null), request.getContent().get("newValue"))) {
+                        return newActionResponse(json(array())).asPromise();
+                    }
                     return newActionResponse(notifyCreate(context, resourceContainer, resourceId, request.getContent().get("newValue"))).asPromise();
                 case notifyUpdate:
                     resourceContainer = _params.get(ACTION_PARAM_RESOURCE_CONTAINER).required().asString();
                     resourceId = _params.get(ACTION_PARAM_RESOURCE_ID).required().asString();
                     logger.debug("Synchronization action=notifyUpdate, resourceContainer={}, resourceId={}", resourceContainer, resourceId);
+                    if (enqueueChange(context, SyncServiceAction.notifyUpdate, resourceContainer, resourceId,
+                            request.getContent().get("oldValue"), request.getContent().get("newValue"))) {
+                        return newActionResponse(json(array())).asPromise();
+                    }
                     return newActionResponse(notifyUpdate(context, resourceContainer, resourceId, request.getContent().get("oldValue"), request.getContent().get("newValue"))).asPromise();
                 case notifyDelete:
                     resourceContainer = _params.get(ACTION_PARAM_RESOURCE_CONTAINER).required().asString();
                     resourceId = _params.get(ACTION_PARAM_RESOURCE_ID).required().asString();
                     logger.debug("Synchronization action=notifyDelete, resourceContainer={}, resourceId={}", resourceContainer, resourceId);
+                    if (enqueueChange(context, SyncServiceAction.notifyDelete, resourceContainer, resourceId,
+                            request.getContent().get("oldValue"), json(null))) {
+                        return newActionResponse(json(array())).asPromise();
+                    }
                     return newActionResponse(notifyDelete(context, resourceContainer, resourceId, request.getContent().get("oldValue"))).asPromise();
                 case recon:
                     JsonValue result = new JsonValue(new HashMap<String, Object>());
@@ -353,6 +673,11 @@ public class SynchronizationService implements SingletonResourceProvider, Schedu
                     return newActionResponse(json(object())).asPromise();
                 case getLinkedResources:
                     return getLinkedResources(context, resourcePath(request.getAdditionalParameter(ACTION_PARAM_RESOURCE_NAME)));
+                case getSyncQueueStatus:
+                    ImplicitSyncQueue queue = syncQueue;
+                    return newActionResponse(queue != null
+                            ? new JsonValue(queue.getStatus())
+                            : json(object(field("enabled", false)))).asPromise();
                 default:
                     throw new BadRequestException("Action" + request.getAction() + " is not supported.");
             }
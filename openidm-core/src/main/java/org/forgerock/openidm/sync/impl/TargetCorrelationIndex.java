@@ -0,0 +1,268 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.json;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.QueryFilters;
+import org.forgerock.util.query.QueryFilter;
+import org.forgerock.util.query.QueryFilterVisitor;
+
+/**
+ * A hash index over the target objects preloaded by the recon target query, answering simple correlation
+ * query filters locally instead of querying the target system for every source object.
+ * <p>
+ * Filters consisting of an equality assertion, or of a conjunction of equality assertions, are answered.
+ * Attributes are indexed on first use; multi-valued attributes are indexed by each of their values.
+ * Any other filter is not answered, and left to the target system.
+ */
+class TargetCorrelationIndex {
+
+    /** Marks an attribute value which is not indexed, e.g. an object */
+    private static final Object NOT_INDEXED = new Object();
+
+    private final Collection<JsonValue> targets;
+    private final boolean caseSensitive;
+
+    /** The targets by indexed value, per attribute */
+    private final ConcurrentMap<JsonPointer, Map<Object, List<JsonValue>>> indexes =
+            new ConcurrentHashMap<JsonPointer, Map<Object, List<JsonValue>>>();
+
+    /**
+     * @param targets the preloaded target objects
+     * @param caseSensitive whether string values are matched case sensitively, as by the target system
+     */
+    TargetCorrelationIndex(Collection<JsonValue> targets, boolean caseSensitive) {
+        this.targets = targets;
+        this.caseSensitive = caseSensitive;
+    }
+
+    /**
+     * Answers a correlation query filter from the index.
+     *
+     * @param filter the query filter of a correlation query
+     * @return the matching target objects, or null if the filter is not simple enough to be answered
+     */
+    JsonValue correlate(String filter) {
+        Map<JsonPointer, Object> assertions;
+        try {
+            assertions = QueryFilters.parse(filter).accept(EQUALITY_ASSERTIONS, null);
+        } catch (IllegalArgumentException e) {
+            // Not a valid filter, left for the target system to report
+            return null;
+        }
+        if (assertions == null || assertions.isEmpty()) {
+            return null;
+        }
+        List<JsonValue> candidates = null;
+        for (Map.Entry<JsonPointer, Object> assertion : assertions.entrySet()) {
+            Object key = indexKey(assertion.getValue());
+            if (key == NOT_INDEXED) {
+                return null;
+            }
+            List<JsonValue> matches = getIndex(assertion.getKey()).get(key);
+            if (matches == null) {
+                return json(array());
+            }
+            if (candidates == null) {
+                candidates = matches;
+            } else {
+                List<JsonValue> intersection = new ArrayList<JsonValue>();
+                for (JsonValue candidate : candidates) {
+                    // Targets are indexed by identity
+                    for (JsonValue match : matches) {
+                        if (match == candidate) {
+                            intersection.add(candidate);
+                            break;
+                        }
+                    }
+                }
+                candidates = intersection;
+            }
+        }
+        JsonValue result = json(array());
+        for (JsonValue candidate : candidates) {
+            result.add(candidate.copy().getObject());
+        }
+        return result;
+    }
+
+    private Map<Object, List<JsonValue>> getIndex(JsonPointer attribute) {
+        Map<Object, List<JsonValue>> index = indexes.get(attribute);
+        if (index == null) {
+            index = buildIndex(attribute);
+            Map<Object, List<JsonValue>> existing = indexes.putIfAbsent(attribute, index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    private Map<Object, List<JsonValue>> buildIndex(JsonPointer attribute) {
+        Map<Object, List<JsonValue>> index = new HashMap<Object, List<JsonValue>>();
+        for (JsonValue target : targets) {
+            JsonValue value = target.get(attribute);
+            if (value == null || value.isNull()) {
+                continue;
+            }
+            if (value.isList()) {
+                for (JsonValue element : value) {
+                    addToIndex(index, element.getObject(), target);
+                }
+            } else {
+                addToIndex(index, value.getObject(), target);
+            }
+        }
+        return index;
+    }
+
+    private void addToIndex(Map<Object, List<JsonValue>> index, Object value, JsonValue target) {
+        Object key = indexKey(value);
+        if (key == NOT_INDEXED) {
+            return;
+        }
+        List<JsonValue> indexed = index.get(key);
+        if (indexed == null) {
+            indexed = new ArrayList<JsonValue>(1);
+            index.put(key, indexed);
+        }
+        if (!indexed.contains(target)) {
+            indexed.add(target);
+        }
+    }
+
+    /**
+     * @param value an attribute or assertion value
+     * @return the key to index the value by, so that values considered equal have equal keys
+     */
+    private Object indexKey(Object value) {
+        if (value instanceof String) {
+            return caseSensitive ? value : ((String) value).toLowerCase(Locale.ROOT);
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return value;
+        }
+        return NOT_INDEXED;
+    }
+
+    /**
+     * Collects the equality assertions of a filter consisting only of equality assertions combined with
+     * "and", or returns null for any other filter.
+     */
+    private static final QueryFilterVisitor<Map<JsonPointer, Object>, Void, JsonPointer> EQUALITY_ASSERTIONS =
+            new QueryFilterVisitor<Map<JsonPointer, Object>, Void, JsonPointer>() {
+                @Override
+                public Map<JsonPointer, Object> visitAndFilter(Void p, List<QueryFilter<JsonPointer>> subFilters) {
+                    Map<JsonPointer, Object> assertions = new LinkedHashMap<JsonPointer, Object>();
+                    for (QueryFilter<JsonPointer> subFilter : subFilters) {
+                        Map<JsonPointer, Object> subAssertions = subFilter.accept(this, p);
+                        if (subAssertions == null) {
+                            return null;
+                        }
+                        for (Map.Entry<JsonPointer, Object> subAssertion : subAssertions.entrySet()) {
+                            Object existing = assertions.put(subAssertion.getKey(), subAssertion.getValue());
+                            if (existing != null && !existing.equals(subAssertion.getValue())) {
+                                // Conflicting assertions on the same attribute
+                                return null;
+                            }
+                        }
+                    }
+                    return assertions;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitEqualsFilter(Void p, JsonPointer field, Object valueAssertion) {
+                    return Collections.singletonMap(field, valueAssertion);
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitBooleanLiteralFilter(Void p, boolean value) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitContainsFilter(Void p, JsonPointer field, Object valueAssertion) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitExtendedMatchFilter(Void p, JsonPointer field,
+                        String operator, Object valueAssertion) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitGreaterThanFilter(Void p, JsonPointer field,
+                        Object valueAssertion) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitGreaterThanOrEqualToFilter(Void p, JsonPointer field,
+                        Object valueAssertion) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitLessThanFilter(Void p, JsonPointer field,
+                        Object valueAssertion) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitLessThanOrEqualToFilter(Void p, JsonPointer field,
+                        Object valueAssertion) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitNotFilter(Void p, QueryFilter<JsonPointer> subFilter) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitOrFilter(Void p, List<QueryFilter<JsonPointer>> subFilters) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitPresentFilter(Void p, JsonPointer field) {
+                    return null;
+                }
+
+                @Override
+                public Map<JsonPointer, Object> visitStartsWithFilter(Void p, JsonPointer field,
+                        Object valueAssertion) {
+                    return null;
+                }
+            };
+}
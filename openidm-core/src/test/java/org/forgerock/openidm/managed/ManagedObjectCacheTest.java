@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.managed;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.resource.ResourcePath;
+import org.forgerock.json.resource.ResourceResponse;
+import org.testng.annotations.Test;
+
+public class ManagedObjectCacheTest {
+
+    private static final ResourcePath ROLES = new ResourcePath("managed", "role");
+    private static final List<JsonPointer> NO_FIELDS = Collections.emptyList();
+    private static final List<JsonPointer> ASSIGNMENTS = Collections.singletonList(new JsonPointer("assignments"));
+
+    private ManagedObjectCache newCache(long timeToLive, int maxEntries) {
+        ManagedObjectCache cache = new ManagedObjectCache(timeToLive, maxEntries);
+        cache.register(ROLES);
+        return cache;
+    }
+
+    private ResourceResponse role(String name) {
+        return newResourceResponse("1", "0", json(object(field("_id", "1"), field("name", name))));
+    }
+
+    @Test
+    public void testCachesCopiesPerRequestedFields() {
+        ManagedObjectCache cache = newCache(60000, 10);
+        ResourceResponse role = role("admin");
+        cache.put(ROLES, "1", NO_FIELDS, role, cache.getGeneration());
+        role.getContent().put("name", "changed");
+
+        ResourceResponse cached = cache.get(ROLES, "1", NO_FIELDS);
+        assertThat(cached.getContent().get("name").asString()).isEqualTo("admin");
+        cached.getContent().remove("name");
+        assertThat(cache.get(ROLES, "1", NO_FIELDS).getContent().get("name").asString()).isEqualTo("admin");
+        assertThat(cache.get(ROLES, "1", ASSIGNMENTS)).isNull();
+        assertThat(cache.get(ROLES, "2", NO_FIELDS)).isNull();
+    }
+
+    @Test
+    public void testIgnoresReadsStartedBeforeAnInvalidation() {
+        ManagedObjectCache cache = newCache(60000, 10);
+        long generation = cache.getGeneration();
+        cache.invalidate();
+        cache.put(ROLES, "1", NO_FIELDS, role("admin"), generation);
+        assertThat(cache.get(ROLES, "1", NO_FIELDS)).isNull();
+    }
+
+    @Test
+    public void testInvalidatesOnRelationshipsToCachedTypes() {
+        ManagedObjectCache cache = newCache(60000, 10);
+        cache.put(ROLES, "1", NO_FIELDS, role("admin"), cache.getGeneration());
+        cache.invalidateReferences("managed/user/1", "managed/device/1");
+        assertThat(cache.size()).isEqualTo(1);
+        cache.invalidateReferences("managed/user/1", "managed/role/1");
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDoesNotCacheUnregisteredTypes() {
+        ManagedObjectCache cache = newCache(60000, 10);
+        cache.unregister(ROLES);
+        cache.put(ROLES, "1", NO_FIELDS, role("admin"), cache.getGeneration());
+        assertThat(cache.get(ROLES, "1", NO_FIELDS)).isNull();
+    }
+
+    @Test
+    public void testExpiresAndBoundsEntries() {
+        ManagedObjectCache expiring = newCache(-1, 10);
+        expiring.put(ROLES, "1", NO_FIELDS, role("admin"), expiring.getGeneration());
+        assertThat(expiring.get(ROLES, "1", NO_FIELDS)).isNull();
+
+        ManagedObjectCache bounded = newCache(60000, 2);
+        bounded.put(ROLES, "1", NO_FIELDS, role("admin"), bounded.getGeneration());
+        bounded.put(ROLES, "2", NO_FIELDS, role("user"), bounded.getGeneration());
+        bounded.put(ROLES, "3", NO_FIELDS, role("guest"), bounded.getGeneration());
+        assertThat(bounded.size()).isEqualTo(1);
+        assertThat(bounded.get(ROLES, "3", NO_FIELDS)).isNotNull();
+    }
+}
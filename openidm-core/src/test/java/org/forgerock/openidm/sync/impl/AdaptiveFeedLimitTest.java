@@ -0,0 +1,83 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class AdaptiveFeedLimitTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void testIncreasesUpToMaximumWithSteadyLatency() {
+        AdaptiveFeedLimit feedLimit = new AdaptiveFeedLimit(10, 1000, 2.0);
+        assertThat(feedLimit.getLimit()).isEqualTo(10);
+        complete(feedLimit, 10, FAST);
+        assertThat(feedLimit.getLimit()).isEqualTo(20);
+        complete(feedLimit, 20, FAST);
+        assertThat(feedLimit.getLimit()).isEqualTo(40);
+        complete(feedLimit, 10000, FAST);
+        assertThat(feedLimit.getLimit()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testDecreasesOnLatencyIncrease() {
+        AdaptiveFeedLimit feedLimit = new AdaptiveFeedLimit(10, 1000, 2.0);
+        complete(feedLimit, 10 + 20 + 40, FAST);
+        assertThat(feedLimit.getLimit()).isEqualTo(80);
+        complete(feedLimit, 80, SLOW);
+        assertThat(feedLimit.getLimit()).isEqualTo(72);
+        // Grows additively once recovered
+        complete(feedLimit, 200, FAST);
+        assertThat(feedLimit.getLimit()).isBetween(73, 75);
+    }
+
+    @Test
+    public void testHalvesOnFailureOncePerWindow() {
+        AdaptiveFeedLimit feedLimit = new AdaptiveFeedLimit(10, 1000, 2.0);
+        complete(feedLimit, 10 + 20 + 40, FAST);
+        assertThat(feedLimit.getLimit()).isEqualTo(80);
+        feedLimit.completed(FAST, true);
+        feedLimit.completed(FAST, true);
+        assertThat(feedLimit.getLimit()).isEqualTo(40);
+        assertThat(feedLimit.asMap().get("failures")).isEqualTo(2L);
+    }
+
+    @Test
+    public void testNeverBelowMinimum() {
+        AdaptiveFeedLimit feedLimit = new AdaptiveFeedLimit(10, 1000, 2.0);
+        for (int i = 0; i < 100; i++) {
+            feedLimit.completed(SLOW, true);
+        }
+        assertThat(feedLimit.getLimit()).isEqualTo(10);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRange() {
+        new AdaptiveFeedLimit(100, 10, 2.0);
+    }
+
+    private void complete(AdaptiveFeedLimit feedLimit, int tasks, long latencyNanos) {
+        for (int i = 0; i < tasks; i++) {
+            feedLimit.completed(latencyNanos, false);
+        }
+    }
+}
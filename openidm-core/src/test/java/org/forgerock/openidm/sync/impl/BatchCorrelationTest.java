@@ -0,0 +1,239 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newQueryResponse;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.ids;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.iterate;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.links;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.sources;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.targetConnection;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.script.Bindings;
+import javax.script.SimpleBindings;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.openidm.util.Scripts;
+import org.forgerock.script.Script;
+import org.forgerock.script.ScriptEntry;
+import org.forgerock.script.ScriptRegistry;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the batched correlation of the source entries of a recon source phase.
+ */
+public class BatchCorrelationTest {
+
+    private final Context context = new RootContext();
+
+    private Connection connection;
+    private ReconciliationContext reconContext;
+
+    /** The target objects the target system holds */
+    private List<JsonValue> targets;
+
+    /** The queries received by the target system */
+    private List<QueryRequest> queries;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        // The correlation query matches the mail of the source object
+        Script correlationQuery = mock(Script.class);
+        when(correlationQuery.createBindings()).thenAnswer(new Answer<Bindings>() {
+            @Override
+            public Bindings answer(InvocationOnMock invocation) throws Throwable {
+                return new SimpleBindings();
+            }
+        });
+        when(correlationQuery.eval(any(Bindings.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Map<?, ?> source = (Map<?, ?>) ((Bindings) invocation.getArguments()[0]).get("source");
+                return object(field(QueryRequest.FIELD_QUERY_FILTER, "mail eq \"" + source.get("mail") + "\""));
+            }
+        });
+        ScriptEntry scriptEntry = mock(ScriptEntry.class);
+        when(scriptEntry.getScript(any(Context.class))).thenReturn(correlationQuery);
+        ScriptRegistry scriptRegistry = mock(ScriptRegistry.class);
+        when(scriptRegistry.takeScript(any(JsonValue.class))).thenReturn(scriptEntry);
+        Scripts.init(scriptRegistry);
+
+        targets = new ArrayList<>();
+        queries = new ArrayList<>();
+        connection = targetConnection(targets, queries);
+
+        reconContext = mock(ReconciliationContext.class);
+    }
+
+    @Test
+    public void testUnlinkedSourcesAreCorrelatedWithOneOrFilter() throws Exception {
+        givenTarget("alice@example.com");
+        ObjectMapping mapping = newMapping(10);
+
+        List<ResultEntry> entries = iterate(mapping.batchCorrelating(
+                sources("alice", "bob", "carol").iterator(), reconContext, context, links("carol")));
+
+        assertThat(ids(entries)).containsExactly("alice", "bob", "carol");
+        assertThat(queries).hasSize(1);
+        String filter = queries.get(0).getQueryFilter().toString();
+        assertThat(filter).contains(" or ").contains("\"alice@example.com\"").contains("\"bob@example.com\"");
+        // The linked source is not correlated
+        assertThat(filter).doesNotContain("carol");
+    }
+
+    @Test
+    public void testResultsAreSplitBackToEachSource() throws Exception {
+        givenTarget("alice@example.com");
+        givenTarget("bob@example.com");
+        ObjectMapping mapping = newMapping(10);
+
+        iterate(mapping.batchCorrelating(
+                sources("alice", "bob", "dave").iterator(), reconContext, context, links()));
+
+        Map<String, JsonValue> results = correlatedTargets();
+        assertThat(results.keySet()).containsOnly("alice", "bob", "dave");
+        assertThat(targetIds(results.get("alice"))).containsExactly("target-alice");
+        assertThat(targetIds(results.get("bob"))).containsExactly("target-bob");
+        // Without a match the source is correlated to no target, rather than correlated again on its own
+        assertThat(targetIds(results.get("dave"))).isEmpty();
+    }
+
+    @Test
+    public void testSourcesAreCorrelatedInBatchesOfTheConfiguredSize() throws Exception {
+        ObjectMapping mapping = newMapping(2);
+
+        List<ResultEntry> entries = iterate(mapping.batchCorrelating(
+                sources("alice", "bob", "carol").iterator(), reconContext, context, links()));
+
+        assertThat(ids(entries)).containsExactly("alice", "bob", "carol");
+        assertThat(queries).hasSize(2);
+        verify(reconContext, times(2)).addCorrelatedTargets(eq(Link.DEFAULT_LINK_QUALIFIER), anyMap());
+    }
+
+    @Test
+    public void testTargetMatchingNoFilterLeavesEachSourceToItsOwnCorrelation() throws Exception {
+        // The target system matches differently than the filters evaluated locally, e.g. case insensitively
+        when(connection.query(any(Context.class), any(QueryRequest.class), any(QueryResourceHandler.class)))
+                .thenAnswer(new Answer<QueryResponse>() {
+                    @Override
+                    public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                        QueryResourceHandler handler = (QueryResourceHandler) invocation.getArguments()[2];
+                        handler.handleResource(newResourceResponse("target-alice", null,
+                                json(object(field("_id", "target-alice"), field("mail", "ALICE@EXAMPLE.COM")))));
+                        return newQueryResponse();
+                    }
+                });
+        ObjectMapping mapping = newMapping(10);
+
+        List<ResultEntry> entries = iterate(mapping.batchCorrelating(
+                sources("alice", "bob").iterator(), reconContext, context, links()));
+
+        assertThat(ids(entries)).containsExactly("alice", "bob");
+        assertThat(correlatedTargets()).isEmpty();
+    }
+
+    @Test
+    public void testFailedQueryLeavesEachSourceToItsOwnCorrelation() throws Exception {
+        when(connection.query(any(Context.class), any(QueryRequest.class), any(QueryResourceHandler.class)))
+                .thenThrow(new InternalServerErrorException("Target system unavailable"));
+        ObjectMapping mapping = newMapping(10);
+
+        List<ResultEntry> entries = iterate(mapping.batchCorrelating(
+                sources("alice", "bob").iterator(), reconContext, context, links()));
+
+        assertThat(ids(entries)).containsExactly("alice", "bob");
+        verify(reconContext, never()).addCorrelatedTargets(anyString(), anyMap());
+    }
+
+    @Test
+    public void testSourcesAreNotBatchedWithoutABatchSizeOrPrefetchedLinks() throws Exception {
+        Iterator<ResultEntry> sources = sources("alice", "bob").iterator();
+
+        assertThat(newMapping(0).batchCorrelating(sources, reconContext, context, links())).isSameAs(sources);
+        assertThat(newMapping(10).batchCorrelating(sources, reconContext, context, null)).isSameAs(sources);
+    }
+
+    private ObjectMapping newMapping(int correlationBatchSize) throws Exception {
+        ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        ObjectMapping mapping = new ObjectMapping(connectionFactory, json(object(
+                field("name", "testMapping"),
+                field("source", "system/ldap/account"),
+                field("target", "managed/user"),
+                field("correlationQuery", object(field("type", "text/javascript"), field("source", "query"))),
+                field("correlationBatchSize", correlationBatchSize))));
+        mapping.linkType = mock(LinkType.class);
+        when(mapping.linkType.normalizeSourceId(anyString())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[0];
+            }
+        });
+        return mapping;
+    }
+
+    private void givenTarget(String mail) {
+        targets.add(json(object(field("_id", "target-" + mail.substring(0, mail.indexOf('@'))), field("mail", mail))));
+    }
+
+    /**
+     * @return the correlation results handed to the sync operations, merged across batches
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, JsonValue> correlatedTargets() {
+        ArgumentCaptor<Map> results = ArgumentCaptor.forClass(Map.class);
+        verify(reconContext, times(1)).addCorrelatedTargets(eq(Link.DEFAULT_LINK_QUALIFIER), results.capture());
+        return results.getValue();
+    }
+
+    private static List<String> targetIds(JsonValue targets) {
+        List<String> ids = new ArrayList<>();
+        for (JsonValue target : targets) {
+            ids.add(target.get("_id").asString());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class CompactIdSetTest {
+
+    @Test
+    public void testKeepsInsertionOrder() {
+        CompactIdSet ids = new CompactIdSet(Arrays.asList("Id3", "Id1", "Id2"));
+        assertThat(ids).containsExactly("Id3", "Id1", "Id2");
+        assertThat(ids.add("Id1")).isFalse();
+        assertThat(ids).hasSize(3);
+    }
+
+    @Test
+    public void testAddAndRemoveMatchesHashSet() {
+        CompactIdSet ids = new CompactIdSet();
+        Set<String> expected = new LinkedHashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            String id = "Id" + random.nextInt(20000) + "é";
+            if (random.nextInt(3) == 0) {
+                assertThat(ids.remove(id)).isEqualTo(expected.remove(id));
+            } else {
+                assertThat(ids.add(id)).isEqualTo(expected.add(id));
+            }
+        }
+        assertThat(ids).hasSameSizeAs(expected);
+        assertThat(ids).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        CompactIdSet ids = new CompactIdSet(Arrays.asList("Id1", "Id2", "Id3", "Id4"));
+        Iterator<String> iter = ids.iterator();
+        while (iter.hasNext()) {
+            if (iter.next().equals("Id2")) {
+                iter.remove();
+            }
+        }
+        assertThat(ids).containsExactly("Id1", "Id3", "Id4");
+        assertThat(ids.contains("Id2")).isFalse();
+    }
+
+    @Test
+    public void testMapValues() {
+        CompactIdMap map = new CompactIdMap(2, 4);
+        map.put("Id1", "a", null);
+        map.put("Id2", "b", "c");
+        map.put("Id1", "d", "e");
+        assertThat(map.get("Id1")).containsExactly("d", "e");
+        assertThat(map.get("Id2")).containsExactly("b", "c");
+        assertThat(map.get("Id3")).isNull();
+        assertThat(map.size()).isEqualTo(2);
+    }
+}
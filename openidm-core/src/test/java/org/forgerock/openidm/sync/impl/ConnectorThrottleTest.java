@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.resource.Requests.newReadRequest;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.ReadRequest;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ConnectorThrottleTest {
+
+    private final Context context = new RootContext();
+    private Semaphore permits;
+    private ConnectionFactory throttled;
+    /** The resource paths read, and the permits available during each read */
+    private List<String> reads;
+    private List<Integer> availablePermits;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        permits = new Semaphore(2);
+        reads = new ArrayList<>();
+        availablePermits = new ArrayList<>();
+        Connection connection = mock(Connection.class);
+        when(connection.read(any(Context.class), any(ReadRequest.class))).thenAnswer(
+                new Answer<ResourceResponse>() {
+                    @Override
+                    public ResourceResponse answer(InvocationOnMock invocation) throws Throwable {
+                        ReadRequest request = (ReadRequest) invocation.getArguments()[1];
+                        reads.add(request.getResourcePath());
+                        availablePermits.add(permits.availablePermits());
+                        if (request.getResourcePath().equals("system/ldap/account/nested")) {
+                            // A nested connector request, as from a script
+                            throttled.getConnection().read(context, newReadRequest("system/ldap/group/1"));
+                        }
+                        return newResourceResponse("1", null, new JsonValue(null));
+                    }
+                });
+        ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        throttled = ConnectorThrottle.wrap(connectionFactory);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        ConnectorThrottle.exit();
+    }
+
+    @Test
+    public void testConnectorRequestsHoldPermit() throws Exception {
+        ConnectorThrottle.enter(permits);
+        throttled.getConnection().read(context, newReadRequest("system/ldap/account/1"));
+        throttled.getConnection().read(context, newReadRequest("repo/link/1"));
+        assertThat(reads).containsExactly("system/ldap/account/1", "repo/link/1");
+        assertThat(availablePermits).containsExactly(1, 2);
+        assertThat(permits.availablePermits()).isEqualTo(2);
+    }
+
+    @Test
+    public void testNestedConnectorRequestsShareThePermit() throws Exception {
+        ConnectorThrottle.enter(permits);
+        throttled.getConnection().read(context, newReadRequest("system/ldap/account/nested"));
+        assertThat(reads).containsExactly("system/ldap/account/nested", "system/ldap/group/1");
+        assertThat(availablePermits).containsExactly(1, 1);
+        // The permit is taken again after the nested request completed
+        throttled.getConnection().read(context, newReadRequest("system/ldap/account/1"));
+        assertThat(availablePermits).containsExactly(1, 1, 1);
+        assertThat(permits.availablePermits()).isEqualTo(2);
+    }
+
+    @Test
+    public void testNotLimitedWithoutPermits() throws Exception {
+        throttled.getConnection().read(context, newReadRequest("system/ldap/account/1"));
+        assertThat(availablePermits).containsExactly(2);
+    }
+}
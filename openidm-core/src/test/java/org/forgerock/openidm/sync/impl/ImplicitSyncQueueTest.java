@@ -0,0 +1,212 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openidm.sync.impl.SynchronizationService.SyncServiceAction.notifyCreate;
+import static org.forgerock.openidm.sync.impl.SynchronizationService.SyncServiceAction.notifyDelete;
+import static org.forgerock.openidm.sync.impl.SynchronizationService.SyncServiceAction.notifyUpdate;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.ResourceException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ImplicitSyncQueueTest {
+
+    private File journal;
+    /** The changes synchronized, as action:id:newValue */
+    private List<String> synced;
+    /** Holds the processor until released */
+    private CountDownLatch release;
+    /** The coalescing window of managed/user */
+    private long window;
+    private ImplicitSyncQueue queue;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        journal = File.createTempFile("implicitsync", ".journal");
+        synced = new CopyOnWriteArrayList<>();
+        release = new CountDownLatch(0);
+        window = 0;
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (queue != null) {
+            queue.stop();
+        }
+        journal.delete();
+    }
+
+    private ImplicitSyncQueue newQueue(int maxAttempts, final AtomicInteger failures) {
+        return new ImplicitSyncQueue(journal, 1, 10, 100, maxAttempts, 5, new ImplicitSyncQueue.Processor() {
+            @Override
+            public void process(ImplicitSyncQueue.Change change) throws ResourceException {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new InternalServerErrorException(e);
+                }
+                if (failures != null && failures.getAndDecrement() > 0) {
+                    throw new InternalServerErrorException("Target unavailable");
+                }
+                String value = change.newValue.isMap() ? change.newValue.get("v").asString() : null;
+                synced.add(change.action + ":" + change.resourceId + ":" + value);
+            }
+
+            @Override
+            public long getCoalescingWindow(String resourceContainer) {
+                return resourceContainer.equals("managed/user") ? window : 0;
+            }
+        });
+    }
+
+    @Test
+    public void testCoalescesChangesOfAnObject() throws Exception {
+        release = new CountDownLatch(1);
+        queue = newQueue(1, null);
+        queue.start();
+        enqueue(notifyUpdate, "busy", "1");
+        awaitStatus("inProgress", 1);
+        // coalesced with each other, but not with the change being synchronized
+        enqueue(notifyUpdate, "busy", "2");
+        enqueue(notifyUpdate, "busy", "3");
+        enqueue(notifyCreate, "new", "1");
+        enqueue(notifyUpdate, "new", "2");
+        enqueue(notifyCreate, "gone", "1");
+        enqueue(notifyDelete, "gone", null);
+        assertThat(queue.getStatus()).containsEntry("depth", 3).containsEntry("coalesced", 3L);
+        release.countDown();
+        awaitStatus("depth", 0);
+
+        assertThat(synced).containsOnly("notifyUpdate:busy:1", "notifyUpdate:busy:3", "notifyCreate:new:2");
+        assertThat(synced.indexOf("notifyUpdate:busy:1")).isLessThan(synced.indexOf("notifyUpdate:busy:3"));
+        assertThat(queue.getStatus()).containsEntry("processed", 3L).containsEntry("lag", 0L);
+    }
+
+    @Test
+    public void testHoldsChangesForTheCoalescingWindow() throws Exception {
+        window = 200;
+        queue = newQueue(1, null);
+        queue.start();
+        enqueue(notifyCreate, "1", "1");
+        enqueue(notifyUpdate, "1", "2");
+        enqueue(notifyUpdate, "1", "3");
+        assertThat(queue.getStatus()).containsEntry("held", 1).containsEntry("depth", 1);
+        awaitStatus("depth", 0);
+
+        assertThat(synced).containsExactly("notifyCreate:1:3");
+        assertThat(queue.getStatus()).containsEntry("coalesced", 2L).containsEntry("held", 0);
+    }
+
+    @Test
+    public void testRetriesFailedChangesInOrder() throws Exception {
+        release = new CountDownLatch(1);
+        queue = newQueue(5, new AtomicInteger(2));
+        queue.start();
+        enqueue(notifyCreate, "1", "1");
+        awaitStatus("inProgress", 1);
+        enqueue(notifyDelete, "1", null);
+        release.countDown();
+        awaitStatus("depth", 0);
+
+        assertThat(synced).containsExactly("notifyCreate:1:1", "notifyDelete:1:null");
+        assertThat(queue.getStatus()).containsEntry("retried", 2L).containsEntry("failed", 0L);
+    }
+
+    @Test
+    public void testDropsChangesOutOfAttempts() throws Exception {
+        queue = newQueue(2, new AtomicInteger(2));
+        queue.start();
+        enqueue(notifyUpdate, "1", "1");
+        awaitStatus("failed", 1L);
+        enqueue(notifyUpdate, "2", "1");
+        awaitStatus("processed", 1L);
+
+        assertThat(synced).containsExactly("notifyUpdate:2:1");
+        assertThat(queue.getStatus()).containsEntry("depth", 0).containsEntry("retried", 1L);
+    }
+
+    @Test
+    public void testRequeuesJournaledChangesOnStart() throws Exception {
+        release = new CountDownLatch(1);
+        queue = newQueue(1, null);
+        queue.start();
+        enqueue(notifyUpdate, "1", "1");
+        enqueue(notifyUpdate, "2", "1");
+        enqueue(notifyUpdate, "2", "2");
+        queue.stop();
+
+        release.countDown();
+        queue = newQueue(1, null);
+        queue.start();
+        awaitStatus("depth", 0);
+
+        assertThat(synced).containsOnly("notifyUpdate:1:1", "notifyUpdate:2:2");
+        assertThat(journal.length()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCompactsTheJournalWhileChangesAreQueued() throws Exception {
+        window = 60000;
+        queue = newQueue(1, null);
+        queue.start();
+        // Held for the coalescing window, so the queue does not get empty
+        enqueue(notifyUpdate, "held", "1");
+        for (int i = 1; i <= 20; i++) {
+            queue.enqueue(notifyUpdate, "managed/role", "role" + i, json(object()), json(object(field("v", "1"))));
+            awaitStatus("processed", (long) i);
+        }
+
+        // Compacted every 5 synchronized changes, rather than holding 20 changes and 20 completion markers
+        assertThat(Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8)).hasSize(1);
+
+        queue.stop();
+        window = 0;
+        queue = newQueue(1, null);
+        queue.start();
+        awaitStatus("depth", 0);
+        assertThat(synced).contains("notifyUpdate:held:1");
+    }
+
+    private void enqueue(SynchronizationService.SyncServiceAction action, String id, String value)
+            throws ResourceException {
+        JsonValue newValue = value != null ? json(object(field("v", value))) : json(null);
+        queue.enqueue(action, "managed/user", id, json(object(field("v", "old"))), newValue);
+    }
+
+    private void awaitStatus(String name, Object value) throws InterruptedException {
+        for (int i = 0; i < 1000 && !value.equals(queue.getStatus().get(name)); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(queue.getStatus()).containsEntry(name, value);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openidm.sync.ReconAction;
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsBoundTheRelativeError() {
+        for (long micros : new long[] { 0, 1, 15, 16, 17, 100, 1000, 123456789L, Long.MAX_VALUE }) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            long upperBound = LatencyHistogram.upperBoundOf(bucket);
+            assertThat(upperBound).isGreaterThanOrEqualTo(micros);
+            assertThat(upperBound - micros).isLessThanOrEqualTo(micros / 8);
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.upperBoundOf(bucket - 1)).isLessThan(micros);
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentile(0.99)).isEqualTo(0);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getPercentile(0.50)).isBetween(50000L, 50000L + 50000L / 8);
+        assertThat(histogram.getPercentile(0.99)).isBetween(99000L, 100000L);
+        assertThat(histogram.getPercentile(1.0)).isEqualTo(100000L);
+        assertThat(histogram.asMap()).containsEntry("count", 100L).containsEntry("max", 100.0);
+    }
+
+    @Test
+    public void testMergesExportedLatencies() {
+        ReconLatencies partition = new ReconLatencies();
+        partition.record(ReconLatencies.Operation.LINK_READ, Situation.CONFIRMED, TimeUnit.MILLISECONDS.toNanos(5));
+        partition.record(ReconLatencies.Operation.LINK_READ, null, TimeUnit.MILLISECONDS.toNanos(7));
+        partition.recordAction(ReconAction.UPDATE, Situation.CONFIRMED, TimeUnit.MILLISECONDS.toNanos(20));
+
+        ReconLatencies run = new ReconLatencies();
+        run.record(ReconLatencies.Operation.LINK_READ, Situation.CONFIRMED, TimeUnit.MILLISECONDS.toNanos(1));
+        run.mergeCounts(new JsonValue(partition.exportCounts()));
+
+        JsonValue latencies = new JsonValue(run.asMap());
+        assertThat(latencies.get("linkRead").get("CONFIRMED").get("count").asLong()).isEqualTo(2);
+        assertThat(latencies.get("linkRead").get("CONFIRMED").get("max").asDouble()).isEqualTo(5.0);
+        assertThat(latencies.get("linkRead").get(ReconLatencies.NO_SITUATION).get("count").asLong()).isEqualTo(1);
+        assertThat(latencies.get("actions").get("UPDATE").get("CONFIRMED").get("max").asDouble()).isEqualTo(20.0);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newActionResponse;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ActionRequest;
+import org.forgerock.json.resource.ActionResponse;
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.NotSupportedException;
+import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LinkBufferTest {
+
+    private final Context context = new RootContext();
+    private ObjectMapping mapping;
+    private Connection connection;
+    private ConnectionFactory connectionFactory;
+    /** The number of operations of each bulk action */
+    private List<Integer> bulks;
+    /** The operations of all bulk actions, in order */
+    private List<JsonValue> operations;
+    /** The failures reported, as operation and source id */
+    private List<String> failures;
+    private LinkBuffer.FailureListener listener;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        Answer<String> sameId = new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[0];
+            }
+        };
+        LinkType linkType = mock(LinkType.class);
+        when(linkType.getName()).thenReturn("systemLdapAccounts_managedUser");
+        when(linkType.normalizeSourceId(anyString())).thenAnswer(sameId);
+        when(linkType.normalizeTargetId(anyString())).thenAnswer(sameId);
+        mapping = mock(ObjectMapping.class);
+        when(mapping.getLinkType()).thenReturn(linkType);
+
+        bulks = new ArrayList<>();
+        operations = new ArrayList<>();
+        failures = new ArrayList<>();
+        connection = mock(Connection.class);
+        when(connection.action(any(Context.class), any(ActionRequest.class))).thenAnswer(
+                new Answer<ActionResponse>() {
+                    @Override
+                    public ActionResponse answer(InvocationOnMock invocation) throws Throwable {
+                        ActionRequest request = (ActionRequest) invocation.getArguments()[1];
+                        assertThat(request.getResourcePath()).isEqualTo("repo/link");
+                        assertThat(request.getAction()).isEqualTo(LinkBuffer.ACTION_BULK);
+                        List<Object> results = new ArrayList<>();
+                        for (JsonValue operation : request.getContent().get("operations")) {
+                            operations.add(operation.copy());
+                            results.add(object(field("_id", operation.get("_id").asString()), field("_rev", "1")));
+                        }
+                        bulks.add(results.size());
+                        return newActionResponse(json(object(field("results", results))));
+                    }
+                });
+        when(connection.create(any(Context.class), any(CreateRequest.class))).thenAnswer(
+                new Answer<ResourceResponse>() {
+                    @Override
+                    public ResourceResponse answer(InvocationOnMock invocation) throws Throwable {
+                        CreateRequest request = (CreateRequest) invocation.getArguments()[1];
+                        if (request.getContent().get("firstId").asString().equals("duplicate")) {
+                            throw new PreconditionFailedException("Link exists");
+                        }
+                        return newResourceResponse(request.getNewResourceId(), "0", request.getContent());
+                    }
+                });
+        connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+        when(mapping.getConnectionFactory()).thenReturn(connectionFactory);
+
+        listener = new LinkBuffer.FailureListener() {
+            @Override
+            public void failed(String operation, String sourceId, String targetId, ResourceException failure) {
+                failures.add(operation + " " + sourceId);
+            }
+        };
+    }
+
+    @Test
+    public void testCreatesAreWrittenInBatches() throws Exception {
+        LinkBuffer buffer = new LinkBuffer(connectionFactory, 2);
+        Link first = createLink(buffer, "1");
+        assertThat(first._id).isNotNull();
+        assertThat(first._rev).isNull();
+        assertThat(bulks).isEmpty();
+
+        Link second = createLink(buffer, "2");
+        Link third = createLink(buffer, "3");
+        assertThat(bulks).containsExactly(2);
+        assertThat(first._rev).isEqualTo("1");
+        assertThat(second._rev).isEqualTo("1");
+        assertThat(third._rev).isNull();
+
+        buffer.flush();
+        assertThat(bulks).containsExactly(2, 1);
+        assertThat(third._rev).isEqualTo("1");
+        assertThat(buffer.asMap()).containsEntry("batches", 2L).containsEntry("written", 3L)
+                .containsEntry("failed", 0L);
+        verify(connection, never()).create(any(Context.class), any(CreateRequest.class));
+    }
+
+    @Test
+    public void testUpdateOfPendingLinkIsMergedIntoItsCreate() throws Exception {
+        LinkBuffer buffer = new LinkBuffer(connectionFactory, 10);
+        Link link = createLink(buffer, "1");
+        link.targetId = "other";
+        buffer.update(context, link, listener);
+        assertThat(bulks).isEmpty();
+
+        buffer.flush();
+        assertThat(bulks).containsExactly(1);
+        assertThat(operations.get(0).get("operation").asString()).isEqualTo("create");
+        assertThat(operations.get(0).get("content").get("secondId").asString()).isEqualTo("other");
+        assertThat(link._rev).isEqualTo("1");
+    }
+
+    @Test
+    public void testUpdateOfWrittenLinkIsMergedIntoItsPendingUpdate() throws Exception {
+        LinkBuffer buffer = new LinkBuffer(connectionFactory, 10);
+        Link link = createLink(buffer, "1");
+        buffer.flush();
+        buffer.update(context, link, listener);
+        link.targetId = "other";
+        buffer.update(context, link, listener);
+
+        buffer.flush();
+        assertThat(bulks).containsExactly(1, 1);
+        assertThat(operations.get(1).get("operation").asString()).isEqualTo("update");
+        assertThat(operations.get(1).get("_rev").asString()).isEqualTo("1");
+        assertThat(operations.get(1).get("content").get("secondId").asString()).isEqualTo("other");
+    }
+
+    @Test
+    public void testDeleteOfPendingLinkDropsItsCreate() throws Exception {
+        LinkBuffer buffer = new LinkBuffer(connectionFactory, 10);
+        Link link = createLink(buffer, "1");
+        buffer.delete(context, link, listener);
+        assertThat(link._id).isNull();
+
+        buffer.flush();
+        assertThat(bulks).isEmpty();
+        assertThat(buffer.asMap()).containsEntry("written", 0L);
+    }
+
+    @Test
+    public void testFailedBatchIsWrittenOneByOne() throws Exception {
+        when(connection.action(any(Context.class), any(ActionRequest.class)))
+                .thenThrow(new InternalServerErrorException("Batch failed"));
+        LinkBuffer buffer = new LinkBuffer(connectionFactory, 3);
+        Link first = createLink(buffer, "1");
+        createLink(buffer, "duplicate");
+        createLink(buffer, "3");
+
+        assertThat(first._rev).isEqualTo("0");
+        assertThat(failures).containsExactly("create duplicate");
+        Map<String, Object> stats = buffer.asMap();
+        assertThat(stats).containsEntry("batches", 0L).containsEntry("written", 2L).containsEntry("failed", 1L);
+        assertThat((List<?>) stats.get("failures")).hasSize(1);
+    }
+
+    @Test
+    public void testWritesDirectlyIfBulkNotSupported() throws Exception {
+        when(connection.action(any(Context.class), any(ActionRequest.class)))
+                .thenThrow(new NotSupportedException("Action operations are not supported"));
+        LinkBuffer buffer = new LinkBuffer(connectionFactory, 2);
+        createLink(buffer, "1");
+        createLink(buffer, "2");
+        assertThat(buffer.asMap()).containsEntry("bulkSupported", false).containsEntry("written", 2L);
+
+        // Later links are not buffered
+        Link link = createLink(buffer, "3");
+        assertThat(link._rev).isEqualTo("0");
+        assertThat(buffer.asMap()).containsEntry("written", 2L);
+    }
+
+    private Link createLink(LinkBuffer buffer, String sourceId) throws SynchronizationException {
+        Link link = new Link(mapping);
+        link.setLinkQualifier(Link.DEFAULT_LINK_QUALIFIER);
+        link.sourceId = sourceId;
+        link.targetId = "target-" + sourceId;
+        buffer.create(context, link, listener);
+        return link;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openidm.sync.ReconAction;
+import org.testng.annotations.Test;
+
+public class PhaseStatisticTest {
+
+    private PhaseStatistic newPhaseStatistic(int sampleSize) {
+        return new PhaseStatistic(mock(ReconciliationStatistic.class), PhaseStatistic.Phase.SOURCE, "source",
+                sampleSize);
+    }
+
+    private void process(PhaseStatistic stat, int count, Situation situation) {
+        for (int i = 0; i < count; i++) {
+            stat.processed(situation.name() + i, null, false, null, false, situation, ReconAction.NOREPORT);
+        }
+    }
+
+    @Test
+    public void testKeepsASampleOfIdsButCountsAll() {
+        PhaseStatistic stat = newPhaseStatistic(2);
+        process(stat, 5, Situation.CONFIRMED);
+        process(stat, 1, Situation.ABSENT);
+
+        Map<String, Integer> summary = new HashMap<>();
+        stat.updateSummary(summary);
+        assertThat(summary).containsEntry("CONFIRMED", 5).containsEntry("ABSENT", 1).containsEntry("MISSING", 0);
+        assertThat(stat.getSampleIds()).hasSize(2);
+        assertThat(stat.getSampleIds().get("CONFIRMED")).containsExactly("CONFIRMED0", "CONFIRMED1");
+        assertThat(stat.getProcessed()).isEqualTo(6);
+    }
+
+    @Test
+    public void testKeepsAllIdsWithoutSampling() {
+        PhaseStatistic stat = newPhaseStatistic(-1);
+        process(stat, 5, Situation.CONFIRMED);
+        assertThat(stat.getSampleIds().get("CONFIRMED")).hasSize(5);
+        assertThat(new JsonValue(stat.exportCounts()).get("CONFIRMED").asInteger()).isEqualTo(5);
+    }
+}
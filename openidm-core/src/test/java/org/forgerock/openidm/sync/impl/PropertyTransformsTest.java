@@ -0,0 +1,99 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.JsonValueException;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.Test;
+
+public class PropertyTransformsTest {
+
+    private final JsonValue source = json(object(
+            field("givenName", "Barbara"),
+            field("sn", "Jensen"),
+            field("mail", " BJensen@Example.com "),
+            field("modifyTimestamp", "20160314153000Z")));
+
+    @Test
+    public void testIsDeclarative() {
+        assertThat(PropertyTransforms.isDeclarative(json("lowercase"))).isTrue();
+        assertThat(PropertyTransforms.isDeclarative(json(array("trim", "lowercase")))).isTrue();
+        assertThat(PropertyTransforms.isDeclarative(json(object(field("type", "concat"))))).isTrue();
+        assertThat(PropertyTransforms.isDeclarative(json(object(
+                field("type", "text/javascript"), field("source", "source.toLowerCase()"))))).isFalse();
+        assertThat(PropertyTransforms.isDeclarative(json(null))).isFalse();
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        PropertyTransform transform = PropertyTransforms.compile(json(array("trim", "lowercase")));
+        assertThat(transform.transform(" BJensen@Example.com ", source)).isEqualTo("bjensen@example.com");
+        assertThat(transform.transform(array(" A", "B "), source)).isEqualTo(array("a", "b"));
+        assertThat(transform.transform(null, source)).isNull();
+        assertThat(transform.transform(42, source)).isEqualTo(42);
+    }
+
+    @Test
+    public void testConcat() throws Exception {
+        PropertyTransform transform = PropertyTransforms.compile(json(object(
+                field("type", "concat"),
+                field("sources", array("/givenName", "/initials", "/sn")),
+                field("separator", " "))));
+        assertThat(transform.transform(null, source)).isEqualTo("Barbara Jensen");
+        assertThat(transform.transform(null, json(object()))).isNull();
+    }
+
+    @Test
+    public void testFormatDate() throws Exception {
+        PropertyTransform transform = PropertyTransforms.compile(json(object(
+                field("type", "formatDate"),
+                field("from", "yyyyMMddHHmmss'Z'"),
+                field("to", "yyyy-MM-dd'T'HH:mm:ss'Z'"))));
+        assertThat(transform.transform("20160314153000Z", source)).isEqualTo("2016-03-14T15:30:00Z");
+    }
+
+    @Test(expectedExceptions = SynchronizationException.class)
+    public void testFormatDateFailsOnInvalidDate() throws Exception {
+        PropertyTransforms.compile(json(object(
+                field("type", "formatDate"),
+                field("from", "yyyyMMddHHmmss'Z'"),
+                field("to", "yyyy-MM-dd"))))
+                .transform("yesterday", source);
+    }
+
+    @Test(expectedExceptions = JsonValueException.class)
+    public void testConcatRequiresSources() throws Exception {
+        PropertyTransforms.compile(json("concat"));
+    }
+
+    @Test
+    public void testPropertyMappingAppliesDeclarativeTransform() throws Exception {
+        PropertyMapping mapping = new PropertyMapping(json(object(
+                field("source", "mail"),
+                field("target", "email"),
+                field("transform", array("trim", "lowercase")))));
+        JsonValue target = json(object());
+        mapping.apply(source, null, target, null, "default", new RootContext());
+        assertThat(target.get("email").asString()).isEqualTo("bjensen@example.com");
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.forgerock.json.JsonValue;
+import org.testng.annotations.Test;
+
+public class ReconCheckpointsTest {
+
+    @Test
+    public void testEncodeAndDecodeIds() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            ids.add("uid=user" + i + ",ou=people,dc=example,dc=com");
+        }
+        List<String> chunks = ReconCheckpoints.encodeIds(ids);
+        assertThat(chunks.size()).isGreaterThan(1);
+        for (String chunk : chunks) {
+            assertThat(chunk.length()).isLessThanOrEqualTo(1024);
+        }
+        assertThat(ReconCheckpoints.decodeIds(new JsonValue(chunks))).containsExactlyElementsOf(ids);
+    }
+
+    @Test
+    public void testEncodeAndDecodeNoIds() throws Exception {
+        List<String> chunks = ReconCheckpoints.encodeIds(Collections.<String>emptyList());
+        assertThat(ReconCheckpoints.decodeIds(new JsonValue(chunks))).isEmpty();
+        assertThat(ReconCheckpoints.decodeIds(new JsonValue(null))).isEmpty();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openidm.audit.util.Status;
+import org.forgerock.openidm.sync.ReconAction;
+import org.testng.annotations.Test;
+
+public class ReconPartitionTest {
+
+    @Test
+    public void testPartitionsCoverAllIdsOnce() {
+        int count = 4;
+        List<ReconPartition> partitions = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            partitions.add(new ReconPartition(index, count));
+        }
+        for (int i = 0; i < 1000; i++) {
+            String id = "user" + i;
+            int including = 0;
+            for (ReconPartition partition : partitions) {
+                if (partition.includes(id)) {
+                    including++;
+                }
+            }
+            assertThat(including).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testFilter() {
+        ReconPartition partition = new ReconPartition(1, 3);
+        List<ResultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(new ResultEntry("id" + i, null));
+        }
+        Iterator<ResultEntry> filtered = partition.filter(entries.iterator());
+        int filteredCount = 0;
+        while (filtered.hasNext()) {
+            assertThat(partition.includes(filtered.next().getId())).isTrue();
+            filteredCount++;
+        }
+        int expectedCount = 0;
+        for (ResultEntry entry : entries) {
+            if (partition.includes(entry.getId())) {
+                expectedCount++;
+            }
+        }
+        assertThat(filteredCount).isEqualTo(expectedCount);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidIndex() {
+        new ReconPartition(3, 3);
+    }
+
+    @Test
+    public void testStatisticsMerge() {
+        ReconciliationStatistic partitionStat = newStatistic();
+        partitionStat.getSourceStat().processed("source1", "target1", true, "link1", false,
+                Situation.CONFIRMED, ReconAction.UPDATE);
+        partitionStat.getSourceStat().processed("source2", null, false, null, true,
+                Situation.ABSENT, ReconAction.CREATE);
+        partitionStat.processStatus(Status.SUCCESS);
+        partitionStat.processStatus(Status.SUCCESS);
+
+        ReconciliationStatistic coordinatorStat = newStatistic();
+        coordinatorStat.getSourceStat().processed("source3", "target3", true, "link3", false,
+                Situation.CONFIRMED, ReconAction.UPDATE);
+        coordinatorStat.mergeCounts(new JsonValue(partitionStat.exportCounts()));
+
+        assertThat(coordinatorStat.getSourceProcessed()).isEqualTo(3);
+        assertThat(coordinatorStat.getLinkProcessed()).isEqualTo(2);
+        assertThat(coordinatorStat.getLinkCreated()).isEqualTo(1);
+        assertThat(coordinatorStat.getSourceStat().getProcessed()).isEqualTo(3);
+        assertThat(coordinatorStat.getSituationSummary().get(Situation.CONFIRMED.name())).isEqualTo(2);
+        assertThat(coordinatorStat.getSituationSummary().get(Situation.ABSENT.name())).isEqualTo(1);
+        assertThat(coordinatorStat.getStatusSummary().get(Status.SUCCESS.toString())).isEqualTo(2);
+    }
+
+    private ReconciliationStatistic newStatistic() {
+        ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getSourceObjectSet()).thenReturn("system/ldap/account");
+        when(mapping.getTargetObjectSet()).thenReturn("managed/user");
+        ReconciliationContext reconContext = mock(ReconciliationContext.class);
+        when(reconContext.getObjectMapping()).thenReturn(mapping);
+        return new ReconciliationStatistic(reconContext);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newQueryResponse;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.openidm.condition.Conditions;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * The source entries, links and target system shared by the tests of the recon source phase.
+ */
+final class ReconTestUtils {
+
+    private ReconTestUtils() {
+        // prevent instantiation
+    }
+
+    /**
+     * @param targets the target objects the target system holds
+     * @param queries the list to record the queries received by the target system in
+     * @return a connection to a target system returning the target objects matching the filter of each query
+     */
+    static Connection targetConnection(final List<JsonValue> targets, final List<QueryRequest> queries)
+            throws Exception {
+        final Context context = new RootContext();
+        Connection connection = mock(Connection.class);
+        when(connection.query(any(Context.class), any(QueryRequest.class), any(QueryResourceHandler.class)))
+                .thenAnswer(new Answer<QueryResponse>() {
+                    @Override
+                    public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                        QueryRequest request = (QueryRequest) invocation.getArguments()[1];
+                        QueryResourceHandler handler = (QueryResourceHandler) invocation.getArguments()[2];
+                        queries.add(request);
+                        for (JsonValue target : targets) {
+                            if (Conditions.newCondition(request.getQueryFilter().toString())
+                                    .evaluate(target.getObject(), context)) {
+                                handler.handleResource(newResourceResponse(
+                                        target.get("_id").asString(), null, target.copy()));
+                            }
+                        }
+                        return newQueryResponse();
+                    }
+                });
+        return connection;
+    }
+
+    /**
+     * @return the source entries with the given ids, each with the mail {@code <id>@example.com}
+     */
+    static List<ResultEntry> sources(String... ids) {
+        List<ResultEntry> sources = new ArrayList<>();
+        for (String id : ids) {
+            sources.add(new ResultEntry(id, json(object(field("_id", id), field("mail", id + "@example.com")))));
+        }
+        return sources;
+    }
+
+    /**
+     * @return the links of the default link qualifier, for the given linked source ids, each linked to the target
+     *         id {@code target-<source id>}
+     */
+    static Map<String, Map<String, Link>> links(String... linkedSourceIds) {
+        Map<String, Link> links = new HashMap<>();
+        for (String sourceId : linkedSourceIds) {
+            Link link = new Link(null);
+            link.sourceId = sourceId;
+            link.targetId = "target-" + sourceId;
+            links.put(sourceId, link);
+        }
+        Map<String, Map<String, Link>> allLinks = new HashMap<>();
+        allLinks.put(Link.DEFAULT_LINK_QUALIFIER, links);
+        return allLinks;
+    }
+
+    static List<ResultEntry> iterate(Iterator<ResultEntry> entries) {
+        List<ResultEntry> list = new ArrayList<>();
+        while (entries.hasNext()) {
+            list.add(entries.next());
+        }
+        return list;
+    }
+
+    static List<String> ids(List<ResultEntry> entries) {
+        List<String> ids = new ArrayList<>();
+        for (ResultEntry entry : entries) {
+            ids.add(entry.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.openidm.audit.util.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ReconTypeDeltaTest {
+
+    private final Context context = new RootContext();
+    private ReconciliationContext reconContext;
+    private ReconWatermarks watermarks;
+    private ReconciliationStatistic statistics;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getSourceObjectSet()).thenReturn("system/ldap/account");
+        when(mapping.getTargetObjectSet()).thenReturn("managed/user");
+        when(mapping.getConfig()).thenReturn(json(object(
+                field("sourceQuery", object(field("_queryFilter", "/active eq true"))),
+                field("deltaRecon", object(field("sourceProperty", "modifyTimestamp"))))));
+
+        watermarks = mock(ReconWatermarks.class);
+        ReconciliationService service = mock(ReconciliationService.class);
+        when(service.getReconWatermarks()).thenReturn(watermarks);
+        when(service.getContext()).thenReturn(context);
+        statistics = mock(ReconciliationStatistic.class);
+
+        reconContext = mock(ReconciliationContext.class);
+        when(reconContext.getObjectMapping()).thenReturn(mapping);
+        when(reconContext.getService()).thenReturn(service);
+        when(reconContext.getMapping()).thenReturn("systemLdapAccounts_managedUser");
+        when(reconContext.getReconId()).thenReturn("recon-1");
+        when(reconContext.getStatistics()).thenReturn(statistics);
+    }
+
+    @Test
+    public void testFirstRunQueriesAllObjects() throws Exception {
+        ReconTypeDelta delta = new ReconTypeDelta(reconContext);
+        assertThat(delta.sourceQuery.get("resourceName").asString()).isEqualTo("system/ldap/account");
+        assertThat(delta.sourceQuery.get("queryFilter").asString()).isEqualTo("/active eq true");
+        assertThat(delta.sourceQuery.isDefined("_queryFilter")).isFalse();
+        assertThat(delta.isChangesOnly()).isTrue();
+        assertThat(delta.isRunTargetPhase()).isFalse();
+        assertThat(delta.allowEmptySourceSet()).isTrue();
+    }
+
+    @Test
+    public void testQueriesChangesSinceWatermark() throws Exception {
+        when(watermarks.read(context, "systemLdapAccounts_managedUser")).thenReturn(
+                json(object(field(ReconWatermarks.SOURCE, "20160301000000Z"))));
+        ReconTypeDelta delta = new ReconTypeDelta(reconContext);
+        assertThat(delta.sourceQuery.get("queryFilter").asString())
+                .isEqualTo("(/active eq true and /modifyTimestamp ge \"20160301000000Z\")");
+        assertThat(delta.targetQuery.get("resourceName").asString()).isEqualTo("managed/user");
+    }
+
+    @Test
+    public void testRecordsGreatestQueriedValue() throws Exception {
+        ReconTypeDelta delta = new ReconTypeDelta(reconContext);
+        delta.queried(newResourceResponse("1", null,
+                json(object(field("modifyTimestamp", "20160302000000Z")))), ReconTypeBase.QuerySide.SOURCE);
+        delta.queried(newResourceResponse("2", null,
+                json(object(field("modifyTimestamp", "20160303000000Z")))), ReconTypeBase.QuerySide.SOURCE);
+        delta.queried(newResourceResponse("3", null, json(object())), ReconTypeBase.QuerySide.SOURCE);
+
+        delta.reconSucceeded(context);
+        verify(watermarks).save(context, "systemLdapAccounts_managedUser", "recon-1", "20160303000000Z", null);
+    }
+
+    @Test
+    public void testDoesNotAdvanceWatermarkAfterFailures() throws Exception {
+        when(statistics.getStatusCount(Status.FAILURE)).thenReturn(1);
+        ReconTypeDelta delta = new ReconTypeDelta(reconContext);
+        delta.queried(newResourceResponse("1", null,
+                json(object(field("modifyTimestamp", "20160302000000Z")))), ReconTypeBase.QuerySide.SOURCE);
+
+        delta.reconSucceeded(context);
+        verify(watermarks, never()).save(any(Context.class), anyString(), anyString(), anyObject(), anyObject());
+    }
+
+    @Test
+    public void testAnalysisDoesNotAdvanceWatermarks() throws Exception {
+        ReconTypeDelta delta = new ReconTypeDelta(reconContext);
+        delta.queried(newResourceResponse("1", null,
+                json(object(field("modifyTimestamp", "20160302000000Z")))), ReconTypeBase.QuerySide.SOURCE);
+        when(reconContext.getReconHandler()).thenReturn(delta);
+        ObjectMapping mapping = new ObjectMapping(null, json(object(
+                field("name", "systemLdapAccounts_managedUser"),
+                field("source", "system/ldap/account"),
+                field("target", "managed/user"))));
+
+        when(reconContext.isAnalysis()).thenReturn(true);
+        mapping.reconSucceeded(reconContext, context);
+        verify(watermarks, never()).save(any(Context.class), anyString(), anyString(), anyObject(), anyObject());
+
+        // The next run acting on the changes records them
+        when(reconContext.isAnalysis()).thenReturn(false);
+        mapping.reconSucceeded(reconContext, context);
+        verify(watermarks).save(context, "systemLdapAccounts_managedUser", "recon-1", "20160302000000Z", null);
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testRequiresSourceProperty() throws Exception {
+        when(reconContext.getObjectMapping().getConfig()).thenReturn(json(object()));
+        new ReconTypeDelta(reconContext);
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testRejectsQueryId() throws Exception {
+        when(reconContext.getObjectMapping().getConfig()).thenReturn(json(object(
+                field("sourceQuery", object(field("_queryId", "query-all-ids"))),
+                field("deltaRecon", object(field("sourceProperty", "modifyTimestamp"))))));
+        new ReconTypeDelta(reconContext);
+    }
+
+    @Test
+    public void testNumericWatermarks() throws Exception {
+        when(reconContext.getObjectMapping().getConfig()).thenReturn(json(object(
+                field("deltaRecon", object(
+                        field("sourceProperty", "changeNumber"),
+                        field("watermarkType", "number"))))));
+        ReconTypeDelta delta = new ReconTypeDelta(reconContext);
+        assertThat(delta.sourceQuery.get("queryFilter").asString()).isEqualTo("true");
+        delta.queried(newResourceResponse("1", null, json(object(field("changeNumber", 9)))),
+                ReconTypeBase.QuerySide.SOURCE);
+        delta.queried(newResourceResponse("2", null, json(object(field("changeNumber", 10)))),
+                ReconTypeBase.QuerySide.SOURCE);
+
+        delta.reconSucceeded(context);
+        verify(watermarks).save(eq(context), anyString(), anyString(), eq((Object) 10), anyObject());
+    }
+}
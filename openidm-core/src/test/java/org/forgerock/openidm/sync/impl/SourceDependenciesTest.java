@@ -0,0 +1,98 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.patch.JsonPatch;
+import org.testng.annotations.Test;
+
+public class SourceDependenciesTest {
+
+    private final JsonValue source = json(object(
+            field("_rev", "1"),
+            field("mail", "bjensen@example.com"),
+            field("givenName", "Barbara"),
+            field("sn", "Jensen"),
+            field("address", object(field("city", "Grenoble"), field("country", "FR"))),
+            field("description", "Unmapped")));
+
+    private SourceDependencies dependencies(JsonValue... properties) {
+        List<JsonPointer> pointers = new ArrayList<>();
+        for (JsonValue property : properties) {
+            new PropertyMapping(property).addSourceDependencies(pointers);
+        }
+        return new SourceDependencies(pointers, "properties");
+    }
+
+    private final SourceDependencies dependencies = dependencies(
+            json(object(field("source", "mail"), field("target", "email"))),
+            json(object(field("source", "address/city"), field("target", "l"))),
+            json(object(field("target", "cn"), field("transform", object(
+                    field("type", "concat"),
+                    field("sources", array("/givenName", "/sn")),
+                    field("separator", " "))))));
+
+    @Test
+    public void testIsAffectedByMappedProperties() {
+        assertThat(isAffectedBy("mail", "babs@example.com")).isTrue();
+        assertThat(isAffectedBy("sn", "Smith")).isTrue();
+        assertThat(isAffectedBy("address", object(field("city", "Paris")))).isTrue();
+        assertThat(isAffectedBy("description", "Changed")).isFalse();
+        assertThat(isAffectedBy("_rev", "2")).isFalse();
+    }
+
+    @Test
+    public void testConditionDependsOnWholeObject() {
+        SourceDependencies conditional = dependencies(json(object(
+                field("source", "mail"), field("target", "email"), field("condition", "/object/active eq true"))));
+        assertThat(conditional.isAffectedBy(JsonPatch.diff(source, changed("description", "Changed")))).isTrue();
+    }
+
+    @Test
+    public void testHashOfMappedProperties() {
+        String hash = dependencies.hash(source);
+        JsonValue reordered = json(object(
+                field("address", object(field("country", "FR"), field("city", "Grenoble"))),
+                field("sn", "Jensen"),
+                field("givenName", "Barbara"),
+                field("mail", "bjensen@example.com")));
+        assertThat(dependencies.hash(reordered)).isEqualTo(hash);
+        assertThat(dependencies.hash(changed("description", "Changed"))).isEqualTo(hash);
+        assertThat(dependencies.hash(changed("mail", "babs@example.com"))).isNotEqualTo(hash);
+        assertThat(new SourceDependencies(new ArrayList<JsonPointer>(), "other").hash(source))
+                .isNotEqualTo(new SourceDependencies(new ArrayList<JsonPointer>(), "properties").hash(source));
+    }
+
+    private boolean isAffectedBy(String property, Object value) {
+        return dependencies.isAffectedBy(JsonPatch.diff(source, changed(property, value)));
+    }
+
+    private JsonValue changed(String property, Object value) {
+        JsonValue changed = source.copy();
+        changed.put(property, value);
+        return changed;
+    }
+}
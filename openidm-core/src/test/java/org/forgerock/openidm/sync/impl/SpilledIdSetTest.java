@@ -0,0 +1,73 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class SpilledIdSetTest {
+
+    @Test
+    public void testIteratesIdsNotRemoved() throws Exception {
+        SpilledIdSet ids = new SpilledIdSet(null, "test", 4);
+        try {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                ids.add("Id" + i);
+                if (i % 3 != 0) {
+                    expected.add("Id" + i);
+                }
+            }
+            for (int i = 0; i < 100; i += 3) {
+                ids.remove("Id" + i);
+            }
+            assertThat(ids).containsOnlyElementsOf(expected);
+            assertThat(ids.size()).isEqualTo(expected.size());
+        } finally {
+            ids.close();
+        }
+    }
+
+    @Test
+    public void testRemoveBeforeAdd() throws Exception {
+        SpilledIdSet ids = new SpilledIdSet(null, "test", 2);
+        try {
+            ids.remove("Id1");
+            ids.add("Id1");
+            ids.add("Id2");
+            assertThat(ids).containsExactly("Id2");
+        } finally {
+            ids.close();
+        }
+    }
+
+    @Test
+    public void testCloseDeletesFiles() throws Exception {
+        File parent = new File(System.getProperty("java.io.tmpdir"), "spilledIdSetTest" + System.nanoTime());
+        SpilledIdSet ids = new SpilledIdSet(parent, "recon/1", 8);
+        ids.add("Id1");
+        ids.remove("Id2");
+        assertThat(ids).containsExactly("Id1");
+        ids.close();
+        assertThat(parent.list()).isEmpty();
+        parent.delete();
+    }
+}
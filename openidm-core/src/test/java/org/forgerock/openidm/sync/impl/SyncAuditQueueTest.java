@@ -0,0 +1,208 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.resource.Connection;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.CreateRequest;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SyncAuditQueueTest {
+
+    private final Context context = new RootContext();
+    private ConnectionFactory connectionFactory;
+    /** The ids of the events published */
+    private List<String> published;
+    /** Holds the publisher until released */
+    private CountDownLatch release;
+    /** Holds the publisher on the events with an id starting with "held" until released */
+    private CountDownLatch hold;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        published = new CopyOnWriteArrayList<>();
+        release = new CountDownLatch(0);
+        hold = new CountDownLatch(0);
+        Connection connection = mock(Connection.class);
+        when(connection.create(any(Context.class), any(CreateRequest.class))).thenAnswer(
+                new Answer<ResourceResponse>() {
+                    @Override
+                    public ResourceResponse answer(InvocationOnMock invocation) throws Throwable {
+                        release.await(10, TimeUnit.SECONDS);
+                        CreateRequest request = (CreateRequest) invocation.getArguments()[1];
+                        String id = request.getContent().get("id").asString();
+                        if (id.startsWith("held")) {
+                            hold.await(10, TimeUnit.SECONDS);
+                        }
+                        if (id.equals("failing")) {
+                            throw new InternalServerErrorException("Audit handler failed");
+                        }
+                        published.add(id);
+                        return newResourceResponse(id, null, request.getContent());
+                    }
+                });
+        connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(connection);
+    }
+
+    @Test
+    public void testFlushWaitsForQueuedEvents() throws Exception {
+        SyncAuditQueue queue = new SyncAuditQueue(connectionFactory, "mapping", 10, 3,
+                SyncAuditQueue.FullQueuePolicy.block, null);
+        for (int i = 0; i < 25; i++) {
+            publish(queue, Integer.toString(i));
+        }
+        publish(queue, "failing");
+        queue.flush();
+
+        assertThat(published).hasSize(25).startsWith("0", "1", "2").endsWith("24");
+        assertThat(queue.asMap()).containsEntry("pending", 0L).containsEntry("published", 25L)
+                .containsEntry("failed", 1L).containsEntry("dropped", 0L);
+    }
+
+    @Test
+    public void testDropsEventsIfFull() throws Exception {
+        release = new CountDownLatch(1);
+        SyncAuditQueue queue = new SyncAuditQueue(connectionFactory, "mapping", 2, 1,
+                SyncAuditQueue.FullQueuePolicy.drop, null);
+        publish(queue, "taken");
+        // Wait for the publisher to take the first event off the queue
+        while (!queue.asMap().get("queued").equals(0)) {
+            Thread.sleep(10);
+        }
+        publish(queue, "1");
+        publish(queue, "2");
+        publish(queue, "dropped");
+        release.countDown();
+        queue.flush();
+
+        assertThat(published).containsExactly("taken", "1", "2");
+        assertThat(queue.asMap()).containsEntry("published", 3L).containsEntry("dropped", 1L);
+    }
+
+    @Test
+    public void testSpillsEventsIfFull() throws Exception {
+        release = new CountDownLatch(1);
+        SyncAuditQueue queue = new SyncAuditQueue(connectionFactory, "mapping", 2, 1,
+                SyncAuditQueue.FullQueuePolicy.spill, null);
+        for (int i = 0; i < 10; i++) {
+            publish(queue, Integer.toString(i));
+        }
+        release.countDown();
+        queue.flush();
+
+        assertThat(published).hasSize(10).contains("0", "5", "9");
+        assertThat(queue.asMap()).containsEntry("published", 10L).containsEntry("dropped", 0L);
+        assertThat((Long) queue.asMap().get("spilled")).isGreaterThan(0L);
+    }
+
+    @Test
+    public void testFlushDoesNotWaitForEventsQueuedMeanwhile() throws Exception {
+        release = new CountDownLatch(1);
+        hold = new CountDownLatch(1);
+        final SyncAuditQueue queue = new SyncAuditQueue(connectionFactory, "mapping", 10, 1,
+                SyncAuditQueue.FullQueuePolicy.block, null);
+        publish(queue, "0");
+        publish(queue, "1");
+        Thread flushing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.flush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        flushing.start();
+        while (flushing.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        publish(queue, "held");
+        release.countDown();
+        flushing.join(5000);
+
+        assertThat(flushing.isAlive()).isFalse();
+        assertThat(published).containsExactly("0", "1");
+        assertThat(queue.asMap()).containsEntry("pending", 1L);
+
+        hold.countDown();
+        queue.flush();
+        assertThat(published).containsExactly("0", "1", "held");
+    }
+
+    @Test
+    public void testCountsTheEventsOfTrackedRuns() throws Exception {
+        release = new CountDownLatch(1);
+        SyncAuditQueue queue = new SyncAuditQueue(connectionFactory, "mapping", 2, 1,
+                SyncAuditQueue.FullQueuePolicy.spill, null);
+        SyncAuditQueue.Counts run = queue.track("recon-1");
+        SyncAuditQueue.Counts partition = queue.track("recon-1");
+        for (int i = 0; i < 5; i++) {
+            publish(queue, Integer.toString(i), "recon-1");
+        }
+        publish(queue, "failing", "recon-1");
+        publish(queue, "other", "recon-2");
+        publish(queue, "sync", null);
+        release.countDown();
+        queue.flush();
+
+        assertThat(partition).isSameAs(run);
+        assertThat(queue.asMap(run)).containsEntry("pending", 0L).containsEntry("published", 5L)
+                .containsEntry("failed", 1L).containsEntry("dropped", 0L);
+        assertThat((Long) queue.asMap(run).get("spilled")).isGreaterThan(0L);
+        assertThat(queue.asMap()).containsEntry("published", 7L).containsEntry("failed", 1L);
+
+        // Still counted until the last partition of the run stops tracking it
+        queue.untrack("recon-1");
+        publish(queue, "5", "recon-1");
+        queue.untrack("recon-1");
+        publish(queue, "6", "recon-1");
+        queue.flush();
+
+        assertThat(queue.asMap(run)).containsEntry("published", 6L);
+        assertThat(queue.asMap()).containsEntry("published", 9L);
+    }
+
+    private void publish(SyncAuditQueue queue, String id, String reconId) {
+        queue.publish(context, "audit/recon", json(object(field("id", id), field("reconId", reconId))));
+    }
+
+    private void publish(SyncAuditQueue queue, String id) {
+        queue.publish(context, "audit/recon", json(object(field("id", id))));
+    }
+}
@@ -17,6 +17,7 @@
 package org.forgerock.openidm.sync.impl;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
@@ -27,12 +28,18 @@ import static org.forgerock.openidm.sync.impl.SynchronizationService.ACTION_PARA
 import static org.forgerock.util.test.assertj.AssertJPromiseAssert.assertThat;
 import static org.forgerock.json.test.assertj.AssertJJsonValueAssert.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 
 import org.forgerock.audit.events.AuditEvent;
 import org.forgerock.json.JsonValue;
@@ -46,10 +53,12 @@ import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.ServiceUnavailableException;
 import org.forgerock.openidm.config.enhanced.EnhancedConfig;
+import org.forgerock.openidm.managed.ManagedObjectContext;
 import org.forgerock.openidm.router.IDMConnectionFactory;
 import org.forgerock.openidm.util.Scripts;
 import org.forgerock.script.ScriptRegistry;
 import org.forgerock.services.context.Context;
+import org.forgerock.services.context.RootContext;
 import org.forgerock.json.resource.Connection;
 import org.forgerock.json.resource.CreateRequest;
 import org.forgerock.util.promise.Promise;
@@ -163,4 +172,113 @@ public class SynchronizationServiceTest {
         assertThat(resource).stringAt("linkQualifier").isEqualTo("default");
         assertThat(resource).stringAt("linkType").isEqualTo("testMapping");
     }
+
+    @Test
+    public void testMappingsSyncConcurrently() throws Exception {
+        // Each mapping waits for the other, so they only complete if synchronized concurrently
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        Answer<JsonValue> awaitOther = new Answer<JsonValue>() {
+            @Override
+            public JsonValue answer(InvocationOnMock invocation) throws Throwable {
+                barrier.await(10, TimeUnit.SECONDS);
+                return json(array(object(field("situation", "CONFIRMED"))));
+            }
+        };
+        ObjectMapping ldap = mockMapping("managedUser_systemLdapAccounts", "system/ldap/account");
+        when(ldap.notifyUpdate(any(Context.class), anyString(), anyString(), any(JsonValue.class),
+                any(JsonValue.class))).thenAnswer(awaitOther);
+        ObjectMapping ad = mockMapping("managedUser_systemAdAccounts", "system/ad/account");
+        when(ad.notifyUpdate(any(Context.class), anyString(), anyString(), any(JsonValue.class),
+                any(JsonValue.class))).thenAnswer(awaitOther);
+
+        SynchronizationService synchronizationService = newSynchronizationService(ldap, ad);
+        synchronizationService.configureMappingSync(2, SynchronizationService.MappingFailurePolicy.skipRemaining);
+        try {
+            Promise<ActionResponse, ResourceException> promise =
+                    synchronizationService.actionInstance(new RootContext(), newNotifyUpdateRequest());
+
+            assertThat(promise).succeeded();
+            JsonValue results = promise.get().getJsonContent();
+            assertThat(results.get(0)).stringAt("mapping").isEqualTo("managedUser_systemLdapAccounts");
+            assertThat(results.get(0)).stringAt("result").isEqualTo("SUCCESSFUL");
+            assertThat(results.get(1)).stringAt("mapping").isEqualTo("managedUser_systemAdAccounts");
+            assertThat(results.get(1)).stringAt("result").isEqualTo("SUCCESSFUL");
+        } finally {
+            synchronizationService.configureMappingSync(0, SynchronizationService.MappingFailurePolicy.skipRemaining);
+        }
+    }
+
+    @Test
+    public void testRemainingMappingsSyncAfterFailure() throws Exception {
+        SynchronizationException failure = new SynchronizationException("Target unavailable");
+        failure.setDetail(json(object(field("situation", "CONFIRMED"))));
+        ObjectMapping ldap = mockMapping("managedUser_systemLdapAccounts", "system/ldap/account");
+        when(ldap.notifyUpdate(any(Context.class), anyString(), anyString(), any(JsonValue.class),
+                any(JsonValue.class))).thenThrow(failure);
+        ObjectMapping ad = mockMapping("managedUser_systemAdAccounts", "system/ad/account");
+        when(ad.notifyUpdate(any(Context.class), anyString(), anyString(), any(JsonValue.class),
+                any(JsonValue.class))).thenReturn(json(array(object(field("situation", "CONFIRMED")))));
+
+        SynchronizationService synchronizationService = newSynchronizationService(ldap, ad);
+        synchronizationService.configureMappingSync(0, SynchronizationService.MappingFailurePolicy.syncRemaining);
+        Promise<ActionResponse, ResourceException> promise =
+                synchronizationService.actionInstance(new RootContext(), newNotifyUpdateRequest());
+
+        assertThat(promise).failedWithException().isInstanceOf(SynchronizationException.class);
+        verify(ad).notifyUpdate(any(Context.class), anyString(), anyString(), any(JsonValue.class),
+                any(JsonValue.class));
+    }
+
+    @Test
+    public void testOnlyManagedObjectChangesAreQueued() throws Exception {
+        ObjectMapping ldap = mockMapping("systemLdapAccounts_managedUser", "managed/user");
+        when(ldap.isSourceObject("system/ldap/account", "bjensen")).thenReturn(true);
+        when(ldap.notifyUpdate(any(Context.class), anyString(), anyString(), any(JsonValue.class),
+                any(JsonValue.class))).thenReturn(json(array(object(field("situation", "CONFIRMED")))));
+        SynchronizationService synchronizationService = newSynchronizationService(ldap);
+        ImplicitSyncQueue queue = mock(ImplicitSyncQueue.class);
+        synchronizationService.configureSyncQueue(queue);
+        try {
+            // The implicit sync of a managed object is queued
+            assertThat(synchronizationService.actionInstance(
+                    new ManagedObjectContext(new RootContext()), newNotifyUpdateRequest())).succeeded();
+            verify(queue).enqueue(eq(SynchronizationService.SyncServiceAction.notifyUpdate), eq("managed/user"),
+                    eq("bjensen"), any(JsonValue.class), any(JsonValue.class));
+
+            // A livesync change is synchronized on notification, for the livesync to handle its failures
+            ActionRequest liveSyncRequest = newNotifyUpdateRequest().setAdditionalParameter(
+                    SynchronizationService.ACTION_PARAM_RESOURCE_CONTAINER, "system/ldap/account");
+            assertThat(synchronizationService.actionInstance(new RootContext(), liveSyncRequest)).succeeded();
+            verify(ldap).notifyUpdate(any(Context.class), eq("system/ldap/account"), eq("bjensen"),
+                    any(JsonValue.class), any(JsonValue.class));
+            verify(queue, never()).enqueue(any(SynchronizationService.SyncServiceAction.class),
+                    eq("system/ldap/account"), anyString(), any(JsonValue.class), any(JsonValue.class));
+        } finally {
+            synchronizationService.configureSyncQueue(null);
+        }
+    }
+
+    private ObjectMapping mockMapping(String name, String target) {
+        ObjectMapping mapping = mock(ObjectMapping.class);
+        when(mapping.getName()).thenReturn(name);
+        when(mapping.getTargetObjectSet()).thenReturn(target);
+        when(mapping.isSyncEnabled()).thenReturn(true);
+        when(mapping.isSourceObject("managed/user", "bjensen")).thenReturn(true);
+        return mapping;
+    }
+
+    private SynchronizationService newSynchronizationService(ObjectMapping... objectMappings) {
+        Mappings mappings = mock(Mappings.class);
+        when(mappings.iterator()).thenReturn(Arrays.asList(objectMappings).iterator());
+        SynchronizationService synchronizationService = new SynchronizationService();
+        synchronizationService.bindMappings(mappings);
+        return synchronizationService;
+    }
+
+    private ActionRequest newNotifyUpdateRequest() {
+        return newActionRequest("", "notifyUpdate")
+                .setAdditionalParameter(SynchronizationService.ACTION_PARAM_RESOURCE_CONTAINER, "managed/user")
+                .setAdditionalParameter(SynchronizationService.ACTION_PARAM_RESOURCE_ID, "bjensen")
+                .setContent(json(object(field("oldValue", object()), field("newValue", object()))));
+    }
 }
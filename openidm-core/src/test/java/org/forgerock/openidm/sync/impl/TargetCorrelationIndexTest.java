@@ -0,0 +1,94 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.forgerock.json.JsonValue;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TargetCorrelationIndexTest {
+
+    private List<JsonValue> targets;
+
+    @BeforeMethod
+    public void setUp() {
+        targets = new ArrayList<>();
+        targets.add(json(object(field("_id", "1"), field("userName", "bjensen"), field("mail", "BJensen@example.com"),
+                field("employeeNumber", 1001), field("groups", array("admins", "users")))));
+        targets.add(json(object(field("_id", "2"), field("userName", "jdoe"), field("mail", "jdoe@example.com"),
+                field("employeeNumber", 1002), field("groups", array("users")))));
+        targets.add(json(object(field("_id", "3"), field("userName", "jdoe2"), field("mail", "jdoe@example.com"))));
+    }
+
+    @Test
+    public void testEqualityMatches() {
+        TargetCorrelationIndex index = new TargetCorrelationIndex(targets, true);
+        assertThat(ids(index.correlate("userName eq \"jdoe\""))).containsExactly("2");
+        assertThat(ids(index.correlate("mail eq \"jdoe@example.com\""))).containsExactly("2", "3");
+        assertThat(ids(index.correlate("employeeNumber eq 1001"))).containsExactly("1");
+        assertThat(ids(index.correlate("groups eq \"users\""))).containsExactly("1", "2");
+        assertThat(ids(index.correlate("userName eq \"nobody\""))).isEmpty();
+    }
+
+    @Test
+    public void testConjunctionMatches() {
+        TargetCorrelationIndex index = new TargetCorrelationIndex(targets, true);
+        assertThat(ids(index.correlate("mail eq \"jdoe@example.com\" and userName eq \"jdoe2\""))).containsExactly("3");
+        assertThat(ids(index.correlate("mail eq \"jdoe@example.com\" and userName eq \"bjensen\""))).isEmpty();
+    }
+
+    @Test
+    public void testCaseSensitivity() {
+        assertThat(ids(new TargetCorrelationIndex(targets, true).correlate("mail eq \"bjensen@example.com\"")))
+                .isEmpty();
+        assertThat(ids(new TargetCorrelationIndex(targets, false).correlate("mail eq \"bjensen@example.com\"")))
+                .containsExactly("1");
+    }
+
+    @Test
+    public void testComplexFiltersNotAnswered() {
+        TargetCorrelationIndex index = new TargetCorrelationIndex(targets, true);
+        assertThat(index.correlate("userName eq \"jdoe\" or userName eq \"bjensen\"")).isNull();
+        assertThat(index.correlate("userName sw \"jd\"")).isNull();
+        assertThat(index.correlate("!(userName eq \"jdoe\")")).isNull();
+        assertThat(index.correlate("true")).isNull();
+        assertThat(index.correlate("not a filter")).isNull();
+    }
+
+    @Test
+    public void testResultsAreCopies() {
+        TargetCorrelationIndex index = new TargetCorrelationIndex(targets, true);
+        index.correlate("userName eq \"jdoe\"").get(0).put("userName", "changed");
+        assertThat(ids(index.correlate("userName eq \"jdoe\""))).containsExactly("2");
+    }
+
+    private List<String> ids(JsonValue results) {
+        List<String> ids = new ArrayList<>();
+        for (JsonValue result : results) {
+            ids.add(result.get("_id").asString());
+        }
+        return ids;
+    }
+}
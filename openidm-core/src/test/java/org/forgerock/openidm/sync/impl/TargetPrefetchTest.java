@@ -0,0 +1,199 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+package org.forgerock.openidm.sync.impl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.ids;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.iterate;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.links;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.sources;
+import static org.forgerock.openidm.sync.impl.ReconTestUtils.targetConnection;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.ConnectionFactory;
+import org.forgerock.json.resource.QueryRequest;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the batched read of the linked target objects of a recon source phase.
+ */
+public class TargetPrefetchTest {
+
+    private ObjectMapping mapping;
+    private ReconciliationContext reconContext;
+
+    /** The target objects the target system holds */
+    private List<JsonValue> targets;
+
+    /** The queries received by the target system */
+    private List<QueryRequest> queries;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        targets = new ArrayList<>();
+        queries = new ArrayList<>();
+        ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(connectionFactory.getConnection()).thenReturn(targetConnection(targets, queries));
+
+        mapping = new ObjectMapping(connectionFactory, json(object(
+                field("name", "testMapping"),
+                field("source", "system/ldap/account"),
+                field("target", "managed/user"),
+                field("targetReadBatchSize", 2))));
+        Answer<String> sameId = new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return (String) invocation.getArguments()[0];
+            }
+        };
+        mapping.linkType = mock(LinkType.class);
+        when(mapping.linkType.normalizeSourceId(anyString())).thenAnswer(sameId);
+        when(mapping.linkType.normalizeTargetId(anyString())).thenAnswer(sameId);
+
+        reconContext = mock(ReconciliationContext.class);
+    }
+
+    @Test
+    public void testLinkedTargetsAreReadWithOneQueryPerBatch() throws Exception {
+        givenTargets("alice", "bob", "carol");
+
+        List<ResultEntry> entries = iterate(mapping.prefetchingTargets(
+                sources("alice", "bob", "carol").iterator(), reconContext, links("alice", "bob", "carol")));
+
+        assertThat(ids(entries)).containsExactly("alice", "bob", "carol");
+        assertThat(queries).hasSize(2);
+        List<Map<String, JsonValue>> prefetched = prefetchedTargets(2);
+        assertThat(prefetched.get(0).keySet()).containsOnly("target-alice", "target-bob");
+        assertThat(prefetched.get(0).get("target-alice").get("_id").asString()).isEqualTo("target-alice");
+        assertThat(prefetched.get(1).keySet()).containsOnly("target-carol");
+    }
+
+    @Test
+    public void testTargetsNotFoundAreLeftToTheirSyncOperation() throws Exception {
+        givenTargets("alice");
+
+        iterate(mapping.prefetchingTargets(
+                sources("alice", "bob").iterator(), reconContext, links("alice", "bob")));
+
+        // The missing target of bob is read again by its sync operation
+        assertThat(prefetchedTargets(1).get(0).keySet()).containsOnly("target-alice");
+    }
+
+    @Test
+    public void testUnlinkedSourcesReadNoTargets() throws Exception {
+        givenTargets("alice", "bob");
+
+        List<ResultEntry> entries = iterate(mapping.prefetchingTargets(
+                sources("alice", "bob").iterator(), reconContext, links()));
+
+        assertThat(ids(entries)).containsExactly("alice", "bob");
+        assertThat(queries).isEmpty();
+        assertThat(entries.get(0)).isNotInstanceOf(ObjectMapping.PrefetchedEntry.class);
+        verify(reconContext, never()).addPrefetchedTargets(any(Map.class));
+    }
+
+    @Test
+    public void testUntakenTargetsAreEvictedOnceTheirBatchIsProcessed() throws Exception {
+        givenTargets("alice", "bob", "carol");
+
+        List<ResultEntry> entries = iterate(mapping.prefetchingTargets(
+                sources("alice", "bob", "carol").iterator(), reconContext, links("alice", "bob", "carol")));
+
+        processed(entries.get(0));
+        verify(reconContext, never()).evictPrefetchedTargets(anyCollection());
+
+        // The second batch is evicted on its own
+        processed(entries.get(2));
+        assertThat(evictedTargets(1).get(0)).containsOnly("target-carol");
+
+        processed(entries.get(1));
+        assertThat(evictedTargets(2).get(1)).containsOnly("target-alice", "target-bob");
+    }
+
+    @Test
+    public void testTargetsAreNotPrefetchedWhenPreloadedOrAnalyzing() throws Exception {
+        Iterator<ResultEntry> sources = sources("alice").iterator();
+
+        when(reconContext.hasTargetsValues()).thenReturn(true);
+        assertThat(mapping.prefetchingTargets(sources, reconContext, links("alice"))).isSameAs(sources);
+
+        when(reconContext.hasTargetsValues()).thenReturn(false);
+        when(reconContext.isAnalysis()).thenReturn(true);
+        assertThat(mapping.prefetchingTargets(sources, reconContext, links("alice"))).isSameAs(sources);
+
+        assertThat(mapping.prefetchingTargets(sources, reconContext, null)).isSameAs(sources);
+    }
+
+    private void givenTargets(String... names) {
+        for (String name : names) {
+            targets.add(json(object(field("_id", "target-" + name), field("userName", name))));
+        }
+    }
+
+    private static void processed(ResultEntry entry) {
+        assertThat(entry).isInstanceOf(ObjectMapping.PrefetchedEntry.class);
+        ((ObjectMapping.PrefetchedEntry) entry).processed();
+    }
+
+    /**
+     * @return the target objects handed to the sync operations, by batch
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, JsonValue>> prefetchedTargets(int batches) {
+        ArgumentCaptor<Map> targets = ArgumentCaptor.forClass(Map.class);
+        verify(reconContext, times(batches)).addPrefetchedTargets(targets.capture());
+        List<Map<String, JsonValue>> prefetched = new ArrayList<>();
+        for (Map batch : targets.getAllValues()) {
+            prefetched.add(batch);
+        }
+        return prefetched;
+    }
+
+    /**
+     * @return the ids of the target objects evicted, in the order the batches were evicted
+     */
+    @SuppressWarnings("unchecked")
+    private List<Collection<String>> evictedTargets(int batches) {
+        ArgumentCaptor<Collection> targetIds = ArgumentCaptor.forClass(Collection.class);
+        verify(reconContext, times(batches)).evictPrefetchedTargets(targetIds.capture());
+        List<Collection<String>> evicted = new ArrayList<>();
+        for (Collection batch : targetIds.getAllValues()) {
+            evicted.add(batch);
+        }
+        return evicted;
+    }
+}
@@ -36,6 +36,7 @@ import org.forgerock.json.resource.ForbiddenException;
 import org.forgerock.json.resource.InternalServerErrorException;
 import org.forgerock.json.resource.NotFoundException;
 import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.QueryResourceHandler;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.util.query.QueryFilter;
@@ -86,7 +87,25 @@ public interface TableHandler {
             throws SQLException, IOException, ResourceException;
 
     /**
-     * Updates the specified object in the object set. 
+     * Creates several new objects of the same type in the object set, as a batch where supported.
+     * <p>
+     * As with {@link #create}, this method sets the {@code _id} and {@code _rev} properties of each object.
+     * The objects are created within the transaction of the connection, which is neither committed nor
+     * rolled back by this method.
+     *
+     * @param type the qualifier of the objects to create
+     * @param objects the contents of the objects to create, by local identifier, in the order to create them
+     * @param connection
+     * @throws PreconditionFailedException if an object with the same ID already exists.
+     * @throws InternalServerErrorException if the operation failed because of a (possibly transient) failure
+     * @throws java.io.IOException
+     * @throws java.sql.SQLException
+     */
+    public abstract void createBatch(String type, Map<String, Map<String, Object>> objects, Connection connection)
+            throws SQLException, IOException, ResourceException;
+
+    /**
+     * Updates the specified object in the object set.
      * <p>
      * This implementation requires MVCC and hence enforces that clients state what revision they expect 
      * to be updating
@@ -157,6 +176,26 @@ public interface TableHandler {
     public List<Map<String, Object>> query(String type, Map<String, Object> params, Connection connection)
                 throws SQLException, ResourceException;
 
+    /**
+     * Performs the query on the specified object, handing each result to the handler as soon as its row is read
+     * from the database rather than collecting all results first.
+     * <p>
+     * Some drivers only fetch rows in batches of the fetch size within a transaction, in which case the connection
+     * should not be in auto-commit mode.
+     *
+     * @param type identifies the object to query.
+     * @param params the parameters of the query to perform.
+     * @param connection the connection to query on, held until the last result was handled.
+     * @param fetchSize the number of rows to fetch from the database at a time, or 0 for the driver default.
+     * @param handler the handler of the results; reading stops once it returns false.
+     * @throws BadRequestException if the specified params contain invalid arguments, e.g. a query id that is not
+     * configured, a query expression that is invalid, or missing query substitution tokens.
+     * @throws InternalServerErrorException if the operation failed because of a (possibly transient) failure
+     * @throws java.sql.SQLException
+     */
+    public void query(String type, Map<String, Object> params, Connection connection, int fetchSize,
+            QueryResourceHandler handler) throws SQLException, ResourceException;
+
     /**
      * Performs the command on the specified target and returns the number of affected objects
      * <p>
@@ -144,7 +144,7 @@ public class DB2TableHandler extends GenericTableHandler {
         // Check for sort keys and build up order-by syntax
         if (sortKeys != null && sortKeys.size() > 0) {
             prepareSortKeyStatements(builder, sortKeys, replacementTokens);
-        } else {
+        } else if (!prepareKeysetPaging(builder, replacementTokens, params)) {
             builder.orderBy("obj.id", false);
         }
 
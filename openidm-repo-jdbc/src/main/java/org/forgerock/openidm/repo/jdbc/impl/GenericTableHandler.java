@@ -24,6 +24,7 @@
 package org.forgerock.openidm.repo.jdbc.impl;
 
 import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_AFTER_ID;
 import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
 import static org.forgerock.openidm.repo.QueryConstants.PAGE_SIZE;
 import static org.forgerock.openidm.repo.QueryConstants.SORT_KEYS;
@@ -36,7 +37,6 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
@@ -44,6 +44,9 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -53,6 +56,7 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.InternalServerErrorException;
 import org.forgerock.json.resource.NotFoundException;
 import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.QueryResourceHandler;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.SortKey;
@@ -95,11 +99,15 @@ public class GenericTableHandler implements TableHandler {
     
     Map<QueryDefinition, String> queryMap;
 
+    // The ids of the object types, which never change once created, by object type
+    private final ConcurrentMap<String, Long> typeIds = new ConcurrentHashMap<String, Long>();
+
     final boolean enableBatching; // Whether to use JDBC statement batching.
     int maxBatchSize;       // The maximum number of statements to batch together. If max batch size is 1, do not use batching.
 
     public enum QueryDefinition {
         READTYPEQUERYSTR,
+        READTYPESQUERYSTR,
         CREATETYPEQUERYSTR,
         READFORUPDATEQUERYSTR,
         READQUERYSTR,
@@ -108,6 +116,9 @@ public class GenericTableHandler implements TableHandler {
         DELETEQUERYSTR,
         PROPCREATEQUERYSTR,
         PROPDELETEQUERYSTR,
+        PROPREADQUERYSTR,
+        PROPUPDATEQUERYSTR,
+        PROPDELETEKEYQUERYSTR,
         QUERYALLIDS
     }
 
@@ -186,6 +197,7 @@ public class GenericTableHandler implements TableHandler {
         // objecttypes table
         result.put(QueryDefinition.CREATETYPEQUERYSTR, "INSERT INTO " + typeTable + " (objecttype) VALUES (?)");
         result.put(QueryDefinition.READTYPEQUERYSTR, "SELECT id FROM " + typeTable + " objtype WHERE objtype.objecttype = ?");
+        result.put(QueryDefinition.READTYPESQUERYSTR, "SELECT objecttype, id FROM " + typeTable);
 
         // Main object table
         result.put(QueryDefinition.READFORUPDATEQUERYSTR, "SELECT obj.* FROM " + mainTable + " obj INNER JOIN " + typeTable + " objtype ON obj.objecttypes_id = objtype.id AND objtype.objecttype = ? WHERE obj.objectid  = ? FOR UPDATE");
@@ -201,6 +213,9 @@ public class GenericTableHandler implements TableHandler {
         // Object properties table
         result.put(QueryDefinition.PROPCREATEQUERYSTR, "INSERT INTO " + propertyTable + " ( " + mainTableName + "_id, propkey, proptype, propvalue) VALUES (?,?,?,?)");
         result.put(QueryDefinition.PROPDELETEQUERYSTR, "DELETE prop FROM " + propertyTable + " prop INNER JOIN " + mainTable + " obj ON prop." + mainTableName + "_id = obj.id INNER JOIN " + typeTable + " objtype ON obj.objecttypes_id = objtype.id WHERE objtype.objecttype = ? AND obj.objectid = ?");
+        result.put(QueryDefinition.PROPREADQUERYSTR, "SELECT propkey, proptype, propvalue FROM " + propertyTable + " WHERE " + mainTableName + "_id = ?");
+        result.put(QueryDefinition.PROPUPDATEQUERYSTR, "UPDATE " + propertyTable + " SET proptype = ?, propvalue = ? WHERE " + mainTableName + "_id = ? AND propkey = ?");
+        result.put(QueryDefinition.PROPDELETEKEYQUERYSTR, "DELETE FROM " + propertyTable + " WHERE " + mainTableName + "_id = ? AND propkey = ?");
         // Default object queries
         String tableVariable =  dbSchemaName == null ? "${_mainTable}" : "${_dbSchema}.${_mainTable}";
         result.put(QueryDefinition.QUERYALLIDS, "SELECT obj.objectid FROM " + tableVariable + " obj INNER JOIN " + typeTable + " objtype ON obj.objecttypes_id = objtype.id WHERE objtype.objecttype = ${_resource}");
@@ -250,9 +265,26 @@ public class GenericTableHandler implements TableHandler {
     @Override
     public void create(String fullId, String type, String localId, Map<String, Object> obj, Connection connection)
             throws SQLException, IOException, InternalServerErrorException {
-
         long typeId = getTypeId(type, connection); // Note this call can commit and start a new transaction in some cases
+        long dbId = createObject(fullId, typeId, localId, obj, connection);
+        writeValueProperties(fullId, dbId, localId, new JsonValue(obj), connection);
+    }
 
+    /**
+     * Inserts the main table record of an object, without its properties.
+     *
+     * @param fullId the full URI of the object
+     * @param typeId the id of the object type, as resolved by {@link #getTypeId(String, Connection)}
+     * @param localId the local identifier of the object
+     * @param obj the object, updated with its {@code _id} and {@code _rev}
+     * @param connection the DB connection
+     * @return the generated identifier of the main table record, to link the properties to
+     * @throws SQLException if the insert failed
+     * @throws IOException if the object could not be serialized
+     * @throws InternalServerErrorException if no identifier was generated
+     */
+    long createObject(String fullId, long typeId, String localId, Map<String, Object> obj, Connection connection)
+            throws SQLException, IOException, InternalServerErrorException {
         PreparedStatement createStatement = null;
         try {
             createStatement = queries.getPreparedStatement(connection, queryMap.get(QueryDefinition.CREATEQUERYSTR), true);
@@ -280,13 +312,50 @@ public class GenericTableHandler implements TableHandler {
             long dbId = keys.getLong(1);
 
             logger.debug("Created object for id {} with rev {}", fullId, rev);
-            JsonValue jv = new JsonValue(obj);
-            writeValueProperties(fullId, dbId, localId, jv, connection);
+            return dbId;
         } finally {
             CleanupHelper.loggedClose(createStatement);
         }
     }
 
+    /**
+     * Inserts the main table records of the objects one after another, as their generated keys are needed to link
+     * their properties, and not all drivers return the generated keys of batched statements. The properties of
+     * all the objects are then added to the same batch, if statement batching is enabled.
+     * <p>
+     * The type id is resolved before the first insert, as adding a new type commits the current transaction: the
+     * objects are then all created in the one transaction of the caller.
+     *
+     * @see org.forgerock.openidm.repo.jdbc.TableHandler#createBatch(java.lang.String, java.util.Map,
+     *      java.sql.Connection)
+     */
+    @Override
+    public void createBatch(String type, Map<String, Map<String, Object>> objects, Connection connection)
+            throws SQLException, IOException, InternalServerErrorException {
+        long typeId = getTypeId(type, connection);
+        PreparedStatement propCreateStatement = null;
+        try {
+            int batchingCount = 0;
+            for (Map.Entry<String, Map<String, Object>> object : objects.entrySet()) {
+                String fullId = type + "/" + object.getKey();
+                long dbId = createObject(fullId, typeId, object.getKey(), object.getValue(), connection);
+                if (cfg.hasPossibleSearchableProperties()) {
+                    Map<String, PropertyValue> properties = new LinkedHashMap<String, PropertyValue>();
+                    collectValueProperties(new JsonValue(object.getValue()), properties);
+                    if (propCreateStatement == null) {
+                        propCreateStatement = getPreparedStatement(connection, QueryDefinition.PROPCREATEQUERYSTR);
+                    }
+                    batchingCount = createProperties(propCreateStatement, fullId, dbId, properties, batchingCount);
+                }
+            }
+            if (propCreateStatement != null) {
+                executeBatch(propCreateStatement, batchingCount);
+            }
+        } finally {
+            CleanupHelper.loggedClose(propCreateStatement);
+        }
+    }
+
     /**
      * Writes all properties of a given resource to the properties table and links them to the main table record.
      *
@@ -299,50 +368,63 @@ public class GenericTableHandler implements TableHandler {
      */
     void writeValueProperties(String fullId, long dbId, String localId, JsonValue value, Connection connection) throws SQLException {
         if (cfg.hasPossibleSearchableProperties()) {
-            Integer batchingCount = 0;
-            PreparedStatement propCreateStatement = getPreparedStatement(connection, QueryDefinition.PROPCREATEQUERYSTR);
-            try {
-                batchingCount = writeValueProperties(fullId, dbId, localId, value, connection, propCreateStatement, batchingCount);
-                if (enableBatching && batchingCount > 0) {
-                    int[] numUpdates = propCreateStatement.executeBatch();
-                    logger.debug("Batch update of objectproperties updated: {}", numUpdates);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Writing batch of objectproperties, updated: {}", Arrays.asList(numUpdates));
-                    }
-                    propCreateStatement.clearBatch();
-                }
-            } finally {
-                CleanupHelper.loggedClose(propCreateStatement);
-            }
+            Map<String, PropertyValue> properties = new LinkedHashMap<String, PropertyValue>();
+            collectValueProperties(value, properties);
+            createProperties(fullId, dbId, properties, connection);
         }
     }
+
     /**
-     * Internal recursive function to add/write properties.
-     * If batching is enabled, prepared statements are added to the batch and only executed if they hit the max limit.
-     * After completion returns the number of properties that have only been added to the batch but not yet executed.
-     * The caller is responsible for executing the batch on remaining items when it deems the batch complete.
-     *
-     * If batching is not enabled, prepared statements are immediately executed.
+     * Brings the properties of a given resource in the properties table up to date with its new value.
+     * The properties are compared with those currently held in the properties table, and only those that changed
+     * are inserted, updated or deleted, rather than replacing them all.
      *
      * @param fullId the full URI of the resource the belongs to
-     * @param dbId the generated identifier to link the properties table with the main table (foreign key)
-     * @param localId the local identifier of the resource these properties belong to
-     * @param value the JSON value with the properties to write
+     * @param dbId the identifier of the main table record the properties are linked to (foreign key)
+     * @param value the JSON value with the new properties
      * @param connection the DB connection
-     * @param propCreateStatement the prepared properties insert statement
-     * @param batchingCount the current number of statements that have been batched and not yet executed on the prepared statement
-     * @return status of the current batchingCount, i.e. how many statements are not yet executed in the PreparedStatement
-     * @throws SQLException if the insert failed
+     * @throws SQLException if reading or writing the properties failed
      */
-    private int writeValueProperties(String fullId, long dbId, String localId, JsonValue value, Connection connection,
-            PreparedStatement propCreateStatement, int batchingCount) throws SQLException {
+    void updateValueProperties(String fullId, long dbId, JsonValue value, Connection connection) throws SQLException {
+        Map<String, PropertyValue> properties = new LinkedHashMap<String, PropertyValue>();
+        if (cfg.hasPossibleSearchableProperties()) {
+            collectValueProperties(value, properties);
+        }
+        // Read the existing properties even without searchable properties, as the configuration may have changed
+        Map<String, PropertyValue> existing = readProperties(dbId, connection);
+
+        Map<String, PropertyValue> created = new LinkedHashMap<String, PropertyValue>();
+        Map<String, PropertyValue> updated = new LinkedHashMap<String, PropertyValue>();
+        for (Map.Entry<String, PropertyValue> property : properties.entrySet()) {
+            PropertyValue existingValue = existing.remove(property.getKey());
+            if (existingValue == null) {
+                created.put(property.getKey(), property.getValue());
+            } else if (!existingValue.equals(property.getValue())) {
+                updated.put(property.getKey(), property.getValue());
+            }
+        }
+        // What remains of the existing properties is no longer part of the resource
+        Set<String> deleted = existing.keySet();
+
+        logger.debug("Properties of {} changed: {} inserted, {} updated, {} deleted",
+                fullId, created.size(), updated.size(), deleted.size());
+        createProperties(fullId, dbId, created, connection);
+        updateProperties(fullId, dbId, updated, connection);
+        deleteProperties(fullId, dbId, deleted, connection);
+    }
 
+    /**
+     * Collects the searchable properties of a value, by property key, as they are held in the properties table.
+     *
+     * @param value the JSON value with the properties to collect
+     * @param properties the map to collect the properties in
+     */
+    private void collectValueProperties(JsonValue value, Map<String, PropertyValue> properties) {
         for (JsonValue entry : value) {
             JsonPointer propPointer = entry.getPointer();
             if (cfg.isSearchable(propPointer)) {
-                String propkey = propPointer.toString();
                 if (entry.isMap() || entry.isList()) {
-                    batchingCount = writeValueProperties(fullId, dbId, localId, entry, connection, propCreateStatement, batchingCount);
+                    collectValueProperties(entry, properties);
                 } else {
                     String propvalue = null;
                     Object val = entry.getObject();
@@ -353,39 +435,175 @@ public class GenericTableHandler implements TableHandler {
                     if (propvalue != null) {
                         proptype = entry.getObject().getClass().getName(); // TODO: proper type info
                     }
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Populating statement {} with params {}, {}, {}, {}, {}",
-                                queryMap.get(QueryDefinition.PROPCREATEQUERYSTR), dbId, localId, propkey, proptype, propvalue);
-                    }
-                    propCreateStatement.setLong(1, dbId);
-                    propCreateStatement.setString(2, propkey);
-                    propCreateStatement.setString(3, proptype);
-                    propCreateStatement.setString(4, propvalue);
-                    logger.debug("Executing: {}", propCreateStatement);
-                    if (enableBatching) {
-                        propCreateStatement.addBatch();
-                        batchingCount++;
-                    } else {
-                        int numUpdate = propCreateStatement.executeUpdate();
-                    }
-                    if (logger.isTraceEnabled()) {
-                        logger.trace("Inserting objectproperty id: {} propkey: {} proptype: {}, propvalue: {}", fullId, propkey, proptype, propvalue);
-                    }
+                    properties.put(propPointer.toString(), new PropertyValue(proptype, propvalue));
                 }
-                if (enableBatching && batchingCount >= maxBatchSize) {
-                    int[] numUpdates = propCreateStatement.executeBatch();
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Batch limit reached, update of objectproperties updated: {}", Arrays.asList(numUpdates));
-                    }
-                    propCreateStatement.clearBatch();
-                    batchingCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads the properties of a resource currently held in the properties table.
+     *
+     * @param dbId the identifier of the main table record the properties are linked to (foreign key)
+     * @param connection the DB connection
+     * @return the properties, by property key
+     * @throws SQLException if the read failed
+     */
+    private Map<String, PropertyValue> readProperties(long dbId, Connection connection) throws SQLException {
+        Map<String, PropertyValue> properties = new HashMap<String, PropertyValue>();
+        PreparedStatement propReadStatement = null;
+        ResultSet rs = null;
+        try {
+            propReadStatement = getPreparedStatement(connection, QueryDefinition.PROPREADQUERYSTR);
+            propReadStatement.setLong(1, dbId);
+            logger.debug("Executing: {}", propReadStatement);
+            rs = propReadStatement.executeQuery();
+            while (rs.next()) {
+                properties.put(rs.getString("propkey"),
+                        new PropertyValue(rs.getString("proptype"), rs.getString("propvalue")));
+            }
+        } finally {
+            CleanupHelper.loggedClose(rs);
+            CleanupHelper.loggedClose(propReadStatement);
+        }
+        return properties;
+    }
+
+    private void createProperties(String fullId, long dbId, Map<String, PropertyValue> properties,
+            Connection connection) throws SQLException {
+        if (properties.isEmpty()) {
+            return;
+        }
+        PreparedStatement propCreateStatement = getPreparedStatement(connection, QueryDefinition.PROPCREATEQUERYSTR);
+        try {
+            executeBatch(propCreateStatement, createProperties(propCreateStatement, fullId, dbId, properties, 0));
+        } finally {
+            CleanupHelper.loggedClose(propCreateStatement);
+        }
+    }
+
+    /**
+     * Populates the properties insert statement with the properties of an object, executing or batching each.
+     *
+     * @param propCreateStatement the prepared properties insert statement
+     * @param fullId the full URI of the resource the properties belong to
+     * @param dbId the identifier of the main table record the properties are linked to (foreign key)
+     * @param properties the properties to insert, by property key
+     * @param batchingCount the number of statements batched and not yet executed
+     * @return the number of statements batched and not yet executed
+     * @throws SQLException if the insert failed
+     */
+    private int createProperties(PreparedStatement propCreateStatement, String fullId, long dbId,
+            Map<String, PropertyValue> properties, int batchingCount) throws SQLException {
+        for (Map.Entry<String, PropertyValue> property : properties.entrySet()) {
+            String propkey = property.getKey();
+            String proptype = property.getValue().type;
+            String propvalue = property.getValue().value;
+            if (logger.isTraceEnabled()) {
+                logger.trace("Populating statement {} with params {}, {}, {}, {}",
+                        queryMap.get(QueryDefinition.PROPCREATEQUERYSTR), dbId, propkey, proptype, propvalue);
+            }
+            propCreateStatement.setLong(1, dbId);
+            propCreateStatement.setString(2, propkey);
+            propCreateStatement.setString(3, proptype);
+            propCreateStatement.setString(4, propvalue);
+            batchingCount = executeOrBatch(propCreateStatement, batchingCount);
+            if (logger.isTraceEnabled()) {
+                logger.trace("Inserting objectproperty id: {} propkey: {} proptype: {}, propvalue: {}", fullId, propkey, proptype, propvalue);
+            }
+        }
+        return batchingCount;
+    }
+
+    private void updateProperties(String fullId, long dbId, Map<String, PropertyValue> properties,
+            Connection connection) throws SQLException {
+        if (properties.isEmpty()) {
+            return;
+        }
+        PreparedStatement propUpdateStatement = getPreparedStatement(connection, QueryDefinition.PROPUPDATEQUERYSTR);
+        try {
+            int batchingCount = 0;
+            for (Map.Entry<String, PropertyValue> property : properties.entrySet()) {
+                propUpdateStatement.setString(1, property.getValue().type);
+                propUpdateStatement.setString(2, property.getValue().value);
+                propUpdateStatement.setLong(3, dbId);
+                propUpdateStatement.setString(4, property.getKey());
+                batchingCount = executeOrBatch(propUpdateStatement, batchingCount);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Updating objectproperty id: {} propkey: {} proptype: {}, propvalue: {}",
+                            fullId, property.getKey(), property.getValue().type, property.getValue().value);
                 }
             }
+            executeBatch(propUpdateStatement, batchingCount);
+        } finally {
+            CleanupHelper.loggedClose(propUpdateStatement);
         }
+    }
 
+    private void deleteProperties(String fullId, long dbId, Set<String> propkeys, Connection connection)
+            throws SQLException {
+        if (propkeys.isEmpty()) {
+            return;
+        }
+        PreparedStatement propDeleteStatement = getPreparedStatement(connection, QueryDefinition.PROPDELETEKEYQUERYSTR);
+        try {
+            int batchingCount = 0;
+            for (String propkey : propkeys) {
+                propDeleteStatement.setLong(1, dbId);
+                propDeleteStatement.setString(2, propkey);
+                batchingCount = executeOrBatch(propDeleteStatement, batchingCount);
+                logger.trace("Deleting objectproperty id: {} propkey: {}", fullId, propkey);
+            }
+            executeBatch(propDeleteStatement, batchingCount);
+        } finally {
+            CleanupHelper.loggedClose(propDeleteStatement);
+        }
+    }
+
+    /**
+     * Executes a populated statement, or adds it to the batch if batching is enabled. The batch is executed
+     * once it reaches the max batch size.
+     *
+     * @param statement the populated prepared statement
+     * @param batchingCount the number of statements batched and not yet executed
+     * @return the number of statements batched and not yet executed
+     * @throws SQLException if the execution failed
+     */
+    private int executeOrBatch(PreparedStatement statement, int batchingCount) throws SQLException {
+        logger.debug("Executing: {}", statement);
+        if (!enableBatching) {
+            statement.executeUpdate();
+            return 0;
+        }
+        statement.addBatch();
+        if (++batchingCount >= maxBatchSize) {
+            int[] numUpdates = statement.executeBatch();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Batch limit reached, update of objectproperties updated: {}", Arrays.asList(numUpdates));
+            }
+            statement.clearBatch();
+            batchingCount = 0;
+        }
         return batchingCount;
     }
 
+    /**
+     * Executes the statements remaining in the batch, if any.
+     *
+     * @param statement the prepared statement
+     * @param batchingCount the number of statements batched and not yet executed
+     * @throws SQLException if the execution failed
+     */
+    private void executeBatch(PreparedStatement statement, int batchingCount) throws SQLException {
+        if (enableBatching && batchingCount > 0) {
+            int[] numUpdates = statement.executeBatch();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Writing batch of objectproperties, updated: {}", Arrays.asList(numUpdates));
+            }
+            statement.clearBatch();
+        }
+    }
+
     /**
      * @inheritDoc
      */
@@ -403,6 +621,10 @@ public class GenericTableHandler implements TableHandler {
     // Ensure type is in objecttypes table and get its assigned id
     // Callers should note that this may commit a transaction and start a new one if a new type gets added
     long getTypeId(String type, Connection connection) throws SQLException, InternalServerErrorException {
+        Long cachedTypeId = typeIds.get(type);
+        if (cachedTypeId != null) {
+            return cachedTypeId;
+        }
         Exception detectedEx = null;
         long typeId = readTypeId(type, connection);
         if (typeId < 0) {
@@ -421,9 +643,35 @@ public class GenericTableHandler implements TableHandler {
             }
             connection.setAutoCommit(false); // Start another transaction
         }
+        // Only committed types are read, as new types are committed right away
+        typeIds.put(type, typeId);
         return typeId;
     }
 
+    /**
+     * Loads the ids of all the object types already in the objecttypes table, so that creating objects of these
+     * types does not need to look up their id first.
+     *
+     * @param connection the DB connection
+     * @throws SQLException if the read failed
+     */
+    void loadTypeIds(Connection connection) throws SQLException {
+        ResultSet rs = null;
+        PreparedStatement readTypesStatement = null;
+        try {
+            readTypesStatement = getPreparedStatement(connection, QueryDefinition.READTYPESQUERYSTR);
+            logger.debug("Executing: {}", readTypesStatement);
+            rs = readTypesStatement.executeQuery();
+            while (rs.next()) {
+                typeIds.put(rs.getString("objecttype"), rs.getLong("id"));
+            }
+            logger.debug("Loaded {} object type ids for {}", typeIds.size(), mainTableName);
+        } finally {
+            CleanupHelper.loggedClose(rs);
+            CleanupHelper.loggedClose(readTypesStatement);
+        }
+    }
+
     /**
      * @param type       the object type URI
      * @param connection the DB connection
@@ -536,7 +784,6 @@ public class GenericTableHandler implements TableHandler {
 
         ResultSet rs = null;
         PreparedStatement updateStatement = null;
-        PreparedStatement deletePropStatement = null;
         try {
             rs = readForUpdate(fullId, type, localId, connection);
             String existingRev = rs.getString("rev");
@@ -548,7 +795,6 @@ public class GenericTableHandler implements TableHandler {
                 throw new PreconditionFailedException("Update rejected as current Object revision " + existingRev + " is different than expected by caller (" + rev + "), the object has changed since retrieval.");
             }
             updateStatement = getPreparedStatement(connection, QueryDefinition.UPDATEQUERYSTR);
-            deletePropStatement = getPreparedStatement(connection, QueryDefinition.PROPDELETEQUERYSTR);
 
             // Support changing object identifier
             String newLocalId = (String) obj.get("_id");
@@ -573,14 +819,7 @@ public class GenericTableHandler implements TableHandler {
             }
 
             JsonValue jv = new JsonValue(obj);
-            // TODO: only update what changed?
-            logger.trace("Populating prepared statement {} for {} {} {}", deletePropStatement, fullId, type, localId);
-            deletePropStatement.setString(1, type);
-            deletePropStatement.setString(2, localId);
-            logger.debug("Update properties del statement: {}", deletePropStatement);
-            int deleteCount = deletePropStatement.executeUpdate();
-            logger.trace("Deleted child rows: {} for: {}", deleteCount, fullId);
-            writeValueProperties(fullId, dbId, localId, jv, connection);
+            updateValueProperties(fullId, dbId, jv, connection);
         } finally {
             if (rs != null) {
                 // Ensure associated statement also is closed
@@ -589,7 +828,6 @@ public class GenericTableHandler implements TableHandler {
                 CleanupHelper.loggedClose(rsStatement);
             }
             CleanupHelper.loggedClose(updateStatement);
-            CleanupHelper.loggedClose(deletePropStatement);
         }
     }
 
@@ -653,6 +891,12 @@ public class GenericTableHandler implements TableHandler {
         return queries.query(type, params, connection);
     }
 
+    @Override
+    public void query(String type, Map<String, Object> params, Connection connection, int fetchSize,
+            QueryResourceHandler handler) throws ResourceException {
+        queries.query(type, params, connection, fetchSize, handler);
+    }
+
     @Override
     public Integer command(String type, Map<String, Object> params, Connection connection) throws SQLException, ResourceException {
         return queries.command(type, params, connection);
@@ -712,10 +956,33 @@ public class GenericTableHandler implements TableHandler {
         final List<SortKey> sortKeys = new JsonValue(params).get(SORT_KEYS).asList(SortKey.class);
         // Check for sort keys and build up order-by syntax
         prepareSortKeyStatements(builder, sortKeys, replacementTokens);
+        prepareKeysetPaging(builder, replacementTokens, params);
 
         return builder.toSQL();
     }
 
+    /**
+     * Orders a query paged by object id rather than by offset by the object id, and starts its page after
+     * the object id at which the previous page ended, so that reading a page costs the same however deep it is.
+     *
+     * @param builder the SQL builder
+     * @param replacementTokens a {@link java.util.Map} containing replacement tokens for the {@link java.sql.PreparedStatement}
+     * @param params a map containing query parameters
+     * @return whether the query is paged by object id
+     */
+    protected boolean prepareKeysetPaging(SQLBuilder builder, Map<String, Object> replacementTokens, Map<String, Object> params) {
+        if (!params.containsKey(PAGED_RESULTS_AFTER_ID)) {
+            return false;
+        }
+        final Object afterId = params.get(PAGED_RESULTS_AFTER_ID);
+        if (afterId != null) {
+            builder.andWhere("obj.objectid > ${pagedResultsAfterId}");
+            replacementTokens.put("pagedResultsAfterId", afterId);
+        }
+        builder.orderBy("obj.objectid", true);
+        return true;
+    }
+
     /**
      * Loops through sort keys constructing the inner join and key statements.
      *
@@ -738,6 +1005,33 @@ public class GenericTableHandler implements TableHandler {
             replacementTokens.put(tokenName, sortKey.getField().toString());
         }
     }
+
+    /**
+     * The type and value of a searchable property, as held in the properties table.
+     */
+    private static final class PropertyValue {
+        final String type;
+        final String value;
+
+        PropertyValue(String type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PropertyValue)) {
+                return false;
+            }
+            PropertyValue other = (PropertyValue) o;
+            return StringUtils.equals(type, other.type) && StringUtils.equals(value, other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { type, value });
+        }
+    }
 }
 
 class GenericQueryResultMapper implements QueryResultMapper {
@@ -748,9 +1042,8 @@ class GenericQueryResultMapper implements QueryResultMapper {
     // Type information for the Jackson parser
     TypeReference<LinkedHashMap<String,Object>> typeRef = new TypeReference<LinkedHashMap<String,Object>>() {};
 
-    public List<Map<String, Object>> mapQueryToObject(ResultSet rs, String queryId, String type, Map<String, Object> params,  TableQueries tableQueries)
-            throws SQLException, IOException {
-        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+    public boolean mapQueryToObject(ResultSet rs, String queryId, String type, Map<String, Object> params,
+            TableQueries tableQueries, QueryResourceHandler handler) throws SQLException, IOException {
         ResultSetMetaData rsMetaData = rs.getMetaData();
         boolean hasFullObject = tableQueries.hasColumn(rsMetaData, "fullobject");
         boolean hasId = false;
@@ -766,16 +1059,15 @@ class GenericQueryResultMapper implements QueryResultMapper {
             hasTotal = tableQueries.hasColumn(rsMetaData, "total");
         }
         while (rs.next()) {
+            Map<String, Object> obj;
             if (hasFullObject) {
                 String objString = rs.getString("fullobject");
-                Map<String, Object> obj = mapper.readValue(objString, typeRef);
+                obj = mapper.readValue(objString, typeRef);
 
                 // TODO: remove data logging
                 logger.trace("Query result for queryId: {} type: {} converted obj: {}", new Object[] {queryId, type, obj});
-
-                result.add(obj);
             } else {
-                Map<String, Object> obj = new HashMap<String, Object>();
+                obj = new HashMap<String, Object>();
                 if (hasId) {
                     obj.put("_id", rs.getString("objectid"));
                 }
@@ -793,10 +1085,13 @@ class GenericQueryResultMapper implements QueryResultMapper {
                     JsonValue wrapped = new JsonValue(obj);
                     wrapped.put(pointer, propValue);
                 }
-                result.add(obj);
+            }
+            if (!handler.handleResource(
+                    newResourceResponse((String) obj.get("_id"), (String) obj.get("_rev"), new JsonValue(obj)))) {
+                return false;
             }
         }
-        return result;
+        return true;
     }
 }
 
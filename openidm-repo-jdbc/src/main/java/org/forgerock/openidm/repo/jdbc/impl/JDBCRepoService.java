@@ -26,6 +26,7 @@ import static org.forgerock.json.resource.ResourceResponse.FIELD_CONTENT_REVISIO
 import static org.forgerock.json.resource.Responses.newActionResponse;
 import static org.forgerock.json.resource.Responses.newQueryResponse;
 import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_AFTER_ID;
 import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
 import static org.forgerock.openidm.repo.QueryConstants.PAGE_SIZE;
 import static org.forgerock.openidm.repo.QueryConstants.QUERY_EXPRESSION;
@@ -38,9 +39,12 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
@@ -112,12 +116,37 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     public static final String PID = "org.forgerock.openidm.repo.jdbc";
     private static final String ACTION_COMMAND = "command";
+    private static final String ACTION_BULK = "bulk";
+    private static final String ACTION_BULK_CREATE = "bulkCreate";
+    private static final String ACTION_BULK_UPDATE = "bulkUpdate";
+    private static final String ACTION_BULK_DELETE = "bulkDelete";
+
+    // Fields of the bulk action content and response
+    static final String BULK_OPERATIONS = "operations";
+    static final String BULK_OPERATION = "operation";
+    static final String BULK_CONTENT = "content";
+    static final String BULK_RESULTS = "results";
+    static final String BULK_INDEX = "index";
+    static final String BULK_CREATE = "create";
+    static final String BULK_UPDATE = "update";
+    static final String BULK_DELETE = "delete";
+    static final String BULK_OBJECTS = "objects";
+    static final String BULK_FAILED = "failed";
+    static final String BULK_ERROR = "error";
+
+    // Prefix of the paged results cookie of a query paged by object id, followed by the last object id returned
+    static final String PAGED_BY_ID_COOKIE_PREFIX = "id:";
+
+    // Suffix of the id of the configured query paging a configured query by object id, e.g. query-all-ids-pagedbyid
+    static final String PAGED_BY_ID_QUERY_SUFFIX = "-pagedbyid";
 
     // Keys in the JSON configuration
     public static final String CONFIG_USE_DATASOURCE = "useDataSource";
     public static final String CONFIG_DB_TYPE = "dbType";
     public static final String CONFIG_MAX_TX_RETRY = "maxTxRetry";
     public static final String CONFIG_MAX_BATCH_SIZE = "maxBatchSize";
+    public static final String CONFIG_QUERY_FETCH_SIZE = "queryFetchSize";
+    public static final String CONFIG_BULK_CHUNK_SIZE = "bulkChunkSize";
 
     Map<String, TableHandler> tableHandlers;
     TableHandler defaultTableHandler;
@@ -127,6 +156,12 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     private JsonValue config;
     private int maxTxRetry = 5;
 
+    /** The number of rows queries fetch from the database at a time, or 0 for the driver default */
+    int queryFetchSize = 0;
+
+    /** The number of objects the bulk create, update and delete actions write per transaction */
+    int bulkChunkSize = 100;
+
     /** CryptoService for detecting whether a value is encrypted */
     @Reference
     protected CryptoService cryptoService;
@@ -566,7 +601,8 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
     }
 
     @Override
-    public Promise<QueryResponse, ResourceException> handleQuery(Context context, QueryRequest request, QueryResourceHandler handler) {
+    public Promise<QueryResponse, ResourceException> handleQuery(Context context, QueryRequest request,
+            final QueryResourceHandler handler) {
         try {
 
             // If paged results are requested then decode the cookie in order to determine
@@ -578,11 +614,22 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
             final boolean pagedResultsRequested = requestPageSize > 0;
 
+            // Query filters without sort keys are paged by object id, their cookie holding the last object id
+            final boolean pagedById =
+                    isPagedById(request, getTableHandler(trimStartingSlash(request.getResourcePath())));
+
             // index of first record (used for SKIP/OFFSET)
             final int firstResultIndex;
 
+            // object id after which the page starts, when paged by object id
+            String pagedResultsAfterId = null;
+
             if (pagedResultsRequested) {
-                if (!isNullOrEmpty(pagedResultsCookie)) {
+                if (pagedById && pagedResultsCookie != null
+                        && pagedResultsCookie.startsWith(PAGED_BY_ID_COOKIE_PREFIX)) {
+                    pagedResultsAfterId = pagedResultsCookie.substring(PAGED_BY_ID_COOKIE_PREFIX.length());
+                    firstResultIndex = 0;
+                } else if (!isNullOrEmpty(pagedResultsCookie)) {
                     try {
                         firstResultIndex = Integer.parseInt(pagedResultsCookie);
                     } catch (final NumberFormatException e) {
@@ -598,10 +645,15 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
             // Once cookie is processed Queries.query() can rely on the offset.
             request.setPagedResultsOffset(firstResultIndex);
 
-            List<ResourceResponse> results = query(request);
-            for (ResourceResponse result : results) {
-                handler.handleResource(result);
-            }
+            // Results are handed to the handler as they are read, without holding them all in memory
+            final AtomicReference<String> lastId = new AtomicReference<>();
+            final int handledResults = query(request, pagedResultsAfterId, new QueryResourceHandler() {
+                @Override
+                public boolean handleResource(ResourceResponse resource) {
+                    lastId.set(resource.getId());
+                    return handler.handleResource(resource);
+                }
+            });
 
             /*
              * Execute additional -count query if we are paging
@@ -648,10 +700,12 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                         break;
                 }
 
-                if (results.size() < requestPageSize) {
+                if (handledResults < requestPageSize) {
                     nextCookie = null;
+                } else if (pagedById) {
+                    nextCookie = PAGED_BY_ID_COOKIE_PREFIX + lastId.get();
                 } else {
-                    final int remainingResults = resultCount - (firstResultIndex + results.size());
+                    final int remainingResults = resultCount - (firstResultIndex + handledResults);
                     if (remainingResults == 0) {
                         nextCookie = null;
                     } else {
@@ -677,6 +731,32 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
 
     @Override
     public List<ResourceResponse> query(QueryRequest request) throws ResourceException {
+        final List<ResourceResponse> results = new ArrayList<>();
+        query(request, null, new QueryResourceHandler() {
+            @Override
+            public boolean handleResource(ResourceResponse resource) {
+                results.add(resource);
+                return true;
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Performs a query, handing each result to the handler as soon as it is read from the database.
+     * <p>
+     * With a configured fetch size, the query runs within a transaction, as drivers such as PostgreSQL only
+     * fetch rows in batches of the fetch size rather than all at once when not in auto-commit mode.
+     *
+     * @param request the query request
+     * @param pagedResultsAfterId the object id after which the page starts, if paged by object id and not
+     *        the first page
+     * @param handler the handler of the results; reading stops once it returns false
+     * @return the number of results handled
+     * @throws ResourceException if the query failed
+     */
+    private int query(QueryRequest request, String pagedResultsAfterId, final QueryResourceHandler handler)
+            throws ResourceException {
         String fullId = request.getResourcePath();
         String type = trimStartingSlash(fullId);
         logger.trace("Full id: {} Extracted type: {}", fullId, type);
@@ -696,39 +776,93 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                 throw newResourceException(ResourceException.INTERNAL_ERROR,
                         "No handler configured for resource type " + type);
             }
+            if (!isPagedById(request, tableHandler)) {
+                params.remove(PAGED_RESULTS_AFTER_ID);
+            } else if (request.getQueryId() != null) {
+                // The variant of the configured query starts after the given object id, the first page after ''
+                params.put(QUERY_ID, request.getQueryId() + PAGED_BY_ID_QUERY_SUFFIX);
+                params.put(PAGED_RESULTS_AFTER_ID, pagedResultsAfterId != null ? pagedResultsAfterId : "");
+            } else {
+                params.put(PAGED_RESULTS_AFTER_ID, pagedResultsAfterId);
+            }
             connection = getConnection();
-            connection.setAutoCommit(true); // Ensure we do not implicitly
-                                            // start transaction isolation
-
-            List<Map<String, Object>> docs = tableHandler.query(type, params, connection);
-            List<ResourceResponse> results = new ArrayList<>();
-            for (Map<String, Object> resultMap : docs) {
-                String id = (String) resultMap.get("_id");
-                String rev = (String) resultMap.get("_rev");
-                JsonValue value = new JsonValue(resultMap);
-                ResourceResponse resultResource = newResourceResponse(id, rev, value);
-                results.add(resultResource);
+            // Unless fetching in batches, ensure we do not implicitly start transaction isolation
+            connection.setAutoCommit(queryFetchSize <= 0);
+
+            final AtomicInteger handled = new AtomicInteger();
+            tableHandler.query(type, params, connection, queryFetchSize, new QueryResourceHandler() {
+                @Override
+                public boolean handleResource(ResourceResponse resource) {
+                    handled.incrementAndGet();
+                    return handler.handleResource(resource);
+                }
+            });
+            if (!connection.getAutoCommit()) {
+                connection.commit();
             }
-            return results;
+            return handled.get();
         } catch (SQLException ex) {
             if (logger.isDebugEnabled()) {
                 logger.debug("SQL Exception in query of {} with error code {}, sql state {}",
                         fullId, ex.getErrorCode(), ex.getSQLState(), ex);
             }
+            rollbackQuery(connection);
             throw new InternalServerErrorException("Querying failed: " + ex.getMessage(), ex);
         } catch (ResourceException ex) {
             logger.debug("ResourceException in query of {}", fullId, ex);
+            rollbackQuery(connection);
+            throw ex;
+        } catch (RuntimeException ex) {
+            rollbackQuery(connection);
             throw ex;
         } finally {
             CleanupHelper.loggedClose(connection);
         }
     }
     
+    /**
+     * Query filters without sort keys are paged by object id rather than by offset: each page seeks to the
+     * object id at which the previous page ended, using the index on the object id, instead of reading and
+     * discarding all the previous pages. Configured queries are free-form SQL, so they remain paged by offset,
+     * unless a variant of the query is configured with the {@value #PAGED_BY_ID_QUERY_SUFFIX} suffix, such as the
+     * {@code query-all-ids-pagedbyid} query reconciliation pages its source and target ids with. That variant
+     * selects the page of objects with an object id greater than the {@code _pagedResultsAfterId} token, ordered
+     * by object id.
+     * <p>
+     * The results of such queries are therefore ordered by object id, where they used to come in the unspecified
+     * order of the database, and their paged results cookie is {@value #PAGED_BY_ID_COOKIE_PREFIX} followed by the
+     * last object id rather than an offset. A cookie holding an offset is still accepted. Requesting sort keys
+     * orders and pages the results by offset as before, so an object id cookie can not be combined with them.
+     *
+     * @param request the query request
+     * @param tableHandler the table handler of the queried resource
+     * @return whether the query is paged by object id
+     */
+    private static boolean isPagedById(QueryRequest request, TableHandler tableHandler) {
+        if (request.getPageSize() <= 0 || !request.getSortKeys().isEmpty()) {
+            return false;
+        }
+        if (request.getQueryFilter() != null) {
+            return true;
+        }
+        return request.getQueryId() != null
+                && tableHandler != null
+                && tableHandler.queryIdExists(request.getQueryId() + PAGED_BY_ID_QUERY_SUFFIX);
+    }
+
     @Override
     public Promise<ActionResponse, ResourceException> handleAction(Context context, ActionRequest request) {
         try {
             if (ACTION_COMMAND.equalsIgnoreCase(request.getAction())) {
                 return command(request).asPromise();
+            } else if (ACTION_BULK.equalsIgnoreCase(request.getAction())) {
+                return bulk(request).asPromise();
+            } else if (ACTION_BULK_CREATE.equalsIgnoreCase(request.getAction())) {
+                return bulkObjects(request, BULK_CREATE).asPromise();
+            } else if (ACTION_BULK_UPDATE.equalsIgnoreCase(request.getAction())) {
+                return bulkObjects(request, BULK_UPDATE).asPromise();
+            } else if (ACTION_BULK_DELETE.equalsIgnoreCase(request.getAction())) {
+                return bulkObjects(request, BULK_DELETE).asPromise();
             } else {
                 throw new NotSupportedException("Action operations are not supported");
             }
@@ -801,6 +935,263 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
         return newActionResponse(result);
     }
 
+    /**
+     * Performs the create, update and delete operations listed in the content of the {@code request} on objects
+     * of the requested type, all in one transaction. Consecutive creates are passed to the table handler as one
+     * batch. Updates and deletes require the revision of the object.
+     * <p>
+     * If an operation fails, the transaction is rolled back, and the failure reports the position of the
+     * operation (or of the first create of the failed batch) as {@value #BULK_INDEX} in its detail.
+     *
+     * @param request the request with the list of operations as {@value #BULK_OPERATIONS} in its content
+     * @return the {@code _id} and {@code _rev} of each object written, in the order of the operations
+     * @throws ResourceException if the operations are invalid or failed
+     */
+    private ActionResponse bulk(ActionRequest request) throws ResourceException {
+        final String type = trimStartingSlash(request.getResourcePath());
+        final JsonValue operations = request.getContent().get(BULK_OPERATIONS);
+        if (!operations.isList()) {
+            throw new BadRequestException("The bulk action requires a list of " + BULK_OPERATIONS);
+        }
+        final List<JsonValue> operationList = new ArrayList<JsonValue>(operations.size());
+        for (JsonValue operation : operations) {
+            operationList.add(operation);
+        }
+        return newActionResponse(json(object(field(BULK_RESULTS, bulk(type, operationList)))));
+    }
+
+    /**
+     * Performs the same operation on each of the objects listed in the content of the {@code request}, in
+     * transactions of at most {@link #bulkChunkSize} objects, so that large loads neither hold one long
+     * transaction nor pay for one transaction per object. Each chunk is written as by the bulk action, creates
+     * being batched.
+     * <p>
+     * If a chunk fails, it is rolled back and its objects are written again one per transaction, so that only
+     * the objects that fail are reported as failed, with their {@value #BULK_ERROR}.
+     *
+     * @param request the request with the list of objects as {@value #BULK_OBJECTS} in its content; updates and
+     *        deletes require the {@code _id} and {@code _rev} of each object
+     * @param op the operation to perform on each object
+     * @return the {@value #BULK_INDEX}, {@code _id} and {@code _rev} or {@value #BULK_ERROR} of each object, in
+     *         order, and the number of objects that {@value #BULK_FAILED}
+     * @throws ResourceException if the request is invalid
+     */
+    private ActionResponse bulkObjects(ActionRequest request, String op) throws ResourceException {
+        final String type = trimStartingSlash(request.getResourcePath());
+        final JsonValue objects = request.getContent().get(BULK_OBJECTS);
+        if (!objects.isList()) {
+            throw new BadRequestException("The bulk " + op + " action requires a list of " + BULK_OBJECTS);
+        }
+
+        final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(objects.size());
+        int failed = 0;
+        for (int start = 0; start < objects.size(); start += bulkChunkSize) {
+            final List<JsonValue> chunk = new ArrayList<JsonValue>(bulkChunkSize);
+            for (int i = start; i < Math.min(objects.size(), start + bulkChunkSize); i++) {
+                JsonValue obj = objects.get(i);
+                chunk.add(json(object(
+                        field(BULK_OPERATION, op),
+                        field(FIELD_CONTENT_ID, obj.get(FIELD_CONTENT_ID).getObject()),
+                        field(FIELD_CONTENT_REVISION, obj.get(FIELD_CONTENT_REVISION).getObject()),
+                        field(BULK_CONTENT, obj.getObject()))));
+            }
+            try {
+                results.addAll(indexBulkResults(bulk(type, chunk), start));
+            } catch (ResourceException ex) {
+                logger.debug("Bulk {} of objects {} to {} on {} failed, writing them one at a time",
+                        op, start, start + chunk.size() - 1, type, ex);
+                for (int i = 0; i < chunk.size(); i++) {
+                    try {
+                        results.addAll(indexBulkResults(bulk(type, chunk.subList(i, i + 1)), start + i));
+                    } catch (ResourceException objectEx) {
+                        failed++;
+                        Map<String, Object> result = new LinkedHashMap<String, Object>();
+                        result.put(BULK_INDEX, start + i);
+                        result.put(FIELD_CONTENT_ID, chunk.get(i).get(FIELD_CONTENT_ID).getObject());
+                        result.put(BULK_ERROR, object(
+                                field("code", objectEx.getCode()),
+                                field("reason", objectEx.getReason()),
+                                field("message", objectEx.getMessage())));
+                        results.add(result);
+                    }
+                }
+            }
+        }
+        logger.debug("Bulk {} of {} objects on {}, {} failed", op, objects.size(), type, failed);
+        return newActionResponse(json(object(field(BULK_RESULTS, results), field(BULK_FAILED, failed))));
+    }
+
+    private List<Map<String, Object>> indexBulkResults(List<Map<String, Object>> results, int start) {
+        List<Map<String, Object>> indexed = new ArrayList<Map<String, Object>>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put(BULK_INDEX, start + i);
+            result.putAll(results.get(i));
+            indexed.add(result);
+        }
+        return indexed;
+    }
+
+    /**
+     * Performs create, update and delete operations on objects of a type, all in one transaction.
+     *
+     * @param type the object type
+     * @param operations the operations
+     * @return the {@code _id} and {@code _rev} of each object written, in the order of the operations
+     * @throws ResourceException if the operations are invalid or failed
+     * @see #bulk(ActionRequest)
+     */
+    private List<Map<String, Object>> bulk(String type, List<JsonValue> operations) throws ResourceException {
+        final List<String> localIds = new ArrayList<String>(operations.size());
+        for (JsonValue operation : operations) {
+            String op = operation.get(BULK_OPERATION).asString();
+            String localId = operation.get(FIELD_CONTENT_ID).asString();
+            if (BULK_CREATE.equals(op)) {
+                localIds.add(isNullOrEmpty(localId) ? UUID.randomUUID().toString() : localId);
+            } else if (BULK_UPDATE.equals(op) || BULK_DELETE.equals(op)) {
+                if (isNullOrEmpty(localId)) {
+                    throw new BadRequestException("Bulk " + op + " requires the " + FIELD_CONTENT_ID
+                            + " of the object");
+                }
+                if (isNullOrEmpty(operation.get(FIELD_CONTENT_REVISION).asString())) {
+                    throw new ConflictException("Bulk " + op + " of " + type + "/" + localId
+                            + " does not have the revision it expects set.");
+                }
+                localIds.add(localId);
+            } else {
+                throw new BadRequestException("Unsupported bulk operation " + op);
+            }
+        }
+
+        final List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(operations.size());
+        Connection connection = null;
+        boolean retry;
+        int tryCount = 0;
+        do {
+            TableHandler handler = getTableHandler(type);
+            if (handler == null) {
+                throw newResourceException(ResourceException.INTERNAL_ERROR,
+                        "No handler configured for resource type " + type);
+            }
+
+            retry = false;
+            ++tryCount;
+            results.clear();
+            int index = 0;
+            try {
+                connection = getConnection();
+                connection.setAutoCommit(false);
+
+                while (index < operations.size()) {
+                    JsonValue operation = operations.get(index);
+                    String op = operation.get(BULK_OPERATION).asString();
+                    String localId = localIds.get(index);
+                    if (BULK_CREATE.equals(op)) {
+                        // Batch the consecutive creates
+                        Map<String, Map<String, Object>> objects = new LinkedHashMap<String, Map<String, Object>>();
+                        for (int i = index;
+                                i < operations.size() && BULK_CREATE.equals(operations.get(i).get(BULK_OPERATION).asString());
+                                i++) {
+                            objects.put(localIds.get(i), copyContent(operations.get(i)));
+                        }
+                        handler.createBatch(type, objects, connection);
+                        for (Map<String, Object> obj : objects.values()) {
+                            results.add(bulkResult(obj.get(FIELD_CONTENT_ID), obj.get(FIELD_CONTENT_REVISION)));
+                        }
+                        index += objects.size();
+                    } else if (BULK_UPDATE.equals(op)) {
+                        Map<String, Object> obj = copyContent(operation);
+                        handler.update(type + "/" + localId, type, localId,
+                                operation.get(FIELD_CONTENT_REVISION).asString(), obj, connection);
+                        results.add(bulkResult(localId, obj.get(FIELD_CONTENT_REVISION)));
+                        index++;
+                    } else {
+                        handler.delete(type + "/" + localId, type, localId,
+                                operation.get(FIELD_CONTENT_REVISION).asString(), connection);
+                        results.add(bulkResult(localId, operation.get(FIELD_CONTENT_REVISION).getObject()));
+                        index++;
+                    }
+                }
+
+                connection.commit();
+                logger.debug("Committed bulk of {} operations on {}", operations.size(), type);
+            } catch (SQLException ex) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("SQL Exception in bulk operation {} on {} with error code {}, sql state {}",
+                            index, type, ex.getErrorCode(), ex.getSQLState(), ex);
+                }
+                rollback(connection);
+                if (handler.isErrorType(ex, ErrorType.DUPLICATE_KEY)) {
+                    throw bulkFailure(new PreconditionFailedException(
+                            "Bulk create rejected as Object with same ID already exists and was detected. "
+                                    + "(" + ex.getErrorCode() + "-" + ex.getSQLState() + ")"
+                                    + ex.getMessage(), ex), index);
+                }
+                if (handler.isRetryable(ex, connection)) {
+                    if (tryCount <= maxTxRetry) {
+                        retry = true;
+                        logger.debug("Retryable exception encountered, retry attempt {} of {} : {}", tryCount, maxTxRetry, ex.getMessage());
+                    }
+                }
+                if (!retry) {
+                    throw bulkFailure(new InternalServerErrorException("Bulk operations failed after " + tryCount
+                            + " attempts (" + ex.getErrorCode() + "-" + ex.getSQLState() + "): " + ex.getMessage(),
+                            ex), index);
+                }
+            } catch (ResourceException ex) {
+                logger.debug("ResourceException in bulk operation {} on {}", index, type, ex);
+                rollback(connection);
+                throw bulkFailure(ex, index);
+            } catch (IOException ex) {
+                logger.debug("IO Exception in bulk operation {} on {}", index, type, ex);
+                rollback(connection);
+                throw bulkFailure(new InternalServerErrorException("Conversion of object failed", ex), index);
+            } catch (RuntimeException ex) {
+                logger.debug("Runtime Exception in bulk operation {} on {}", index, type, ex);
+                rollback(connection);
+                throw bulkFailure(new InternalServerErrorException(
+                        "Bulk operations failed with unexpected failure: " + ex.getMessage(), ex), index);
+            } finally {
+                CleanupHelper.loggedClose(connection);
+            }
+        } while (retry);
+
+        return results;
+    }
+
+    private Map<String, Object> copyContent(JsonValue operation) {
+        JsonValue content = operation.get(BULK_CONTENT);
+        return content.isNull()
+                ? new LinkedHashMap<String, Object>()
+                : new LinkedHashMap<String, Object>(content.asMap());
+    }
+
+    private Map<String, Object> bulkResult(Object id, Object rev) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put(FIELD_CONTENT_ID, id);
+        result.put(FIELD_CONTENT_REVISION, rev);
+        return result;
+    }
+
+    private ResourceException bulkFailure(ResourceException ex, int index) {
+        if (ex.getDetail().isNull()) {
+            ex.setDetail(json(object(field(BULK_INDEX, index))));
+        }
+        return ex;
+    }
+
+    /**
+     * Rolls back the transaction of a failed query, if it runs in one: queries only run within a transaction
+     * when fetching rows in batches of a configured fetch size.
+     *
+     * @param connection the connection of the query, or null if none was obtained
+     */
+    private void rollbackQuery(Connection connection) {
+        if (queryFetchSize > 0) {
+            rollback(connection);
+        }
+    }
+
     // Utility method to cleanly roll back including logging
     private void rollback(Connection connection) {
         if (connection != null) {
@@ -882,6 +1273,8 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
                     .defaultTo(DatabaseType.ANSI_SQL99.name())
                     .asEnum(DatabaseType.class);
             maxTxRetry = config.get(CONFIG_MAX_TX_RETRY).defaultTo(5).asInteger();
+            queryFetchSize = config.get(CONFIG_QUERY_FETCH_SIZE).defaultTo(0).asInteger();
+            bulkChunkSize = Math.max(1, config.get(CONFIG_BULK_CHUNK_SIZE).defaultTo(100).asInteger());
             int maxBatchSize = config.get(CONFIG_MAX_BATCH_SIZE).defaultTo(100).asInteger();
 
             JsonValue defaultMapping = config.get("resourceMapping").get("default");
@@ -959,6 +1352,7 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
             testConn = getConnection();
             testConn.setAutoCommit(true); // Ensure we do not implicitly start
                                           // transaction isolation
+            loadTypeIds(testConn);
         } catch (Exception ex) {
             logger.warn(
                     "JDBC Repository start-up experienced a failure getting a DB connection: "
@@ -976,6 +1370,27 @@ public class JDBCRepoService implements RequestHandler, RepoBootService, Reposit
         }
     }
 
+    /**
+     * Loads the ids of the existing object types into the generic table handlers, so that the first creates
+     * of objects of these types do not each look up the id of their type.
+     *
+     * @param connection the DB connection
+     */
+    private void loadTypeIds(Connection connection) {
+        List<TableHandler> handlers = new ArrayList<>(tableHandlers.values());
+        handlers.add(defaultTableHandler);
+        for (TableHandler handler : handlers) {
+            if (handler instanceof GenericTableHandler) {
+                try {
+                    ((GenericTableHandler) handler).loadTypeIds(connection);
+                } catch (SQLException ex) {
+                    logger.warn("Failed to load the object type ids of {}, they will be looked up on first use",
+                            handler, ex);
+                }
+            }
+        }
+    }
+
     GenericTableHandler getGenericTableHandler(DatabaseType databaseType, JsonValue tableConfig,
             String dbSchemaName, JsonValue queries, JsonValue commands, int maxBatchSize) {
 
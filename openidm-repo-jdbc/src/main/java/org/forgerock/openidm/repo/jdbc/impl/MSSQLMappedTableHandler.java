@@ -23,6 +23,7 @@
  */
 package org.forgerock.openidm.repo.jdbc.impl;
 
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_AFTER_ID;
 import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
 import static org.forgerock.openidm.repo.QueryConstants.PAGE_SIZE;
 import static org.forgerock.openidm.repo.QueryConstants.SORT_KEYS;
@@ -67,6 +68,9 @@ public class MSSQLMappedTableHandler extends MappedTableHandler {
         // Check for sort keys and build up order-by syntax
         if (sortKeys != null && sortKeys.size() > 0) {
             keysClause = StringUtils.join(prepareSortKeyStatements(sortKeys), ", ");
+        } else if (params.containsKey(PAGED_RESULTS_AFTER_ID)) {
+            filterString += getKeysetCondition(replacementTokens, params);
+            keysClause = "objectid ASC";
         } else {
             keysClause = "objectid DESC";
         }
@@ -104,7 +104,6 @@ public class MSSQLTableHandler extends GenericTableHandler {
 
         ResultSet rs = null;
         PreparedStatement updateStatement = null;
-        PreparedStatement deletePropStatement = null;
         try {
             rs = readForUpdate(fullId, type, localId, connection);
             String existingRev = rs.getString("rev");
@@ -120,7 +119,6 @@ public class MSSQLTableHandler extends GenericTableHandler {
                         + "the object has changed since retrieval.");
             }
             updateStatement = getPreparedStatement(connection, QueryDefinition.UPDATEQUERYSTR);
-            deletePropStatement = getPreparedStatement(connection, QueryDefinition.PROPDELETEQUERYSTR);
             // Support changing object identifier
             String newLocalId = (String) obj.get("_id");
             if (newLocalId != null && !localId.equals(newLocalId)) {
@@ -148,14 +146,7 @@ public class MSSQLTableHandler extends GenericTableHandler {
             }
 
             JsonValue jv = new JsonValue(obj);
-            // TODO: only update what changed?
-            logger.trace("Populating prepared statement {} for {} {} {}", deletePropStatement, fullId, type, localId);
-            deletePropStatement.setString(1, type);
-            deletePropStatement.setString(2, localId);
-            logger.debug("Update properties del statement: {}", deletePropStatement);
-            int deleteCount = deletePropStatement.executeUpdate();
-            logger.trace("Deleted child rows: {} for: {}", deleteCount, fullId);
-            writeValueProperties(fullId, dbId, localId, jv, connection);
+            updateValueProperties(fullId, dbId, jv, connection);
         } finally {
             if (rs != null) {
                 // Ensure associated statement also is closed
@@ -164,7 +155,6 @@ public class MSSQLTableHandler extends GenericTableHandler {
                 CleanupHelper.loggedClose(rsStatement);
             }
             CleanupHelper.loggedClose(updateStatement);
-            CleanupHelper.loggedClose(deletePropStatement);
         }
     }
 
@@ -223,7 +213,7 @@ public class MSSQLTableHandler extends GenericTableHandler {
         // Check for sort keys and build up order-by syntax
         if (sortKeys != null && sortKeys.size() > 0) {
             prepareSortKeyStatements(builder, sortKeys, replacementTokens);
-        } else {
+        } else if (!prepareKeysetPaging(builder, replacementTokens, params)) {
             builder.orderBy("obj.id", false);
         }
 
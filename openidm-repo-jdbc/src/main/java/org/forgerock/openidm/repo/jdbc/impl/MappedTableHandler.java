@@ -25,6 +25,7 @@
 package org.forgerock.openidm.repo.jdbc.impl;
 
 import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_AFTER_ID;
 import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
 import static org.forgerock.openidm.repo.QueryConstants.PAGE_SIZE;
 import static org.forgerock.openidm.repo.QueryConstants.SORT_KEYS;
@@ -49,6 +50,7 @@ import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.InternalServerErrorException;
 import org.forgerock.json.resource.NotFoundException;
 import org.forgerock.json.resource.PreconditionFailedException;
+import org.forgerock.json.resource.QueryResourceHandler;
 import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.json.resource.ResourceException;
 import org.forgerock.json.resource.SortKey;
@@ -286,6 +288,29 @@ public class MappedTableHandler implements TableHandler {
         }
     }
 
+    /**
+     * Adds all creates to one batched statement and executes it.
+     *
+     * @see org.forgerock.openidm.repo.jdbc.TableHandler#createBatch(java.lang.String, java.util.Map,
+     *      java.sql.Connection)
+     */
+    @Override
+    public void createBatch(String type, Map<String, Map<String, Object>> objects, Connection connection)
+            throws SQLException, IOException {
+        PreparedStatement createStatement =
+                queries.getPreparedStatement(connection, createQueryStr);
+        try {
+            for (Map.Entry<String, Map<String, Object>> object : objects.entrySet()) {
+                create(type + "/" + object.getKey(), type, object.getKey(), object.getValue(), connection,
+                        createStatement, true);
+            }
+            logger.debug("Executing batch of {} creates: {}", objects.size(), createStatement);
+            createStatement.executeBatch();
+        } finally {
+            CleanupHelper.loggedClose(createStatement);
+        }
+    }
+
     /**
      * Adds the option to batch more than one create statement
      *
@@ -492,6 +517,12 @@ public class MappedTableHandler implements TableHandler {
         return queries.query(type, params, connection);
     }
 
+    @Override
+    public void query(String type, Map<String, Object> params, Connection connection, int fetchSize,
+            QueryResourceHandler handler) throws ResourceException {
+        queries.query(type, params, connection, fetchSize, handler);
+    }
+
     @Override
     public Integer command(String type, Map<String, Object> params, Connection connection) throws SQLException, ResourceException {
         return queries.command(type, params, connection);
@@ -528,19 +559,41 @@ public class MappedTableHandler implements TableHandler {
         final String offsetParam = (String) params.get(PAGED_RESULTS_OFFSET);
         final String pageSizeParam = (String) params.get(PAGE_SIZE);
         String pageClause = " LIMIT " + pageSizeParam + " OFFSET " + offsetParam;
+        String keysetClause = "";
 
         // JsonValue-cheat to avoid an unchecked cast
         final List<SortKey> sortKeys = new JsonValue(params).get(SORT_KEYS).asList(SortKey.class);
         // Check for sort keys and build up order-by syntax
         if (sortKeys != null && sortKeys.size() > 0) {
             pageClause = " ORDER BY " + StringUtils.join(prepareSortKeyStatements(sortKeys), ", ") + pageClause;
+        } else if (params.containsKey(PAGED_RESULTS_AFTER_ID)) {
+            keysetClause = getKeysetCondition(replacementTokens, params);
+            pageClause = " ORDER BY objectid ASC" + pageClause;
         }
 
         return "SELECT obj.* FROM ${_dbSchema}.${_mainTable} obj"
                 + getFilterString(filter, replacementTokens)
+                + keysetClause
                 + pageClause;
     }
 
+    /**
+     * Returns the condition starting the page of a query paged by object id rather than by offset after the
+     * object id at which the previous page ended. Such a query is to be ordered by object id.
+     *
+     * @param replacementTokens replacement tokens for the query string
+     * @param params a map containing query parameters
+     * @return the condition to add to the filter string, empty for the first page
+     */
+    protected String getKeysetCondition(Map<String, Object> replacementTokens, Map<String, Object> params) {
+        final Object afterId = params.get(PAGED_RESULTS_AFTER_ID);
+        if (afterId == null) {
+            return "";
+        }
+        replacementTokens.put("pagedResultsAfterId", afterId);
+        return " AND objectid > ${pagedResultsAfterId}";
+    }
+
     /**
      * Loops through sort keys constructing the key statements.
      *
@@ -579,17 +632,19 @@ class ExplicitQueryResultMapper implements QueryResultMapper {
         this.explicitMapping = explicitMapping;
     }
 
-    public List<Map<String, Object>> mapQueryToObject(ResultSet rs, String queryId, String type,
-            Map<String, Object> params, TableQueries tableQueries) throws SQLException,
-            InternalServerErrorException {
+    public boolean mapQueryToObject(ResultSet rs, String queryId, String type,
+            Map<String, Object> params, TableQueries tableQueries, QueryResourceHandler handler)
+            throws SQLException, InternalServerErrorException {
 
-        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
         Set<String> names = Mapping.getColumnNames(rs);
         while (rs.next()) {
             JsonValue obj = explicitMapping.mapToJsonValue(rs, names);
-            result.add(obj.asMap());
+            if (!handler.handleResource(newResourceResponse(
+                    obj.get("_id").asString(), obj.get("_rev").asString(), obj))) {
+                return false;
+            }
         }
-        return result;
+        return true;
     }
 }
 
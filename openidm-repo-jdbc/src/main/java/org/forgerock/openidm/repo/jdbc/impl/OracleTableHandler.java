@@ -59,13 +59,8 @@ public class OracleTableHandler extends GenericTableHandler {
     }
 
     @Override
-    public void create(String fullId, String type, String localId, Map<String, Object> obj, Connection connection)
+    long createObject(String fullId, long typeId, String localId, Map<String, Object> obj, Connection connection)
             throws SQLException, IOException, InternalServerErrorException {
-        connection.setAutoCommit(true);
-        long typeId = getTypeId(type, connection);
-
-        connection.setAutoCommit(false);
-
         PreparedStatement createStatement = null;
         try {
             // Since ORACLE returns the ROWID instead of an autoincremented column, we have to tell the PreparedStatement to
@@ -98,8 +93,7 @@ public class OracleTableHandler extends GenericTableHandler {
             long dbId = keys.getLong(1);
 
             logger.debug("Created object for id {} with rev {}", fullId, rev);
-            JsonValue jv = new JsonValue(obj);
-            writeValueProperties(fullId, dbId, localId, jv, connection);
+            return dbId;
         } finally {
             CleanupHelper.loggedClose(createStatement);
         }
@@ -177,7 +171,7 @@ public class OracleTableHandler extends GenericTableHandler {
         // Check for sort keys and build up order-by syntax
         if (sortKeys != null && sortKeys.size() > 0) {
             prepareSortKeyStatements(builder, sortKeys, replacementTokens);
-        } else {
+        } else if (!prepareKeysetPaging(builder, replacementTokens, params)) {
             builder.orderBy("obj.id", false);
         }
 
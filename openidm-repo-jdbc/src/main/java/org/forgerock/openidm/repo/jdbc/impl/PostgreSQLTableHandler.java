@@ -24,6 +24,7 @@
  */
 package org.forgerock.openidm.repo.jdbc.impl;
 
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_AFTER_ID;
 import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
 import static org.forgerock.openidm.repo.QueryConstants.PAGE_SIZE;
 import static org.forgerock.openidm.repo.QueryConstants.SORT_KEYS;
@@ -147,6 +148,7 @@ public class PostgreSQLTableHandler extends GenericTableHandler {
         final String offsetParam = (String) params.get(PAGED_RESULTS_OFFSET);
         final String pageSizeParam = (String) params.get(PAGE_SIZE);
         String pageClause = " LIMIT " + pageSizeParam + " OFFSET " + offsetParam;
+        String keysetClause = "";
         
         // JsonValue-cheat to avoid an unchecked cast
         final List<SortKey> sortKeys = new JsonValue(params).get(SORT_KEYS).asList(SortKey.class);
@@ -160,6 +162,14 @@ public class PostgreSQLTableHandler extends GenericTableHandler {
                 replacementTokens.put(tokenName, sortKey.getField().toString().substring(1));
             }
             pageClause = " ORDER BY " + StringUtils.join(keys, ", ") + pageClause;
+        } else if (params.containsKey(PAGED_RESULTS_AFTER_ID)) {
+            // Paged by object id, starting after the object id at which the previous page ended
+            final Object afterId = params.get(PAGED_RESULTS_AFTER_ID);
+            if (afterId != null) {
+                keysetClause = " AND obj.objectid > ${pagedResultsAfterId}";
+                replacementTokens.put("pagedResultsAfterId", afterId);
+            }
+            pageClause = " ORDER BY obj.objectid ASC" + pageClause;
         }
 
         replacementTokens.put("otype", params.get("_resource"));
@@ -167,6 +177,8 @@ public class PostgreSQLTableHandler extends GenericTableHandler {
                 + " FROM ${_dbSchema}.${_mainTable} obj"
                 + " INNER JOIN ${_dbSchema}.objecttypes objtype ON objtype.id = obj.objecttypes_id AND objtype.objecttype = ${otype}"
                 + " WHERE "
-                + filter.accept(new JsonExtractPathQueryFilterVisitor(), replacementTokens).toSQL() + pageClause;
+                + filter.accept(new JsonExtractPathQueryFilterVisitor(), replacementTokens).toSQL()
+                + keysetClause
+                + pageClause;
     }
 }
@@ -31,6 +31,7 @@ import org.forgerock.guava.common.base.Function;
 import org.forgerock.guava.common.collect.FluentIterable;
 import org.forgerock.openidm.config.enhanced.InternalErrorException;
 import org.forgerock.openidm.repo.util.Clause;
+import org.forgerock.openidm.repo.util.Clauses;
 import org.forgerock.openidm.repo.util.SQLRenderer;
 
 /**
@@ -187,7 +188,7 @@ abstract class SQLBuilder implements SQLRenderer<String> {
     private final List<SQLRenderer<String>> tables = new ArrayList<SQLRenderer<String>>();
     private final List<SQLRenderer<String>> joins = new ArrayList<SQLRenderer<String>>();
     // the where clause is not final because it is not set at build time
-    private SQLRenderer<String> whereClause = null;
+    private Clause whereClause = null;
     private final List<SQLRenderer<String>> orderBys = new ArrayList<SQLRenderer<String>>();
 
     /**
@@ -314,6 +315,17 @@ abstract class SQLBuilder implements SQLRenderer<String> {
         return this;
     }
 
+    /**
+     * Add a condition to the where clause.
+     *
+     * @param condition the condition that the results must also satisfy
+     * @return the builder
+     */
+    SQLBuilder andWhere(String condition) {
+        this.whereClause = whereClause != null ? whereClause.and(condition) : Clauses.where(condition);
+        return this;
+    }
+
     /**
      * Add an order-by clause.
      *
@@ -26,17 +26,33 @@ package org.forgerock.openidm.repo.jdbc.impl.query;
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.List;
 import java.util.Map;
 
 import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.QueryResourceHandler;
 
 /**
  * Handles the conversion of query resultsets into Object set result
  *
  */
 public interface QueryResultMapper {
-    List<Map<String, Object>> mapQueryToObject(ResultSet rs, String queryId, String type,
-            Map<String, Object> params, TableQueries tableQueries) throws SQLException,
-            IOException, InternalServerErrorException;
+
+    /**
+     * Maps the rows of a query result set to resources, handing each resource to the handler as soon as its row
+     * is read, so that the results are not held in memory as a whole.
+     *
+     * @param rs the result set, positioned before its first row
+     * @param queryId the query identifier, or null for a query expression or filter
+     * @param type the resource component name targeted by the URI
+     * @param params the query parameters
+     * @param tableQueries the queries of the table
+     * @param handler the handler of the resources; reading stops once it returns false
+     * @return false if the handler stopped reading before the end of the result set
+     * @throws SQLException if reading the result set failed
+     * @throws IOException if a row could not be converted
+     * @throws InternalServerErrorException if a row could not be mapped
+     */
+    boolean mapQueryToObject(ResultSet rs, String queryId, String type, Map<String, Object> params,
+            TableQueries tableQueries, QueryResourceHandler handler)
+            throws SQLException, IOException, InternalServerErrorException;
 }
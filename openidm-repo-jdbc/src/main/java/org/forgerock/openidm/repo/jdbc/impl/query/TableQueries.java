@@ -42,7 +42,9 @@ import org.forgerock.json.JsonPointer;
 import org.forgerock.json.JsonValue;
 import org.forgerock.json.resource.BadRequestException;
 import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.QueryResourceHandler;
 import org.forgerock.json.resource.ResourceException;
+import org.forgerock.json.resource.ResourceResponse;
 import org.forgerock.openidm.core.ServerConstants;
 import org.forgerock.openidm.repo.jdbc.TableHandler;
 import org.forgerock.openidm.repo.jdbc.impl.CleanupHelper;
@@ -276,8 +278,47 @@ public class TableQueries {
      */
     public List<Map<String, Object>> query(final String type, Map<String, Object> params, Connection con)
             throws ResourceException {
+        final List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        query(type, params, con, 0, new QueryResourceHandler() {
+            @Override
+            public boolean handleResource(ResourceResponse resource) {
+                result.add(resource.getContent().asMap());
+                return true;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Execute a query like {@link #query(String, Map, Connection)}, handing each result to the handler as soon as
+     * its row is read rather than collecting the results first, so that memory does not grow with the number of
+     * results.
+     *
+     * @param type
+     *            the resource component name targeted by the URI
+     * @param params
+     *            the parameters which include the query id, or the query
+     *            expression, as well as the token key/value pairs to replace in
+     *            the query
+     * @param con
+     *            a handle to a database connection for exclusive use by the
+     *            query method whilst it is executing.
+     * @param fetchSize
+     *            the number of rows to fetch from the database at a time, or
+     *            0 for the driver default
+     * @param handler
+     *            the handler of the results; reading stops once it returns
+     *            false
+     * @throws BadRequestException
+     *             if the passed request parameters are invalid, e.g. missing
+     *             query id or query expression or tokens.
+     * @throws InternalServerErrorException
+     *             if the preparing or executing the query fails because of
+     *             configuration or DB issues
+     */
+    public void query(final String type, Map<String, Object> params, Connection con, int fetchSize,
+            QueryResourceHandler handler) throws ResourceException {
 
-        List<Map<String, Object>> result = null;
         params.put(ServerConstants.RESOURCE_NAME, type);
 
         // If paged results are requested then decode the cookie in order to determine
@@ -336,9 +377,11 @@ public class TableQueries {
         EventEntry measure = Publisher.start(eventName, foundQuery, null);
         ResultSet rs = null;
         try {
+            if (fetchSize > 0) {
+                foundQuery.setFetchSize(fetchSize);
+            }
             rs = foundQuery.executeQuery();
-            result = resultMapper.mapQueryToObject(rs, queryId, type, params, this);
-            measure.setResult(result);
+            resultMapper.mapQueryToObject(rs, queryId, type, params, this, handler);
         } catch (SQLException ex) {
             logger.debug("DB reported failure executing query " +
                             "{} with params: {} error code: {} sqlstate: {} message: {}",
@@ -353,7 +396,6 @@ public class TableQueries {
             CleanupHelper.loggedClose(foundQuery);
             measure.end();
         }
-        return result;
     }
 
     public Integer command(final String type, Map<String, Object> params, Connection con)
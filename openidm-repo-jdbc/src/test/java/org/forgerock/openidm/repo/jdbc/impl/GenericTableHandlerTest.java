@@ -0,0 +1,518 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_AFTER_ID;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
+import static org.forgerock.openidm.repo.QueryConstants.PAGE_SIZE;
+import static org.forgerock.openidm.repo.QueryConstants.SORT_KEYS;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.SortKey;
+import org.forgerock.openidm.repo.jdbc.impl.GenericTableHandler.QueryDefinition;
+import org.forgerock.util.query.QueryFilter;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the {@link GenericTableHandler}.
+ */
+public class GenericTableHandlerTest {
+
+    private static final String TYPE = "managed/user";
+    private static final String FULL_ID = TYPE + "/bjensen";
+    private static final long DB_ID = 1L;
+    private static final String STRING = String.class.getName();
+    private static final String INTEGER = Integer.class.getName();
+
+    private GenericTableHandler tableHandler;
+
+    /** The rows of the properties table of the object, as propkey to proptype and propvalue */
+    private Map<String, List<String>> propertyRows;
+
+    /** The property rows written, in order, as the statement and the propkey */
+    private List<String> propertyWrites;
+
+    /** The rows of the objecttypes table, as objecttype to id */
+    private Map<String, Long> typeRows;
+
+    /** The number of objecttypes reads of a single type */
+    private AtomicInteger typeReads;
+
+    /** The objecttypes inserts attempted, in order, as the objecttype */
+    private List<String> typeInserts;
+
+    /** When set, reads of a type not in the objecttypes table wait on it for the other threads to read it too */
+    private CyclicBarrier typeMissBarrier;
+
+    private Connection connection;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        tableHandler = newTableHandler(true, 100);
+        propertyRows = new TreeMap<>();
+        propertyWrites = new ArrayList<>();
+        typeRows = new HashMap<>();
+        typeReads = new AtomicInteger();
+        typeInserts = Collections.synchronizedList(new ArrayList<String>());
+        typeMissBarrier = null;
+        connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString())).thenAnswer(new Answer<PreparedStatement>() {
+            @Override
+            public PreparedStatement answer(InvocationOnMock invocation) throws Throwable {
+                return statement((String) invocation.getArguments()[0]);
+            }
+        });
+    }
+
+    @Test
+    public void testUpdateWritesOnlyTheChangedProperties() throws Exception {
+        givenPropertyRows(json(object(
+                field("userName", "bjensen"),
+                field("sn", "Jensen"),
+                field("mail", "bjensen@example.com"))));
+
+        tableHandler.updateValueProperties(FULL_ID, DB_ID, json(object(
+                field("userName", "bjensen"),
+                field("sn", "Jensen-Smith"),
+                field("givenName", "Barbara"))), connection);
+
+        assertThat(propertyWrites).containsOnly("insert /givenName", "update /sn", "delete /mail");
+        assertThat(propertyRows).hasSize(3);
+        assertThat(propertyRows.get("/userName")).containsExactly(STRING, "bjensen");
+        assertThat(propertyRows.get("/sn")).containsExactly(STRING, "Jensen-Smith");
+        assertThat(propertyRows.get("/givenName")).containsExactly(STRING, "Barbara");
+    }
+
+    @Test
+    public void testUpdateOfAnUnchangedObjectWritesNoProperties() throws Exception {
+        JsonValue value = json(object(
+                field("userName", "bjensen"),
+                field("roles", array("admin", "user")),
+                field("address", object(field("city", "Grenoble")))));
+        givenPropertyRows(value);
+
+        tableHandler.updateValueProperties(FULL_ID, DB_ID, value.copy(), connection);
+
+        assertThat(propertyWrites).isEmpty();
+        assertThat(propertyRows).hasSize(4);
+    }
+
+    @Test
+    public void testUpdateOfAReshapedArrayShiftsItsElements() throws Exception {
+        givenPropertyRows(json(object(field("roles", array("admin", "auditor", "user")))));
+
+        tableHandler.updateValueProperties(FULL_ID, DB_ID,
+                json(object(field("roles", array("auditor", "user")))), connection);
+
+        assertThat(propertyWrites).containsOnly("update /roles/0", "update /roles/1", "delete /roles/2");
+        assertThat(propertyRows).hasSize(2);
+        assertThat(propertyRows.get("/roles/0")).containsExactly(STRING, "auditor");
+        assertThat(propertyRows.get("/roles/1")).containsExactly(STRING, "user");
+    }
+
+    @Test
+    public void testUpdateOfAnArrayReplacedByAnObjectReplacesItsProperties() throws Exception {
+        givenPropertyRows(json(object(field("address", array("1 Main Street", "Grenoble")))));
+
+        tableHandler.updateValueProperties(FULL_ID, DB_ID,
+                json(object(field("address", object(field("street", "1 Main Street"), field("city", 38000))))),
+                connection);
+
+        assertThat(propertyWrites).containsOnly("insert /address/street", "insert /address/city",
+                "delete /address/0", "delete /address/1");
+        assertThat(propertyRows).hasSize(2);
+        assertThat(propertyRows.get("/address/city")).containsExactly(INTEGER, "38000");
+    }
+
+    @Test
+    public void testUpdateOfAChangedTypeUpdatesTheProperty() throws Exception {
+        givenPropertyRows(json(object(field("age", "42"))));
+
+        tableHandler.updateValueProperties(FULL_ID, DB_ID, json(object(field("age", 42))), connection);
+
+        assertThat(propertyWrites).containsExactly("update /age");
+        assertThat(propertyRows.get("/age")).containsExactly(INTEGER, "42");
+    }
+
+    @Test
+    public void testUpdateWithoutBatchingWritesEachProperty() throws Exception {
+        tableHandler = newTableHandler(true, 1);
+        givenPropertyRows(json(object(field("sn", "Jensen"), field("mail", "bjensen@example.com"))));
+
+        tableHandler.updateValueProperties(FULL_ID, DB_ID,
+                json(object(field("sn", "Jensen-Smith"), field("givenName", "Barbara"))), connection);
+
+        assertThat(propertyWrites).containsOnly("insert /givenName", "update /sn", "delete /mail");
+        assertThat(propertyRows.keySet()).containsOnly("/sn", "/givenName");
+    }
+
+    @Test
+    public void testUpdateDeletesThePropertiesNoLongerSearchable() throws Exception {
+        givenPropertyRows(json(object(field("userName", "bjensen"), field("sn", "Jensen"))));
+        tableHandler = newTableHandler(false, 100);
+
+        tableHandler.updateValueProperties(FULL_ID, DB_ID,
+                json(object(field("userName", "bjensen"), field("sn", "Jensen"))), connection);
+
+        assertThat(propertyWrites).containsOnly("delete /userName", "delete /sn");
+        assertThat(propertyRows).isEmpty();
+    }
+
+    @Test
+    public void testLoadedTypeIdsAreNotReadAgain() throws Exception {
+        typeRows.put(TYPE, 7L);
+        typeRows.put("managed/role", 8L);
+
+        tableHandler.loadTypeIds(connection);
+
+        assertThat(tableHandler.getTypeId(TYPE, connection)).isEqualTo(7L);
+        assertThat(tableHandler.getTypeId("managed/role", connection)).isEqualTo(8L);
+        assertThat(typeReads.get()).isEqualTo(0);
+        assertThat(typeInserts).isEmpty();
+        verify(connection, never()).setAutoCommit(anyBoolean());
+    }
+
+    @Test
+    public void testExistingTypeIdIsReadOnceThenCached() throws Exception {
+        typeRows.put(TYPE, 7L);
+
+        assertThat(tableHandler.getTypeId(TYPE, connection)).isEqualTo(7L);
+        assertThat(tableHandler.getTypeId(TYPE, connection)).isEqualTo(7L);
+
+        assertThat(typeReads.get()).isEqualTo(1);
+        assertThat(typeInserts).isEmpty();
+        verify(connection, never()).setAutoCommit(anyBoolean());
+    }
+
+    @Test
+    public void testMissingTypeIsInsertedInItsOwnTransactionThenCached() throws Exception {
+        typeRows.put("managed/role", 8L);
+        tableHandler.loadTypeIds(connection);
+
+        long typeId = tableHandler.getTypeId(TYPE, connection);
+
+        assertThat(typeRows.get(TYPE)).isEqualTo(typeId);
+        assertThat(typeInserts).containsExactly(TYPE);
+        InOrder inOrder = inOrder(connection);
+        inOrder.verify(connection).setAutoCommit(true);
+        inOrder.verify(connection).setAutoCommit(false);
+
+        // the inserted type is now cached
+        int reads = typeReads.get();
+        assertThat(tableHandler.getTypeId(TYPE, connection)).isEqualTo(typeId);
+        assertThat(typeReads.get()).isEqualTo(reads);
+    }
+
+    @Test
+    public void testConcurrentFirstUseOfATypeInsertsItOnce() throws Exception {
+        typeMissBarrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<Long> firstUse = new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return tableHandler.getTypeId(TYPE, connection);
+                }
+            };
+            Future<Long> first = executor.submit(firstUse);
+            Future<Long> second = executor.submit(firstUse);
+
+            // both threads missed the type, both tried to insert it, the losing insert failed as a duplicate
+            assertThat(first.get(10, TimeUnit.SECONDS)).isEqualTo(typeRows.get(TYPE));
+            assertThat(second.get(10, TimeUnit.SECONDS)).isEqualTo(typeRows.get(TYPE));
+            assertThat(typeRows).hasSize(1);
+            assertThat(typeInserts).containsExactly(TYPE, TYPE);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFirstPageByIdIsOrderedByObjectId() {
+        Map<String, Object> replacementTokens = new HashMap<>();
+        Map<String, Object> params = queryParams();
+        params.put(PAGED_RESULTS_AFTER_ID, null);
+
+        String sql = tableHandler.renderQueryFilter(QueryFilter.<JsonPointer>alwaysTrue(), replacementTokens, params);
+
+        assertThat(sql).endsWith(" ORDER BY obj.objectid ASC LIMIT 2 OFFSET 0");
+        assertThat(sql).doesNotContain("pagedResultsAfterId");
+        assertThat(replacementTokens).doesNotContainKey("pagedResultsAfterId");
+    }
+
+    @Test
+    public void testNextPageByIdStartsAfterTheLastObjectId() {
+        Map<String, Object> replacementTokens = new HashMap<>();
+        Map<String, Object> params = queryParams();
+        params.put(PAGED_RESULTS_AFTER_ID, "b");
+
+        String sql = tableHandler.renderQueryFilter(QueryFilter.<JsonPointer>alwaysTrue(), replacementTokens, params);
+
+        assertThat(sql).contains("obj.objectid > ${pagedResultsAfterId}");
+        assertThat(sql).endsWith(" ORDER BY obj.objectid ASC LIMIT 2 OFFSET 0");
+        assertThat(replacementTokens.get("pagedResultsAfterId")).isEqualTo("b");
+    }
+
+    @Test
+    public void testPageByOffsetIsOrderedBySortKeysOnly() {
+        Map<String, Object> replacementTokens = new HashMap<>();
+        Map<String, Object> params = queryParams();
+        params.put(SORT_KEYS, Collections.singletonList(SortKey.descendingOrder("userName")));
+        params.put(PAGED_RESULTS_OFFSET, "4");
+
+        String sql = tableHandler.renderQueryFilter(QueryFilter.<JsonPointer>alwaysTrue(), replacementTokens, params);
+
+        assertThat(sql).endsWith(" ORDER BY orderby0.propvalue DESC LIMIT 2 OFFSET 4");
+        assertThat(sql).doesNotContain("obj.objectid");
+    }
+
+    @Test
+    public void testPageByOffsetWithoutSortKeysIsNotOrdered() {
+        Map<String, Object> replacementTokens = new HashMap<>();
+
+        String sql = tableHandler.renderQueryFilter(QueryFilter.<JsonPointer>alwaysTrue(), replacementTokens,
+                queryParams());
+
+        assertThat(sql).doesNotContain("ORDER BY");
+        assertThat(sql).endsWith(" LIMIT 2 OFFSET 0");
+    }
+
+    private GenericTableHandler newTableHandler(boolean searchableDefault, int maxBatchSize) {
+        return new GenericTableHandler(
+                json(object(
+                        field("mainTable", "managedobjects"),
+                        field("propertiesTable", "managedobjectproperties"),
+                        field("searchableDefault", searchableDefault))),
+                "openidm", json(object()), json(object()), maxBatchSize, null);
+    }
+
+    /**
+     * Fills the properties table with the properties of a value, as written on create.
+     */
+    private void givenPropertyRows(JsonValue value) throws Exception {
+        tableHandler.writeValueProperties(FULL_ID, DB_ID, "bjensen", value, connection);
+        propertyWrites.clear();
+    }
+
+    /**
+     * Mocks a statement of the properties table, executed against {@link #propertyRows}.
+     */
+    private PreparedStatement statement(final String sql) throws Exception {
+        final Object[] params = new Object[5];
+        final List<Object[]> batch = new ArrayList<>();
+        PreparedStatement statement = mock(PreparedStatement.class);
+        Answer<Void> setParam = new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                params[(Integer) invocation.getArguments()[0]] = invocation.getArguments()[1];
+                return null;
+            }
+        };
+        doAnswer(setParam).when(statement).setLong(anyInt(), anyLong());
+        doAnswer(setParam).when(statement).setString(anyInt(), (String) any());
+        when(statement.executeUpdate()).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                return execute(sql, params.clone());
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                batch.add(params.clone());
+                return null;
+            }
+        }).when(statement).addBatch();
+        when(statement.executeBatch()).thenAnswer(new Answer<int[]>() {
+            @Override
+            public int[] answer(InvocationOnMock invocation) throws Throwable {
+                int[] counts = new int[batch.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = execute(sql, batch.get(i));
+                }
+                batch.clear();
+                return counts;
+            }
+        });
+        when(statement.executeQuery()).thenAnswer(new Answer<ResultSet>() {
+            @Override
+            public ResultSet answer(InvocationOnMock invocation) throws Throwable {
+                return executeQuery(sql, params.clone());
+            }
+        });
+        return statement;
+    }
+
+    private ResultSet executeQuery(String sql, Object[] params) throws Exception {
+        List<Map<String, String>> rows = new ArrayList<>();
+        if (sql.equals(query(QueryDefinition.PROPREADQUERYSTR))) {
+            assertThat(params[1]).isEqualTo(DB_ID);
+            for (Map.Entry<String, List<String>> row : propertyRows.entrySet()) {
+                Map<String, String> columns = new HashMap<>();
+                columns.put("propkey", row.getKey());
+                columns.put("proptype", row.getValue().get(0));
+                columns.put("propvalue", row.getValue().get(1));
+                rows.add(columns);
+            }
+        } else if (sql.equals(query(QueryDefinition.READTYPESQUERYSTR))) {
+            synchronized (typeRows) {
+                for (Map.Entry<String, Long> row : typeRows.entrySet()) {
+                    rows.add(typeColumns(row.getKey(), row.getValue()));
+                }
+            }
+        } else if (sql.equals(query(QueryDefinition.READTYPEQUERYSTR))) {
+            typeReads.incrementAndGet();
+            String objecttype = (String) params[1];
+            Long id;
+            synchronized (typeRows) {
+                id = typeRows.get(objecttype);
+            }
+            if (id != null) {
+                rows.add(typeColumns(objecttype, id));
+            } else if (typeMissBarrier != null) {
+                typeMissBarrier.await(10, TimeUnit.SECONDS);
+            }
+        } else {
+            throw new SQLException("Unexpected query " + sql);
+        }
+        return resultSet(rows);
+    }
+
+    private static Map<String, String> typeColumns(String objecttype, long id) {
+        Map<String, String> columns = new HashMap<>();
+        columns.put("objecttype", objecttype);
+        columns.put("id", String.valueOf(id));
+        return columns;
+    }
+
+    private int execute(String sql, Object[] params) throws SQLException {
+        if (sql.equals(query(QueryDefinition.PROPCREATEQUERYSTR))) {
+            assertThat(params[1]).isEqualTo(DB_ID);
+            String propkey = (String) params[2];
+            if (propertyRows.containsKey(propkey)) {
+                throw new SQLException("Duplicate property " + propkey);
+            }
+            propertyRows.put(propkey, Arrays.asList((String) params[3], (String) params[4]));
+            propertyWrites.add("insert " + propkey);
+        } else if (sql.equals(query(QueryDefinition.PROPUPDATEQUERYSTR))) {
+            assertThat(params[3]).isEqualTo(DB_ID);
+            String propkey = (String) params[4];
+            assertThat(propertyRows).containsKey(propkey);
+            propertyRows.put(propkey, Arrays.asList((String) params[1], (String) params[2]));
+            propertyWrites.add("update " + propkey);
+        } else if (sql.equals(query(QueryDefinition.PROPDELETEKEYQUERYSTR))) {
+            assertThat(params[1]).isEqualTo(DB_ID);
+            String propkey = (String) params[2];
+            assertThat(propertyRows).containsKey(propkey);
+            propertyRows.remove(propkey);
+            propertyWrites.add("delete " + propkey);
+        } else if (sql.equals(query(QueryDefinition.CREATETYPEQUERYSTR))) {
+            String objecttype = (String) params[1];
+            typeInserts.add(objecttype);
+            synchronized (typeRows) {
+                if (typeRows.containsKey(objecttype)) {
+                    throw new SQLException("Duplicate object type " + objecttype);
+                }
+                typeRows.put(objecttype, typeRows.size() + 100L);
+            }
+        } else {
+            throw new SQLException("Unexpected statement " + sql);
+        }
+        return 1;
+    }
+
+    private String query(QueryDefinition queryDefinition) {
+        return tableHandler.queryMap.get(queryDefinition);
+    }
+
+    /**
+     * Mocks a result set of the given rows, as column name to value.
+     */
+    private static ResultSet resultSet(final List<Map<String, String>> rows) throws Exception {
+        final AtomicInteger row = new AtomicInteger(-1);
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.next()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                return row.incrementAndGet() < rows.size();
+            }
+        });
+        Answer<String> column = new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return rows.get(row.get()).get((String) invocation.getArguments()[0]);
+            }
+        };
+        when(rs.getString(anyString())).thenAnswer(column);
+        when(rs.getLong(anyString())).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return Long.valueOf(rows.get(row.get()).get((String) invocation.getArguments()[0]));
+            }
+        });
+        return rs;
+    }
+
+    private Map<String, Object> queryParams() {
+        Map<String, Object> params = new HashMap<>();
+        params.put("_resource", TYPE);
+        params.put(PAGE_SIZE, "2");
+        params.put(PAGED_RESULTS_OFFSET, "0");
+        params.put(SORT_KEYS, Collections.<SortKey>emptyList());
+        return params;
+    }
+}
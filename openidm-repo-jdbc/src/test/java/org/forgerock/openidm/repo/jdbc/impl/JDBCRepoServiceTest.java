@@ -0,0 +1,430 @@
+/*
+ * The contents of this file are subject to the terms of the Common Development and
+ * Distribution License (the License). You may not use this file except in compliance with the
+ * License.
+ *
+ * You can obtain a copy of the License at legal/CDDLv1.0.txt. See the License for the
+ * specific language governing permission and limitations under the License.
+ *
+ * When distributing Covered Software, include this CDDL Header Notice in each file and include
+ * the License file at legal/CDDLv1.0.txt. If applicable, add the following below the CDDL
+ * Header, with the fields enclosed by brackets [] replaced by your own identifying
+ * information: "Portions copyright [year] [name of copyright owner]".
+ *
+ * Copyright 2016 ForgeRock AS.
+ */
+
+package org.forgerock.openidm.repo.jdbc.impl;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.forgerock.json.JsonValue.array;
+import static org.forgerock.json.JsonValue.field;
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.forgerock.json.resource.Responses.newResourceResponse;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_AFTER_ID;
+import static org.forgerock.openidm.repo.QueryConstants.PAGED_RESULTS_OFFSET;
+import static org.forgerock.openidm.repo.QueryConstants.QUERY_ID;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.json.JsonPointer;
+import org.forgerock.json.JsonValue;
+import org.forgerock.json.resource.BadRequestException;
+import org.forgerock.json.resource.InternalServerErrorException;
+import org.forgerock.json.resource.QueryRequest;
+import org.forgerock.json.resource.QueryResourceHandler;
+import org.forgerock.json.resource.QueryResponse;
+import org.forgerock.json.resource.Requests;
+import org.forgerock.json.resource.ResourceResponse;
+import org.forgerock.openidm.repo.jdbc.TableHandler;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.query.QueryFilter;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests of the {@link JDBCRepoService} against a mocked {@link TableHandler} and {@link Connection}.
+ */
+public class JDBCRepoServiceTest {
+
+    private static final String TYPE = "managed/user";
+
+    private TableHandler tableHandler;
+    private Connection connection;
+    private JDBCRepoService repoService;
+
+    /** What happened, in order: the table handler reading a row, or the client handling it */
+    private List<String> events;
+
+    /** The parameters of each query passed to the table handler */
+    private List<Map<String, Object>> queryParams;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        tableHandler = mock(TableHandler.class);
+        connection = mock(Connection.class);
+        events = new ArrayList<>();
+        queryParams = new ArrayList<>();
+        repoService = new JDBCRepoService() {
+            @Override
+            Connection getConnection() throws SQLException {
+                return connection;
+            }
+        };
+        repoService.tableHandlers = new HashMap<>();
+        repoService.tableHandlers.put(TYPE, tableHandler);
+        repoService.defaultTableHandler = tableHandler;
+    }
+
+    @Test
+    public void testQueryHandsEachResultOverAsItIsRead() throws Exception {
+        givenRows("1", "2", "3");
+        final List<String> handled = new ArrayList<>();
+
+        repoService.handleQuery(new RootContext(), Requests.newQueryRequest(TYPE).setQueryId("query-all-ids"),
+                new QueryResourceHandler() {
+                    @Override
+                    public boolean handleResource(ResourceResponse resource) {
+                        events.add("handled " + resource.getId());
+                        handled.add(resource.getId());
+                        return true;
+                    }
+                }).getOrThrowUninterruptibly();
+
+        assertThat(handled).containsExactly("1", "2", "3");
+        assertThat(events).containsExactly("read 1", "handled 1", "read 2", "handled 2", "read 3", "handled 3");
+        verify(connection).setAutoCommit(true);
+        verify(connection).close();
+    }
+
+    @Test
+    public void testQueryStopsReadingOnceTheHandlerReturnsFalse() throws Exception {
+        final List<Boolean> returned = givenRows("1", "2", "3");
+
+        repoService.handleQuery(new RootContext(), Requests.newQueryRequest(TYPE).setQueryId("query-all-ids"),
+                new QueryResourceHandler() {
+                    @Override
+                    public boolean handleResource(ResourceResponse resource) {
+                        events.add("handled " + resource.getId());
+                        return !"2".equals(resource.getId());
+                    }
+                }).getOrThrowUninterruptibly();
+
+        assertThat(returned).containsExactly(true, false);
+        assertThat(events).containsExactly("read 1", "handled 1", "read 2", "handled 2");
+        verify(connection).close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQueryWithFetchSizeRunsInTransaction() throws Exception {
+        repoService.queryFetchSize = 50;
+        givenRows("1", "2");
+
+        List<ResourceResponse> results = repoService.query(Requests.newQueryRequest(TYPE).setQueryId("query-all-ids"));
+
+        assertThat(results).hasSize(2);
+        verify(tableHandler).query(eq(TYPE), anyMap(), eq(connection), eq(50),
+                any(QueryResourceHandler.class));
+        verify(connection).setAutoCommit(false);
+        verify(connection).commit();
+        verify(connection, never()).rollback();
+        verify(connection).close();
+    }
+
+    @Test
+    public void testQueryWithFetchSizeRollsBackWhenTheHandlerFails() throws Exception {
+        repoService.queryFetchSize = 50;
+        givenRows("1", "2");
+
+        try {
+            repoService.handleQuery(new RootContext(), Requests.newQueryRequest(TYPE).setQueryId("query-all-ids"),
+                    new QueryResourceHandler() {
+                        @Override
+                        public boolean handleResource(ResourceResponse resource) {
+                            throw new IllegalStateException("handler failed");
+                        }
+                    }).getOrThrowUninterruptibly();
+            fail("Query should have failed");
+        } catch (InternalServerErrorException e) {
+            assertThat(e.getCause()).hasMessage("handler failed");
+        }
+
+        verify(connection, never()).commit();
+        verify(connection).rollback();
+        verify(connection).close();
+    }
+
+    @Test
+    public void testQueryFilterPagedByIdRoundTripsTheLastIdInItsCookie() throws Exception {
+        givenRows("a", "b");
+        QueryResponse firstPage = handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue())
+                .setPageSize(2));
+
+        assertThat(firstPage.getPagedResultsCookie()).isEqualTo("id:b");
+        assertThat(queryParams.get(0)).containsKey(PAGED_RESULTS_AFTER_ID);
+        assertThat(queryParams.get(0).get(PAGED_RESULTS_AFTER_ID)).isNull();
+
+        givenRows("c");
+        QueryResponse lastPage = handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue())
+                .setPageSize(2)
+                .setPagedResultsCookie(firstPage.getPagedResultsCookie()));
+
+        assertThat(queryParams.get(1).get(PAGED_RESULTS_AFTER_ID)).isEqualTo("b");
+        assertThat(queryParams.get(1).get(PAGED_RESULTS_OFFSET)).isEqualTo(0);
+        assertThat(lastPage.getPagedResultsCookie()).isNull();
+    }
+
+    @Test
+    public void testQueryFilterPagedByIdStillAcceptsAnOffsetCookie() throws Exception {
+        givenRows("c", "d");
+        QueryResponse page = handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue())
+                .setPageSize(2)
+                .setPagedResultsCookie("2"));
+
+        assertThat(queryParams.get(0).get(PAGED_RESULTS_OFFSET)).isEqualTo(2);
+        assertThat(queryParams.get(0).get(PAGED_RESULTS_AFTER_ID)).isNull();
+        assertThat(page.getPagedResultsCookie()).isEqualTo("id:d");
+    }
+
+    @Test
+    public void testQueryFilterWithSortKeysIsPagedByOffset() throws Exception {
+        givenRows("b", "a");
+        QueryResponse page = handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue())
+                .addSortKey("userName")
+                .setPageSize(2)
+                .setPagedResultsCookie("2"));
+
+        assertThat(queryParams.get(0)).doesNotContainKey(PAGED_RESULTS_AFTER_ID);
+        assertThat(queryParams.get(0).get(PAGED_RESULTS_OFFSET)).isEqualTo(2);
+        assertThat(page.getPagedResultsCookie()).isEqualTo("4");
+    }
+
+    @Test(expectedExceptions = BadRequestException.class)
+    public void testQueryFilterWithSortKeysRejectsAnIdCookie() throws Exception {
+        givenRows("a", "b");
+        handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryFilter(QueryFilter.<JsonPointer>alwaysTrue())
+                .addSortKey("userName")
+                .setPageSize(2)
+                .setPagedResultsCookie("id:b"));
+    }
+
+    @Test
+    public void testQueryIdIsPagedByOffset() throws Exception {
+        givenRows("a", "b");
+        QueryResponse page = handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryId("query-all-ids")
+                .setPageSize(2));
+
+        assertThat(queryParams.get(0)).doesNotContainKey(PAGED_RESULTS_AFTER_ID);
+        assertThat(page.getPagedResultsCookie()).isEqualTo("2");
+    }
+
+    @Test
+    public void testQueryIdWithAPagedByIdVariantIsPagedById() throws Exception {
+        when(tableHandler.queryIdExists("query-all-ids-pagedbyid")).thenReturn(true);
+        givenRows("a", "b");
+        QueryResponse firstPage = handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryId("query-all-ids")
+                .setPageSize(2));
+
+        assertThat(queryParams.get(0).get(QUERY_ID)).isEqualTo("query-all-ids-pagedbyid");
+        assertThat(queryParams.get(0).get(PAGED_RESULTS_AFTER_ID)).isEqualTo("");
+        assertThat(firstPage.getPagedResultsCookie()).isEqualTo("id:b");
+
+        givenRows("c");
+        QueryResponse lastPage = handleQuery(Requests.newQueryRequest(TYPE)
+                .setQueryId("query-all-ids")
+                .setPageSize(2)
+                .setPagedResultsCookie(firstPage.getPagedResultsCookie()));
+
+        assertThat(queryParams.get(1).get(QUERY_ID)).isEqualTo("query-all-ids-pagedbyid");
+        assertThat(queryParams.get(1).get(PAGED_RESULTS_AFTER_ID)).isEqualTo("b");
+        assertThat(lastPage.getPagedResultsCookie()).isNull();
+    }
+
+    @Test
+    public void testBulkCreateWritesOneTransactionPerChunk() throws Exception {
+        repoService.bulkChunkSize = 2;
+        final List<Set<String>> batches = givenCreateBatchFailingFor();
+
+        JsonValue response = bulk("bulkCreate", object(field("_id", "a")), object(field("_id", "b")),
+                object(field("_id", "c")), object(field("_id", "d")), object(field("_id", "e")));
+
+        assertThat(batches).hasSize(3);
+        assertThat(batches.get(0)).containsOnly("a", "b");
+        assertThat(batches.get(1)).containsOnly("c", "d");
+        assertThat(batches.get(2)).containsOnly("e");
+        verify(connection, times(3)).commit();
+        verify(connection, never()).rollback();
+        assertThat(response.get("failed").asInteger()).isEqualTo(0);
+        assertThat(response.get("results").size()).isEqualTo(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(response.get("results").get(i).get("index").asInteger()).isEqualTo(i);
+        }
+        assertThat(response.get("results").get(4).get("_id").asString()).isEqualTo("e");
+    }
+
+    @Test
+    public void testBulkCreateRollsBackFailingChunkAndWritesItsObjectsOneAtATime() throws Exception {
+        repoService.bulkChunkSize = 2;
+        final List<Set<String>> batches = givenCreateBatchFailingFor("c");
+
+        JsonValue response = bulk("bulkCreate", object(field("_id", "a")), object(field("_id", "b")),
+                object(field("_id", "c")), object(field("_id", "d")));
+
+        // the chunk with c is rolled back, then c and d are each written in a transaction of their own
+        assertThat(batches).hasSize(4);
+        assertThat(batches.get(1)).containsOnly("c", "d");
+        assertThat(batches.get(2)).containsOnly("c");
+        assertThat(batches.get(3)).containsOnly("d");
+        verify(connection, times(2)).commit();
+        verify(connection, times(2)).rollback();
+
+        assertThat(response.get("failed").asInteger()).isEqualTo(1);
+        JsonValue results = response.get("results");
+        assertThat(results.size()).isEqualTo(4);
+        assertThat(results.get(2).get("index").asInteger()).isEqualTo(2);
+        assertThat(results.get(2).get("_id").asString()).isEqualTo("c");
+        assertThat(results.get(2).get("error").get("code").asInteger()).isEqualTo(500);
+        assertThat(results.get(3).get("index").asInteger()).isEqualTo(3);
+        assertThat(results.get(3).get("_id").asString()).isEqualTo("d");
+        assertThat(results.get(3).isDefined("error")).isFalse();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBulkUpdateFallsBackPerObjectWhenAnObjectIsInvalid() throws Exception {
+        repoService.bulkChunkSize = 2;
+
+        JsonValue response = bulk("bulkUpdate", object(field("_id", "a"), field("_rev", "1")),
+                object(field("_id", "b")), object(field("_id", "c"), field("_rev", "3")));
+
+        // the first chunk is rejected as b has no revision, so only a is updated in it
+        verify(tableHandler).update(eq(TYPE + "/a"), eq(TYPE), eq("a"), eq("1"), anyMap(), eq(connection));
+        verify(tableHandler, never()).update(eq(TYPE + "/b"), anyString(), anyString(), anyString(), anyMap(),
+                any(Connection.class));
+        verify(tableHandler).update(eq(TYPE + "/c"), eq(TYPE), eq("c"), eq("3"), anyMap(), eq(connection));
+        verify(connection, times(2)).commit();
+
+        assertThat(response.get("failed").asInteger()).isEqualTo(1);
+        assertThat(response.get("results").get(1).get("_id").asString()).isEqualTo("b");
+        assertThat(response.get("results").get(1).get("error").get("code").asInteger()).isEqualTo(409);
+        assertThat(response.get("results").get(2).get("_rev").asString()).isEqualTo("3");
+    }
+
+    @Test
+    public void testBulkDeleteWritesOneTransactionPerChunk() throws Exception {
+        repoService.bulkChunkSize = 2;
+
+        JsonValue response = bulk("bulkDelete", object(field("_id", "a"), field("_rev", "1")),
+                object(field("_id", "b"), field("_rev", "2")), object(field("_id", "c"), field("_rev", "3")));
+
+        verify(tableHandler).delete(TYPE + "/a", TYPE, "a", "1", connection);
+        verify(tableHandler).delete(TYPE + "/b", TYPE, "b", "2", connection);
+        verify(tableHandler).delete(TYPE + "/c", TYPE, "c", "3", connection);
+        verify(connection, times(2)).commit();
+        assertThat(response.get("failed").asInteger()).isEqualTo(0);
+        assertThat(response.get("results").size()).isEqualTo(3);
+    }
+
+    /**
+     * Lets the table handler stream a row per id to the handler of the query, the way the table handlers do:
+     * each row is handed over as soon as it is read, and reading stops once the handler returns false.
+     *
+     * @param ids the ids of the rows
+     * @return what the handler returned for each row handed over
+     */
+    @SuppressWarnings("unchecked")
+    private List<Boolean> givenRows(final String... ids) throws Exception {
+        final List<Boolean> returned = new ArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                queryParams.add(new HashMap<>((Map<String, Object>) invocation.getArguments()[1]));
+                QueryResourceHandler handler = (QueryResourceHandler) invocation.getArguments()[4];
+                for (String id : ids) {
+                    events.add("read " + id);
+                    boolean more = handler.handleResource(newResourceResponse(id, "0", json(object())));
+                    returned.add(more);
+                    if (!more) {
+                        break;
+                    }
+                }
+                return null;
+            }
+        }).when(tableHandler).query(anyString(), anyMap(), any(Connection.class),
+                anyInt(), any(QueryResourceHandler.class));
+        return returned;
+    }
+
+    /**
+     * Records the ids of each batch of objects passed to the table handler to create, failing the batches that
+     * contain any of the given ids.
+     *
+     * @param failingIds the ids of the objects that fail to be created
+     * @return the ids of each batch, in order
+     */
+    @SuppressWarnings("unchecked")
+    private List<Set<String>> givenCreateBatchFailingFor(final String... failingIds) throws Exception {
+        final List<Set<String>> batches = new ArrayList<>();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Map<String, Map<String, Object>> objects =
+                        (Map<String, Map<String, Object>>) invocation.getArguments()[1];
+                batches.add(new LinkedHashSet<>(objects.keySet()));
+                for (String id : failingIds) {
+                    if (objects.containsKey(id)) {
+                        throw new SQLException("Failed to create " + id);
+                    }
+                }
+                return null;
+            }
+        }).when(tableHandler).createBatch(anyString(), anyMap(), any(Connection.class));
+        return batches;
+    }
+
+    private QueryResponse handleQuery(QueryRequest request) throws Exception {
+        return repoService.handleQuery(new RootContext(), request, new QueryResourceHandler() {
+            @Override
+            public boolean handleResource(ResourceResponse resource) {
+                return true;
+            }
+        }).getOrThrowUninterruptibly();
+    }
+
+    private JsonValue bulk(String action, Object... objects) throws Exception {
+        return repoService.handleAction(new RootContext(), Requests.newActionRequest(TYPE, action)
+                .setContent(json(object(field("objects", array(objects))))))
+                .getOrThrowUninterruptibly()
+                .getJsonContent();
+    }
+}
@@ -128,6 +128,12 @@ public final class QueryConstants {
      * Sort keys used for sorting the results of the query.
      */
     public static final String SORT_KEYS = HttpUtils.PARAM_SORT_KEYS;
+
+    /**
+     * Object id after which the page of a query filter starts, for queries paged by object id rather than by
+     * offset. Present with a null value for the first page, which is ordered by object id but not bounded.
+     */
+    public static final String PAGED_RESULTS_AFTER_ID = "_pagedResultsAfterId";
     
     /**
      * The clause at the end of the query expressing that provides paging details.
@@ -25,17 +25,13 @@
 /** 
  * Calculates the effective assignments, based on the effective roles.
  * 
- * In the case of a reconciliation run, the assignments and roles will be pre-loaded into the ReconContext. This script
- * will first attempt to find the roles and assignments in the ReconContext and if they are not found will issue a read.
+ * Roles and assignments are read through the router, which serves them from the managed object cache once read.
  */
 
 /*global object */
 
 var effectiveAssignments = [],
-    effectiveRoles = object[effectiveRolesPropName],
-    reconContext = context.recon,
-    assignments = typeof(reconContext) === "undefined" ? null : reconContext.assignments,
-    roles = typeof(reconContext) === "undefined" ? null : reconContext.roles;
+    effectiveRoles = object[effectiveRolesPropName];
 
 logger.debug("Invoked effectiveAssignments script on property {}", propertyName);
 
@@ -49,42 +45,20 @@ logger.trace("Configured effectiveRolesPropName: {}", effectiveRolesPropName);
 /**
  * Returns a managed role object representing the supplied role id.  
  * 
- * If the ReconContext is present it will use the stored values for roles, otherwise it will issue a read request.
- * 
  * @param roleId the id of the managed role
  * @returns a managed role object
  */
 function getRole(roleId) {
-    // First check if roles were loaded in the context (in case of recon)
-    if (roles != null) {
-        for (var index in roles) {
-            var role = roles[index];
-            if (roleId == "managed/role/" + role._id) {
-                return role;
-            }
-        }
-    }
     return openidm.read(roleId, null, [ "assignments" ]);
 }
 
 /**
  * Returns a managed assignment object representing the supplied assignment id.  
  * 
- * If the ReconContext is present it will use the stored values for assignments, otherwise it will issue a read request.
- * 
  * @param assignmentId the id of the managed assignment
  * @returns a managed assignment object
  */
 function getAssignment(assignmentId) {
-    // First check if assignments were loaded in the context (in case of recon)
-    if (assignments != null) {
-        for (var index in assignments) {
-            var assignment = assignments[index];
-            if (assignmentId == "managed/assignment/" + assignment._id) {
-                return assignment;
-            }
-        }
-    }
     return openidm.read(assignmentId, null);
 }
 
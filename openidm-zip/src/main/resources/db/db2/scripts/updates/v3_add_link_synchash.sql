@@ -0,0 +1 @@
+ALTER TABLE SOPENIDM.LINKS ADD COLUMN synchash VARCHAR(38);
@@ -149,6 +149,7 @@ CREATE  TABLE IF NOT EXISTS `openidm`.`links` (
   `linkqualifier` VARCHAR(50) NOT NULL ,
   `firstid` VARCHAR(255) NOT NULL ,
   `secondid` VARCHAR(255) NOT NULL ,
+  `synchash` VARCHAR(38) NULL ,
   UNIQUE INDEX `idx_links_first` (`linktype` ASC, `linkqualifier` ASC, `firstid` ASC) ,
   UNIQUE INDEX `idx_links_second` (`linktype` ASC, `linkqualifier` ASC, `secondid` ASC) ,
   PRIMARY KEY (`objectid`) );
@@ -251,6 +251,7 @@ CREATE  TABLE  [openidm].[links]
   linkqualifier NVARCHAR(50) NOT NULL ,
   firstid NVARCHAR(255) NOT NULL ,
   secondid NVARCHAR(255) NOT NULL ,
+  synchash NVARCHAR(38) NULL ,
   PRIMARY KEY CLUSTERED (objectid)
 );
 CREATE UNIQUE INDEX idx_links_first ON [openidm].[links] (linktype ASC, linkqualifier ASC, firstid ASC);
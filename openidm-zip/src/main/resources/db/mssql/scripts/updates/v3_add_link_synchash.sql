@@ -0,0 +1 @@
+ALTER TABLE [openidm].[links] ADD synchash NVARCHAR(38) NULL;
@@ -0,0 +1 @@
+ALTER TABLE links ADD synchash VARCHAR2(38 CHAR);
@@ -0,0 +1 @@
+ALTER TABLE openidm.links ADD COLUMN synchash VARCHAR(38);